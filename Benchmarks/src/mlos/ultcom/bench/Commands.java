@@ -0,0 +1,74 @@
+package mlos.ultcom.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mlos.ultcom.command.Context;
+import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.command.ProgressEvent;
+import mlos.ultcom.command.ProgressListener;
+
+/**
+ * Runs long commands in the calling thread, as if they were run by 
+ * {@code CommandExecutor}, and waits until they report the outcome.
+ * 
+ * @author Marcin Los
+ */
+public class Commands
+{
+    private Commands()
+    {
+    }
+    
+    /**
+     * Executes a command.
+     * 
+     * @throws Exception if the command has failed, with its cause
+     */
+    public static void run(LongCommand command, Context active,
+        Context inactive) throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = 
+            new AtomicReference<Throwable>();
+        ProgressListener listener = new ProgressListener()
+        {
+            @Override
+            public void progressChange(ProgressEvent e)
+            {
+            }
+            
+            @Override
+            public void finished(Object source)
+            {
+                done.countDown();
+            }
+            
+            @Override
+            public void failed(Object source, Throwable cause)
+            {
+                failure.set(cause);
+                done.countDown();
+            }
+        };
+        command.addProgressListener(listener);
+        try
+        {
+            command.execute(active, inactive);
+            done.await();
+        }
+        finally
+        {
+            command.removeProgressListener(listener);
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof Exception)
+        {
+            throw (Exception) cause;
+        }
+        else if (cause != null)
+        {
+            throw new Exception("Command has failed", cause);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.localfs.LocalDirectory;
+import mlos.ultcom.ubercp.Copy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying a single local file by {@code Copy}, from start to the
+ * finished notification. The copy overwrites the one made by the
+ * previous invocation. Throughput in bytes per second is the score times
+ * the size; files above 256 MB are copied in ranges.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CopyBenchmark
+{
+    @Param({ "4096", "1048576", "67108864", "536870912" })
+    public int size;
+    
+    private LocalDirectory source;
+    private File file;
+    private Path output;
+    private LocalDirectory target;
+    
+    @Setup
+    public void setUp() throws FileAccessException, IOException
+    {
+        TreeGenerator generator = new TreeGenerator(Fixtures.SEED)
+            .setFileSize(size, size);
+        source = new LocalDirectory(Fixtures.tree("copy-" + size, 
+            generator, 1));
+        file = source.getFiles().get(0);
+        output = Fixtures.output("copy");
+        target = new LocalDirectory(output);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Fixtures.delete(output);
+    }
+    
+    @Benchmark
+    public void copy() throws Exception
+    {
+        Commands.run(new Copy(), new SimpleContext(source, 
+            Collections.<File>singletonList(file)), 
+            new SimpleContext(target));
+    }
+}
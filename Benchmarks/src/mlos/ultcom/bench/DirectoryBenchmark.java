@@ -0,0 +1,82 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.TreeSize;
+import mlos.ultcom.localfs.LocalDirectory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing and sizing of local directories. Listings are taken of a flat
+ * directory with all the entries, sizes of a tree of directories with at
+ * most 100 entries each. Both are read from the page cache after the
+ * first iteration, so these are costs of the code and system calls, not
+ * of the disk.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DirectoryBenchmark
+{
+    @Param({ "1000", "100000", "1000000" })
+    public int entries;
+    
+    private LocalDirectory flat;
+    private LocalDirectory tree;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        TreeGenerator generator = new TreeGenerator(Fixtures.SEED);
+        flat = new LocalDirectory(Fixtures.tree("flat", 
+            generator.setFanOut(Integer.MAX_VALUE), entries));
+        tree = new LocalDirectory(Fixtures.tree("tree", 
+            generator.setFanOut(100), entries));
+    }
+    
+    @Benchmark
+    public List<File> getFiles() throws FileAccessException, IOException
+    {
+        return flat.getFiles();
+    }
+    
+    @Benchmark
+    public List<FileEntry> getEntries() throws FileAccessException,
+        IOException
+    {
+        return flat.getEntries();
+    }
+    
+    @Benchmark
+    public long getSize() throws FileAccessException, IOException
+    {
+        return tree.getSize();
+    }
+    
+    @Benchmark
+    public TreeSize getTreeSize() throws FileAccessException, IOException
+    {
+        return tree.getTreeSize();
+    }
+}
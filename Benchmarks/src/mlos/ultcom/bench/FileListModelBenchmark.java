@@ -0,0 +1,107 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.table.TableRowSorter;
+
+import mlos.ultcom.core.FileListModel;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.localfs.LocalDirectory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Table model of a file panel: reading all its cells, as done when the
+ * table is painted or sorted, and sorting it the way the panel does, by
+ * {@code TableRowSorter} with default comparators.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FileListModelBenchmark
+{
+    @Param({ "1000", "100000" })
+    public int entries;
+    
+    private FileListModel model;
+    private TableRowSorter<FileListModel> byName;
+    private TableRowSorter<FileListModel> bySize;
+    
+    @Setup
+    public void setUp() throws FileAccessException, IOException
+    {
+        TreeGenerator generator = new TreeGenerator(Fixtures.SEED)
+            .setFanOut(Integer.MAX_VALUE);
+        model = new FileListModel();
+        model.setDirectory(new LocalDirectory(Fixtures.tree("flat", 
+            generator, entries)));
+        model.stopWatching();
+        byName = createSorter(FileListModel.NAME, SortOrder.ASCENDING);
+        bySize = createSorter(FileListModel.SIZE, SortOrder.DESCENDING);
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        model.stopWatching();
+    }
+    
+    @Benchmark
+    public void getValueAt(Blackhole blackhole)
+    {
+        int rows = model.getRowCount();
+        int columns = model.getColumnCount();
+        for (int row = 0; row < rows; ++ row)
+        {
+            for (int column = 0; column < columns; ++ column)
+            {
+                blackhole.consume(model.getValueAt(row, column));
+            }
+        }
+    }
+    
+    @Benchmark
+    public int sortByName()
+    {
+        byName.sort();
+        return byName.convertRowIndexToModel(0);
+    }
+    
+    @Benchmark
+    public int sortBySize()
+    {
+        bySize.sort();
+        return bySize.convertRowIndexToModel(0);
+    }
+    
+    private TableRowSorter<FileListModel> createSorter(int column,
+        SortOrder order)
+    {
+        TableRowSorter<FileListModel> sorter = 
+            new TableRowSorter<FileListModel>(model);
+        sorter.setSortKeys(Collections.singletonList(
+            new RowSorter.SortKey(column, order)));
+        return sorter;
+    }
+}
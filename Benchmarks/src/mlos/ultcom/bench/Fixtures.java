@@ -0,0 +1,114 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Trees of files used by the benchmarks. Generating the larger ones takes
+ * minutes, so they are kept in {@code bench.dir} directory (temporary
+ * directory by default) and reused by subsequent runs. Complete trees 
+ * are marked by empty files next to them; unmarked ones, e.g. left by an
+ * interrupted run, are generated anew.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeGenerator
+ */
+public class Fixtures
+{
+    /** Seed of all the generated trees */
+    public static final long SEED = 20120601;
+    
+    private static final String COMPLETE = ".complete";
+    
+    private Fixtures()
+    {
+    }
+    
+    /**
+     * @return Directory containing the trees, created if needed
+     */
+    public static Path getDirectory() throws IOException
+    {
+        String dir = System.getProperty("bench.dir");
+        Path path = dir != null ? Paths.get(dir) : Paths.get(
+            System.getProperty("java.io.tmpdir"), "ultcom-bench");
+        return Files.createDirectories(path);
+    }
+    
+    /**
+     * Returns tree generated with given settings, generating it if it's
+     * not been done yet.
+     * 
+     * @param name Name distinguishing trees of different purposes
+     * 
+     * @param generator Generator with the settings; it has to generate
+     * the same tree for the same name and number of files
+     * 
+     * @param files Number of files
+     * 
+     * @return Root of the tree
+     */
+    public static Path tree(String name, TreeGenerator generator, int files)
+        throws IOException
+    {
+        Path root = getDirectory().resolve(name + "-" + files);
+        Path marker = root.resolveSibling(root.getFileName() + COMPLETE);
+        if (! Files.exists(marker))
+        {
+            delete(root);
+            generator.generate(root, files);
+            Files.createFile(marker);
+        }
+        return root;
+    }
+    
+    /**
+     * Creates empty directory for results of commands, removing any
+     * previous content.
+     */
+    public static Path output(String name) throws IOException
+    {
+        Path dir = getDirectory().resolve("out-" + name);
+        delete(dir);
+        return Files.createDirectories(dir);
+    }
+    
+    /**
+     * Removes a file or directory with all its content, if it exists.
+     */
+    public static void delete(Path path) throws IOException
+    {
+        if (! Files.exists(path))
+        {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, 
+                BasicFileAttributes attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, 
+                IOException e) throws IOException
+            {
+                if (e != null)
+                {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package mlos.ultcom.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.command.Context;
+import mlos.ultcom.command.LongCommand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of reporting progress by long commands, which do it for
+ * every buffer they process. The command is published to the listeners,
+ * as when run by the application, so the cost includes sampling by the
+ * publisher. Counters are updated by one thread and by several at once,
+ * like by the workers of {@code Copy}.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ProgressBenchmark
+{
+    /*
+     * Command doing nothing but exposing the progress methods.
+     */
+    private static class ReportingCommand extends LongCommand
+    {
+        @Override
+        public void execute(Context active, Context inactive)
+        {
+        }
+        
+        public void progress(int value)
+        {
+            setProgress(value);
+        }
+        
+        public void bytesDone(long bytes)
+        {
+            addBytesDone(bytes);
+        }
+        
+        public void done()
+        {
+            finished();
+        }
+    }
+    
+    private ReportingCommand command;
+    private int progress;
+    
+    @Setup
+    public void setUp()
+    {
+        command = new ReportingCommand();
+        command.progress(0);
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        command.done();
+    }
+    
+    @Benchmark
+    public void setProgress()
+    {
+        command.progress(++ progress % 100);
+    }
+    
+    @Benchmark
+    public void addBytesDone()
+    {
+        command.bytesDone(65536);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public void addBytesDoneContended()
+    {
+        command.bytesDone(65536);
+    }
+}
@@ -0,0 +1,63 @@
+package mlos.ultcom.bench;
+
+import java.util.Collections;
+import java.util.List;
+
+import mlos.ultcom.command.Context;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+
+/**
+ * {@code Context} of a command run without the interface: a directory
+ * and files selected in it, which are all the files it shows.
+ * 
+ * @author Marcin Los
+ */
+public class SimpleContext implements Context
+{
+    private final Directory directory;
+    private final List<File> selected;
+    
+    /**
+     * @param directory Current directory
+     * 
+     * @param selected Selected files, may be empty
+     */
+    public SimpleContext(Directory directory, List<File> selected)
+    {
+        this.directory = directory;
+        this.selected = Collections.unmodifiableList(selected);
+    }
+    
+    /**
+     * Creates context of a directory with nothing selected.
+     */
+    public SimpleContext(Directory directory)
+    {
+        this(directory, Collections.<File>emptyList());
+    }
+    
+    @Override
+    public List<File> getSelectedFiles()
+    {
+        return selected;
+    }
+    
+    @Override
+    public File getFirstSelectedFile()
+    {
+        return selected.isEmpty() ? null : selected.get(0);
+    }
+    
+    @Override
+    public List<File> getFiles()
+    {
+        return selected;
+    }
+    
+    @Override
+    public Directory getCurrentDirectory()
+    {
+        return directory;
+    }
+}
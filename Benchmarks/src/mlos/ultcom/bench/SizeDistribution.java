@@ -0,0 +1,191 @@
+package mlos.ultcom.bench;
+
+import java.util.Random;
+
+/**
+ * Distribution of sizes of generated files. Distributions are specified
+ * by strings in one of the forms below, sizes in bytes, optionally with
+ * {@code K}, {@code M} or {@code G} suffix:
+ * 
+ * <ul>
+ * <li>{@code 4K} or {@code fixed:4K} - every file of the same size</li>
+ * <li>{@code uniform:0,64K} - uniformly distributed between bounds</li>
+ * <li>{@code exp:16K} - exponentially distributed with given mean</li>
+ * <li>{@code lognormal:16K,1.5} - log-normally distributed with given
+ * median and standard deviation of the logarithm; sizes of real files
+ * are usually close to it</li>
+ * </ul>
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeGenerator
+ */
+public abstract class SizeDistribution
+{
+    private final String spec;
+    
+    private SizeDistribution(String spec)
+    {
+        this.spec = spec;
+    }
+    
+    /**
+     * Draws a size.
+     * 
+     * @return Size in bytes, non-negative
+     */
+    public abstract long sample(Random random);
+    
+    public static SizeDistribution fixed(final long size)
+    {
+        checkNonNegative(size);
+        return new SizeDistribution("fixed:" + size)
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return size;
+            }
+        };
+    }
+    
+    public static SizeDistribution uniform(final long min, final long max)
+    {
+        checkNonNegative(min);
+        if (max < min)
+        {
+            throw new IllegalArgumentException("Upper bound " + max +
+                " less than lower bound " + min);
+        }
+        return new SizeDistribution("uniform:" + min + "," + max)
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return min + (long) (random.nextDouble() * (max - min + 1));
+            }
+        };
+    }
+    
+    public static SizeDistribution exponential(final long mean)
+    {
+        checkNonNegative(mean);
+        return new SizeDistribution("exp:" + mean)
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return (long) (-mean * Math.log(1 - random.nextDouble()));
+            }
+        };
+    }
+    
+    public static SizeDistribution logNormal(final long median,
+        final double sigma)
+    {
+        checkNonNegative(median);
+        if (! (sigma >= 0))
+        {
+            throw new IllegalArgumentException("Invalid deviation: " + 
+                sigma);
+        }
+        return new SizeDistribution("lognormal:" + median + "," + sigma)
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return (long) (median * Math.exp(sigma * 
+                    random.nextGaussian()));
+            }
+        };
+    }
+    
+    /**
+     * Creates distribution from its specification.
+     * 
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static SizeDistribution parse(String spec)
+    {
+        String s = spec.trim();
+        int colon = s.indexOf(':');
+        try
+        {
+            if (colon < 0)
+            {
+                return fixed(parseSize(s));
+            }
+            String kind = s.substring(0, colon).trim();
+            String[] args = s.substring(colon + 1).split(",");
+            if (kind.equals("fixed") && args.length == 1)
+            {
+                return fixed(parseSize(args[0]));
+            }
+            else if (kind.equals("uniform") && args.length == 2)
+            {
+                return uniform(parseSize(args[0]), parseSize(args[1]));
+            }
+            else if (kind.equals("exp") && args.length == 1)
+            {
+                return exponential(parseSize(args[0]));
+            }
+            else if (kind.equals("lognormal") && args.length == 2)
+            {
+                return logNormal(parseSize(args[0]), 
+                    Double.parseDouble(args[1].trim()));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid size distribution: " +
+                spec, e);
+        }
+        throw new IllegalArgumentException("Invalid size distribution: " +
+            spec);
+    }
+    
+    /**
+     * Parses size in bytes, with optional {@code K}, {@code M} or {@code 
+     * G} suffix (powers of 1024).
+     */
+    public static long parseSize(String size)
+    {
+        String s = size.trim().toUpperCase();
+        int shift = 0;
+        if (s.endsWith("K"))
+        {
+            shift = 10;
+        }
+        else if (s.endsWith("M"))
+        {
+            shift = 20;
+        }
+        else if (s.endsWith("G"))
+        {
+            shift = 30;
+        }
+        if (shift > 0)
+        {
+            s = s.substring(0, s.length() - 1).trim();
+        }
+        return Long.parseLong(s) << shift;
+    }
+    
+    /**
+     * @return Specification of the distribution, as accepted by {@code
+     * parse}
+     */
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+    
+    private static void checkNonNegative(long value)
+    {
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("Negative size: " + value);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package mlos.ultcom.bench;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import mlos.ultcom.core.FileSystemFactory;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the last entry of a .tar.gz archive through the {@code tar:}
+ * file system, which resumes inflating from the nearest checkpoint rather
+ * than from the start. The archive holds a tree of text-like files and a
+ * tree of random ones, compressed at given level, in a single gzip member
+ * or with each tree in its own.
+ * 
+ * <p>
+ * Random content is kept by deflate in stored blocks, so the archive has
+ * checkpoints after both kinds of blocks. Setup reads every entry once
+ * and compares it with the file it was made of, failing the benchmark if
+ * any differs.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TarGzBenchmark
+{
+    private static final int FILES = 12;
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    @Param({ "1", "6" })
+    public int level;
+    
+    @Param({ "1", "2" })
+    public int members;
+    
+    private Path archive;
+    private File last;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    
+    /*
+     * Gzip member compressed at given level, which leaves the underlying
+     * stream open when closed.
+     */
+    private static class MemberOutputStream extends GZIPOutputStream
+    {
+        public MemberOutputStream(OutputStream out, int level)
+            throws IOException
+        {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            finish();
+            def.end();
+        }
+    }
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        TreeGenerator generator = new TreeGenerator(Fixtures.SEED)
+            .setFanOut(4).setFileSize(0, 8 << 20);
+        Path text = Fixtures.tree("tar-text",
+            generator.setCompressible(true), FILES);
+        Path random = Fixtures.tree("tar-random",
+            generator.setCompressible(false), FILES);
+        archive = Fixtures.getDirectory().resolve("tree-" + level + "-" +
+            members + ".tar.gz");
+        OutputStream file = Files.newOutputStream(archive);
+        try
+        {
+            OutputStream out = new MemberOutputStream(file, level);
+            writeTree(out, text, "text");
+            if (members > 1)
+            {
+                out.close();
+                out = new MemberOutputStream(file, level);
+            }
+            writeTree(out, random, "random");
+            out.write(new byte[2 * BLOCK_SIZE]);
+            out.close();
+        }
+        finally
+        {
+            file.close();
+        }
+        String root = "tar:" + archive.toUri() + "!/";
+        FileSystemFactory factory = FileSystemFactory.getInstance();
+        int files = verify((Directory) factory.getElement(root + "text"),
+            text) + verify((Directory) factory.getElement(root + "random"),
+            random);
+        if (files != 2 * FILES)
+        {
+            throw new IllegalStateException("Archive has " + files +
+                " files instead of " + 2 * FILES);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Fixtures.delete(archive);
+    }
+    
+    @Benchmark
+    public long readLast() throws Exception
+    {
+        long total = 0;
+        InputStream in = last.getInputStream();
+        try
+        {
+            int length;
+            while ((length = in.read(buffer)) >= 0)
+            {
+                total += length;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return total;
+    }
+    
+    /*
+     * Writes files and directories of a tree as ustar entries, with the
+     * root named after given prefix.
+     */
+    private void writeTree(final OutputStream out, final Path root,
+        final String prefix) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                BasicFileAttributes attrs) throws IOException
+            {
+                writeHeader(out, getName(dir) + "/", '5', 0);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file,
+                BasicFileAttributes attrs) throws IOException
+            {
+                writeHeader(out, getName(file), '0', attrs.size());
+                InputStream in = Files.newInputStream(file);
+                try
+                {
+                    int length;
+                    while ((length = in.read(buffer)) >= 0)
+                    {
+                        out.write(buffer, 0, length);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+                int padding = (int) (-attrs.size() & (BLOCK_SIZE - 1));
+                out.write(new byte[padding]);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            private String getName(Path path)
+            {
+                String name = root.relativize(path).toString();
+                return name.isEmpty() ? prefix : prefix + "/" +
+                    name.replace('\\', '/');
+            }
+        });
+    }
+    
+    private static void writeHeader(OutputStream out, String name,
+        char type, long size) throws IOException
+    {
+        byte[] header = new byte[BLOCK_SIZE];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 108, "0000000");
+        put(header, 116, "0000000");
+        put(header, 124, String.format("%011o", size));
+        put(header, 136, String.format("%011o",
+            System.currentTimeMillis() / 1000));
+        header[156] = (byte) type;
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b : header)
+        {
+            checksum += b & 0xff;
+        }
+        put(header, 148, String.format("%06o", checksum));
+        header[154] = 0;
+        out.write(header);
+    }
+    
+    private static void put(byte[] header, int offset, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+    
+    /*
+     * Compares files of an archive directory with those of a local one,
+     * remembering the last file read.
+     * 
+     * @return Number of files compared
+     */
+    private int verify(Directory dir, Path local) throws Exception
+    {
+        int files = 0;
+        for (File file : dir.getFiles())
+        {
+            Path expected = local.resolve(file.getName());
+            if (file instanceof Directory)
+            {
+                files += verify((Directory) file, expected);
+                continue;
+            }
+            InputStream in = file.getInputStream();
+            try
+            {
+                if (! sameContent(in, expected))
+                {
+                    throw new IllegalStateException("Entry " +
+                        file.getPath() + " differs from " + expected);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            last = file;
+            ++ files;
+        }
+        return files;
+    }
+    
+    private static boolean sameContent(InputStream in, Path path)
+        throws IOException
+    {
+        byte[] actual = new byte[BUFFER_SIZE];
+        byte[] expected = new byte[BUFFER_SIZE];
+        DataInputStream other = new DataInputStream(
+            Files.newInputStream(path));
+        try
+        {
+            int length;
+            while ((length = in.read(actual)) >= 0)
+            {
+                try
+                {
+                    other.readFully(expected, 0, length);
+                }
+                catch (EOFException e)
+                {
+                    return false;
+                }
+                for (int i = 0; i < length; ++ i)
+                {
+                    if (actual[i] != expected[i])
+                    {
+                        return false;
+                    }
+                }
+            }
+            return other.read() < 0;
+        }
+        finally
+        {
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package mlos.ultcom.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mlos.ultcom.command.Context;
+import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.command.ProgressEvent;
+import mlos.ultcom.command.ProgressListener;
+import mlos.ultcom.core.ApplicationLoader;
+import mlos.ultcom.core.CommandExecutor;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.TreeSize;
+import mlos.ultcom.localfs.LocalDirectory;
+import mlos.ultcom.ubercp.Copy;
+import mlos.ultcom.ubercp.ZIPCompression;
+
+/**
+ * End-to-end throughput regression suite. Unlike the JMH benchmarks, it
+ * runs commands the way the application does, through {@code
+ * CommandExecutor}, against a whole tree generated by {@code
+ * TreeGenerator}, and measures each run from submission to the finished
+ * notification. Results are written to a tab-separated file, one line
+ * per run, with the settings, build and JVM as comments, so that files of
+ * different builds can be compared.
+ * 
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * ThroughputSuite [settings.properties] [key=value ...]
+ * ThroughputSuite -compare baseline.tsv results.tsv [tolerance]
+ * </pre>
+ * 
+ * Settings are those of {@code TreeGenerator}, the ones below and any
+ * application properties to override, e.g. {@code zip.level} or {@code
+ * copy.threads}:
+ * 
+ * <ul>
+ * <li>{@code suite.files} - number of files of the tree</li>
+ * <li>{@code suite.commands} - commands to run, any of {@code copy},
+ * {@code zip} and {@code size}, separated by commas</li>
+ * <li>{@code suite.warmup} - runs of each command not recorded</li>
+ * <li>{@code suite.runs} - runs of each command recorded</li>
+ * <li>{@code suite.label} - name of the build, e.g. revision</li>
+ * <li>{@code suite.results} - file to write the results to</li>
+ * </ul>
+ * 
+ * Comparison reports median throughput of each command in both files and
+ * exits with status 2 if any has dropped by more than the tolerance, 10%
+ * by default.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeGenerator
+ */
+public class ThroughputSuite
+{
+    private static final String COLUMNS =
+        "command\trun\twall_ms\tbytes_per_s\tfiles_per_s\tpeak_heap";
+    
+    private static final double DEFAULT_TOLERANCE = 0.1;
+    
+    private final Properties settings;
+    private final TreeGenerator generator;
+    private final int files;
+    
+    private Path root;
+    private LocalDirectory source;
+    private List<File> selected;
+    private TreeSize size;
+    
+    /**
+     * Result of a single run of a command.
+     */
+    private static class Run
+    {
+        final long nanos;
+        final long peakHeap;
+        
+        Run(long nanos, long peakHeap)
+        {
+            this.nanos = nanos;
+            this.peakHeap = peakHeap;
+        }
+    }
+    
+    /**
+     * Sizes the trees of the selected directories, like the file list does
+     * for directories selected by the user, but without the size index,
+     * so that every run walks the whole tree.
+     */
+    private static class CalculateSize extends LongCommand
+    {
+        @Override
+        public void execute(Context active, Context inactive)
+        {
+            try
+            {
+                for (File file : active.getSelectedFiles())
+                {
+                    if (file instanceof Directory)
+                    {
+                        ((Directory) file).getTreeSize();
+                    }
+                }
+                finished();
+            }
+            catch (Exception e)
+            {
+                failed(e);
+            }
+        }
+    }
+    
+    public ThroughputSuite(Properties settings)
+    {
+        this.settings = settings;
+        generator = TreeGenerator.fromProperties(settings);
+        files = Integer.parseInt(settings.getProperty("suite.files",
+            "10000").trim());
+    }
+    
+    /**
+     * Generates the tree, if it's not cached yet, runs the commands and
+     * writes the results.
+     */
+    public void run() throws Exception
+    {
+        ApplicationLoader.getInstance().loadConfiguration(settings);
+        String name = "suite-" +
+            Integer.toHexString(generator.toString().hashCode());
+        root = Fixtures.tree(name, generator, files);
+        source = new LocalDirectory(root);
+        selected = source.getFiles();
+        size = source.getTreeSize();
+        
+        int warmup = getInt("suite.warmup", 1);
+        int runs = getInt("suite.runs", 5);
+        String results = settings.getProperty("suite.results",
+            "suite-results.tsv");
+        PrintWriter out = new PrintWriter(new FileWriter(results));
+        try
+        {
+            writeHeader(out);
+            for (String command : settings.getProperty("suite.commands",
+                "copy,zip,size").split(","))
+            {
+                command = command.trim();
+                for (int i = 0; i < warmup; ++ i)
+                {
+                    measure(command);
+                }
+                for (int i = 1; i <= runs; ++ i)
+                {
+                    Run run = measure(command);
+                    double seconds = run.nanos / 1e9;
+                    out.printf("%s\t%d\t%.1f\t%.0f\t%.1f\t%d%n", command, i,
+                        run.nanos / 1e6, size.getApparentSize() / seconds,
+                        size.getFileCount() / seconds, run.peakHeap);
+                    out.flush();
+                    System.out.printf("%-6s %2d  %8.1f ms  %8.2f MB/s  " +
+                        "%9.1f files/s  peak heap %d MB%n", command, i,
+                        run.nanos / 1e6, size.getApparentSize() / seconds /
+                        (1 << 20), size.getFileCount() / seconds,
+                        run.peakHeap >> 20);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+            CommandExecutor.getInstance().shutdown();
+        }
+    }
+    
+    private int getInt(String key, int defaultValue)
+    {
+        String value = settings.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+    
+    private void writeHeader(PrintWriter out)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        out.println("# label=" + settings.getProperty("suite.label", ""));
+        out.println("# date=" + new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:ss").format(new Date()));
+        out.println("# java=" + System.getProperty("java.vm.name") + " " +
+            System.getProperty("java.version"));
+        out.println("# os=" + System.getProperty("os.name") + " " +
+            System.getProperty("os.arch") + ", " +
+            runtime.availableProcessors() + " processors, max heap " +
+            runtime.maxMemory());
+        out.println("# " + generator);
+        out.println("# tree=" + root + ", " + size.getFileCount() +
+            " files, " + size.getDirectoryCount() + " directories, " +
+            size.getApparentSize() + " bytes");
+        List<String> keys = new ArrayList<String>(
+            settings.stringPropertyNames());
+        Collections.sort(keys);
+        for (String key : keys)
+        {
+            if (! key.startsWith("tree."))
+            {
+                out.println("# " + key + "=" + settings.getProperty(key));
+            }
+        }
+        out.println(COLUMNS);
+    }
+    
+    /*
+     * Runs command once, with collected garbage and peak usage of heap
+     * reset. Peak heap is the sum of peaks of the heap pools, so it may
+     * be a bit higher than the actual one.
+     */
+    private Run measure(String name) throws Exception
+    {
+        Path output = Fixtures.output("suite");
+        Path archive = root.resolve("compressed.zip");
+        try
+        {
+            LongCommand command;
+            Context active = new SimpleContext(source, selected);
+            Context inactive;
+            if (name.equals("copy"))
+            {
+                command = new Copy();
+                inactive = new SimpleContext(new LocalDirectory(output));
+            }
+            else if (name.equals("zip"))
+            {
+                command = new ZIPCompression();
+                inactive = new SimpleContext(source);
+            }
+            else if (name.equals("size"))
+            {
+                command = new CalculateSize();
+                inactive = new SimpleContext(source);
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown command: " +
+                    name);
+            }
+            System.gc();
+            List<MemoryPoolMXBean> pools = getHeapPools();
+            for (MemoryPoolMXBean pool : pools)
+            {
+                pool.resetPeakUsage();
+            }
+            long start = System.nanoTime();
+            execute(command, active, inactive);
+            long nanos = System.nanoTime() - start;
+            long peak = 0;
+            for (MemoryPoolMXBean pool : pools)
+            {
+                peak += pool.getPeakUsage().getUsed();
+            }
+            return new Run(nanos, peak);
+        }
+        finally
+        {
+            Fixtures.delete(output);
+            Fixtures.delete(archive);
+        }
+    }
+    
+    private static List<MemoryPoolMXBean> getHeapPools()
+    {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool :
+            ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+            {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+    
+    /*
+     * Submits command to the executor and waits for the outcome, which
+     * is delivered in the event dispatch thread.
+     */
+    private static void execute(LongCommand command, Context active,
+        Context inactive) throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        CommandExecutor.getInstance().execute(command, active, inactive,
+            new ProgressListener()
+            {
+                @Override
+                public void progressChange(ProgressEvent e)
+                {
+                }
+                
+                @Override
+                public void finished(Object source)
+                {
+                    done.countDown();
+                }
+                
+                @Override
+                public void failed(Object source, Throwable cause)
+                {
+                    failure.set(cause);
+                    done.countDown();
+                }
+            });
+        done.await();
+        Throwable cause = failure.get();
+        if (cause instanceof Exception)
+        {
+            throw (Exception) cause;
+        }
+        else if (cause != null)
+        {
+            throw new Exception("Command has failed", cause);
+        }
+    }
+    
+    /**
+     * Reads median throughput in bytes per second of each command from
+     * results file.
+     */
+    static Map<String, Double> readMedians(String path) throws IOException
+    {
+        Map<String, List<Double>> values =
+            new LinkedHashMap<String, List<Double>>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.startsWith("#") || line.equals(COLUMNS) ||
+                    line.trim().isEmpty())
+                {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                List<Double> list = values.get(fields[0]);
+                if (list == null)
+                {
+                    list = new ArrayList<Double>();
+                    values.put(fields[0], list);
+                }
+                list.add(Double.parseDouble(fields[3]));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        Map<String, Double> medians = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, List<Double>> entry : values.entrySet())
+        {
+            List<Double> list = entry.getValue();
+            Collections.sort(list);
+            int n = list.size();
+            medians.put(entry.getKey(), n % 2 == 1 ? list.get(n / 2) :
+                (list.get(n / 2 - 1) + list.get(n / 2)) / 2);
+        }
+        return medians;
+    }
+    
+    /**
+     * Compares results with the baseline.
+     * 
+     * @return Whether no command is slower by more than the tolerance
+     */
+    static boolean compare(String baseline, String results,
+        double tolerance) throws IOException
+    {
+        Map<String, Double> before = readMedians(baseline);
+        Map<String, Double> after = readMedians(results);
+        boolean passed = true;
+        for (Map.Entry<String, Double> entry : after.entrySet())
+        {
+            String command = entry.getKey();
+            Double old = before.get(command);
+            if (old == null)
+            {
+                System.out.printf("%-6s %10.2f MB/s  (no baseline)%n",
+                    command, entry.getValue() / (1 << 20));
+                continue;
+            }
+            double change = entry.getValue() / old - 1;
+            boolean regressed = change < -tolerance;
+            passed &= ! regressed;
+            System.out.printf("%-6s %10.2f -> %10.2f MB/s  %+6.1f%%%s%n",
+                command, old / (1 << 20), entry.getValue() / (1 << 20),
+                change * 100, regressed ? "  REGRESSION" : "");
+        }
+        return passed;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length > 0 && args[0].equals("-compare"))
+        {
+            if (args.length < 3 || args.length > 4)
+            {
+                System.err.println("Usage: ThroughputSuite -compare " +
+                    "<baseline> <results> [tolerance]");
+                System.exit(1);
+            }
+            double tolerance = args.length == 4 ?
+                Double.parseDouble(args[3]) : DEFAULT_TOLERANCE;
+            System.exit(compare(args[1], args[2], tolerance) ? 0 : 2);
+        }
+        Properties settings = new Properties();
+        List<String> rest = new ArrayList<String>(Arrays.asList(args));
+        if (! rest.isEmpty() && ! rest.get(0).contains("="))
+        {
+            InputStream in = new FileInputStream(rest.remove(0));
+            try
+            {
+                settings.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        for (String arg : rest)
+        {
+            int i = arg.indexOf('=');
+            if (i < 0)
+            {
+                System.err.println("Expected key=value: " + arg);
+                System.exit(1);
+            }
+            settings.setProperty(arg.substring(0, i), arg.substring(i + 1));
+        }
+        new ThroughputSuite(settings).run();
+        System.exit(0);
+    }
+}
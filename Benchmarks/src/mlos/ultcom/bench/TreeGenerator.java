@@ -0,0 +1,400 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates trees of files for benchmarks. Trees are fully determined by
+ * the seed and settings, so that results of different runs and machines
+ * can be compared.
+ * 
+ * <p>
+ * Files are spread evenly over a balanced tree in which no directory has
+ * more than {@code fanOut} entries, except for those at maximum depth,
+ * which take all the files left. Files belong to classes drawn with given
+ * weights, e.g. many small files and a few large ones, each with its own
+ * distribution of sizes. Content is a mix of random bytes, which do not
+ * compress, and text-like blocks, which compress well.
+ * 
+ * <p>
+ * Settings can be read from properties, which is how trees are described
+ * to the {@code main} method and to {@code ThroughputSuite}:
+ * 
+ * <ul>
+ * <li>{@code tree.seed} - seed, {@code Fixtures.SEED} by default</li>
+ * <li>{@code tree.fanout} - maximum number of entries of a directory</li>
+ * <li>{@code tree.depth} - maximum depth of the tree</li>
+ * <li>{@code tree.mix} - classes of files, separated by semicolons, each
+ * given by weight and {@code SizeDistribution}, e.g. {@code 90 
+ * uniform:0,16K; 10 lognormal:1M,1}</li>
+ * <li>{@code tree.compressibility} - fraction of text-like content</li>
+ * </ul>
+ * 
+ * @author Marcin Los
+ * 
+ * @see SizeDistribution
+ */
+public class TreeGenerator
+{
+    private static final String[] WORDS = { "file", "directory", "copy",
+        "size", "listing", "archive", "entry", "panel", "command", 
+        "progress", "the", "of", "and", "a", "to", "in", "is", "it" };
+    
+    /** Size of blocks of content which are either random or text-like */
+    private static final int BLOCK_SIZE = 4096;
+    
+    private final long seed;
+    private int fanOut = 1000;
+    private int maxDepth = Integer.MAX_VALUE;
+    private final List<SizeDistribution> sizes =
+        new ArrayList<SizeDistribution>();
+    private final List<Integer> weights = new ArrayList<Integer>();
+    private int totalWeight;
+    private double compressibility = 0;
+    
+    private Random random;
+    private byte[] buffer;
+    
+    /**
+     * @param seed Seed determining sizes, names and content of the files
+     */
+    public TreeGenerator(long seed)
+    {
+        this.seed = seed;
+        setFileSize(0, 4096);
+    }
+    
+    /**
+     * Creates generator with settings read from properties, described
+     * above. Missing ones keep their defaults.
+     * 
+     * @throws IllegalArgumentException if any setting is invalid
+     */
+    public static TreeGenerator fromProperties(Properties properties)
+    {
+        String seed = properties.getProperty("tree.seed");
+        TreeGenerator generator = new TreeGenerator(seed == null ?
+            Fixtures.SEED : Long.parseLong(seed.trim()));
+        String value = properties.getProperty("tree.fanout");
+        if (value != null)
+        {
+            generator.setFanOut(Integer.parseInt(value.trim()));
+        }
+        value = properties.getProperty("tree.depth");
+        if (value != null)
+        {
+            generator.setMaxDepth(Integer.parseInt(value.trim()));
+        }
+        value = properties.getProperty("tree.mix");
+        if (value != null)
+        {
+            generator.clearFileClasses();
+            for (String item : value.split(";"))
+            {
+                String[] parts = item.trim().split("\\s+", 2);
+                if (parts.length != 2)
+                {
+                    throw new IllegalArgumentException("Invalid class of " +
+                        "files: " + item);
+                }
+                generator.addFileClass(Integer.parseInt(parts[0]),
+                    SizeDistribution.parse(parts[1]));
+            }
+        }
+        value = properties.getProperty("tree.compressibility");
+        if (value != null)
+        {
+            generator.setCompressibility(Double.parseDouble(value.trim()));
+        }
+        return generator;
+    }
+    
+    /**
+     * @param fanOut Maximum number of entries of a directory, at least 2
+     */
+    public TreeGenerator setFanOut(int fanOut)
+    {
+        if (fanOut < 2)
+        {
+            throw new IllegalArgumentException("Fan-out too small: " + 
+                fanOut);
+        }
+        this.fanOut = fanOut;
+        return this;
+    }
+    
+    /**
+     * @param maxDepth Maximum depth of directories below the root, 0 for
+     * a flat tree
+     */
+    public TreeGenerator setMaxDepth(int maxDepth)
+    {
+        if (maxDepth < 0)
+        {
+            throw new IllegalArgumentException("Negative depth: " + 
+                maxDepth);
+        }
+        this.maxDepth = maxDepth;
+        return this;
+    }
+    
+    /**
+     * Sets range of sizes of the files, in bytes, replacing all the classes
+     * of files with a single one.
+     */
+    public TreeGenerator setFileSize(long min, long max)
+    {
+        clearFileClasses();
+        return addFileClass(1, SizeDistribution.uniform(min, max));
+    }
+    
+    /**
+     * Removes all the classes of files, so that new ones can be added.
+     */
+    public TreeGenerator clearFileClasses()
+    {
+        sizes.clear();
+        weights.clear();
+        totalWeight = 0;
+        return this;
+    }
+    
+    /**
+     * Adds class of files.
+     * 
+     * @param weight Relative number of files of the class
+     * 
+     * @param distribution Distribution of their sizes
+     */
+    public TreeGenerator addFileClass(int weight, 
+        SizeDistribution distribution)
+    {
+        if (weight <= 0)
+        {
+            throw new IllegalArgumentException("Weight must be positive: " +
+                weight);
+        }
+        sizes.add(distribution);
+        weights.add(weight);
+        totalWeight += weight;
+        return this;
+    }
+    
+    /**
+     * @param compressible Whether content should be text-like rather than
+     * random
+     */
+    public TreeGenerator setCompressible(boolean compressible)
+    {
+        return setCompressibility(compressible ? 1 : 0);
+    }
+    
+    /**
+     * @param compressibility Fraction of content which is text-like, 
+     * between 0 and 1
+     */
+    public TreeGenerator setCompressibility(double compressibility)
+    {
+        if (! (compressibility >= 0 && compressibility <= 1))
+        {
+            throw new IllegalArgumentException("Invalid compressibility: " +
+                compressibility);
+        }
+        this.compressibility = compressibility;
+        return this;
+    }
+    
+    /**
+     * Generates the tree.
+     * 
+     * @param root Directory to create the tree in, created if needed
+     * 
+     * @param files Number of files
+     */
+    public void generate(Path root, int files) throws IOException
+    {
+        if (sizes.isEmpty())
+        {
+            throw new IllegalStateException("No classes of files");
+        }
+        random = new Random(seed);
+        buffer = new byte[64 * 1024];
+        Files.createDirectories(root);
+        generate(root, files, 0);
+    }
+    
+    /*
+     * Fills a directory with files if they fit, otherwise splits them 
+     * among as few subdirectories as possible.
+     */
+    private void generate(Path dir, int files, int level) throws IOException
+    {
+        if (files <= fanOut || level >= maxDepth)
+        {
+            for (int i = 0; i < files; ++ i)
+            {
+                writeFile(dir.resolve(String.format("f%d_%06d.dat", level,
+                    i)));
+            }
+            return;
+        }
+        int subdirs = Math.min((files + fanOut - 1) / fanOut, fanOut);
+        for (int i = 0; i < subdirs; ++ i)
+        {
+            int count = files / subdirs + (i < files % subdirs ? 1 : 0);
+            Path sub = dir.resolve(String.format("d%d_%04d", level, i));
+            Files.createDirectory(sub);
+            generate(sub, count, level + 1);
+        }
+    }
+    
+    private void writeFile(Path file) throws IOException
+    {
+        long size = chooseClass().sample(random);
+        OutputStream out = Files.newOutputStream(file);
+        try
+        {
+            while (size > 0)
+            {
+                int length = (int) Math.min(size, buffer.length);
+                fill(length);
+                out.write(buffer, 0, length);
+                size -= length;
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /*
+     * Random numbers are drawn only if there's a choice, so that trees 
+     * with a single class of files and content of a single kind stay the
+     * same as those already cached by Fixtures.
+     */
+    private SizeDistribution chooseClass()
+    {
+        if (sizes.size() == 1)
+        {
+            return sizes.get(0);
+        }
+        int value = random.nextInt(totalWeight);
+        int i = 0;
+        while (value >= weights.get(i))
+        {
+            value -= weights.get(i ++);
+        }
+        return sizes.get(i);
+    }
+    
+    private void fill(int length)
+    {
+        if (compressibility == 0 || compressibility == 1)
+        {
+            if (compressibility == 0)
+            {
+                fillRandom(0, length);
+            }
+            else
+            {
+                fillText(0, length);
+            }
+            return;
+        }
+        for (int i = 0; i < length; i += BLOCK_SIZE)
+        {
+            int end = Math.min(i + BLOCK_SIZE, length);
+            if (random.nextDouble() < compressibility)
+            {
+                fillText(i, end);
+            }
+            else
+            {
+                fillRandom(i, end);
+            }
+        }
+    }
+    
+    private void fillRandom(int start, int end)
+    {
+        for (int i = start; i < end; i += 8)
+        {
+            long value = random.nextLong();
+            for (int j = i; j < Math.min(i + 8, end); ++ j)
+            {
+                buffer[j] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+    
+    private void fillText(int start, int end)
+    {
+        int i = start;
+        while (i < end)
+        {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            for (int j = 0; j < word.length() && i < end; ++ j)
+            {
+                buffer[i ++] = (byte) word.charAt(j);
+            }
+            if (i < end)
+            {
+                buffer[i ++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+        }
+    }
+    
+    /**
+     * @return Settings of the generator, in the form of properties read
+     * by {@code fromProperties}
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder mix = new StringBuilder();
+        for (int i = 0; i < sizes.size(); ++ i)
+        {
+            mix.append(i > 0 ? "; " : "").append(weights.get(i)).append(' ')
+                .append(sizes.get(i));
+        }
+        return "tree.seed=" + seed + ", tree.fanout=" + fanOut + 
+            ", tree.depth=" + maxDepth + ", tree.mix=" + mix + 
+            ", tree.compressibility=" + compressibility;
+    }
+    
+    /**
+     * Generates tree with settings given as system properties, e.g. 
+     * {@code -Dtree.mix="9 exp:8K; 1 uniform:1M,8M"}.
+     * 
+     * <p>
+     * Arguments: root directory of the tree, which must not exist, and 
+     * number of files.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: TreeGenerator <root> <files>");
+            System.exit(1);
+        }
+        Path root = Paths.get(args[0]);
+        if (Files.exists(root))
+        {
+            System.err.println("Already exists: " + root);
+            System.exit(1);
+        }
+        TreeGenerator generator = 
+            fromProperties(System.getProperties());
+        generator.generate(root, Integer.parseInt(args[1]));
+        System.out.println(generator);
+    }
+}
@@ -0,0 +1,81 @@
+package mlos.ultcom.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.core.ApplicationLoader;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.localfs.LocalDirectory;
+import mlos.ultcom.ubercp.ZIPCompression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing a tree of 500 text-like files (about 64 MB) by {@code 
+ * ZIPCompression} at different levels. Adaptive compression is turned
+ * off, so that the level is applied to every file. The archive is
+ * written next to the tree, as the command does, and replaced by every
+ * invocation.
+ * 
+ * @author Marcin Los
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ZIPCompressionBenchmark
+{
+    @Param({ "0", "1", "6", "9" })
+    public int level;
+    
+    private Path archive;
+    private LocalDirectory source;
+    private List<File> selected;
+    
+    @Setup
+    public void setUp() throws FileAccessException, IOException
+    {
+        Properties settings = new Properties();
+        settings.setProperty("zip.level", Integer.toString(level));
+        settings.setProperty("zip.adaptive", "0");
+        ApplicationLoader.getInstance().loadConfiguration(settings);
+        TreeGenerator generator = new TreeGenerator(Fixtures.SEED)
+            .setFanOut(100).setFileSize(0, 256 * 1024)
+            .setCompressible(true);
+        Path root = Fixtures.tree("text", generator, 500);
+        archive = root.resolve("compressed.zip");
+        Fixtures.delete(archive);
+        source = new LocalDirectory(root);
+        selected = source.getFiles();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Fixtures.delete(archive);
+    }
+    
+    @Benchmark
+    public void compress() throws Exception
+    {
+        Commands.run(new ZIPCompression(), new SimpleContext(source,
+            selected), new SimpleContext(source));
+    }
+}
@@ -1,10 +1,15 @@
 package mlos.ultcom.command;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
 import javax.swing.event.EventListenerList;
 
+import mlos.ultcom.fs.Cancelable;
+import mlos.ultcom.fs.File;
+
 /**
  * Abstract class providing means to implement long-running commands,
  * which properly comunicate with the application. Client programmer
@@ -18,23 +23,70 @@ import javax.swing.event.EventListenerList;
  * changes in operation's state.
  * 
  * <p>
+ * Progress and description are kept in lock-free variables, so they can
+ * be updated as often as needed, from any number of threads, without
+ * allocating anything. Listeners are not notified by the updates 
+ * themselves; progress is sampled by a common publisher about 30 times
+ * a second, and events are fired only if it has changed in the meantime.
+ * 
+ * <p>
+ * Commands processing data should report it with {@code setTotals}, 
+ * {@code addBytesDone} and {@code addFilesDone}. Percentage is then 
+ * computed from the counters, and events carry exact amounts, current 
+ * throughput and estimated time left.
+ * 
+ * <p>
  * IMPORTANT: {@code finished()} should always be called at the end of
  * {@code execute}. This could easily be avoided by another level of 
  * indirection, but perhaps that would be too much.
  * 
  * @author Marcin Los
  */
-public abstract class LongCommand implements Command
+public abstract class LongCommand implements Command, Cancelable
 {
     /*
      * Shouldn't be messed with! Changed only by {@code setProgress}.
      */
-    private int progress = 0;
+    private AtomicInteger progress = new AtomicInteger(0);
+    
+    /*
+     * Counters of processed data, maintained by commands which know them
+     */
+    private AtomicLong bytesDone = new AtomicLong(0);
+    private AtomicLong bytesTotal = new AtomicLong(-1);
+    private AtomicLong filesDone = new AtomicLong(0);
+    private AtomicLong filesTotal = new AtomicLong(-1);
+    
+    /*
+     * Used by long-running operation manager to display the task info.
+     * Description consists of an action and an optional file, so that
+     * changing the file does not require building a string.
+     */
+    private volatile String action = "";
+    private volatile File subject;
+    
+    /*
+     * State last published to listeners; accessed only in the event
+     * dispatch thread.
+     */
+    private int publishedProgress = 0;
+    private String publishedAction = "";
+    private File publishedSubject;
+    private long publishedBytes = 0;
+    private long publishedFiles = 0;
+    private long publishedTime = 0;
+    private ThroughputEstimator throughput = new ThroughputEstimator();
+    
+    /* 
+     * Interval in which events are fired to publish changing throughput 
+     * even if no progress is made, in nanoseconds
+     */
+    private static final long THROUGHPUT_REFRESH = 1000000000L;
     
     /*
-     * Used by long-running operation manager to display the task info
+     * Whether the command has been registered with the publisher
      */
-    private String description = "";
+    private AtomicBoolean published = new AtomicBoolean(false);
     
     /*
      * Cancel flag
@@ -46,26 +98,6 @@ public abstract class LongCommand implements Command
      */
     private EventListenerList listenerList = new EventListenerList();
     
-    /*
-     * {@code Runnable} for {@code SwingUtilities.invokeLater}, to notify
-     * listeners in swing's event dispatch thread.
-     */
-    private class EventPoster implements Runnable
-    {
-        private ProgressEvent event;
-        
-        public EventPoster(ProgressEvent event)
-        {
-            this.event = event;
-        }
-        
-        @Override
-        public void run()
-        {
-            fireProgressChanged(event);
-        }
-    }
-    
     /**
      * {@inheritDoc}
      * 
@@ -113,42 +145,212 @@ public abstract class LongCommand implements Command
     }
     
     /**
-     * @return Value of a progress
+     * @return Value of a progress. If total number of bytes is known, it's
+     * computed from the counters, otherwise it's the value set with {@code
+     * setProgress}.
+     */
+    public final int getProgress()
+    {
+        long total = bytesTotal.get();
+        if (total > 0)
+        {
+            return (int) (100 * (bytesDone.get() / (double) total));
+        }
+        else if (total == 0)
+        {
+            long files = filesTotal.get();
+            return files > 0 ? (int) (100 * filesDone.get() / files) : 0;
+        }
+        return progress.get();
+    }
+    
+    /**
+     * @return Number of bytes processed so far
+     */
+    public final long getBytesDone()
+    {
+        return bytesDone.get();
+    }
+    
+    /**
+     * @return Number of bytes to process, or {@code -1} if unknown
+     */
+    public final long getBytesTotal()
+    {
+        return bytesTotal.get();
+    }
+    
+    /**
+     * @return Number of files processed so far
+     */
+    public final long getFilesDone()
+    {
+        return filesDone.get();
+    }
+    
+    /**
+     * @return Number of files to process, or {@code -1} if unknown
      */
-    public final synchronized int getProgress()
+    public final long getFilesTotal()
     {
-        return progress;
+        return filesTotal.get();
     }
     
     /**
      * @return Short description of the task
      */
-    public final synchronized String getDescription()
+    public final String getDescription()
     {
-        return description;
+        String action = this.action;
+        File subject = this.subject;
+        return subject == null ? action : action + " " + subject.getName();
     }
     
     /**
+     * Sets new value of progress. Listeners are notified about it by the
+     * publisher, possibly together with subsequent changes.
+     * 
      * @param progress Value of progress to set. By convention, {@code -1}
      * denotes unknown progress state.
      */
-    protected final synchronized void setProgress(int progress)
+    protected final void setProgress(int progress)
+    {
+        this.progress.set(progress);
+        startPublishing();
+    }
+    
+    /**
+     * Sets amount of data the command is going to process. Once it's set,
+     * percentage of progress is computed from the counters.
+     * 
+     * @param bytes Number of bytes to process, or {@code -1} if unknown
+     * 
+     * @param files Number of files to process, or {@code -1} if unknown
+     */
+    protected final void setTotals(long bytes, long files)
+    {
+        filesTotal.set(files);
+        bytesTotal.set(bytes);
+        startPublishing();
+    }
+    
+    /**
+     * Adds to the number of processed bytes. It's safe to be called from
+     * many threads, and as often as needed.
+     * 
+     * @param bytes Number of bytes just processed
+     */
+    protected final void addBytesDone(long bytes)
+    {
+        bytesDone.addAndGet(bytes);
+        startPublishing();
+    }
+    
+    /**
+     * Adds to the number of processed files. It's safe to be called from
+     * many threads, and as often as needed.
+     * 
+     * @param files Number of files just processed
+     */
+    protected final void addFilesDone(long files)
     {
-        ProgressEvent e = new ProgressEvent(this, this.progress, progress);
-        this.progress = progress;
-        SwingUtilities.invokeLater(new EventPoster(e));
+        filesDone.addAndGet(files);
+        startPublishing();
     }
     
     /**
-     * Sets new description of a command. This change does not fire progress
-     * change events. Instead, description should be checked inside progress
-     * listener.
+     * Sets new description of a command. This change does not fire 
+     * progress change events by itself, but it's published along with
+     * the progress, once the command starts reporting it.
      * 
      * @param description New description of a command
      */
-    protected final synchronized void setDescription(String description)
+    protected final void setDescription(String description)
+    {
+        setDescription(description, null);
+    }
+    
+    /**
+     * Sets description consisting of an action and a file it concerns,
+     * e.g. "Copying" and a file being copied. Name of the file is 
+     * appended only when the description is read, so the method can be
+     * called for each processed file at no cost.
+     * 
+     * @param action Action performed by the command
+     * 
+     * @param subject File the action concerns, may be {@code null}
+     */
+    protected final void setDescription(String action, File subject)
+    {
+        this.subject = subject;
+        this.action = action;
+    }
+    
+    /*
+     * Registers the command with the publisher, unless it's already done.
+     */
+    private void startPublishing()
+    {
+        if (! published.get() && published.compareAndSet(false, true))
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ProgressPublisher.getInstance().register(
+                        LongCommand.this);
+                }
+            });
+        }
+    }
+    
+    /*
+     * Publishes the final state and unregisters the command; invoked in
+     * the event dispatch thread.
+     */
+    private void stopPublishing()
+    {
+        ProgressPublisher.getInstance().unregister(this);
+        published.set(false);
+    }
+    
+    /*
+     * Invoked by the publisher in the event dispatch thread; updates the
+     * throughput and notifies listeners if the state has changed since 
+     * the last time. While the throughput alone changes, they are 
+     * notified once in a while.
+     */
+    void publishProgress()
     {
-        this.description = description;
+        long now = System.nanoTime();
+        long bytes = bytesDone.get();
+        long files = filesDone.get();
+        throughput.update(now, bytes, files);
+        int current = getProgress();
+        String currentAction = action;
+        File currentSubject = subject;
+        boolean changed = current != publishedProgress || 
+            bytes != publishedBytes || files != publishedFiles ||
+            currentSubject != publishedSubject || 
+            ! currentAction.equals(publishedAction);
+        boolean refresh = now - publishedTime >= THROUGHPUT_REFRESH &&
+            (throughput.getBytesPerSecond() > 0 || 
+            throughput.getFilesPerSecond() > 0);
+        if (changed || refresh)
+        {
+            ProgressEvent e = new ProgressEvent(this, publishedProgress, 
+                current, bytes, bytesTotal.get(), files, filesTotal.get(),
+                throughput.getBytesPerSecond(), 
+                throughput.getFilesPerSecond());
+            publishedProgress = current;
+            publishedAction = currentAction;
+            publishedSubject = currentSubject;
+            publishedBytes = bytes;
+            publishedFiles = files;
+            publishedTime = now;
+            fireProgressChanged(e);
+        }
     }
     
     /**
@@ -163,6 +365,7 @@ public abstract class LongCommand implements Command
             @Override
             public void run()
             {
+                stopPublishing();
                 fireTaskFinished();
             }
         });
@@ -181,6 +384,7 @@ public abstract class LongCommand implements Command
             @Override
             public void run()
             {
+                stopPublishing();
                 fireTaskFailed(cause);
             }
         });
@@ -6,11 +6,19 @@ import java.util.EventObject;
  * Container for information about progress in some (potentially long-running)
  * process. Used as a parameter in {@code ProgressListener}.
  * 
+ * <p>
+ * Besides the percentage, events of commands processing data carry exact
+ * counters of bytes and files, current throughput and estimated time 
+ * left. Totals equal to {@code -1} denote that they are unknown.
+ * 
  * @author Marcin Los
  */
 public class ProgressEvent extends EventObject
 {
     private int oldValue, newValue;
+    private long bytesDone = 0, bytesTotal = -1;
+    private long filesDone = 0, filesTotal = -1;
+    private double bytesPerSecond = 0, filesPerSecond = 0;
     
     /**
      * Creates new {@code ProgressEvent} from specified parameters.
@@ -28,6 +36,40 @@ public class ProgressEvent extends EventObject
         this.newValue = newValue;
     }
     
+    /**
+     * Creates new {@code ProgressEvent} with counters of processed data.
+     * 
+     * @param source Object that fired this event
+     * 
+     * @param oldValue Old value of progress
+     * 
+     * @param newValue New value of progress
+     * 
+     * @param bytesDone Number of bytes processed so far
+     * 
+     * @param bytesTotal Number of bytes to process, or {@code -1}
+     * 
+     * @param filesDone Number of files processed so far
+     * 
+     * @param filesTotal Number of files to process, or {@code -1}
+     * 
+     * @param bytesPerSecond Current throughput in bytes per second
+     * 
+     * @param filesPerSecond Current throughput in files per second
+     */
+    public ProgressEvent(Object source, int oldValue, int newValue, 
+        long bytesDone, long bytesTotal, long filesDone, long filesTotal,
+        double bytesPerSecond, double filesPerSecond)
+    {
+        this(source, oldValue, newValue);
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.filesPerSecond = filesPerSecond;
+    }
+    
     /**
      * @return Old progress state
      */
@@ -44,4 +86,72 @@ public class ProgressEvent extends EventObject
     {
         return newValue;
     }
+    
+    /**
+     * @return Number of bytes processed so far
+     */
+    public long getBytesDone()
+    {
+        return bytesDone;
+    }
+    
+    /**
+     * @return Number of bytes to process, or {@code -1} if unknown
+     */
+    public long getBytesTotal()
+    {
+        return bytesTotal;
+    }
+    
+    /**
+     * @return Number of files processed so far
+     */
+    public long getFilesDone()
+    {
+        return filesDone;
+    }
+    
+    /**
+     * @return Number of files to process, or {@code -1} if unknown
+     */
+    public long getFilesTotal()
+    {
+        return filesTotal;
+    }
+    
+    /**
+     * @return Current throughput in bytes per second
+     */
+    public double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+    
+    /**
+     * @return Current throughput in files per second
+     */
+    public double getFilesPerSecond()
+    {
+        return filesPerSecond;
+    }
+    
+    /**
+     * Estimates time left from the remaining bytes and current throughput,
+     * or from the remaining files if the amount of data is unknown.
+     * 
+     * @return Estimated time left in seconds, or {@code -1} if it cannot
+     * be estimated
+     */
+    public long getEstimatedTimeLeft()
+    {
+        if (bytesTotal >= 0 && bytesPerSecond > 0)
+        {
+            return (long) Math.ceil((bytesTotal - bytesDone) / bytesPerSecond);
+        }
+        else if (filesTotal >= 0 && filesPerSecond > 0)
+        {
+            return (long) Math.ceil((filesTotal - filesDone) / filesPerSecond);
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,91 @@
+package mlos.ultcom.command;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.Timer;
+
+/**
+ * Publishes progress of running {@code LongCommand}s to their listeners.
+ * Commands only store their progress, which costs next to nothing; the
+ * publisher samples it in the event dispatch thread at a fixed frame 
+ * rate and fires events only for commands whose state has changed. Thus
+ * the number of events does not depend on how often commands update 
+ * their progress.
+ * 
+ * <p>
+ * All the methods must be called in the event dispatch thread. The timer
+ * runs only while there are registered commands.
+ * 
+ * @author Marcin Los
+ */
+class ProgressPublisher implements ActionListener
+{
+    private static ProgressPublisher instance;
+    
+    /** Number of samples per second */
+    static final int FRAME_RATE = 30;
+    
+    private List<LongCommand> commands = new ArrayList<LongCommand>();
+    private Timer timer = new Timer(1000 / FRAME_RATE, this);
+    
+    /**
+     * @return The One instance of this class
+     */
+    public static ProgressPublisher getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new ProgressPublisher();
+        }
+        return instance;
+    }
+    
+    /**
+     * Starts sampling progress of the command.
+     * 
+     * @param command Command to sample
+     */
+    public void register(LongCommand command)
+    {
+        if (! commands.contains(command))
+        {
+            commands.add(command);
+            if (! timer.isRunning())
+            {
+                timer.start();
+            }
+        }
+    }
+    
+    /**
+     * Publishes the last state of the command and stops sampling it.
+     * 
+     * @param command Command to stop sampling
+     */
+    public void unregister(LongCommand command)
+    {
+        if (commands.remove(command))
+        {
+            command.publishProgress();
+            if (commands.isEmpty())
+            {
+                timer.stop();
+            }
+        }
+    }
+    
+    /**
+     * Samples all the registered commands.
+     */
+    @Override
+    public void actionPerformed(ActionEvent e)
+    {
+        for (LongCommand command : commands)
+        {
+            command.publishProgress();
+        }
+    }
+}
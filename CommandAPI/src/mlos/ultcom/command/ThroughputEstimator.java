@@ -0,0 +1,72 @@
+package mlos.ultcom.command;
+
+/**
+ * Estimates current throughput of a command, in bytes and files per 
+ * second, as an exponentially weighted moving average of rates between
+ * consecutive samples. Weights decay with time constant of {@value 
+ * #TIME_CONSTANT} seconds, regardless of how often samples are taken.
+ * Early estimates are corrected for the zero initial value, so they are
+ * meaningful from the second sample on.
+ * 
+ * <p>
+ * Not thread-safe; used by the progress publisher only.
+ * 
+ * @author Marcin Los
+ */
+class ThroughputEstimator
+{
+    /** Time constant of the average, in seconds */
+    static final double TIME_CONSTANT = 5.0;
+    
+    private long lastTime = -1;
+    private long lastBytes;
+    private long lastFiles;
+    private double bytesRate = 0;
+    private double filesRate = 0;
+    private double weight = 0;
+    
+    /**
+     * Adds a sample of the counters.
+     * 
+     * @param time Time of the sample, as returned by {@code 
+     * System.nanoTime()}
+     * 
+     * @param bytes Number of bytes processed so far
+     * 
+     * @param files Number of files processed so far
+     */
+    public void update(long time, long bytes, long files)
+    {
+        if (lastTime >= 0)
+        {
+            double seconds = (time - lastTime) / 1e9;
+            if (seconds <= 0)
+            {
+                return;
+            }
+            double alpha = 1 - Math.exp(- seconds / TIME_CONSTANT);
+            bytesRate += alpha * ((bytes - lastBytes) / seconds - bytesRate);
+            filesRate += alpha * ((files - lastFiles) / seconds - filesRate);
+            weight += alpha * (1 - weight);
+        }
+        lastTime = time;
+        lastBytes = bytes;
+        lastFiles = files;
+    }
+    
+    /**
+     * @return Estimated number of bytes processed per second
+     */
+    public double getBytesPerSecond()
+    {
+        return weight > 0 ? bytesRate / weight : 0;
+    }
+    
+    /**
+     * @return Estimated number of files processed per second
+     */
+    public double getFilesPerSecond()
+    {
+        return weight > 0 ? filesRate / weight : 0;
+    }
+}
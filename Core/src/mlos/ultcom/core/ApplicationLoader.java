@@ -54,6 +54,23 @@ public class ApplicationLoader
         return properties;
     }
     
+    /**
+     * Reads the main configuration without starting the interface, so
+     * that commands can be run headless, e.g. by benchmarks. Properties
+     * passed override those read from the file; calling it again reads
+     * the file anew.
+     * 
+     * @param overrides Properties to set, may be {@code null}
+     */
+    public void loadConfiguration(Properties overrides)
+    {
+        parseConfig();
+        if (overrides != null)
+        {
+            properties.putAll(overrides);
+        }
+    }
+    
     /*
      * Method performing actual loading, invoked later in swing's event 
      * dispatch thread to let {@code ApplicationInterface} instance
@@ -0,0 +1,682 @@
+package mlos.ultcom.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent {@code SizeCache} implementation, storing sizes of directory
+ * content in a memory-mapped file, so they survive application restarts
+ * and are shared by both panels.
+ * 
+ * <p>
+ * The file is an open-addressing hash table with fixed-size slots. Keys
+ * are not stored, only their 64-bit hashes, so each entry takes 56 bytes
+ * regardless of the path length. Probability of a collision is negligible
+ * for any realistic number of directories. The table grows when it is 3/4
+ * full; if it would exceed the maximal size, it's cleared instead.
+ * 
+ * <p>
+ * Names of subdirectories are appended to a second file, next to the 
+ * table, and referenced by their slots. Names replaced by later versions
+ * are left in the file until they take more than half of it, when it's
+ * rewritten. The names are meant to be checked against the file system
+ * before use, as the two files are not written atomically.
+ * 
+ * <p>
+ * The file is locked while the index is open, as the table could not be
+ * modified by several processes at once without corrupting it. If it's
+ * locked by another instance of the application, the index cannot be 
+ * opened, and that instance goes without caching.
+ * 
+ * <p>
+ * The class is thread-safe. Instance used by the application
+ * is obtained with {@code getInstance()}.
+ * 
+ * @author Marcin Los
+ */
+public class DirectorySizeIndex implements SizeCache
+{
+    private static final Logger logger =
+        Logger.getLogger(DirectorySizeIndex.class);
+    
+    private static DirectorySizeIndex instance;
+    private static boolean openFailed = false;
+    
+    /* 
+     * Canonical paths of indexes open in this process. Closing any channel
+     * of a file releases all the locks of the process on it, so the file
+     * must not be opened again while an index holds it.
+     */
+    private static final Set<String> openPaths = new HashSet<String>();
+    
+    /** Default location of the index file */
+    public static final String DEFAULT_FILE = "resources/size_index.bin";
+    
+    private static final int MAGIC = 0x55435349;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 56;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int MAX_CAPACITY = 1 << 25;
+    
+    /* Header fields */
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int NAMES_LIVE_OFFSET = 16;
+    
+    /* Slot fields; zero hash denotes an empty slot */
+    private static final int HASH = 0;
+    private static final int MODIFIED = 8;
+    private static final int APPARENT = 16;
+    private static final int ALLOCATED = 24;
+    private static final int FILES = 32;
+    private static final int DIRECTORIES = 40;
+    private static final int NAMES = 48;
+    
+    /* 
+     * Names are referenced by offset in the names file in the high bits 
+     * and length in the low ones; names of huge directories are not stored
+     */
+    private static final int NAMES_LENGTH_BITS = 24;
+    private static final int MAX_NAMES_LENGTH = (1 << NAMES_LENGTH_BITS) - 1;
+    private static final long NO_NAMES = -1;
+    
+    /* Size of the names file above which it's compacted if it's wasteful */
+    private static final long NAMES_COMPACTION_SIZE = 1 << 20;
+    
+    private static final String NAMES_SUFFIX = ".names";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private String path;
+    private RandomAccessFile file;
+    private RandomAccessFile names;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    
+    /**
+     * Opens the index stored in a given file, creating it if necessary.
+     * If the file is not a valid index, it's reinitialized.
+     * 
+     * @param path Path of the index file
+     * 
+     * @throws IOException if the file could not be opened or mapped, or
+     * is locked by another index
+     */
+    public DirectorySizeIndex(String path) throws IOException
+    {
+        this.path = new java.io.File(path).getCanonicalPath();
+        synchronized (openPaths)
+        {
+            if (! openPaths.add(this.path))
+            {
+                throw new IOException("Size index is already open: " + path);
+            }
+        }
+        boolean opened = false;
+        try
+        {
+            open(path);
+            opened = true;
+        }
+        finally
+        {
+            if (! opened)
+            {
+                release();
+            }
+        }
+    }
+    
+    /*
+     * Opens and locks the file, and maps the table.
+     */
+    private void open(String path) throws IOException
+    {
+        file = new RandomAccessFile(path, "rw");
+        lock = file.getChannel().tryLock();
+        if (lock == null)
+        {
+            throw new IOException("Size index is locked by another " +
+                "instance: " + path);
+        }
+        names = new RandomAccessFile(path + NAMES_SUFFIX, "rw");
+        if (file.length() >= HEADER_SIZE)
+        {
+            map(file.length());
+            capacity = buffer.getInt(CAPACITY_OFFSET);
+            count = buffer.getInt(COUNT_OFFSET);
+            if (isValid())
+            {
+                return;
+            }
+            logger.warn("Invalid size index file, creating new one: " +
+                path);
+        }
+        initialize(INITIAL_CAPACITY);
+        clearNames();
+    }
+    
+    /**
+     * @return The One instance of this class, using the file specified by
+     * {@code size.index.file} property of the main configuration, or {@code
+     * null} if the index could not be opened.
+     */
+    public static synchronized DirectorySizeIndex getInstance()
+    {
+        if (instance == null && ! openFailed)
+        {
+            String path = DEFAULT_FILE;
+            Properties properties =
+                ApplicationLoader.getInstance().getProperties();
+            if (properties != null)
+            {
+                path = properties.getProperty("size.index.file", path);
+            }
+            try
+            {
+                instance = new DirectorySizeIndex(path);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot open size index " + path + "; sizes " +
+                    "will not be cached", e);
+                openFailed = true;
+            }
+        }
+        return instance;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized TreeSize lookup(String key, long lastModified)
+    {
+        int slot = find(hash(key));
+        if (buffer.getLong(slot + HASH) == 0 ||
+            buffer.getLong(slot + MODIFIED) != lastModified)
+        {
+            return null;
+        }
+        return new TreeSize(buffer.getLong(slot + APPARENT),
+            buffer.getLong(slot + ALLOCATED), buffer.getLong(slot + FILES),
+            buffer.getLong(slot + DIRECTORIES));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<String> lookupSubdirectories(String key,
+        long lastModified)
+    {
+        int slot = find(hash(key));
+        if (buffer.getLong(slot + HASH) == 0 ||
+            buffer.getLong(slot + MODIFIED) != lastModified)
+        {
+            return null;
+        }
+        long reference = buffer.getLong(slot + NAMES);
+        if (reference == NO_NAMES)
+        {
+            return null;
+        }
+        try
+        {
+            return decodeNames(readNames(reference));
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read names of subdirectories of " + key, e);
+            return null;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void store(String key, long lastModified,
+        TreeSize size, List<String> subdirectories)
+    {
+        long hash = hash(key);
+        int slot = find(hash);
+        long previous = NO_NAMES;
+        if (buffer.getLong(slot + HASH) == 0)
+        {
+            if (needsToGrow())
+            {
+                grow();
+                slot = find(hash);
+            }
+            ++ count;
+            buffer.putInt(COUNT_OFFSET, count);
+        }
+        else
+        {
+            previous = buffer.getLong(slot + NAMES);
+        }
+        long reference = storeNames(previous, encodeNames(subdirectories));
+        writeSlot(slot, hash, lastModified, size.getApparentSize(),
+            size.getAllocatedSize(), size.getFileCount(),
+            size.getDirectoryCount(), reference);
+        if (needsCompaction())
+        {
+            compactNames();
+        }
+    }
+    
+    /**
+     * @return Number of directories in the index
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Writes the changes to the disk and closes the file, releasing its 
+     * lock. The index cannot be used afterwards.
+     */
+    public synchronized void close()
+    {
+        buffer.force();
+        release();
+    }
+    
+    /*
+     * Closes the file, which releases its lock, and lets it be opened 
+     * again.
+     */
+    private void release()
+    {
+        try
+        {
+            if (names != null)
+            {
+                names.close();
+            }
+            if (file != null)
+            {
+                file.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Error while closing size index", e);
+        }
+        finally
+        {
+            synchronized (openPaths)
+            {
+                openPaths.remove(path);
+            }
+        }
+    }
+    
+    /*
+     * Checks the header read from existing file.
+     */
+    private boolean isValid() throws IOException
+    {
+        return buffer.getInt(MAGIC_OFFSET) == MAGIC &&
+            buffer.getInt(VERSION_OFFSET) == VERSION &&
+            capacity > 0 && Integer.bitCount(capacity) == 1 &&
+            capacity <= MAX_CAPACITY && count >= 0 && count < capacity &&
+            file.length() >= fileLength(capacity);
+    }
+    
+    /*
+     * Creates empty table of a given capacity. The file is never truncated
+     * while mapped, so old content is explicitly cleared.
+     */
+    private void initialize(int newCapacity) throws IOException
+    {
+        long length = fileLength(newCapacity);
+        if (file.length() < length)
+        {
+            file.setLength(length);
+        }
+        map(length);
+        for (int i = 0; i < length; i += 8)
+        {
+            buffer.putLong(i, 0);
+        }
+        capacity = newCapacity;
+        count = 0;
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+    
+    private void clearNames() throws IOException
+    {
+        names.setLength(0);
+        buffer.putLong(NAMES_LIVE_OFFSET, 0);
+    }
+    
+    private void map(long length) throws IOException
+    {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+            length);
+    }
+    
+    private static long fileLength(int capacity)
+    {
+        return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+    
+    private boolean needsToGrow()
+    {
+        return (count + 1) * 4L > capacity * 3L;
+    }
+    
+    /*
+     * Doubles the capacity and rehashes all the entries. At maximal
+     * capacity the table is cleared instead. Names file is kept, as the
+     * names are referenced in the same way.
+     */
+    private void grow()
+    {
+        try
+        {
+            if (capacity >= MAX_CAPACITY)
+            {
+                logger.info("Size index is full, clearing it");
+                initialize(capacity);
+                clearNames();
+                return;
+            }
+            long[] entries = new long[count * (SLOT_SIZE / 8)];
+            int n = 0;
+            for (int i = 0; i < capacity; ++ i)
+            {
+                int slot = slotOffset(i);
+                if (buffer.getLong(slot + HASH) != 0)
+                {
+                    for (int field = 0; field < SLOT_SIZE; field += 8)
+                    {
+                        entries[n ++] = buffer.getLong(slot + field);
+                    }
+                }
+            }
+            long live = buffer.getLong(NAMES_LIVE_OFFSET);
+            initialize(capacity * 2);
+            buffer.putLong(NAMES_LIVE_OFFSET, live);
+            for (int i = 0; i < n; i += SLOT_SIZE / 8)
+            {
+                int slot = find(entries[i]);
+                writeSlot(slot, entries[i], entries[i + 1], entries[i + 2],
+                    entries[i + 3], entries[i + 4], entries[i + 5],
+                    entries[i + 6]);
+                ++ count;
+            }
+            buffer.putInt(COUNT_OFFSET, count);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Cannot resize size index", e);
+        }
+    }
+    
+    /*
+     * Returns offset of the slot containing the hash, or of the empty
+     * slot where it should be inserted.
+     */
+    private int find(long hash)
+    {
+        int mask = capacity - 1;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true)
+        {
+            int slot = slotOffset(i);
+            long stored = buffer.getLong(slot + HASH);
+            if (stored == hash || stored == 0)
+            {
+                return slot;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+    
+    private static int slotOffset(int index)
+    {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+    
+    private void writeSlot(int slot, long hash, long lastModified,
+        long apparent, long allocated, long files, long directories,
+        long names)
+    {
+        buffer.putLong(slot + MODIFIED, lastModified);
+        buffer.putLong(slot + APPARENT, apparent);
+        buffer.putLong(slot + ALLOCATED, allocated);
+        buffer.putLong(slot + FILES, files);
+        buffer.putLong(slot + DIRECTORIES, directories);
+        buffer.putLong(slot + NAMES, names);
+        buffer.putLong(slot + HASH, hash);
+    }
+    
+    /*
+     * Appends encoded names to the names file, unless they're the same as
+     * those already stored for the directory, which are released 
+     * otherwise. Returns reference to the names, or NO_NAMES if they're
+     * too long or cannot be written.
+     */
+    private long storeNames(long previous, byte[] encoded)
+    {
+        try
+        {
+            if (previous != NO_NAMES)
+            {
+                if (encoded != null && 
+                    Arrays.equals(readNames(previous), encoded))
+                {
+                    return previous;
+                }
+                addLiveNames(- namesLength(previous));
+            }
+            if (encoded == null)
+            {
+                return NO_NAMES;
+            }
+            long offset = names.length();
+            names.seek(offset);
+            names.write(encoded);
+            addLiveNames(encoded.length);
+            return offset << NAMES_LENGTH_BITS | encoded.length;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot store names of subdirectories", e);
+            return NO_NAMES;
+        }
+    }
+    
+    private byte[] readNames(long reference) throws IOException
+    {
+        byte[] encoded = new byte[namesLength(reference)];
+        ByteBuffer target = ByteBuffer.wrap(encoded);
+        long position = reference >>> NAMES_LENGTH_BITS;
+        while (target.hasRemaining())
+        {
+            if (names.getChannel().read(target, 
+                position + target.position()) < 0)
+            {
+                throw new EOFException("Names file is truncated");
+            }
+        }
+        return encoded;
+    }
+    
+    private static int namesLength(long reference)
+    {
+        return (int) (reference & MAX_NAMES_LENGTH);
+    }
+    
+    private void addLiveNames(long length)
+    {
+        buffer.putLong(NAMES_LIVE_OFFSET, 
+            buffer.getLong(NAMES_LIVE_OFFSET) + length);
+    }
+    
+    /*
+     * Names are separated by null characters, which no name may contain.
+     * Returns null if they're too long to be referenced.
+     */
+    private static byte[] encodeNames(List<String> subdirectories)
+    {
+        StringBuilder joined = new StringBuilder();
+        for (String name : subdirectories)
+        {
+            if (joined.length() > 0)
+            {
+                joined.append('\0');
+            }
+            joined.append(name);
+        }
+        byte[] encoded = joined.toString().getBytes(UTF8);
+        return encoded.length <= MAX_NAMES_LENGTH ? encoded : null;
+    }
+    
+    private static List<String> decodeNames(byte[] encoded)
+    {
+        List<String> result = new ArrayList<String>();
+        if (encoded.length > 0)
+        {
+            for (String name : new String(encoded, UTF8).split("\0", -1))
+            {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+    
+    private boolean needsCompaction()
+    {
+        try
+        {
+            long length = names.length();
+            return length > NAMES_COMPACTION_SIZE &&
+                length > 2 * buffer.getLong(NAMES_LIVE_OFFSET);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+    
+    /*
+     * Rewrites the names file without released names. Names are copied in
+     * the order of the slots, and references are updated in the same 
+     * order once the new file replaces the old one, so that the table is
+     * left as it was if anything fails.
+     */
+    private void compactNames()
+    {
+        java.io.File target = new java.io.File(path + NAMES_SUFFIX);
+        java.io.File temporary = new java.io.File(path + NAMES_SUFFIX +
+            ".tmp");
+        try
+        {
+            RandomAccessFile compacted = new RandomAccessFile(temporary, 
+                "rw");
+            try
+            {
+                compacted.setLength(0);
+                for (int i = 0; i < capacity; ++ i)
+                {
+                    long reference = buffer.getLong(slotOffset(i) + NAMES);
+                    if (buffer.getLong(slotOffset(i) + HASH) != 0 &&
+                        reference != NO_NAMES)
+                    {
+                        compacted.write(readNames(reference));
+                    }
+                }
+            }
+            finally
+            {
+                compacted.close();
+            }
+            names.close();
+            try
+            {
+                Files.move(temporary.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                names = new RandomAccessFile(target, "rw");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot compact names of subdirectories", e);
+            if (temporary.exists() && ! temporary.delete())
+            {
+                logger.warn("Cannot delete temporary file " + temporary);
+            }
+            return;
+        }
+        long offset = 0;
+        for (int i = 0; i < capacity; ++ i)
+        {
+            int slot = slotOffset(i);
+            long reference = buffer.getLong(slot + NAMES);
+            if (buffer.getLong(slot + HASH) != 0 && reference != NO_NAMES)
+            {
+                int length = namesLength(reference);
+                buffer.putLong(slot + NAMES, 
+                    offset << NAMES_LENGTH_BITS | length);
+                offset += length;
+            }
+        }
+        buffer.putLong(NAMES_LIVE_OFFSET, offset);
+        logger.info("Compacted names of subdirectories to " + offset + 
+            " bytes");
+    }
+    
+    /*
+     * 64-bit FNV-1a hash of the key, with final avalanche mixing so that
+     * low bits are usable as a table index. Never returns 0.
+     */
+    private static long hash(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++ i)
+        {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,22 @@
+package mlos.ultcom.core;
+
+import mlos.ultcom.fs.FileEntry;
+
+/**
+ * Filter deciding which elements of a file tree are visited by {@code
+ * TreeWalker}. Rejecting a directory excludes its whole subtree.
+ * Implementations must be thread-safe.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeWalker#setFilter(EntryFilter)
+ */
+public interface EntryFilter
+{
+    /**
+     * @param entry Listing entry to check
+     * 
+     * @return {@code true} if the entry should be visited
+     */
+    boolean accept(FileEntry entry);
+}
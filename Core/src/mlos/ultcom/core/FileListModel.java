@@ -1,6 +1,7 @@
 package mlos.ultcom.core;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -11,6 +12,7 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
 import mlos.ultcom.command.Context;
@@ -18,20 +20,40 @@ import mlos.ultcom.command.FailureListener;
 import mlos.ultcom.command.LongCommand;
 import mlos.ultcom.command.ProgressEvent;
 import mlos.ultcom.command.ProgressListener;
+import mlos.ultcom.fs.Cancelable;
 import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.DirectoryChange;
+import mlos.ultcom.fs.DirectoryChangeListener;
+import mlos.ultcom.fs.DirectoryWatch;
 import mlos.ultcom.fs.File;
 import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileAttributes;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.OperationNotSupportedException;
+import mlos.ultcom.fs.SizeCache;
+
+import org.apache.log4j.Logger;
 
 /**
+ * Table model of a directory's content. The current directory is watched
+ * for changes (if the file system supports it), which are applied as
+ * row-level events, so the listing is kept up to date without relisting.
+ * 
  * @author Marcin Los
  */
 public class FileListModel extends AbstractTableModel
 {
+    private static final Logger logger = 
+        Logger.getLogger(FileListModel.class);
+    
     private Directory directory;
     private Directory parent;
-    private List<File> fileList = new ArrayList<File>();
+    private List<FileEntry> entries = new ArrayList<FileEntry>();
+    private List<File> fileList = new FileView();
     private Map<File, Long> dirSizeCache = new HashMap<File, Long>();
     private Set<CalculateSize> runningTasks = new HashSet<CalculateSize>();
+    private Map<String, Integer> rowsByName = new HashMap<String, Integer>();
+    private DirectoryWatch watch;
     
     /** Denotes "Name" column */
     public static final int NAME = 0;
@@ -42,9 +64,44 @@ public class FileListModel extends AbstractTableModel
     /** Denotes "Size" column */
     public static final int SIZE = 2;
     
+    /*
+     * Attributes of the ".." element; nothing is known about it except
+     * for being a directory.
+     */
+    private static final FileAttributes PARENT_ATTRIBUTES = 
+        new FileAttributes(true, 0, FileAttributes.UNKNOWN_TIME, null);
+    
+    /*
+     * Matches extension of a file name. Clever stuff: 'lookaround'
+     */
+    private static final Pattern EXTENSION = 
+        Pattern.compile("(?<=\\.)\\w*$");
+    
+    /*
+     * Read-only view of files of the listing entries, so that there is
+     * no need to keep two separate lists.
+     */
+    private class FileView extends AbstractList<File>
+    {
+        @Override
+        public File get(int index)
+        {
+            return entries.get(index).getFile();
+        }
+        
+        @Override
+        public int size()
+        {
+            return entries.size();
+        }
+    }
+    
     /*
      * Internal command to calculate size of a directory. It is designed
-     * to be run asynchronously by {@code CommandExecutor}.
+     * to be run asynchronously by {@code CommandExecutor}. The size is
+     * computed by the file system implementation, which knows best how
+     * to do it efficiently, using the persistent {@code DirectorySizeIndex}
+     * to skip unchanged subtrees.
      */
     private class CalculateSize extends LongCommand
     {
@@ -61,7 +118,16 @@ public class FileListModel extends AbstractTableModel
         {  
             try
             {
-                size = file.getSize();
+                if (file instanceof Directory)
+                {
+                    SizeCache index = DirectorySizeIndex.getInstance();
+                    size = ((Directory) file).getTreeSize(index, this)
+                        .getApparentSize();
+                }
+                else
+                {
+                    size = file.getSize();
+                }
                 finished();
             }
             catch (Exception e)
@@ -124,13 +190,198 @@ public class FileListModel extends AbstractTableModel
         }
     }
     
+    /*
+     * Receives changes of the current directory and passes them to the
+     * event dispatch thread.
+     */
+    private class WatchListener implements DirectoryChangeListener
+    {
+        @Override
+        public void directoryChanged(final Directory dir, 
+            final List<DirectoryChange> changes)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    applyChanges(dir, changes);
+                }
+            });
+        }
+    }
+    
+    /*
+     * Applies the changes to the list, firing row-level events. Changes
+     * of a directory which is no longer the current one are ignored.
+     * Consecutive deletions are applied together, so that the list is
+     * compacted once for all of them.
+     */
+    private void applyChanges(Directory dir, List<DirectoryChange> changes)
+    {
+        if (dir != directory)
+        {
+            return;
+        }
+        List<String> deleted = new ArrayList<String>();
+        for (DirectoryChange change : changes)
+        {
+            switch (change.getKind())
+            {
+            case CREATED:
+            case MODIFIED:
+                removeEntries(deleted);
+                deleted.clear();
+                putEntry(change.getEntry());
+                break;
+            
+            case DELETED:
+                deleted.add(change.getName());
+                break;
+            
+            case OVERFLOW:
+                try
+                {
+                    refreshContent();
+                }
+                catch (Exception e)
+                {
+                    logger.warn("Cannot refresh content of " + 
+                        directory.getPath(), e);
+                }
+                return;
+            }
+        }
+        removeEntries(deleted);
+    }
+    
+    /*
+     * Inserts new entry at the end of the list, or replaces the existing
+     * one with the same name.
+     */
+    private void putEntry(FileEntry entry)
+    {
+        String name = entry.getFile().getName();
+        Integer row = rowsByName.get(name);
+        if (row == null)
+        {
+            row = entries.size();
+            entries.add(entry);
+            rowsByName.put(name, row);
+            fireTableRowsInserted(row, row);
+        }
+        else
+        {
+            FileEntry old = entries.set(row, entry);
+            if (entry.getAttributes().isDirectory())
+            {
+                // Modified directory, its content has changed
+                dirSizeCache.remove(old.getFile());
+            }
+            fireTableRowsUpdated(row, row);
+        }
+    }
+    
+    /*
+     * Removes entries with given names, if there are any. The list is 
+     * compacted in a single pass, and rows of the following entries are
+     * updated on the way.
+     */
+    private void removeEntries(List<String> names)
+    {
+        List<Integer> rows = new ArrayList<Integer>();
+        int first = entries.size();
+        for (String name : names)
+        {
+            Integer row = rowsByName.remove(name);
+            if (row != null)
+            {
+                dirSizeCache.remove(entries.set(row, null).getFile());
+                rows.add(row);
+                first = Math.min(first, row);
+            }
+        }
+        if (rows.isEmpty())
+        {
+            return;
+        }
+        int next = first;
+        for (int i = first; i < entries.size(); ++ i)
+        {
+            FileEntry entry = entries.get(i);
+            if (entry != null)
+            {
+                entries.set(next, entry);
+                rowsByName.put(entry.getFile().getName(), next);
+                ++ next;
+            }
+        }
+        entries.subList(next, entries.size()).clear();
+        // Descending, so that each event refers to rows before the previous
+        Collections.sort(rows, Collections.reverseOrder());
+        for (int row : rows)
+        {
+            fireTableRowsDeleted(row, row);
+        }
+    }
+    
+    /*
+     * Returns row of the file, or -1 if it's not on the list.
+     */
+    private int rowOf(File file)
+    {
+        if (parent != null && file.equals(parent))
+        {
+            return 0;
+        }
+        Integer row = rowsByName.get(file.getName());
+        if (row != null && entries.get(row).getFile().equals(file))
+        {
+            return row;
+        }
+        return -1;
+    }
+    
+    /*
+     * Starts watching the current directory, if it's supported.
+     */
+    private void startWatching()
+    {
+        try
+        {
+            watch = directory.watch(new WatchListener());
+        }
+        catch (OperationNotSupportedException e)
+        {
+            logger.debug("Directory will not be watched: " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            logger.warn("Cannot watch directory " + directory.getPath(), e);
+        }
+    }
+    
+    /**
+     * Stops watching the current directory for changes. It's done 
+     * automatically when the directory changes; this method should be
+     * called when the model is no longer used.
+     */
+    public void stopWatching()
+    {
+        if (watch != null)
+        {
+            watch.close();
+            watch = null;
+        }
+    }
+    
     /*
      * Updates passed file's size in cache and notifies model
      * listeners.
      */
     private void updateSize(File file, long size)
     {
-        int i = fileList.indexOf(file);
+        int i = rowOf(file);
         if (i != -1)
         {
             dirSizeCache.put(file, size);
@@ -140,7 +391,7 @@ public class FileListModel extends AbstractTableModel
     
     /**
      * Rebuilds the list of elements. Should be used when panel's
-     * directory content changes.
+     * directory content changes and the directory is not being watched.
      * 
      * @throws FileAccessException if application does not have permissions
      * required to fetch content of a directory
@@ -152,13 +403,21 @@ public class FileListModel extends AbstractTableModel
         if (directory != null)
         {
             parent = directory.getParent();
-            List<File> newFileList = new ArrayList<File>();
+            List<FileEntry> newEntries = new ArrayList<FileEntry>();
             if (parent != null)
             {
-                newFileList.add(parent);
+                newEntries.add(new FileEntry(parent, PARENT_ATTRIBUTES));
+            }
+            Map<String, Integer> newRowsByName = 
+                new HashMap<String, Integer>();
+            for (FileEntry entry : directory.getEntries())
+            {
+                newRowsByName.put(entry.getFile().getName(), 
+                    newEntries.size());
+                newEntries.add(entry);
             }
-            newFileList.addAll(directory.getFiles());
-            fileList = newFileList;
+            entries = newEntries;
+            rowsByName = newRowsByName;
             // TODO maybe implement a cache...?
             dirSizeCache.clear();
             fireTableDataChanged();
@@ -204,7 +463,7 @@ public class FileListModel extends AbstractTableModel
 
     /**
      * The only noteworthy part is returning size of an element.
-     * For files, it's simply value of {@code getSize()}. Computing
+     * For files, it's the size read while listing the directory. Computing
      * size of a directory is potentially expensive operation, so
      * it's not done unless explicitly requested by the user. Computed
      * values are cached.
@@ -217,17 +476,17 @@ public class FileListModel extends AbstractTableModel
     @Override
     public Object getValueAt(int row, int column)
     {
-        File file = fileList.get(row);
+        FileEntry entry = entries.get(row);
         switch (column)
         {
         case NAME:
-            return getName(file);
+            return getName(entry.getFile());
             
         case TYPE:
-            return getType(file);
+            return getType(entry);
             
         case SIZE:
-            return getSize(file);
+            return getSize(entry);
             
         default:
             throw new IndexOutOfBoundsException("Invalid " + 
@@ -263,23 +522,20 @@ public class FileListModel extends AbstractTableModel
      * substring of file name beginning at the first character after the
      * last dot otherwise.
      * 
-     * @param file File to extract type from
+     * @param entry Listing entry to extract type from
      * 
      * @return File type to display
      */
-    protected String getType(File file)
+    protected String getType(FileEntry entry)
     {
-        if (file instanceof Directory)
+        if (entry.getAttributes().isDirectory())
         {
             return "<dir>";
         }
         else
         {
-            String name = file.getName();
-            // Clever stuff: 'lookaround'
-            String regex = "(?<=\\.)\\w*$";
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(name);
+            String name = entry.getFile().getName();
+            Matcher matcher = EXTENSION.matcher(name);
             if (matcher.find())
             {
                 return matcher.group();
@@ -290,37 +546,28 @@ public class FileListModel extends AbstractTableModel
     }
     
     /**
-     * Returns size of a file. Default implementation returns {@code 
-     * File.getSize} in case of ordinary files. If the file is a directory,
-     * method tries to find the cached size. If it is not found, {@code 0}
-     * is returned. Size of a directory is not calculated until explicitly
-     * requested by {@code calculateSize}.
+     * Returns size of a file. Default implementation returns the size
+     * read while listing the directory in case of ordinary files, so the 
+     * file system is not queried. If the file is a directory, method tries
+     * to find the cached size. If it is not found, {@code 0} is returned.
+     * Size of a directory is not calculated until explicitly requested by
+     * {@code calculateSize}.
      * 
-     * @param file File to get size of
+     * @param entry Listing entry to get size of
      * 
      * @return Size of the file
      */
-    protected long getSize(File file)
+    protected long getSize(FileEntry entry)
     {
-        if (file instanceof Directory)
+        if (entry.getAttributes().isDirectory())
         {
             // Check the cache
-            Long size = dirSizeCache.get(file);
+            Long size = dirSizeCache.get(entry.getFile());
             return size == null ? 0 : size;
         }
         else 
         {
-            try
-            {
-                return file.getSize();
-            }
-            // It doesn't seem to be a good solution, but on the other
-            // hand I don't feel like throwing stuff from the inside of 
-            // swing's belly.
-            catch (Exception e)
-            {
-                return 0;
-            }
+            return entry.getAttributes().getSize();
         }
     }
     
@@ -375,8 +622,8 @@ public class FileListModel extends AbstractTableModel
     }
     
     /**
-     * Sets {@code dir} as the model's current directory. {@code dir}
-     * cannot be {@code null}.
+     * Sets {@code dir} as the model's current directory and starts
+     * watching it. {@code dir} cannot be {@code null}.
      * 
      * @param dir New current directory of this panel
      * 
@@ -395,7 +642,11 @@ public class FileListModel extends AbstractTableModel
             throw new NullPointerException("Current directory cannot " +
                 "be set to null");
         }
+        stopWatching();
         directory = dir;
+        // Started first, so that no change is missed; changes are applied
+        // on the event dispatch thread, so only after the listing
+        startWatching();
         refreshContent();
     }
     
@@ -28,6 +28,9 @@ public class FileSystemFactory
     private Iterator<FileFactory> factoryLoader = 
         ServiceLoader.load(FileFactory.class).iterator();
     
+    private IOInstrumentation instrumentation = new IOInstrumentation(
+        ApplicationLoader.getInstance().getProperties());
+    
     /*
      * Private constructor to ensure Singleton invariant
      */
@@ -56,9 +59,18 @@ public class FileSystemFactory
         return instance;
     }
    
+    /**
+     * @return Instrumentation of files created by the factory
+     */
+    public IOInstrumentation getInstrumentation()
+    {
+        return instrumentation;
+    }
+    
     /**
      * Creates {@code File} object using factory associated with passed
-     * URI's scheme.
+     * URI's scheme. If instrumentation is enabled, the object is wrapped
+     * to measure operations on it.
      * 
      * @param uri URI of a requested file
      * 
@@ -92,7 +104,12 @@ public class FileSystemFactory
         {
             throw new FileSystemNotSupported(scheme);
         }
-        return factory.newInstance(uri);
+        File file = factory.newInstance(uri);
+        if (instrumentation.isEnabled())
+        {
+            file = instrumentation.instrument(scheme, file);
+        }
+        return file;
     }
     
     /**
@@ -0,0 +1,281 @@
+package mlos.ultcom.core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.fs.DeviceAwareFile;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileOperation;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures file operations of all the file systems, to find out where
+ * the time goes, e.g. whether listing, reading attributes or reading
+ * content is the bottleneck on a given share. When enabled, {@code
+ * FileSystemFactory} wraps every file it creates, so that operations on
+ * it and on files obtained from it are counted, timed and summed up
+ * per scheme and per device (mount point) of {@code DeviceAwareFile}s.
+ * 
+ * <p>
+ * Operations taking longer than a threshold are logged, together with 
+ * the code which has called them.
+ * 
+ * <p>
+ * It's configured by properties of the main configuration:
+ * {@code fs.instrumentation} enables it (disabled by default), {@code
+ * fs.instrumentation.slow} sets the threshold in milliseconds. Both can
+ * be changed at runtime; enabling or disabling only affects files created
+ * afterwards.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileSystemFactory#getInstrumentation()
+ */
+public class IOInstrumentation
+{
+    private static final Logger logger = 
+        Logger.getLogger(IOInstrumentation.class);
+    
+    private static final long DEFAULT_SLOW_THRESHOLD = 500;
+    
+    /** Number of directories whose devices are remembered */
+    private static final int MAX_DIRECTORIES = 10000;
+    
+    private final ConcurrentMap<String, InstrumentingDecorator> decorators =
+        new ConcurrentHashMap<String, InstrumentingDecorator>();
+    private final ConcurrentMap<String, IOMetrics> devices =
+        new ConcurrentHashMap<String, IOMetrics>();
+    private final ConcurrentMap<String, IOMetrics> directories =
+        new ConcurrentHashMap<String, IOMetrics>();
+    private volatile boolean enabled;
+    private volatile long slowThreshold;
+    
+    /**
+     * Creates instrumentation configured by the properties.
+     * 
+     * @param properties Main configuration, may be {@code null}
+     */
+    IOInstrumentation(Properties properties)
+    {
+        String enabled = null;
+        String threshold = null;
+        if (properties != null)
+        {
+            enabled = properties.getProperty("fs.instrumentation");
+            threshold = properties.getProperty("fs.instrumentation.slow");
+        }
+        this.enabled = Boolean.parseBoolean(enabled);
+        setSlowThreshold(DEFAULT_SLOW_THRESHOLD);
+        if (threshold != null)
+        {
+            try
+            {
+                setSlowThreshold(Long.parseLong(threshold.trim()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                logger.warn("Invalid value of fs.instrumentation.slow; " +
+                    "using default value [" + DEFAULT_SLOW_THRESHOLD + "]", 
+                    e);
+            }
+        }
+    }
+    
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+    
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * @return Time in milliseconds above which operations are logged
+     */
+    public long getSlowThreshold()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(slowThreshold);
+    }
+    
+    /**
+     * @param millis Time in milliseconds above which operations are
+     * logged, non-negative
+     */
+    public void setSlowThreshold(long millis)
+    {
+        if (millis < 0)
+        {
+            throw new IllegalArgumentException("Negative threshold: " + 
+                millis);
+        }
+        slowThreshold = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    
+    /**
+     * Wraps a file, so that operations on it are measured.
+     * 
+     * @param scheme Scheme of the file system of the file
+     * 
+     * @return Instrumented file
+     */
+    public File instrument(String scheme, File file)
+    {
+        InstrumentingDecorator decorator = decorators.get(scheme);
+        if (decorator == null)
+        {
+            decorator = new InstrumentingDecorator(this, 
+                new IOMetrics(scheme));
+            InstrumentingDecorator other = 
+                decorators.putIfAbsent(scheme, decorator);
+            if (other != null)
+            {
+                decorator = other;
+            }
+        }
+        return decorator.decorate(file);
+    }
+    
+    /**
+     * @return Statistics of a file system, {@code null} if none of its
+     * files was instrumented
+     */
+    public IOMetrics getMetrics(String scheme)
+    {
+        InstrumentingDecorator decorator = decorators.get(scheme);
+        return decorator == null ? null : decorator.getMetrics();
+    }
+    
+    /**
+     * @return Statistics of all the file systems, by scheme
+     */
+    public SortedMap<String, IOMetrics> getSchemeMetrics()
+    {
+        SortedMap<String, IOMetrics> result = new TreeMap<String, IOMetrics>();
+        for (Map.Entry<String, InstrumentingDecorator> entry : 
+            decorators.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().getMetrics());
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+    
+    /**
+     * @return Statistics of all the devices, by their names
+     */
+    public SortedMap<String, IOMetrics> getDeviceMetrics()
+    {
+        return Collections.unmodifiableSortedMap(
+            new TreeMap<String, IOMetrics>(devices));
+    }
+    
+    /**
+     * Clears all the statistics.
+     */
+    public void reset()
+    {
+        for (InstrumentingDecorator decorator : decorators.values())
+        {
+            decorator.getMetrics().reset();
+        }
+        for (IOMetrics metrics : devices.values())
+        {
+            metrics.reset();
+        }
+    }
+    
+    /**
+     * @return Summary of statistics of all the file systems and devices
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder("I/O statistics (latencies " +
+            "in ms)");
+        for (IOMetrics metrics : getSchemeMetrics().values())
+        {
+            sb.append(String.format("%nscheme ")).append(metrics);
+        }
+        for (IOMetrics metrics : getDeviceMetrics().values())
+        {
+            sb.append(String.format("%ndevice ")).append(metrics);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @return Statistics of the device containing a directory
+     * 
+     * @throws IOException if the device could not be determined
+     */
+    IOMetrics getDeviceMetrics(Directory directory) throws IOException
+    {
+        String path = directory.getPath();
+        IOMetrics metrics = directories.get(path);
+        if (metrics == null)
+        {
+            String name = String.valueOf(
+                ((DeviceAwareFile) directory).getDevice());
+            metrics = devices.get(name);
+            if (metrics == null)
+            {
+                metrics = new IOMetrics(name);
+                IOMetrics other = devices.putIfAbsent(name, metrics);
+                if (other != null)
+                {
+                    metrics = other;
+                }
+            }
+            if (directories.size() >= MAX_DIRECTORIES)
+            {
+                directories.clear();
+            }
+            directories.put(path, metrics);
+        }
+        return metrics;
+    }
+    
+    /**
+     * Logs an operation if it has taken longer than the threshold.
+     */
+    void checkSlow(FileOperation operation, File file, long nanos)
+    {
+        if (nanos >= slowThreshold)
+        {
+            logger.warn(String.format("Slow %s of %s: %.1f ms, called " +
+                "from %s", operation, file.getPath(), 
+                nanos / 1e6, findCaller()));
+        }
+    }
+    
+    /*
+     * Returns the innermost frame of the current thread's stack outside
+     * of the file system API, the instrumentation and the standard 
+     * library.
+     */
+    private static String findCaller()
+    {
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace())
+        {
+            String name = frame.getClassName();
+            if (! name.startsWith("java.") && ! name.startsWith("sun.") &&
+                ! name.startsWith("jdk.") && 
+                ! name.startsWith("mlos.ultcom.fs.") &&
+                ! name.equals(IOInstrumentation.class.getName()) &&
+                ! name.equals(InstrumentingDecorator.class.getName()))
+            {
+                return frame.toString();
+            }
+        }
+        return "unknown";
+    }
+}
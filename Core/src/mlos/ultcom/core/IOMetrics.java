@@ -0,0 +1,148 @@
+package mlos.ultcom.core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import mlos.ultcom.fs.FileOperation;
+
+/**
+ * Statistics of file operations performed on a file system or a device:
+ * number of operations of each kind, how many of them failed, bytes read
+ * and written, and histograms of latencies. Updated concurrently without
+ * locks nor allocation.
+ * 
+ * @author Marcin Los
+ * 
+ * @see IOInstrumentation
+ */
+public class IOMetrics
+{
+    private static final FileOperation[] OPERATIONS = FileOperation.values();
+    
+    private final String name;
+    private final AtomicLongArray counts =
+        new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray failures =
+        new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray bytes =
+        new AtomicLongArray(OPERATIONS.length);
+    private final LatencyHistogram[] latencies =
+        new LatencyHistogram[OPERATIONS.length];
+    
+    /**
+     * @param name Scheme or device the statistics are about
+     */
+    public IOMetrics(String name)
+    {
+        this.name = name;
+        for (int i = 0; i < latencies.length; ++ i)
+        {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+    
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * Records an operation.
+     * 
+     * @param nanos Time it took, in nanoseconds
+     * 
+     * @param bytes Number of bytes read or written
+     * 
+     * @param failed Whether it has failed
+     */
+    public void record(FileOperation operation, long nanos, long bytes,
+        boolean failed)
+    {
+        int i = operation.ordinal();
+        counts.incrementAndGet(i);
+        if (failed)
+        {
+            failures.incrementAndGet(i);
+        }
+        if (bytes > 0)
+        {
+            this.bytes.addAndGet(i, bytes);
+        }
+        latencies[i].record(nanos);
+    }
+    
+    /**
+     * @return Number of operations of a given kind
+     */
+    public long getCount(FileOperation operation)
+    {
+        return counts.get(operation.ordinal());
+    }
+    
+    /**
+     * @return Number of operations of a given kind which have failed
+     */
+    public long getFailures(FileOperation operation)
+    {
+        return failures.get(operation.ordinal());
+    }
+    
+    /**
+     * @return Number of bytes transferred by operations of a given kind,
+     * non-zero only for reads and writes
+     */
+    public long getBytes(FileOperation operation)
+    {
+        return bytes.get(operation.ordinal());
+    }
+    
+    /**
+     * @return Histogram of latencies of operations of a given kind
+     */
+    public LatencyHistogram getLatency(FileOperation operation)
+    {
+        return latencies[operation.ordinal()];
+    }
+    
+    /**
+     * Clears all the statistics.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < OPERATIONS.length; ++ i)
+        {
+            counts.set(i, 0);
+            failures.set(i, 0);
+            bytes.set(i, 0);
+            latencies[i].reset();
+        }
+    }
+    
+    /**
+     * @return Multiline summary, one line for each kind of operation 
+     * performed at least once
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(name);
+        for (FileOperation operation : OPERATIONS)
+        {
+            long count = getCount(operation);
+            if (count == 0)
+            {
+                continue;
+            }
+            sb.append(String.format("%n  %-9s failed=%d", 
+                operation.name().toLowerCase(Locale.ENGLISH),
+                getFailures(operation)));
+            long transferred = getBytes(operation);
+            if (transferred > 0)
+            {
+                sb.append(" bytes=").append(transferred);
+            }
+            sb.append(' ').append(getLatency(operation));
+        }
+        return sb.toString();
+    }
+}
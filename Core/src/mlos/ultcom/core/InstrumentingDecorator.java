@@ -0,0 +1,112 @@
+package mlos.ultcom.core;
+
+import java.io.IOException;
+
+import mlos.ultcom.fs.DeviceAwareFile;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileDecorator;
+import mlos.ultcom.fs.FileOperation;
+
+/**
+ * Decorator measuring operations on files of one scheme. Files keep
+ * their paths, so it's invisible to the rest of the application. Each
+ * file is attached statistics of its device when first used, so that
+ * the device is looked up once per directory rather than per operation.
+ * Operations on files wrapping files of another scheme (e.g. {@code
+ * slow:}) are not counted for the device, as the wrapped ones are.
+ * 
+ * @author Marcin Los
+ * 
+ * @see IOInstrumentation
+ */
+class InstrumentingDecorator extends FileDecorator
+{
+    /** Attachment of files whose device is unknown */
+    private static final Object NO_DEVICE = new Object();
+    
+    private final IOInstrumentation instrumentation;
+    private final IOMetrics metrics;
+    
+    public InstrumentingDecorator(IOInstrumentation instrumentation,
+        IOMetrics metrics)
+    {
+        this.instrumentation = instrumentation;
+        this.metrics = metrics;
+    }
+    
+    public IOMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * Files already instrumented, e.g. parents of archive entries, which
+     * are files of the file system containing the archive, are left as
+     * they are, so that their operations are not counted twice.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public File decorate(File file)
+    {
+        if (getDecorator(file) instanceof InstrumentingDecorator)
+        {
+            return file;
+        }
+        return super.decorate(file);
+    }
+    
+    /**
+     * @return Start time of the operation
+     */
+    @Override
+    protected long before(FileOperation operation, File file)
+    {
+        return System.nanoTime();
+    }
+    
+    @Override
+    protected void after(FileOperation operation, File file, long token,
+        long bytes, boolean failed)
+    {
+        long nanos = System.nanoTime() - token;
+        metrics.record(operation, nanos, bytes, failed);
+        IOMetrics device = getDeviceMetrics(file);
+        if (device != null)
+        {
+            device.record(operation, nanos, bytes, failed);
+        }
+        instrumentation.checkSlow(operation, file, nanos);
+    }
+    
+    /*
+     * Returns statistics of the device of a file, from the attachment or
+     * looked up by the directory of the file.
+     */
+    private IOMetrics getDeviceMetrics(File file)
+    {
+        Object attachment = getAttachment(file);
+        if (attachment == null)
+        {
+            Directory directory = file instanceof Directory ? 
+                (Directory) file : file.getParent();
+            IOMetrics device = null;
+            if (directory instanceof DeviceAwareFile &&
+                getDecorator(getOriginal(file)) == null)
+            {
+                try
+                {
+                    device = instrumentation.getDeviceMetrics(directory);
+                }
+                catch (IOException e)
+                {
+                    // unknown, e.g. directory has been removed
+                }
+            }
+            attachment = device == null ? NO_DEVICE : device;
+            setAttachment(file, attachment);
+        }
+        return attachment == NO_DEVICE ? null : (IOMetrics) attachment;
+    }
+}
@@ -0,0 +1,170 @@
+package mlos.ultcom.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets growing exponentially, like in HDR
+ * histograms: each power of two is split into equal buckets, so that 
+ * every value is known up to about 3% of it, whatever its magnitude. It
+ * covers all non-negative values with a fixed number of counters, so
+ * recording never allocates and never blocks; it may be done by many
+ * threads at once.
+ * 
+ * <p>
+ * Statistics are read while values are being recorded, so they may be
+ * off by the values recorded meanwhile.
+ * 
+ * @author Marcin Los
+ * 
+ * @see IOMetrics
+ */
+public class LatencyHistogram
+{
+    /** Number of bits of value kept exactly in each bucket */
+    private static final int PRECISION = 6;
+    private static final int BUCKETS = 1 << PRECISION;
+    private static final int HALF = BUCKETS / 2;
+    private static final int SIZE = (64 - PRECISION) * HALF + BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records a latency.
+     * 
+     * @param nanos Latency in nanoseconds, negative ones are taken as 0
+     */
+    public void record(long nanos)
+    {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && ! max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * @return Number of recorded latencies
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+    
+    /**
+     * @return Sum of recorded latencies, in nanoseconds
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+    
+    /**
+     * @return Largest recorded latency, in nanoseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+    
+    /**
+     * @return Mean of recorded latencies, in nanoseconds
+     */
+    public long getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+    
+    /**
+     * Finds latency not exceeded by a given percentage of recorded ones.
+     * 
+     * @param percentile Percentage, in {@code [0, 100]}
+     * 
+     * @return The latency in nanoseconds, rounded up to the upper bound of
+     * its bucket (but not above the maximum), 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long n = 0;
+        for (int i = 0; i < SIZE; ++ i)
+        {
+            n += counts.get(i);
+        }
+        long target = Math.max((long) Math.ceil(percentile / 100 * n), 1);
+        long seen = 0;
+        for (int i = 0; i < SIZE; ++ i)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Clears the histogram. Values recorded concurrently may be lost or
+     * partially counted.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < SIZE; ++ i)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+    
+    /**
+     * @return Summary with count, mean, percentiles and maximum, in
+     * milliseconds
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f " +
+            "max=%.2f", getCount(), toMillis(getMean()), 
+            toMillis(getPercentile(50)), toMillis(getPercentile(90)), 
+            toMillis(getPercentile(99)), toMillis(getMax()));
+    }
+    
+    private static double toMillis(long nanos)
+    {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /*
+     * Values below BUCKETS have a bucket each. Above, a value with highest
+     * bit at position b falls into one of HALF buckets of its power of
+     * two, chosen by its PRECISION highest bits.
+     */
+    private static int indexOf(long value)
+    {
+        int shift = Math.max(64 - Long.numberOfLeadingZeros(value) - 
+            PRECISION, 0);
+        return shift * HALF + (int) (value >>> shift);
+    }
+    
+    private static long upperBoundOf(int index)
+    {
+        if (index < BUCKETS)
+        {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long bucket = index - shift * HALF;
+        return ((bucket + 1) << shift) - 1;
+    }
+}
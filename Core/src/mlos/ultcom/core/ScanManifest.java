@@ -0,0 +1,432 @@
+package mlos.ultcom.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.FileSystemException;
+
+/**
+ * In-memory list of elements of file trees, produced by a single walk
+ * and consumed by operations processing the trees (copying, compressing
+ * etc.). Each element is described by its file, size, modification time,
+ * type and context of its parent directory, as given to the {@code 
+ * TreeVisitor}. They are kept in parallel arrays, and totals are 
+ * maintained as elements are added.
+ * 
+ * <p>
+ * Files are not kept: each element is recorded as index of its parent
+ * directory and its name, stored in a shared character array, and its
+ * {@code File} is created by the parent when the element is consumed.
+ * Only the directories and the roots are kept as objects, along with
+ * contexts, which are shared by all the children of a directory. The
+ * manifest thus costs about 25 bytes per element, plus two per character
+ * of its name.
+ * 
+ * <p>
+ * Manifest may be consumed while it is still being produced: {@code
+ * await} blocks until an element with a given index is available or the
+ * scan is complete, so the operation can start processing the first
+ * files long before the walk of a large tree ends. Directories are added
+ * before any of their children.
+ * 
+ * <p>
+ * The class is thread-safe.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeWalker
+ */
+public class ScanManifest<T>
+{
+    /** Type of regular files (and anything else which is not a directory) */
+    public static final byte FILE = 0;
+    
+    /** Type of directories */
+    public static final byte DIRECTORY = 1;
+    
+    private static final int INITIAL_CAPACITY = 256;
+    
+    /* 
+     * Parent of an element is an index in the directory lists, or a
+     * negative number -(i + 1) for the i-th root, which has no parent
+     */
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] nameOffsets = new int[INITIAL_CAPACITY];
+    private char[] names = new char[INITIAL_CAPACITY * 16];
+    private int namesLength = 0;
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+    
+    /* Recorded directories, with their element indexes in ascending order */
+    private List<Directory> directories = new ArrayList<Directory>();
+    private int[] directoryElements = new int[INITIAL_CAPACITY];
+    private List<Object> directoryContexts = new ArrayList<Object>();
+    
+    private List<File> roots = new ArrayList<File>();
+    private Object rootContext;
+    
+    private long totalSize = 0;
+    private int fileCount = 0;
+    private boolean complete = false;
+    private Exception failure;
+    private volatile boolean abandoned = false;
+    
+    /*
+     * Context passed by the walk: context of a directory for the visitor,
+     * with the directory's index for the manifest.
+     */
+    private static class Scope<T>
+    {
+        private T context;
+        private int directory;
+        
+        public Scope(T context, int directory)
+        {
+            this.context = context;
+            this.directory = directory;
+        }
+    }
+    
+    /**
+     * Walks the trees and records all the visited elements. Returns when
+     * the walk is finished; the manifest is complete then.
+     * 
+     * @param walker Walker used to traverse the trees
+     * 
+     * @param roots Files to start traversal from
+     * 
+     * @param context Context of the roots
+     * 
+     * @param visitor Visitor creating contexts of directories, invoked
+     * before an element is recorded. Directories for which it returns
+     * {@code null} are neither entered nor recorded.
+     * 
+     * @throws Exception Failure of the walk, which is also reported to
+     * consumers of the manifest
+     */
+    public void scan(TreeWalker walker, List<File> roots, T context,
+        final TreeVisitor<T> visitor) throws Exception
+    {
+        rootContext = context;
+        try
+        {
+            walker.walk(roots, new Scope<T>(context, -1),
+                new TreeVisitor<Scope<T>>()
+            {
+                @Override
+                public Scope<T> preVisitDirectory(FileEntry directory,
+                    Scope<T> scope) throws Exception
+                {
+                    checkAbandoned();
+                    T childContext = visitor.preVisitDirectory(directory,
+                        scope.context);
+                    if (childContext == null)
+                    {
+                        return null;
+                    }
+                    int index = add(directory, DIRECTORY, scope.directory,
+                        childContext);
+                    return new Scope<T>(childContext, index);
+                }
+                
+                @Override
+                public void visitFile(FileEntry file, Scope<T> scope)
+                    throws Exception
+                {
+                    checkAbandoned();
+                    visitor.visitFile(file, scope.context);
+                    add(file, FILE, scope.directory, null);
+                }
+            });
+            complete(null);
+        }
+        catch (Exception e)
+        {
+            complete(e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Starts {@code scan} in a new daemon thread and returns immediately.
+     * Failure of the walk is reported to consumers only.
+     * 
+     * @see #scan(TreeWalker, List, Object, TreeVisitor)
+     */
+    public void scanInBackground(final TreeWalker walker,
+        final List<File> roots, final T context,
+        final TreeVisitor<T> visitor)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    scan(walker, roots, context, visitor);
+                }
+                catch (Exception e)
+                {
+                    // Already recorded
+                }
+            }
+        }, "Tree scan");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Makes the scan stop as soon as possible, e.g. when the consumer has
+     * failed and will not read the manifest any more.
+     */
+    public void abandon()
+    {
+        abandoned = true;
+    }
+    
+    private void checkAbandoned()
+    {
+        if (abandoned)
+        {
+            throw new IllegalStateException("Scan abandoned");
+        }
+    }
+    
+    /*
+     * Appends an element, growing the arrays if necessary. Elements of
+     * the root scope are roots. Returns index of the directory in the
+     * directory lists, or -1 for files.
+     */
+    private synchronized int add(FileEntry entry, byte type, int parent,
+        Object childContext)
+    {
+        if (count == types.length)
+        {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            times = Arrays.copyOf(times, capacity);
+            types = Arrays.copyOf(types, capacity);
+        }
+        File file = entry.getFile();
+        if (parent < 0)
+        {
+            roots.add(file);
+            parents[count] = - roots.size();
+        }
+        else
+        {
+            parents[count] = parent;
+        }
+        appendName(file.getName());
+        long size = type == FILE ? entry.getAttributes().getSize() : 0;
+        sizes[count] = size;
+        times[count] = entry.getAttributes().getLastModified();
+        types[count] = type;
+        int directory = -1;
+        if (type == DIRECTORY)
+        {
+            directory = directories.size();
+            if (directory == directoryElements.length)
+            {
+                directoryElements = Arrays.copyOf(directoryElements, 
+                    directory * 2);
+            }
+            directories.add((Directory) file);
+            directoryElements[directory] = count;
+            directoryContexts.add(childContext);
+        }
+        ++ count;
+        if (type == FILE)
+        {
+            totalSize += size;
+            ++ fileCount;
+        }
+        notifyAll();
+        return directory;
+    }
+    
+    private void appendName(String name)
+    {
+        if (namesLength + name.length() > names.length)
+        {
+            int capacity = Math.max(names.length * 2, 
+                namesLength + name.length());
+            names = Arrays.copyOf(names, capacity);
+        }
+        name.getChars(0, name.length(), names, namesLength);
+        nameOffsets[count] = namesLength;
+        namesLength += name.length();
+    }
+    
+    private synchronized void complete(Exception failure)
+    {
+        this.failure = failure;
+        complete = true;
+        notifyAll();
+    }
+    
+    /**
+     * Waits until the element with a given index is available or the scan
+     * is complete.
+     * 
+     * @param index Index of the element
+     * 
+     * @return Number of elements available, greater than {@code index}
+     * unless the manifest has fewer elements
+     * 
+     * @throws Exception Failure of the scan
+     */
+    public synchronized int await(int index) throws Exception
+    {
+        while (index >= count && ! complete)
+        {
+            wait();
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return count;
+    }
+    
+    /**
+     * @return Whether the scan has finished, successfully or not
+     */
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+    
+    /**
+     * @return Number of elements recorded so far
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+    
+    /**
+     * @return Sum of sizes of the files recorded so far
+     */
+    public synchronized long getTotalSize()
+    {
+        return totalSize;
+    }
+    
+    /**
+     * @return Number of files (not directories) recorded so far
+     */
+    public synchronized int getFileCount()
+    {
+        return fileCount;
+    }
+    
+    /**
+     * Returns file of an element, created by its parent directory unless
+     * it's a directory or a root.
+     * 
+     * @throws FileSystemException if the file could not be created
+     * 
+     * @throws IOException if the file could not be created
+     */
+    public File getFile(int index) throws FileSystemException, IOException
+    {
+        Directory parent;
+        String name;
+        synchronized (this)
+        {
+            checkIndex(index);
+            if (parents[index] < 0)
+            {
+                return roots.get(- parents[index] - 1);
+            }
+            if (types[index] == DIRECTORY)
+            {
+                return directories.get(findDirectory(index));
+            }
+            parent = directories.get(parents[index]);
+            name = getName(index);
+        }
+        // Outside the lock, as it may take a while in some file systems
+        return parent.createChild(name);
+    }
+    
+    /**
+     * @return Name of the element, available without creating its file
+     */
+    public synchronized String getName(int index)
+    {
+        checkIndex(index);
+        int end = index + 1 < count ? nameOffsets[index + 1] : namesLength;
+        return new String(names, nameOffsets[index], 
+            end - nameOffsets[index]);
+    }
+    
+    /**
+     * @return Size of the file, or {@code 0} for directories
+     */
+    public synchronized long getSize(int index)
+    {
+        checkIndex(index);
+        return sizes[index];
+    }
+    
+    /**
+     * @return Modification time of the element, or {@code 
+     * FileAttributes.UNKNOWN_TIME}
+     */
+    public synchronized long getLastModified(int index)
+    {
+        checkIndex(index);
+        return times[index];
+    }
+    
+    /**
+     * @return {@code FILE} or {@code DIRECTORY}
+     */
+    public synchronized byte getType(int index)
+    {
+        checkIndex(index);
+        return types[index];
+    }
+    
+    /**
+     * @return Context of the element's parent directory
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T getContext(int index)
+    {
+        checkIndex(index);
+        int parent = parents[index];
+        return (T) (parent < 0 ? rootContext : 
+            directoryContexts.get(parent));
+    }
+    
+    /*
+     * Returns index in the directory lists of a directory element.
+     */
+    private int findDirectory(int index)
+    {
+        return Arrays.binarySearch(directoryElements, 0, 
+            directories.size(), index);
+    }
+    
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index +
+                ", size: " + count);
+        }
+    }
+}
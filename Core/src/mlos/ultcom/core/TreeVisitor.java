@@ -0,0 +1,51 @@
+package mlos.ultcom.core;
+
+import mlos.ultcom.fs.FileEntry;
+
+/**
+ * Receives elements of a file tree traversed by {@code TreeWalker}.
+ * Each directory has an associated context object of type {@code T},
+ * created when the directory is entered and passed along with every one
+ * of its children - e.g. the destination directory when copying, or a
+ * path prefix when compressing.
+ * 
+ * <p>
+ * Traversal is parallel, so implementations must be thread-safe: methods
+ * may be called concurrently for different directories. The only ordering
+ * guarantee is that {@code preVisitDirectory} of a directory returns
+ * before any of its children is visited. Ordered walks call the visitor
+ * from one thread at a time, in depth-first order with children sorted
+ * by name.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeWalker
+ */
+public interface TreeVisitor<T>
+{
+    /**
+     * Invoked for a directory before its content is listed.
+     * 
+     * @param directory Directory being entered
+     * 
+     * @param context Context of the directory's parent (for roots, the
+     * one passed to {@code TreeWalker.walk})
+     * 
+     * @return Context for the directory's children, or {@code null} if
+     * the directory should not be entered
+     * 
+     * @throws Exception to abort the whole traversal
+     */
+    T preVisitDirectory(FileEntry directory, T context) throws Exception;
+    
+    /**
+     * Invoked for every file which is not a directory.
+     * 
+     * @param file Visited file
+     * 
+     * @param context Context of the file's parent directory
+     * 
+     * @throws Exception to abort the whole traversal
+     */
+    void visitFile(FileEntry file, T context) throws Exception;
+}
@@ -0,0 +1,637 @@
+package mlos.ultcom.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileEntry;
+
+/**
+ * Parallel file tree traversal engine, shared by all the operations
+ * working on whole directory trees (calculating sizes, copying,
+ * compressing etc.). Each directory is listed by a separate task of a
+ * {@code ForkJoinPool}, so idle threads steal subtrees from busy ones
+ * and independent directories are read concurrently.
+ * 
+ * <p>
+ * Traversal can be restricted by maximal depth and by a filter, and
+ * stops as soon as the associated {@code LongCommand} is canceled or
+ * the visitor throws an exception. Configuration should not be changed
+ * while a walk is in progress; apart from that, one walker can be used
+ * for any number of subsequent or concurrent walks.
+ * 
+ * <p>
+ * By default elements are visited concurrently, in whatever order they
+ * are listed. Ordered walks visit them one at a time, depth-first, with
+ * children of each directory sorted by name, so that results depending
+ * on the order (e.g. archives) are the same on every run; directories
+ * are still listed concurrently, ahead of the visitor. Read-ahead is 
+ * limited to a few subdirectories of each directory on the current path,
+ * and subdirectories are listed only once their parent is entered, so
+ * memory does not grow with the size of the tree.
+ * 
+ * <p>
+ * Unless explicitly specified, parallelism equals the number of available
+ * processors and walks are executed in one pool shared by all the walkers.
+ * Walkers with explicit parallelism use their own pool, which should be
+ * released with {@code shutdown} when no longer needed.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TreeVisitor
+ */
+public class TreeWalker
+{
+    private static ForkJoinPool sharedPool;
+    
+    private ForkJoinPool pool;
+    private boolean ownPool;
+    private int maxDepth = Integer.MAX_VALUE;
+    private EntryFilter filter;
+    private LongCommand command;
+    private boolean ordered = false;
+    
+    /* Number of subdirectories listed ahead of the visitor in ordered walks */
+    private static final int READ_AHEAD = 16;
+    
+    /*
+     * Order of children of a directory in ordered walks
+     */
+    private static final Comparator<FileEntry> BY_NAME =
+        new Comparator<FileEntry>()
+    {
+        @Override
+        public int compare(FileEntry a, FileEntry b)
+        {
+            return a.getFile().getName().compareTo(b.getFile().getName());
+        }
+    };
+    
+    /**
+     * Creates walker using the shared pool.
+     */
+    public TreeWalker()
+    {
+        pool = getSharedPool();
+        ownPool = false;
+    }
+    
+    /**
+     * Creates walker using its own pool of specified parallelism.
+     * 
+     * @param parallelism Number of threads listing directories concurrently
+     * 
+     * @throws IllegalArgumentException if {@code parallelism} is not
+     * positive
+     */
+    public TreeWalker(int parallelism)
+    {
+        pool = new ForkJoinPool(parallelism);
+        ownPool = true;
+    }
+    
+    /*
+     * Lazily creates pool shared by walkers with default parallelism.
+     */
+    private static synchronized ForkJoinPool getSharedPool()
+    {
+        if (sharedPool == null)
+        {
+            sharedPool = new ForkJoinPool();
+        }
+        return sharedPool;
+    }
+    
+    /**
+     * @param maxDepth Maximal depth of visited elements. Elements of root
+     * directories have depth 1, so {@code 0} means only roots themselves
+     * are visited. Default is unlimited.
+     */
+    public void setMaxDepth(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+    }
+    
+    /**
+     * @param filter Filter of visited elements, or {@code null} to visit
+     * all of them. Roots are not filtered.
+     */
+    public void setFilter(EntryFilter filter)
+    {
+        this.filter = filter;
+    }
+    
+    /**
+     * @param command Command whose cancelation stops the walk, or {@code
+     * null}
+     */
+    public void setCommand(LongCommand command)
+    {
+        this.command = command;
+    }
+    
+    /**
+     * @param ordered Whether elements should be visited one at a time, in
+     * a deterministic order: depth-first, children of a directory sorted
+     * by name. Default is {@code false}.
+     */
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+    
+    /**
+     * @return Parallelism of the pool used by this walker
+     */
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+    
+    /**
+     * Releases the walker's own pool. Has no effect if it uses the shared
+     * one.
+     */
+    public void shutdown()
+    {
+        if (ownPool)
+        {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Equivalent to {@code walk(Collections.singletonList(root), context,
+     * visitor)}.
+     * 
+     * @see #walk(List, Object, TreeVisitor)
+     */
+    public <T> void walk(File root, T context, TreeVisitor<T> visitor)
+        throws Exception
+    {
+        walk(Collections.singletonList(root), context, visitor);
+    }
+    
+    /**
+     * Traverses trees rooted at the specified files, which may be
+     * directories as well as regular files. Returns when the whole tree
+     * has been visited, or the walk was stopped.
+     * 
+     * @param roots Files to start traversal from
+     * 
+     * @param context Context passed to visitor methods for the roots
+     * 
+     * @param visitor Visitor receiving the elements
+     * 
+     * @throws Exception First exception thrown by the visitor or by the
+     * file system during the walk. All the other tasks are stopped.
+     */
+    public <T> void walk(List<File> roots, T context, TreeVisitor<T> visitor)
+        throws Exception
+    {
+        Walk<T> walk = new Walk<T>(visitor);
+        if (ordered)
+        {
+            pool.invoke(new OrderedRootsTask<T>(walk, roots, context));
+        }
+        else
+        {
+            pool.invoke(new RootsTask<T>(walk, roots, context));
+        }
+        walk.rethrow();
+    }
+    
+    /*
+     * State shared by all the tasks of a single walk.
+     */
+    private class Walk<T>
+    {
+        private TreeVisitor<T> visitor;
+        private AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        
+        public Walk(TreeVisitor<T> visitor)
+        {
+            this.visitor = visitor;
+        }
+        
+        public boolean isStopped()
+        {
+            return failure.get() != null ||
+                (command != null && command.isCanceled());
+        }
+        
+        public void fail(Throwable cause)
+        {
+            failure.compareAndSet(null, cause);
+        }
+        
+        public void rethrow() throws Exception
+        {
+            Throwable cause = failure.get();
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+            else if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+        }
+        
+        /*
+         * Visits an element; directories are visited by a task which is
+         * returned, already forked, so that the caller can join it.
+         */
+        public DirectoryTask<T> visit(FileEntry entry, T context, int depth)
+            throws Exception
+        {
+            if (isDirectory(entry))
+            {
+                DirectoryTask<T> task =
+                    new DirectoryTask<T>(this, entry, context, depth);
+                task.fork();
+                return task;
+            }
+            else
+            {
+                visitor.visitFile(entry, context);
+                return null;
+            }
+        }
+    }
+    
+    /*
+     * Visits all the roots, each directory in a separate task.
+     */
+    private class RootsTask<T> extends RecursiveAction
+    {
+        private Walk<T> walk;
+        private List<File> roots;
+        private T context;
+        
+        public RootsTask(Walk<T> walk, List<File> roots, T context)
+        {
+            this.walk = walk;
+            this.roots = roots;
+            this.context = context;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            List<DirectoryTask<T>> tasks = new ArrayList<DirectoryTask<T>>();
+            try
+            {
+                for (File root : roots)
+                {
+                    if (walk.isStopped())
+                    {
+                        break;
+                    }
+                    DirectoryTask<T> task =
+                        walk.visit(FileEntry.describe(root), context, 0);
+                    if (task != null)
+                    {
+                        tasks.add(task);
+                    }
+                }
+            }
+            catch (Throwable e)
+            {
+                walk.fail(e);
+            }
+            joinAll(tasks);
+        }
+    }
+    
+    /*
+     * Visits a single directory: notifies the visitor, lists the content,
+     * visits regular files and forks tasks for subdirectories.
+     */
+    private class DirectoryTask<T> extends RecursiveAction
+    {
+        private Walk<T> walk;
+        private FileEntry entry;
+        private T context;
+        private int depth;
+        
+        public DirectoryTask(Walk<T> walk, FileEntry entry, T context,
+            int depth)
+        {
+            this.walk = walk;
+            this.entry = entry;
+            this.context = context;
+            this.depth = depth;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (walk.isStopped())
+            {
+                return;
+            }
+            List<DirectoryTask<T>> tasks = new ArrayList<DirectoryTask<T>>();
+            try
+            {
+                T childContext = walk.visitor.preVisitDirectory(entry, context);
+                if (childContext != null && depth < maxDepth)
+                {
+                    listContent(childContext, tasks);
+                }
+            }
+            catch (Throwable e)
+            {
+                walk.fail(e);
+            }
+            joinAll(tasks);
+        }
+        
+        private void listContent(T childContext, List<DirectoryTask<T>> tasks)
+            throws Exception
+        {
+            Directory dir = (Directory) entry.getFile();
+            DirectoryListing listing = dir.openListing();
+            try
+            {
+                while (! walk.isStopped() && listing.hasNext())
+                {
+                    FileEntry child = listing.next();
+                    if (filter != null && ! filter.accept(child))
+                    {
+                        continue;
+                    }
+                    DirectoryTask<T> task =
+                        walk.visit(child, childContext, depth + 1);
+                    if (task != null)
+                    {
+                        tasks.add(task);
+                    }
+                }
+            }
+            finally
+            {
+                listing.close();
+            }
+        }
+    }
+    
+    private static boolean isDirectory(FileEntry entry)
+    {
+        return entry.getAttributes().isDirectory() &&
+            entry.getFile() instanceof Directory;
+    }
+    
+    /*
+     * Visits all the roots of an ordered walk, and all their content, in
+     * the calling thread. Listings are read ahead by forked tasks.
+     */
+    private class OrderedRootsTask<T> extends RecursiveAction
+    {
+        private Walk<T> walk;
+        private List<File> roots;
+        private T context;
+        
+        public OrderedRootsTask(Walk<T> walk, List<File> roots, T context)
+        {
+            this.walk = walk;
+            this.roots = roots;
+            this.context = context;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                List<FileEntry> entries = new ArrayList<FileEntry>();
+                for (File root : roots)
+                {
+                    entries.add(FileEntry.describe(root));
+                }
+                visitAll(entries, context, 0);
+            }
+            catch (Throwable e)
+            {
+                walk.fail(e);
+            }
+        }
+        
+        /*
+         * Visits elements of the same directory in order, keeping listings
+         * of the next few subdirectories forked ahead. Listings left when
+         * the walk stops are discarded.
+         */
+        private void visitAll(List<FileEntry> entries, T context,
+            int depth) throws Exception
+        {
+            ListingTask[] listings = new ListingTask[entries.size()];
+            int next = 0;
+            int pending = 0;
+            int i = 0;
+            try
+            {
+                for (; i < entries.size() && ! walk.isStopped(); ++ i)
+                {
+                    for (; next < entries.size() && pending < READ_AHEAD;
+                        ++ next)
+                    {
+                        if (isDirectory(entries.get(next)))
+                        {
+                            listings[next] = startListing(walk,
+                                entries.get(next), depth);
+                            if (listings[next] != null)
+                            {
+                                ++ pending;
+                            }
+                        }
+                    }
+                    ListingTask listing = listings[i];
+                    listings[i] = null;
+                    if (listing != null)
+                    {
+                        -- pending;
+                    }
+                    visit(entries.get(i), listing, context, depth);
+                }
+            }
+            finally
+            {
+                for (; i < next; ++ i)
+                {
+                    if (listings[i] != null)
+                    {
+                        listings[i].discard();
+                    }
+                }
+            }
+        }
+        
+        /*
+         * Visits an element and, if it's a directory, its content, once
+         * it has been listed.
+         */
+        private void visit(FileEntry entry, ListingTask listing, T context,
+            int depth) throws Exception
+        {
+            if (! isDirectory(entry))
+            {
+                walk.visitor.visitFile(entry, context);
+                return;
+            }
+            T childContext;
+            try
+            {
+                childContext = walk.visitor.preVisitDirectory(entry, 
+                    context);
+            }
+            catch (Exception e)
+            {
+                if (listing != null)
+                {
+                    listing.discard();
+                }
+                throw e;
+            }
+            if (listing == null)
+            {
+                return;
+            }
+            if (childContext == null)
+            {
+                // Nothing below it has been forked, as it's not entered
+                listing.discard();
+                return;
+            }
+            listing.join();
+            listing.rethrow();
+            List<FileEntry> children = listing.children;
+            listing.children = null;
+            visitAll(children, childContext, depth + 1);
+        }
+    }
+    
+    /*
+     * Forks task listing a directory of an ordered walk, unless its
+     * content is too deep to be visited.
+     */
+    private ListingTask startListing(Walk<?> walk, FileEntry entry,
+        int depth)
+    {
+        if (depth >= maxDepth)
+        {
+            return null;
+        }
+        ListingTask task = new ListingTask(walk, entry);
+        task.fork();
+        return task;
+    }
+    
+    /*
+     * Lists a directory of an ordered walk and sorts its content. Its 
+     * subdirectories are listed once the visitor enters it. Failure is 
+     * kept until the listing is used, as the visitor may not enter the
+     * directory after all.
+     */
+    private class ListingTask extends RecursiveAction
+    {
+        private Walk<?> walk;
+        private FileEntry entry;
+        private List<FileEntry> children = Collections.emptyList();
+        private Throwable failure;
+        private volatile boolean discarded = false;
+        
+        public ListingTask(Walk<?> walk, FileEntry entry)
+        {
+            this.walk = walk;
+            this.entry = entry;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (isAbandoned())
+            {
+                return;
+            }
+            try
+            {
+                List<FileEntry> result = new ArrayList<FileEntry>();
+                Directory dir = (Directory) entry.getFile();
+                DirectoryListing listing = dir.openListing();
+                try
+                {
+                    while (! isAbandoned() && listing.hasNext())
+                    {
+                        FileEntry child = listing.next();
+                        if (filter == null || filter.accept(child))
+                        {
+                            result.add(child);
+                        }
+                    }
+                }
+                finally
+                {
+                    listing.close();
+                }
+                if (isAbandoned())
+                {
+                    return;
+                }
+                Collections.sort(result, BY_NAME);
+                children = result;
+            }
+            catch (Throwable e)
+            {
+                failure = e;
+            }
+        }
+        
+        /*
+         * Stops the listing, if it's not done yet, as it will not be used.
+         */
+        public void discard()
+        {
+            discarded = true;
+            cancel(false);
+        }
+        
+        private boolean isAbandoned()
+        {
+            return discarded || walk.isStopped();
+        }
+        
+        public void rethrow() throws Exception
+        {
+            if (failure instanceof Exception)
+            {
+                throw (Exception) failure;
+            }
+            else if (failure instanceof Error)
+            {
+                throw (Error) failure;
+            }
+        }
+    }
+    
+    /*
+     * Waits for all the forked tasks. Failures are recorded by the tasks
+     * themselves, so there's nothing to propagate here.
+     */
+    private static void joinAll(List<? extends RecursiveAction> tasks)
+    {
+        for (RecursiveAction task : tasks)
+        {
+            task.join();
+        }
+    }
+}
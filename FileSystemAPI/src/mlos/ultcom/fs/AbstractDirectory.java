@@ -1,11 +1,17 @@
 package mlos.ultcom.fs;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Provides skeletal implementation of {@code Directory} interface, to
  * facilitate creation of concrete implementations. To create it, 
- * programer only needs to implement {@code getFiles()} method.
+ * programer only needs to implement {@code getFiles()} method. Streaming
+ * listing and entries with attributes are built on top of it.
  * 
  * <p>
  * All in all, it's unlikely to be very useful, since in most cases it's
@@ -24,10 +30,205 @@ public abstract class AbstractDirectory implements Directory
     public long getSize() throws FileAccessException, IOException
     {
         long size = 0;
-        for (File f : this.getFiles())
+        DirectoryListing listing = openListing();
+        try
         {
-            size += f.getSize();
+            while (listing.hasNext())
+            {
+                FileEntry entry = listing.next();
+                if (entry.getAttributes().isDirectory())
+                {
+                    size += entry.getFile().getSize();
+                }
+                else
+                {
+                    size += entry.getAttributes().getSize();
+                }
+            }
+        }
+        finally
+        {
+            listing.close();
         }
         return size;
     }
+    
+    /**
+     * Default implementation recursively sums sizes taken from the 
+     * listings. There is no way to find out allocated space or hard links
+     * through this interface, so allocated size equals the apparent one
+     * and every file is counted.
+     * 
+     * @see mlos.ultcom.fs.Directory#getTreeSize()
+     */
+    @Override
+    public TreeSize getTreeSize() throws FileAccessException, IOException
+    {
+        return getTreeSize(null);
+    }
+    
+    /**
+     * Default implementation works like {@code getTreeSize()}, passing the
+     * cache to subdirectories. It's not consulted here: the listing, which
+     * is needed to find the subdirectories anyway, already carries sizes 
+     * of the files.
+     * 
+     * @see mlos.ultcom.fs.Directory#getTreeSize(SizeCache)
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache) throws FileAccessException,
+        IOException
+    {
+        return getTreeSize(cache, null);
+    }
+    
+    /**
+     * Default implementation works like {@code getTreeSize(SizeCache)},
+     * checking for cancelation before every element of the listings.
+     * 
+     * @see mlos.ultcom.fs.Directory#getTreeSize(SizeCache, Cancelable)
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+        throws FileAccessException, IOException
+    {
+        return sumTreeSize(this, cache, cancel);
+    }
+    
+    /*
+     * Sums sizes taken from the listing of a directory, asking
+     * subdirectories for sizes of their trees.
+     */
+    static TreeSize sumTreeSize(Directory directory, SizeCache cache,
+        Cancelable cancel) throws FileAccessException, IOException
+    {
+        long size = 0;
+        long files = 0;
+        long directories = 1;
+        DirectoryListing listing = directory.openListing();
+        try
+        {
+            while (listing.hasNext())
+            {
+                if (cancel != null && cancel.isCanceled())
+                {
+                    throw new InterruptedIOException("Size calculation " +
+                        "canceled");
+                }
+                FileEntry entry = listing.next();
+                File f = entry.getFile();
+                if (entry.getAttributes().isDirectory() && 
+                    f instanceof Directory)
+                {
+                    TreeSize subtree = ((Directory) f).getTreeSize(cache,
+                        cancel);
+                    size += subtree.getApparentSize();
+                    files += subtree.getFileCount();
+                    directories += subtree.getDirectoryCount();
+                }
+                else
+                {
+                    size += entry.getAttributes().getSize();
+                    ++ files;
+                }
+            }
+        }
+        finally
+        {
+            listing.close();
+        }
+        return new TreeSize(size, size, files, directories);
+    }
+    
+    /**
+     * Default implementation reads the whole {@code openListing()}.
+     * 
+     * @see mlos.ultcom.fs.Directory#getEntries()
+     */
+    @Override
+    public List<FileEntry> getEntries() throws FileAccessException,
+        IOException
+    {
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        DirectoryListing listing = openListing();
+        try
+        {
+            while (listing.hasNext())
+            {
+                entries.add(listing.next());
+            }
+        }
+        finally
+        {
+            listing.close();
+        }
+        return entries;
+    }
+    
+    /**
+     * Default implementation adapts {@code getFiles()}: the list is
+     * obtained up front, but attributes of its elements are queried only
+     * when they are reached, i.e. each file is asked for its size. 
+     * Modification time and permissions are unknown. Implementations able
+     * to list the directory incrementally should override it.
+     * 
+     * @see mlos.ultcom.fs.Directory#openListing()
+     */
+    @Override
+    public DirectoryListing openListing() throws FileAccessException,
+        IOException
+    {
+        List<File> files = getFiles();
+        if (files == null)
+        {
+            throw new IOException("Directory does not exist: " + getPath());
+        }
+        return new FileListAdapter(files.iterator());
+    }
+    
+    /**
+     * Watching is not supported by default.
+     * 
+     * @throws OperationNotSupportedException always
+     * 
+     * @see mlos.ultcom.fs.Directory#watch(DirectoryChangeListener)
+     */
+    @Override
+    public DirectoryWatch watch(DirectoryChangeListener listener)
+        throws OperationNotSupportedException
+    {
+        throw new OperationNotSupportedException("Directory cannot be " +
+            "watched: " + getPath());
+    }
+    
+    /*
+     * Listing over already obtained list of files.
+     */
+    private static class FileListAdapter implements DirectoryListing
+    {
+        private Iterator<File> files;
+        
+        public FileListAdapter(Iterator<File> files)
+        {
+            this.files = files;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return files.hasNext();
+        }
+        
+        @Override
+        public FileEntry next() throws FileAccessException, IOException
+        {
+            return FileEntry.describe(files.next());
+        }
+        
+        @Override
+        public void close()
+        {
+            files = Collections.<File>emptyList().iterator();
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package mlos.ultcom.fs;
+
+/**
+ * Something which can be canceled by the user, e.g. a long-running
+ * command. Passed to long file system operations, which check it every 
+ * now and then and stop once it's canceled.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#getTreeSize(SizeCache, Cancelable)
+ */
+public interface Cancelable
+{
+    /**
+     * @return Whether the operation should stop
+     */
+    boolean isCanceled();
+}
@@ -0,0 +1,57 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Optional capability of a {@code File}: access to its content through
+ * NIO channels instead of streams. Channels avoid copying the data
+ * through the heap, and if they are {@code FileChannel}s, the data can be
+ * transferred between files by the operating system with {@code 
+ * transferTo} and {@code transferFrom}. Implementations should return
+ * {@code FileChannel} whenever possible.
+ * 
+ * <p>
+ * Consumers check for this capability with {@code instanceof} and fall 
+ * back to streams if it is not present.
+ * 
+ * @author Marcin Los
+ * 
+ * @see java.nio.channels.FileChannel
+ */
+public interface ChannelFile extends File
+{
+    /**
+     * @return Channel providing content of the file, positioned at its
+     * beginning
+     * 
+     * @throws OperationNotSupportedException if this type of file does not
+     * provide a channel
+     * 
+     * @throws FileAccessException if application has no read permission for
+     * the file
+     * 
+     * @throws IOException if problem occured during opening of a channel
+     */
+    ReadableByteChannel getReadChannel() throws OperationNotSupportedException,
+        FileAccessException, IOException;
+    
+    /**
+     * Opens channel for writing to this file. If the file does not exist,
+     * it's created, otherwise it is truncated.
+     * 
+     * @return Channel writing to this file
+     * 
+     * @throws OperationNotSupportedException if this type of file does not
+     * provide a channel
+     * 
+     * @throws FileAccessException if application has no write permission for
+     * this file
+     * 
+     * @throws IOException if problem occured during opening of a channel
+     */
+    WritableByteChannel getWriteChannel() 
+        throws OperationNotSupportedException, FileAccessException, 
+        IOException;
+}
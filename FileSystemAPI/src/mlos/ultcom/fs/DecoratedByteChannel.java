@@ -0,0 +1,95 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel of a decorated file, reporting every read and write. Used for
+ * channels other than {@code FileChannel}s, which are decorated by
+ * {@code DecoratedFileChannel}.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedByteChannel implements ByteChannel
+{
+    private final FileDecorator decorator;
+    private final File file;
+    private final Channel channel;
+    
+    /**
+     * @param channel Readable or writable channel of the original file
+     */
+    public DecoratedByteChannel(FileDecorator decorator, File file,
+        Channel channel)
+    {
+        this.decorator = decorator;
+        this.file = file;
+        this.channel = channel;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (! (channel instanceof ReadableByteChannel))
+        {
+            throw new NonReadableChannelException();
+        }
+        long token = decorator.before(FileOperation.READ, file);
+        int length = -1;
+        boolean failed = true;
+        try
+        {
+            length = ((ReadableByteChannel) channel).read(dst);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            decorator.after(FileOperation.READ, file, token,
+                Math.max(length, 0), failed);
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (! (channel instanceof WritableByteChannel))
+        {
+            throw new NonWritableChannelException();
+        }
+        long token = decorator.before(FileOperation.WRITE, file);
+        int length = 0;
+        boolean failed = true;
+        try
+        {
+            length = ((WritableByteChannel) channel).write(src);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, length,
+                failed);
+        }
+    }
+    
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
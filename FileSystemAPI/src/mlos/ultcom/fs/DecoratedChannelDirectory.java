@@ -0,0 +1,18 @@
+package mlos.ultcom.fs;
+
+/**
+ * Decorated directory whose original provides channels and its device.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedChannelDirectory extends DecoratedDirectory 
+    implements ChannelFile, DeviceAwareFile
+{
+    public DecoratedChannelDirectory(FileDecorator decorator,
+        Directory delegate)
+    {
+        super(decorator, delegate);
+    }
+}
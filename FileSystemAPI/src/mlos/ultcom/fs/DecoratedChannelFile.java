@@ -0,0 +1,17 @@
+package mlos.ultcom.fs;
+
+/**
+ * Decorated file whose original provides channels and its device.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedChannelFile extends DecoratedFile implements ChannelFile,
+    DeviceAwareFile
+{
+    public DecoratedChannelFile(FileDecorator decorator, File delegate)
+    {
+        super(decorator, delegate);
+    }
+}
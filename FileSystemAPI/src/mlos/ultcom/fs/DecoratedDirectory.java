@@ -0,0 +1,204 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Directory decorated by a {@code FileDecorator}.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedDirectory extends DecoratedFile implements Directory
+{
+    public DecoratedDirectory(FileDecorator decorator, Directory delegate)
+    {
+        super(decorator, delegate);
+    }
+    
+    @Override
+    public Directory getDelegate()
+    {
+        return (Directory) super.getDelegate();
+    }
+    
+    /**
+     * Size of a directory is that of its tree, so it's reported as {@code
+     * TREE_SIZE} operation.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() throws FileAccessException, IOException
+    {
+        return getTreeSize().getApparentSize();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<File> getFiles() throws FileAccessException, IOException
+    {
+        FileDecorator decorator = getDecorator();
+        long token = decorator.before(FileOperation.LIST, this);
+        boolean failed = true;
+        try
+        {
+            List<File> files = getDelegate().getFiles();
+            List<File> result = null;
+            if (files != null)
+            {
+                result = new ArrayList<File>(files.size());
+                for (File file : files)
+                {
+                    result.add(decorator.decorate(file));
+                }
+            }
+            failed = false;
+            return result;
+        }
+        finally
+        {
+            decorator.after(FileOperation.LIST, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<FileEntry> getEntries() throws FileAccessException,
+        IOException
+    {
+        FileDecorator decorator = getDecorator();
+        long token = decorator.before(FileOperation.LIST, this);
+        boolean failed = true;
+        try
+        {
+            List<FileEntry> entries = getDelegate().getEntries();
+            List<FileEntry> result = new ArrayList<FileEntry>(entries.size());
+            for (FileEntry entry : entries)
+            {
+                result.add(DecoratedListing.decorate(decorator, entry));
+            }
+            failed = false;
+            return result;
+        }
+        finally
+        {
+            decorator.after(FileOperation.LIST, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * Only opening of the listing is reported, reading it is not.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryListing openListing() throws FileAccessException,
+        IOException
+    {
+        FileDecorator decorator = getDecorator();
+        long token = decorator.before(FileOperation.LIST, this);
+        boolean failed = true;
+        try
+        {
+            DirectoryListing listing = getDelegate().openListing();
+            failed = false;
+            return new DecoratedListing(decorator, listing);
+        }
+        finally
+        {
+            decorator.after(FileOperation.LIST, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize() throws FileAccessException, IOException
+    {
+        return getTreeSize(null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache) throws FileAccessException,
+        IOException
+    {
+        return getTreeSize(cache, null);
+    }
+    
+    /**
+     * Size is calculated by {@code FileDecorator.getTreeSize}.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+        throws FileAccessException, IOException
+    {
+        FileDecorator decorator = getDecorator();
+        long token = decorator.before(FileOperation.TREE_SIZE, this);
+        boolean failed = true;
+        try
+        {
+            TreeSize size = decorator.getTreeSize(this, getDelegate(), cache,
+                cancel);
+            failed = false;
+            return size;
+        }
+        finally
+        {
+            decorator.after(FileOperation.TREE_SIZE, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * Listener is notified with this directory and decorated entries.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryWatch watch(final DirectoryChangeListener listener)
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        final FileDecorator decorator = getDecorator();
+        return getDelegate().watch(new DirectoryChangeListener()
+        {
+            @Override
+            public void directoryChanged(Directory directory,
+                List<DirectoryChange> changes)
+            {
+                List<DirectoryChange> result =
+                    new ArrayList<DirectoryChange>(changes.size());
+                for (DirectoryChange change : changes)
+                {
+                    FileEntry entry = change.getEntry();
+                    result.add(entry == null ? change : new DirectoryChange(
+                        change.getKind(), change.getName(),
+                        DecoratedListing.decorate(decorator, entry)));
+                }
+                listener.directoryChanged(DecoratedDirectory.this, result);
+            }
+        });
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File createChild(String name) throws FileSystemException,
+        IOException
+    {
+        return getDecorator().decorate(getDelegate().createChild(name));
+    }
+}
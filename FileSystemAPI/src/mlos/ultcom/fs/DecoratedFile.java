@@ -0,0 +1,300 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File decorated by a {@code FileDecorator}. Besides forwarding the
+ * {@code File} methods, it implements those of the optional capabilities,
+ * which subclasses expose if the original file has them.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedFile implements File
+{
+    private final FileDecorator decorator;
+    private final File delegate;
+    private volatile Object attachment;
+    
+    public DecoratedFile(FileDecorator decorator, File delegate)
+    {
+        this.decorator = decorator;
+        this.delegate = delegate;
+    }
+    
+    public FileDecorator getDecorator()
+    {
+        return decorator;
+    }
+    
+    public File getDelegate()
+    {
+        return delegate;
+    }
+    
+    public Object getAttachment()
+    {
+        return attachment;
+    }
+    
+    public void setAttachment(Object attachment)
+    {
+        this.attachment = attachment;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Directory getParent()
+    {
+        return decorator.decorate(delegate.getParent());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() throws FileAccessException, IOException
+    {
+        long token = decorator.before(FileOperation.STAT, this);
+        boolean failed = true;
+        try
+        {
+            long size = delegate.getSize();
+            failed = false;
+            return size;
+        }
+        finally
+        {
+            decorator.after(FileOperation.STAT, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName()
+    {
+        return delegate.getName();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPath()
+    {
+        return decorator.getPath(delegate);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean exists() throws FileAccessException
+    {
+        long token;
+        try
+        {
+            token = decorator.before(FileOperation.STAT, this);
+        }
+        catch (IOException e)
+        {
+            throw new FileAccessException("Cannot check whether the file " +
+                "exists", e);
+        }
+        boolean failed = true;
+        try
+        {
+            boolean exists = delegate.exists();
+            failed = false;
+            return exists;
+        }
+        finally
+        {
+            decorator.after(FileOperation.STAT, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void create() throws FileAccessException, IOException
+    {
+        long token = decorator.before(FileOperation.CREATE, this);
+        boolean failed = true;
+        try
+        {
+            delegate.create();
+            failed = false;
+        }
+        finally
+        {
+            decorator.after(FileOperation.CREATE, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Directory createDirectory() throws FileSystemException, IOException
+    {
+        long token = decorator.before(FileOperation.CREATE, this);
+        boolean failed = true;
+        try
+        {
+            Directory directory = delegate.createDirectory();
+            failed = false;
+            return decorator.decorate(directory);
+        }
+        finally
+        {
+            decorator.after(FileOperation.CREATE, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream() throws OperationNotSupportedException,
+        FileAccessException, IOException
+    {
+        long token = decorator.before(FileOperation.OPEN, this);
+        boolean failed = true;
+        try
+        {
+            InputStream in = delegate.getInputStream();
+            failed = false;
+            return new DecoratedInputStream(decorator, this, in);
+        }
+        finally
+        {
+            decorator.after(FileOperation.OPEN, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getOutputStream() throws OperationNotSupportedException,
+        FileAccessException, IOException
+    {
+        long token = decorator.before(FileOperation.OPEN, this);
+        boolean failed = true;
+        try
+        {
+            OutputStream out = delegate.getOutputStream();
+            failed = false;
+            return new DecoratedOutputStream(decorator, this, out);
+        }
+        finally
+        {
+            decorator.after(FileOperation.OPEN, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * Implementation of {@code ChannelFile.getReadChannel}, for files
+     * whose original is a {@code ChannelFile}.
+     */
+    public ReadableByteChannel getReadChannel()
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        long token = decorator.before(FileOperation.OPEN, this);
+        boolean failed = true;
+        try
+        {
+            ReadableByteChannel channel =
+                ((ChannelFile) delegate).getReadChannel();
+            failed = false;
+            return decorate(channel);
+        }
+        finally
+        {
+            decorator.after(FileOperation.OPEN, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * Implementation of {@code ChannelFile.getWriteChannel}, for files
+     * whose original is a {@code ChannelFile}.
+     */
+    public WritableByteChannel getWriteChannel()
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        long token = decorator.before(FileOperation.OPEN, this);
+        boolean failed = true;
+        try
+        {
+            WritableByteChannel channel =
+                ((ChannelFile) delegate).getWriteChannel();
+            failed = false;
+            return decorate(channel);
+        }
+        finally
+        {
+            decorator.after(FileOperation.OPEN, this, token, 0, failed);
+        }
+    }
+    
+    /**
+     * Implementation of {@code DeviceAwareFile.getDevice}, for files whose
+     * original is a {@code DeviceAwareFile}.
+     */
+    public Object getDevice() throws IOException
+    {
+        return ((DeviceAwareFile) delegate).getDevice();
+    }
+    
+    private ReadableByteChannel decorate(ReadableByteChannel channel)
+    {
+        if (channel instanceof FileChannel)
+        {
+            return new DecoratedFileChannel(decorator, this,
+                (FileChannel) channel);
+        }
+        return new DecoratedByteChannel(decorator, this, channel);
+    }
+    
+    private WritableByteChannel decorate(WritableByteChannel channel)
+    {
+        if (channel instanceof FileChannel)
+        {
+            return new DecoratedFileChannel(decorator, this,
+                (FileChannel) channel);
+        }
+        return new DecoratedByteChannel(decorator, this, channel);
+    }
+    
+    @Override
+    public boolean equals(Object o)
+    {
+        if (! (o instanceof DecoratedFile))
+        {
+            return false;
+        }
+        DecoratedFile other = (DecoratedFile) o;
+        return decorator == other.decorator &&
+            delegate.equals(other.delegate);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return delegate.hashCode();
+    }
+}
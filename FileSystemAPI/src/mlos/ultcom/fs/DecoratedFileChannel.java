@@ -0,0 +1,341 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@code FileChannel} of a decorated file, reporting every read and
+ * write. Transfers between decorated channels are performed by the
+ * original ones, so that their fast paths are still used; the whole
+ * transfer is reported as a single read of the source and a single write
+ * of the target.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedFileChannel extends FileChannel
+{
+    private final FileDecorator decorator;
+    private final File file;
+    private final FileChannel channel;
+    
+    public DecoratedFileChannel(FileDecorator decorator, File file,
+        FileChannel channel)
+    {
+        this.decorator = decorator;
+        this.file = file;
+        this.channel = channel;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        int length = -1;
+        boolean failed = true;
+        try
+        {
+            length = channel.read(dst);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            afterRead(token, length, failed);
+        }
+    }
+    
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        long read = -1;
+        boolean failed = true;
+        try
+        {
+            read = channel.read(dsts, offset, length);
+            failed = false;
+            return read;
+        }
+        finally
+        {
+            afterRead(token, read, failed);
+        }
+    }
+    
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        int length = -1;
+        boolean failed = true;
+        try
+        {
+            length = channel.read(dst, position);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            afterRead(token, length, failed);
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        int length = 0;
+        boolean failed = true;
+        try
+        {
+            length = channel.write(src);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, length,
+                failed);
+        }
+    }
+    
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        long written = 0;
+        boolean failed = true;
+        try
+        {
+            written = channel.write(srcs, offset, length);
+            failed = false;
+            return written;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, written,
+                failed);
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        int length = 0;
+        boolean failed = true;
+        try
+        {
+            length = channel.write(src, position);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, length,
+                failed);
+        }
+    }
+    
+    /**
+     * If the target is a decorated channel, bytes are transferred to its
+     * original, and the transfer is reported to its decorator as well.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException
+    {
+        DecoratedFileChannel decorated = null;
+        if (target instanceof DecoratedFileChannel)
+        {
+            decorated = (DecoratedFileChannel) target;
+        }
+        long token = decorator.before(FileOperation.READ, file);
+        long transferred = 0;
+        boolean failed = true;
+        try
+        {
+            if (decorated == null)
+            {
+                transferred = channel.transferTo(position, count, target);
+            }
+            else
+            {
+                transferred = decorated.write(channel, position, count);
+            }
+            failed = false;
+            return transferred;
+        }
+        finally
+        {
+            decorator.after(FileOperation.READ, file, token, transferred,
+                failed);
+        }
+    }
+    
+    /**
+     * If the source is a decorated channel, bytes are transferred from
+     * its original, and the transfer is reported to its decorator as well.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position,
+        long count) throws IOException
+    {
+        DecoratedFileChannel decorated = null;
+        if (src instanceof DecoratedFileChannel)
+        {
+            decorated = (DecoratedFileChannel) src;
+        }
+        long token = decorator.before(FileOperation.WRITE, file);
+        long transferred = 0;
+        boolean failed = true;
+        try
+        {
+            if (decorated == null)
+            {
+                transferred = channel.transferFrom(src, position, count);
+            }
+            else
+            {
+                transferred = decorated.read(channel, position, count);
+            }
+            failed = false;
+            return transferred;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, transferred,
+                failed);
+        }
+    }
+    
+    /**
+     * Transfers bytes from the original channel of a decorated source to
+     * the original of this one, reported as a write of this channel.
+     */
+    private long write(FileChannel src, long position, long count)
+        throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        long transferred = 0;
+        boolean failed = true;
+        try
+        {
+            transferred = src.transferTo(position, count, channel);
+            failed = false;
+            return transferred;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, transferred,
+                failed);
+        }
+    }
+    
+    /**
+     * Transfers bytes from the original of this channel to the original
+     * channel of a decorated target, reported as a read of this channel.
+     */
+    private long read(FileChannel target, long position, long count)
+        throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        long transferred = 0;
+        boolean failed = true;
+        try
+        {
+            transferred = target.transferFrom(channel, position, count);
+            failed = false;
+            return transferred;
+        }
+        finally
+        {
+            decorator.after(FileOperation.READ, file, token, transferred,
+                failed);
+        }
+    }
+    
+    @Override
+    public long position() throws IOException
+    {
+        return channel.position();
+    }
+    
+    @Override
+    public FileChannel position(long newPosition) throws IOException
+    {
+        channel.position(newPosition);
+        return this;
+    }
+    
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+    
+    @Override
+    public FileChannel truncate(long size) throws IOException
+    {
+        channel.truncate(size);
+        return this;
+    }
+    
+    @Override
+    public void force(boolean metaData) throws IOException
+    {
+        channel.force(metaData);
+    }
+    
+    /**
+     * Mapped buffers are not decorated, accesses to them are not
+     * reported.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size)
+        throws IOException
+    {
+        return channel.map(mode, position, size);
+    }
+    
+    @Override
+    public FileLock lock(long position, long size, boolean shared)
+        throws IOException
+    {
+        return channel.lock(position, size, shared);
+    }
+    
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared)
+        throws IOException
+    {
+        return channel.tryLock(position, size, shared);
+    }
+    
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        channel.close();
+    }
+    
+    private void afterRead(long token, long length, boolean failed)
+    {
+        decorator.after(FileOperation.READ, file, token, Math.max(length, 0),
+            failed);
+    }
+}
@@ -0,0 +1,64 @@
+package mlos.ultcom.fs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream of a decorated file, reporting every read.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedInputStream extends FilterInputStream
+{
+    private final FileDecorator decorator;
+    private final File file;
+    
+    public DecoratedInputStream(FileDecorator decorator, File file,
+        InputStream in)
+    {
+        super(in);
+        this.decorator = decorator;
+        this.file = file;
+    }
+    
+    @Override
+    public int read() throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        int value = -1;
+        boolean failed = true;
+        try
+        {
+            value = in.read();
+            failed = false;
+            return value;
+        }
+        finally
+        {
+            decorator.after(FileOperation.READ, file, token, 
+                value < 0 ? 0 : 1, failed);
+        }
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        long token = decorator.before(FileOperation.READ, file);
+        int length = -1;
+        boolean failed = true;
+        try
+        {
+            length = in.read(b, off, len);
+            failed = false;
+            return length;
+        }
+        finally
+        {
+            decorator.after(FileOperation.READ, file, token, 
+                Math.max(length, 0), failed);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+
+/**
+ * Listing of a decorated directory, decorating files of the entries.
+ * 
+ * @author Marcin Los
+ * 
+ * @see DecoratedDirectory#openListing()
+ */
+class DecoratedListing implements DirectoryListing
+{
+    private final FileDecorator decorator;
+    private final DirectoryListing listing;
+    
+    public DecoratedListing(FileDecorator decorator, DirectoryListing listing)
+    {
+        this.decorator = decorator;
+        this.listing = listing;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() throws FileAccessException, IOException
+    {
+        return listing.hasNext();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileEntry next() throws FileAccessException, IOException
+    {
+        return decorate(decorator, listing.next());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        listing.close();
+    }
+    
+    /**
+     * @return Entry with the decorated file and the same attributes
+     */
+    static FileEntry decorate(FileDecorator decorator, FileEntry entry)
+    {
+        return new FileEntry(decorator.decorate(entry.getFile()),
+            entry.getAttributes());
+    }
+}
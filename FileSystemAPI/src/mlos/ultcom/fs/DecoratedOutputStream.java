@@ -0,0 +1,62 @@
+package mlos.ultcom.fs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream of a decorated file, reporting every write.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+class DecoratedOutputStream extends FilterOutputStream
+{
+    private final FileDecorator decorator;
+    private final File file;
+    
+    public DecoratedOutputStream(FileDecorator decorator, File file,
+        OutputStream out)
+    {
+        super(out);
+        this.decorator = decorator;
+        this.file = file;
+    }
+    
+    @Override
+    public void write(int b) throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        boolean failed = true;
+        try
+        {
+            out.write(b);
+            failed = false;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, 1, failed);
+        }
+    }
+    
+    /**
+     * Writes the whole array at once, unlike {@code FilterOutputStream}.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        long token = decorator.before(FileOperation.WRITE, file);
+        boolean failed = true;
+        try
+        {
+            out.write(b, off, len);
+            failed = false;
+        }
+        finally
+        {
+            decorator.after(FileOperation.WRITE, file, token, 
+                failed ? 0 : len, failed);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+
+/**
+ * Optional capability of a {@code File}: identification of the storage
+ * device holding it. Commands use it to tune their I/O, e.g. to decide 
+ * how many files can be copied concurrently, which depends a lot on 
+ * whether the source and the destination share the device.
+ * 
+ * @author Marcin Los
+ */
+public interface DeviceAwareFile extends File
+{
+    /**
+     * @return Object identifying the device (or volume) containing this
+     * file. Files on the same device return equal objects.
+     * 
+     * @throws IOException if the device could not be determined, e.g.
+     * because the file does not exist
+     */
+    Object getDevice() throws IOException;
+}
@@ -21,6 +21,123 @@ public interface Directory extends File
      */
     List<File> getFiles() throws FileAccessException, IOException;
     
+    /**
+     * Lists the directory together with basic attributes of its elements
+     * (type, size, modification time, permissions). Implementations should
+     * fetch them in a single pass, so that displaying the listing does not
+     * require querying the file system for every element again.
+     * 
+     * @return List of entries in this directory. If the directory is 
+     * empty, empty list is returned.
+     * 
+     * @throws FileAccessException if application has no read permission
+     * for this directory.
+     * 
+     * @throws IOException if the directory doesn't exist or I/O error 
+     * occured during listing the files
+     */
+    List<FileEntry> getEntries() throws FileAccessException, IOException;
+    
+    /**
+     * Opens streaming listing of this directory. Entries are delivered
+     * incrementally, which makes it the preferred way of traversing
+     * large directories. Listing can be abandoned at any moment by 
+     * closing it.
+     * 
+     * @return Listing of this directory, which must be closed by the caller
+     * 
+     * @throws FileAccessException if application has no read permission
+     * for this directory.
+     * 
+     * @throws IOException if the directory doesn't exist or I/O error 
+     * occured while opening the listing
+     * 
+     * @see DirectoryListing
+     */
+    DirectoryListing openListing() throws FileAccessException, IOException;
+    
+    /**
+     * Calculates the size of the whole tree rooted at this directory. The
+     * apparent size is equal to the value of {@code getSize()}, but the
+     * result carries some more information, most notably the allocated
+     * space. Implementations should count hard-linked files once and must
+     * not loop on cyclic links.
+     * 
+     * @return Size of the directory's content
+     * 
+     * @throws FileAccessException if application has no read permission
+     * for some part of the tree
+     * 
+     * @throws IOException if I/O error occured during the calculation
+     */
+    TreeSize getTreeSize() throws FileAccessException, IOException;
+    
+    /**
+     * Works like {@code getTreeSize()}, but reuses sizes of the content of
+     * directories stored in the cache, provided their modification times 
+     * haven't changed. Sizes of all the directories examined on the way
+     * are stored in the cache.
+     * 
+     * @param cache Cache of directory sizes, may be {@code null}
+     * 
+     * @return Size of the directory's content
+     * 
+     * @throws FileAccessException if application has no read permission
+     * for some part of the tree
+     * 
+     * @throws IOException if I/O error occured during the calculation
+     * 
+     * @see SizeCache
+     */
+    TreeSize getTreeSize(SizeCache cache) throws FileAccessException, 
+        IOException;
+    
+    /**
+     * Works like {@code getTreeSize(SizeCache)}, but stops as soon as
+     * possible once the calculation is canceled.
+     * 
+     * @param cache Cache of directory sizes, may be {@code null}
+     * 
+     * @param cancel Checked while the tree is walked, may be {@code null}
+     * 
+     * @return Size of the directory's content
+     * 
+     * @throws java.io.InterruptedIOException if the calculation has been
+     * canceled
+     * 
+     * @throws FileAccessException if application has no read permission
+     * for some part of the tree
+     * 
+     * @throws IOException if I/O error occured during the calculation
+     */
+    TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+        throws FileAccessException, IOException;
+    
+    /**
+     * Starts watching this directory for changes of its content (elements
+     * being created, removed or modified). Subdirectories are not watched.
+     * It's an optional capability; file systems unable to detect changes
+     * throw {@code OperationNotSupportedException}.
+     * 
+     * @param listener Listener receiving the changes
+     * 
+     * @return Handle which must be closed to stop watching
+     * 
+     * @throws OperationNotSupportedException if the file system does not
+     * support watching this directory
+     * 
+     * @throws FileAccessException if application has no permission to
+     * watch this directory
+     * 
+     * @throws IOException if I/O error occured while registering the
+     * directory
+     * 
+     * @see DirectoryChange
+     */
+    DirectoryWatch watch(DirectoryChangeListener listener) 
+        throws OperationNotSupportedException, FileAccessException,
+        IOException;
+    
     /**
      * Creates the file with a given name in this directory. 
      * <strong> THE FILE IS NOT PHYSICALLY CREATED!</strong>
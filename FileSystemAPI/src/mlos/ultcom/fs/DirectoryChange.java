@@ -0,0 +1,86 @@
+package mlos.ultcom.fs;
+
+/**
+ * Single change of a watched directory's content, as reported to {@code 
+ * DirectoryChangeListener}. Changes are coalesced by the implementation, 
+ * so there is at most one change per element in a batch, describing its
+ * state at the time of delivery.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#watch(DirectoryChangeListener)
+ */
+public final class DirectoryChange
+{
+    /**
+     * Kind of a change
+     */
+    public enum Kind
+    {
+        /** Element was added to the directory */
+        CREATED,
+        
+        /** Element's attributes or content changed */
+        MODIFIED,
+        
+        /** Element was removed from the directory */
+        DELETED,
+        
+        /** 
+         * Some changes were lost; the directory should be listed again.
+         * Such change carries no name.
+         */
+        OVERFLOW
+    }
+    
+    private final Kind kind;
+    private final String name;
+    private final FileEntry entry;
+    
+    /**
+     * @param kind Kind of the change
+     * 
+     * @param name Name of the changed element, {@code null} for overflow
+     * 
+     * @param entry Current entry of the element, {@code null} for removed
+     * elements and overflow
+     */
+    public DirectoryChange(Kind kind, String name, FileEntry entry)
+    {
+        this.kind = kind;
+        this.name = name;
+        this.entry = entry;
+    }
+    
+    /**
+     * @return Kind of the change
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+    
+    /**
+     * @return Name of the changed element, or {@code null} in case of 
+     * overflow
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return Current entry of the created or modified element, with 
+     * freshly read attributes; {@code null} for other kinds of changes
+     */
+    public FileEntry getEntry()
+    {
+        return entry;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return kind + " " + name;
+    }
+}
@@ -0,0 +1,24 @@
+package mlos.ultcom.fs;
+
+import java.util.List;
+
+/**
+ * Receives changes of a watched directory's content.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#watch(DirectoryChangeListener)
+ */
+public interface DirectoryChangeListener
+{
+    /**
+     * Invoked with a batch of coalesced changes. It is called by a thread
+     * owned by the file system implementation, <strong>not</strong> the 
+     * event dispatch thread, and should return quickly.
+     * 
+     * @param directory Watched directory
+     * 
+     * @param changes Changes of the directory's content, never empty
+     */
+    void directoryChanged(Directory directory, List<DirectoryChange> changes);
+}
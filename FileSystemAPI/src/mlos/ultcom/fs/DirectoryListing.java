@@ -0,0 +1,71 @@
+package mlos.ultcom.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streaming, incremental listing of a directory's content. Contrary to
+ * {@code Directory.getFiles()}, entries are produced one by one, as the
+ * underlying file system delivers them, so the caller does not need to
+ * wait for (and keep in memory) the whole listing.
+ * 
+ * <p>
+ * Listing is a resource and must always be closed, possibly before
+ * reaching the end - that's the way to cancel it. Typical usage:
+ * 
+ * <pre>
+ * DirectoryListing listing = directory.openListing();
+ * try
+ * {
+ *     while (listing.hasNext())
+ *     {
+ *         FileEntry entry = listing.next();
+ *         ...
+ *     }
+ * }
+ * finally
+ * {
+ *     listing.close();
+ * }
+ * </pre>
+ * 
+ * Implementations are not required to be thread-safe.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#openListing()
+ */
+public interface DirectoryListing extends Closeable
+{
+    /**
+     * @return {@code true} if there are more entries to read
+     * 
+     * @throws FileAccessException if application has no permission to
+     * read the rest of the listing
+     * 
+     * @throws IOException if I/O error occured while reading the listing
+     */
+    boolean hasNext() throws FileAccessException, IOException;
+    
+    /**
+     * @return Next entry of the listing
+     * 
+     * @throws java.util.NoSuchElementException if there are no more
+     * entries
+     * 
+     * @throws FileAccessException if application has no permission to
+     * read the entry
+     * 
+     * @throws IOException if I/O error occured while reading the entry
+     */
+    FileEntry next() throws FileAccessException, IOException;
+    
+    /**
+     * Releases resources associated with the listing. Entries not read
+     * so far are discarded. Calling it more than once has no effect.
+     * 
+     * @throws IOException if I/O error occured while closing
+     */
+    @Override
+    void close() throws IOException;
+}
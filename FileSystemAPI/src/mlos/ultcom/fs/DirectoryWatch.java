@@ -0,0 +1,23 @@
+package mlos.ultcom.fs;
+
+import java.io.Closeable;
+
+/**
+ * Handle of a directory registered for watching. Watching lasts until
+ * the handle is closed, which should be done as soon as the changes
+ * are no longer of interest, since it holds operating system resources.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#watch(DirectoryChangeListener)
+ */
+public interface DirectoryWatch extends Closeable
+{
+    /**
+     * Stops watching. No changes are delivered after this method returns,
+     * except for a batch possibly being delivered at the moment. Calling 
+     * it more than once has no effect.
+     */
+    @Override
+    void close();
+}
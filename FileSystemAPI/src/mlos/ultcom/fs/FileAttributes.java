@@ -0,0 +1,84 @@
+package mlos.ultcom.fs;
+
+/**
+ * Immutable snapshot of the basic attributes of a file, as read at the
+ * time of listing its parent directory. It lets clients (in particular
+ * GUI models) display files without querying the file system again for
+ * every single value.
+ * 
+ * <p>
+ * Values are not refreshed automatically. If up-to-date information
+ * is required, the directory should be listed again.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#getEntries()
+ */
+public final class FileAttributes
+{
+    /** Denotes unknown modification time */
+    public static final long UNKNOWN_TIME = -1;
+    
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final String permissions;
+    
+    /**
+     * Creates new attributes object.
+     * 
+     * @param directory {@code true} if the file is a directory
+     * 
+     * @param size Size of the file in bytes. Directories' sizes are not
+     * computed during listing, so for them it's usually {@code 0}.
+     * 
+     * @param lastModified Time of last modification in milliseconds since
+     * the epoch, or {@code UNKNOWN_TIME}
+     * 
+     * @param permissions Permissions in the usual {@code rwxr-xr-x} form,
+     * or {@code null} if the file system does not provide them
+     */
+    public FileAttributes(boolean directory, long size, long lastModified,
+        String permissions)
+    {
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.permissions = permissions;
+    }
+    
+    /**
+     * @return {@code true} if the file is a directory
+     */
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * @return Size of the file in bytes, as read during listing. For
+     * directories it's not the size of the content.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * @return Time of last modification in milliseconds since the epoch,
+     * or {@code UNKNOWN_TIME} if it is not known
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+    
+    /**
+     * @return Permissions in {@code rwxr-xr-x} form, or {@code null} if
+     * they are not known
+     */
+    public String getPermissions()
+    {
+        return permissions;
+    }
+}
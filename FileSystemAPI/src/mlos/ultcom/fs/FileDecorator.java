@@ -0,0 +1,235 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+
+/**
+ * Skeleton of decorators of files of any file system. Decorated files
+ * forward everything to the original ones, reporting each operation to
+ * the decorator before and after it's performed, so that it can be
+ * delayed, failed or measured. Files obtained from decorated ones
+ * (parents, children, listings) and their streams and channels are
+ * decorated too.
+ * 
+ * <p>
+ * Decorated files keep the optional capabilities of the originals, as
+ * long as they are either both {@code ChannelFile} and {@code
+ * DeviceAwareFile} or neither. Channels of {@code FileChannel} type are
+ * decorated as {@code FileChannel}s, and transfers between them are
+ * still left to the originals, so commands take the same paths through
+ * the code as without the decorator.
+ * 
+ * <p>
+ * By default nothing is changed. Subclasses override the hooks; they
+ * must be thread-safe, as files are used by many threads at once.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileOperation
+ */
+public abstract class FileDecorator
+{
+    /**
+     * Decorates a file. Files already decorated with this decorator are
+     * returned as they are.
+     * 
+     * @param file File to decorate, may be {@code null}
+     * 
+     * @return Decorated file, {@code Directory} if {@code file} is one
+     */
+    public File decorate(File file)
+    {
+        if (file == null || isDecorated(file))
+        {
+            return file;
+        }
+        boolean capable = file instanceof ChannelFile &&
+            file instanceof DeviceAwareFile;
+        if (file instanceof Directory)
+        {
+            return capable ? new DecoratedChannelDirectory(this,
+                (Directory) file) : new DecoratedDirectory(this,
+                (Directory) file);
+        }
+        return capable ? new DecoratedChannelFile(this, file) :
+            new DecoratedFile(this, file);
+    }
+    
+    /**
+     * Decorates a directory.
+     * 
+     * @param directory Directory to decorate, may be {@code null}
+     * 
+     * @return Decorated directory
+     */
+    public Directory decorate(Directory directory)
+    {
+        return (Directory) decorate((File) directory);
+    }
+    
+    /**
+     * @return Whether a file is decorated with this decorator
+     */
+    public boolean isDecorated(File file)
+    {
+        return file instanceof DecoratedFile &&
+            ((DecoratedFile) file).getDecorator() == this;
+    }
+    
+    /**
+     * Strips all the decorators from a file.
+     * 
+     * @return The original file
+     */
+    public static File undecorate(File file)
+    {
+        while (file instanceof DecoratedFile)
+        {
+            file = ((DecoratedFile) file).getDelegate();
+        }
+        return file;
+    }
+    
+    /**
+     * @return Decorator of the outermost decoration of a file, {@code
+     * null} if it's not decorated
+     */
+    public static FileDecorator getDecorator(File file)
+    {
+        return file instanceof DecoratedFile ?
+            ((DecoratedFile) file).getDecorator() : null;
+    }
+    
+    /**
+     * @param file File decorated with this decorator
+     * 
+     * @return File it decorates, which may be decorated by another
+     * decorator
+     */
+    protected File getOriginal(File file)
+    {
+        return checkDecorated(file).getDelegate();
+    }
+    
+    /**
+     * Returns object attached to a file by {@code setAttachment}, to keep
+     * state of the decorator which is costly to compute on every
+     * operation. Files obtained from a decorated one do not inherit it.
+     * 
+     * @param file File decorated with this decorator
+     * 
+     * @return The attachment, {@code null} if none was set
+     */
+    protected Object getAttachment(File file)
+    {
+        return checkDecorated(file).getAttachment();
+    }
+    
+    /**
+     * Attaches object to a file decorated with this decorator.
+     * 
+     * @see #getAttachment(File)
+     */
+    protected void setAttachment(File file, Object attachment)
+    {
+        checkDecorated(file).setAttachment(attachment);
+    }
+    
+    private DecoratedFile checkDecorated(File file)
+    {
+        if (! isDecorated(file))
+        {
+            throw new IllegalArgumentException("File not decorated with " +
+                "this decorator: " + file.getPath());
+        }
+        return (DecoratedFile) file;
+    }
+    
+    /**
+     * Returns path of a decorated file. By default it's the path of the
+     * original, so the decorator is transparent; decorators with their own
+     * scheme prefix it.
+     * 
+     * @param original Original file
+     */
+    protected String getPath(File original)
+    {
+        return original.getPath();
+    }
+    
+    /**
+     * Called before an operation is performed.
+     * 
+     * @param operation Kind of the operation
+     * 
+     * @param file Decorated file the operation is performed on
+     * 
+     * @return Value passed to {@code after}, e.g. start time
+     * 
+     * @throws IOException to fail the operation without performing it
+     */
+    protected long before(FileOperation operation, File file)
+        throws IOException
+    {
+        return 0;
+    }
+    
+    /**
+     * Called after an operation is performed, or has failed. Not called if
+     * {@code before} has failed.
+     * 
+     * @param operation Kind of the operation
+     * 
+     * @param file Decorated file the operation was performed on
+     * 
+     * @param token Value returned by {@code before}
+     * 
+     * @param bytes Number of bytes read or written, 0 for other kinds
+     * 
+     * @param failed Whether the operation has thrown an exception
+     */
+    protected void after(FileOperation operation, File file, long token,
+        long bytes, boolean failed)
+    {
+    }
+    
+    /**
+     * Calculates size of a decorated directory's tree. By default it's
+     * left to the original directory, which is usually the fastest way,
+     * but it bypasses the decorator for all the subdirectories.
+     * 
+     * @param directory Decorated directory
+     * 
+     * @param original Original directory
+     * 
+     * @param cache Cache passed by the caller, may be {@code null}
+     * 
+     * @param cancel Cancelation check passed by the caller, may be {@code
+     * null}
+     */
+    protected TreeSize getTreeSize(Directory directory, Directory original,
+        SizeCache cache, Cancelable cancel) throws FileAccessException,
+        IOException
+    {
+        return original.getTreeSize(cache, cancel);
+    }
+    
+    /**
+     * Calculates size of a decorated directory's tree the way {@code
+     * AbstractDirectory} does, through the decorated listings, so that
+     * every subdirectory is listed through the decorator. Meant for {@code
+     * getTreeSize} of decorators that need to see the whole walk.
+     * 
+     * @param directory Decorated directory
+     * 
+     * @param cache Cache passed by the caller, may be {@code null}
+     * 
+     * @param cancel Cancelation check passed by the caller, may be {@code
+     * null}
+     */
+    protected static TreeSize walkTreeSize(Directory directory,
+        SizeCache cache, Cancelable cancel) throws FileAccessException,
+        IOException
+    {
+        return AbstractDirectory.sumTreeSize(directory, cache, cancel);
+    }
+}
@@ -0,0 +1,75 @@
+package mlos.ultcom.fs;
+
+import java.io.IOException;
+
+/**
+ * Element of a directory listing: a file together with the attributes
+ * fetched while listing.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#getEntries()
+ */
+public final class FileEntry
+{
+    private final File file;
+    private final FileAttributes attributes;
+    
+    /**
+     * @param file Listed file
+     * 
+     * @param attributes Attributes of the file
+     * 
+     * @throws NullPointerException if any of the arguments is {@code null}
+     */
+    public FileEntry(File file, FileAttributes attributes)
+    {
+        if (file == null || attributes == null)
+        {
+            throw new NullPointerException("File and its attributes " +
+                "cannot be null");
+        }
+        this.file = file;
+        this.attributes = attributes;
+    }
+    
+    /**
+     * @return Listed file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+    
+    /**
+     * @return Attributes of the file read during listing
+     */
+    public FileAttributes getAttributes()
+    {
+        return attributes;
+    }
+    
+    /**
+     * Creates entry for a file obtained by other means than listing its 
+     * parent. Only the type and size (for regular files) are known, 
+     * size being queried with {@code getSize()}.
+     * 
+     * @param file File to describe
+     * 
+     * @return Entry with the file's basic attributes
+     * 
+     * @throws FileAccessException if application has no permission to
+     * read the file's size
+     * 
+     * @throws IOException if I/O error occured while reading the size
+     */
+    public static FileEntry describe(File file) throws FileAccessException,
+        IOException
+    {
+        boolean isDirectory = file instanceof Directory;
+        long size = isDirectory ? 0 : file.getSize();
+        FileAttributes attributes = new FileAttributes(isDirectory, size,
+            FileAttributes.UNKNOWN_TIME, null);
+        return new FileEntry(file, attributes);
+    }
+}
@@ -0,0 +1,32 @@
+package mlos.ultcom.fs;
+
+/**
+ * Kinds of operations on files reported to a {@code FileDecorator}.
+ * 
+ * @author Marcin Los
+ * 
+ * @see FileDecorator
+ */
+public enum FileOperation
+{
+    /** Reading attributes: size or existence */
+    STAT,
+    
+    /** Listing a directory, reported once per listing */
+    LIST,
+    
+    /** Opening a stream or a channel */
+    OPEN,
+    
+    /** Single read from a stream or a channel */
+    READ,
+    
+    /** Single write to a stream or a channel */
+    WRITE,
+    
+    /** Creating a file or a directory */
+    CREATE,
+    
+    /** Calculating size of a directory tree */
+    TREE_SIZE
+}
@@ -0,0 +1,75 @@
+package mlos.ultcom.fs;
+
+import java.util.List;
+
+/**
+ * Cache of sizes of directories' own content, consulted by {@code
+ * Directory.getTreeSize} implementations to avoid examining files of 
+ * directories which have not changed. Entries are validated by 
+ * modification time of the directory, which changes whenever an element
+ * is added, removed or renamed.
+ * 
+ * <p>
+ * Each entry describes the files directly in a directory (their sizes and
+ * number) and the number of its subdirectories, stored as directory count
+ * of a {@code TreeSize}. Sizes of whole trees cannot be cached, as 
+ * modification time of a directory does not change when something changes
+ * deeper in its tree; every directory of a tree has to be visited, but
+ * the files of unchanged ones need not be. Names of subdirectories are
+ * stored with the size, so that unchanged directories need not be listed
+ * to find them.
+ * 
+ * <p>
+ * Note that modification of a file's content does not change modification
+ * time of its directory, so such changes are not detected.
+ * 
+ * <p>
+ * Keys are chosen by file system implementations; they must identify the
+ * directory uniquely among all the file systems, so they should contain
+ * some kind of scheme prefix (e.g. {@code file:/home/user}).
+ * Implementations must be thread-safe.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#getTreeSize(SizeCache)
+ */
+public interface SizeCache
+{
+    /**
+     * @param key Key of a directory
+     * 
+     * @param lastModified Current modification time of the directory
+     * 
+     * @return Cached size of the content, or {@code null} if there is none
+     * or it was stored for different modification time
+     */
+    TreeSize lookup(String key, long lastModified);
+    
+    /**
+     * @param key Key of a directory
+     * 
+     * @param lastModified Current modification time of the directory
+     * 
+     * @return Names of subdirectories stored with the size, or {@code null}
+     * if there are none or they were stored for different modification 
+     * time. The names may be out of date if the cache was not updated
+     * consistently, so they must be verified before use.
+     */
+    List<String> lookupSubdirectories(String key, long lastModified);
+    
+    /**
+     * Stores size of a directory.
+     * 
+     * @param key Key of a directory
+     * 
+     * @param lastModified Modification time of the directory at the time
+     * of calculation
+     * 
+     * @param size Size of the files directly in the directory, with 
+     * number of its subdirectories
+     * 
+     * @param subdirectories Names of the subdirectories
+     */
+    void store(String key, long lastModified, TreeSize size,
+        List<String> subdirectories);
+}
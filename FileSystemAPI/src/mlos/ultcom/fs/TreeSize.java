@@ -0,0 +1,75 @@
+package mlos.ultcom.fs;
+
+/**
+ * Result of calculating the size of a whole directory tree. Besides the
+ * apparent size (sum of file lengths), it carries the space actually
+ * allocated on the device, which may differ considerably for sparse or
+ * compressed files and for file systems with large blocks.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Directory#getTreeSize()
+ */
+public final class TreeSize
+{
+    private final long apparentSize;
+    private final long allocatedSize;
+    private final long fileCount;
+    private final long directoryCount;
+    
+    /**
+     * @param apparentSize Sum of lengths of all the files, in bytes
+     * 
+     * @param allocatedSize Space allocated for the files on the device,
+     * in bytes
+     * 
+     * @param fileCount Number of counted files
+     * 
+     * @param directoryCount Number of visited directories, including the
+     * root
+     */
+    public TreeSize(long apparentSize, long allocatedSize, long fileCount,
+        long directoryCount)
+    {
+        this.apparentSize = apparentSize;
+        this.allocatedSize = allocatedSize;
+        this.fileCount = fileCount;
+        this.directoryCount = directoryCount;
+    }
+    
+    /**
+     * @return Sum of lengths of all the files, in bytes. It's the value
+     * of {@code getSize()} of the directory.
+     */
+    public long getApparentSize()
+    {
+        return apparentSize;
+    }
+    
+    /**
+     * @return Space allocated for the files on the device, in bytes. If
+     * the file system does not provide this information, it's equal to
+     * the apparent size.
+     */
+    public long getAllocatedSize()
+    {
+        return allocatedSize;
+    }
+    
+    /**
+     * @return Number of counted files. Hard links to the same file are
+     * counted once, if the file system allows to detect them.
+     */
+    public long getFileCount()
+    {
+        return fileCount;
+    }
+    
+    /**
+     * @return Number of visited directories, including the root
+     */
+    public long getDirectoryCount()
+    {
+        return directoryCount;
+    }
+}
@@ -39,6 +39,7 @@ import mlos.ultcom.core.ApplicationInterface;
 import mlos.ultcom.core.CommandData;
 import mlos.ultcom.core.CommandExecutor;
 import mlos.ultcom.core.ConfigException;
+import mlos.ultcom.core.DirectorySizeIndex;
 import mlos.ultcom.core.FileSystemFactory;
 import mlos.ultcom.core.GUIBuilder;
 import mlos.ultcom.core.XMLProperties;
@@ -244,6 +245,11 @@ public class ApplicationWindow extends JFrame implements ApplicationInterface
         progressWindow.dispose();
         CommandExecutor executor = CommandExecutor.getInstance();
         executor.shutdown();
+        DirectorySizeIndex sizeIndex = DirectorySizeIndex.getInstance();
+        if (sizeIndex != null)
+        {
+            sizeIndex.close();
+        }
     }
     
     /*
@@ -1,6 +1,7 @@
 package mlos.ultcom.gui;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,6 +15,8 @@ import javax.swing.table.AbstractTableModel;
 import mlos.ultcom.fs.Directory;
 import mlos.ultcom.fs.File;
 import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileAttributes;
+import mlos.ultcom.fs.FileEntry;
 
 /**
  * @author Marcin Los
@@ -25,13 +28,39 @@ class FileListModel extends AbstractTableModel
 {
     private Directory directory;
     private Directory parent;
-    private List<File> fileList = new ArrayList<File>();
+    private List<FileEntry> entries = new ArrayList<FileEntry>();
+    private List<File> fileList = new FileView();
     private Map<File, Long> dirSizeCache = new HashMap<File, Long>();
     
     public static final int NAME = 0;
     public static final int TYPE = 1;
     public static final int SIZE = 2;
     
+    private static final FileAttributes PARENT_ATTRIBUTES = 
+        new FileAttributes(true, 0, FileAttributes.UNKNOWN_TIME, null);
+    
+    // Clever stuff: 'lookaround'
+    private static final Pattern EXTENSION = 
+        Pattern.compile("(?<=\\.)\\w*$");
+    
+    /*
+     * Read-only view of files of the listing entries.
+     */
+    private class FileView extends AbstractList<File>
+    {
+        @Override
+        public File get(int index)
+        {
+            return entries.get(index).getFile();
+        }
+        
+        @Override
+        public int size()
+        {
+            return entries.size();
+        }
+    }
+    
     /**
      * Rebuilds the list of elements. Should be used when panel's
      * directory changes.
@@ -43,7 +72,7 @@ class FileListModel extends AbstractTableModel
      */
     void refreshContent() throws FileAccessException, IOException
     {
-        fileList.clear();
+        entries.clear();
         dirSizeCache.clear();
         try
         {
@@ -52,9 +81,9 @@ class FileListModel extends AbstractTableModel
                 parent = directory.getParent();
                 if (parent != null)
                 {
-                    fileList.add(parent);
+                    entries.add(new FileEntry(parent, PARENT_ATTRIBUTES));
                 }
-                fileList.addAll(directory.getFiles());
+                entries.addAll(directory.getEntries());
             }
         }
         finally
@@ -101,7 +130,7 @@ class FileListModel extends AbstractTableModel
 
     /**
      * The only noteworthy part is returning size of an element.
-     * For files, it's simply value of {@code getSize()}. Computing
+     * For files, it's the size read while listing the directory. Computing
      * size of a directory is potentially expensive operation, so
      * it's not done unless explicitly requested by the user. Computed
      * values are cached.
@@ -114,7 +143,9 @@ class FileListModel extends AbstractTableModel
     @Override
     public Object getValueAt(int row, int column)
     {
-        File file = fileList.get(row);
+        FileEntry entry = entries.get(row);
+        File file = entry.getFile();
+        FileAttributes attributes = entry.getAttributes();
         switch (column)
         {
         case NAME:
@@ -128,17 +159,14 @@ class FileListModel extends AbstractTableModel
             }
             
         case TYPE:
-            if (file instanceof Directory)
+            if (attributes.isDirectory())
             {
                 return "<dir>";
             }
             else
             {
                 String name = file.getName();
-                // Clever stuff: 'lookaround'
-                String regex = "(?<=\\.)\\w*$";
-                Pattern pattern = Pattern.compile(regex);
-                Matcher matcher = pattern.matcher(name);
+                Matcher matcher = EXTENSION.matcher(name);
                 if (matcher.find())
                 {
                     return matcher.group();
@@ -146,21 +174,14 @@ class FileListModel extends AbstractTableModel
                 else return "-";
             }
         case SIZE:
-            if (file instanceof Directory)
+            if (attributes.isDirectory())
             {
                 Long size = dirSizeCache.get(file);
                 return size == null ? 0 : size;
             }
             else 
             {
-                try
-                {
-                    return file.getSize();
-                }
-                catch (Exception e)
-                {
-                    return 0;
-                }
+                return attributes.getSize();
             }
         default:
             throw new IndexOutOfBoundsException("Invalid " + 
@@ -357,6 +357,8 @@ public class FilePanel extends JPanel
             }
         });
         filter = new TableRowSorter<FileListModel>(model);
+        // Watched directories update single rows, which need to be sorted
+        filter.setSortsOnUpdates(true);
         table.setRowSorter(filter);
     }
     
@@ -19,7 +19,9 @@ import mlos.ultcom.command.ProgressEvent;
 import mlos.ultcom.command.ProgressListener;
 
 /**
- * Window showing progress of long-running tasks.
+ * Window showing progress of long-running tasks. Besides the progress bar,
+ * amount of processed data, current throughput and estimated time left
+ * are shown for commands which report them.
  * 
  * @author Marcin Los
  */
@@ -39,7 +41,7 @@ public class ProgressWindow extends JFrame
         add(new JScrollPane(panel));
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
         
-        setSize(300, 150);
+        setSize(400, 150);
     }
     
     /**
@@ -96,6 +98,7 @@ public class ProgressWindow extends JFrame
                     TaskPanel taskPanel = panels.get(i);                    
                     taskPanel.setText(command.getDescription());
                     taskPanel.setValue(e.getNewValue());
+                    taskPanel.setDetails(formatDetails(e));
                 }
             }
         }
@@ -109,6 +112,73 @@ public class ProgressWindow extends JFrame
         }
     }
     
+    /**
+     * Formats counters, throughput and time left carried by the event,
+     * e.g. "1.2 GB of 10.0 GB, 15 of 300 files, 85.3 MB/s, 0:01:45 left".
+     * 
+     * @return Formatted details, or empty string if the event carries 
+     * none
+     */
+    private static String formatDetails(ProgressEvent e)
+    {
+        StringBuilder details = new StringBuilder();
+        if (e.getBytesTotal() >= 0)
+        {
+            details.append(formatSize(e.getBytesDone())).append(" of ")
+                .append(formatSize(e.getBytesTotal()));
+        }
+        if (e.getFilesTotal() >= 0)
+        {
+            if (details.length() > 0)
+            {
+                details.append(", ");
+            }
+            details.append(e.getFilesDone()).append(" of ")
+                .append(e.getFilesTotal()).append(" files");
+        }
+        if (details.length() == 0)
+        {
+            return "";
+        }
+        if (e.getBytesPerSecond() > 0)
+        {
+            details.append(", ").append(formatSize(
+                (long) e.getBytesPerSecond())).append("/s");
+        }
+        if (e.getFilesPerSecond() > 0)
+        {
+            details.append(String.format(", %.1f files/s", 
+                e.getFilesPerSecond()));
+        }
+        long left = e.getEstimatedTimeLeft();
+        if (left >= 0)
+        {
+            details.append(String.format(", %d:%02d:%02d left", left / 3600,
+                left / 60 % 60, left % 60));
+        }
+        return details.toString();
+    }
+    
+    /**
+     * Formats size in bytes using binary units.
+     */
+    private static String formatSize(long bytes)
+    {
+        String[] units = { "B", "KB", "MB", "GB", "TB", "PB" };
+        double value = bytes;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1)
+        {
+            value /= 1024;
+            ++ unit;
+        }
+        if (unit == 0)
+        {
+            return bytes + " B";
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+    
     /**
      * Panel with information about command progress.
      */
@@ -116,6 +186,7 @@ public class ProgressWindow extends JFrame
     {
         private JLabel label;
         private JProgressBar progressBar;
+        private JLabel details;
         
         /**
          * @param command Command to display
@@ -127,8 +198,10 @@ public class ProgressWindow extends JFrame
             
             label = new JLabel(command.getDescription());
             progressBar = new JProgressBar(0, 100);
+            details = new JLabel(" ");
             add(label);
             add(progressBar);
+            add(details);
             
             SpringLayout.Constraints cons = layout.getConstraints(label);
             cons.setX(Spring.constant(5));
@@ -144,10 +217,16 @@ public class ProgressWindow extends JFrame
             layout.putConstraint(SpringLayout.EAST, this, 5, 
                 SpringLayout.EAST, progressBar);
             
-            Spring height = cons.getHeight();
-            height = Spring.sum(Spring.constant(4), height);
-            cons = layout.getConstraints(this);
-            cons.setHeight(height);
+            // Details go below, across the whole width
+            layout.putConstraint(SpringLayout.WEST, details, 5,
+                SpringLayout.WEST, this);
+            layout.putConstraint(SpringLayout.NORTH, details, 3,
+                SpringLayout.SOUTH, progressBar);
+            layout.putConstraint(SpringLayout.EAST, details, -5,
+                SpringLayout.EAST, this);
+            
+            layout.putConstraint(SpringLayout.SOUTH, this, 4,
+                SpringLayout.SOUTH, details);
         }
         
         /**
@@ -165,5 +244,14 @@ public class ProgressWindow extends JFrame
         {
             progressBar.setValue(value);
         }
+        
+        /**
+         * @param text Formatted counters and throughput; empty if unknown
+         */
+        public void setDetails(String text)
+        {
+            // Keep the line's height when there are no details
+            details.setText(text.isEmpty() ? " " : text);
+        }
     }
 }
@@ -1,18 +1,26 @@
 package mlos.ultcom.localfs;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
 
+import mlos.ultcom.fs.Cancelable;
 import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.DirectoryChangeListener;
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.DirectoryWatch;
 import mlos.ultcom.fs.File;
 import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
 import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.OperationNotSupportedException;
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
 
 /**
  * {@code Directory} implementation for local file system.
@@ -42,6 +50,20 @@ public class LocalDirectory extends LocalFile implements Directory
                 "directory");
         }
     }
+    
+    /*
+     * Creates directory whose attributes were already read, so its type
+     * is checked with them rather than by querying the file system again.
+     */
+    LocalDirectory(Path file, BasicFileAttributes attributes)
+    {
+        super(file);
+        if (! attributes.isDirectory())
+        {
+            throw new IllegalArgumentException("Passed file is not a " +
+                "directory");
+        }
+    }
 
     /**
      * {@inheritDoc}
@@ -50,30 +72,84 @@ public class LocalDirectory extends LocalFile implements Directory
     public List<File> getFiles() throws FileAccessException, IOException
     {
         List<File> result = new ArrayList<File>();
-        DirectoryStream<Path> directory = null;
+        for (FileEntry entry : getEntries())
+        {
+            result.add(entry.getFile());
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<FileEntry> getEntries() throws FileAccessException,
+        IOException
+    {
+        List<FileEntry> result = new ArrayList<FileEntry>();
+        DirectoryListing listing = openListing();
         try
         {
-            Path file = getUnderlyingFile();
-            directory = Files.newDirectoryStream(file);
-            for (Path child : directory)
+            while (listing.hasNext())
             {
-                result.add(Files.isDirectory(child) ? new LocalDirectory(child) :
-                    new LocalFile(child));
+                result.add(listing.next());
             }
         }
+        finally
+        {
+            listing.close();
+        }   
+        return result;
+    }
+    
+    /**
+     * Streams straight off the {@code DirectoryStream}. Attributes of each
+     * child are read right after obtaining it from the stream, so every 
+     * element costs a single stat call.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryListing openListing() throws FileAccessException,
+        IOException
+    {
+        try
+        {
+            Path file = getUnderlyingFile();
+            return new LocalDirectoryListing(Files.newDirectoryStream(file));
+        }
         catch (SecurityException e)
         {
             throw new FileAccessException("Unable to access the content of " + 
                 "a directory", e);
         }
-        finally
+    }
+    
+    /**
+     * Watches the directory with {@code WatchService} of its file system.
+     * Changes are delivered in batches collected over {@value 
+     * LocalDirectoryWatch#COALESCE_DELAY} ms, by a separate thread.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryWatch watch(DirectoryChangeListener listener)
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        try
         {
-            if (directory != null)
-            {
-                directory.close();
-            }
-        }   
-        return result;
+            return new LocalDirectoryWatch(this, listener);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            throw new OperationNotSupportedException("File system does " +
+                "not support watching directories", e);
+        }
+        catch (SecurityException e)
+        {
+            throw new FileAccessException("Unable to watch a directory", e);
+        }
     }
     
     @Override
@@ -92,8 +168,9 @@ public class LocalDirectory extends LocalFile implements Directory
     }
     
     /**
-     * Calculates directory's total size by recursively summing sizes of
-     * its content.
+     * Calculates directory's total size with {@code LocalSizeCalculator}.
+     * Symbolic links are not followed, and hard-linked files are counted
+     * once.
      * 
      * @see mlos.ultcom.fs.File#getSize()
      * @see mlos.ultcom.fs.AbstractDirectory#getSize()
@@ -101,11 +178,53 @@ public class LocalDirectory extends LocalFile implements Directory
     @Override
     public long getSize() throws FileAccessException, IOException
     {
-        long size = 0;
-        for (File f : this.getFiles())
+        return getTreeSize().getApparentSize();
+    }
+    
+    /**
+     * Calculates size of the tree with {@code LocalSizeCalculator}. 
+     * Symbolic links are not followed.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize() throws FileAccessException, IOException
+    {
+        return getTreeSize(null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache) throws FileAccessException,
+        IOException
+    {
+        return getTreeSize(cache, null);
+    }
+    
+    /**
+     * Calculates size of the tree with {@code LocalSizeCalculator}, which
+     * consults the cache for every directory, including this one. Keys are
+     * absolute paths prefixed with {@code file:}. Subdirectories which
+     * cannot be read are skipped, rather than failing the calculation.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+        throws FileAccessException, IOException
+    {
+        try
         {
-            size += f.getSize();
+            LocalSizeCalculator calculator = 
+                new LocalSizeCalculator(false, cache, cancel);
+            return calculator.calculate(getUnderlyingFile());
+        }
+        catch (SecurityException e)
+        {
+            throw new FileAccessException("Unable to access the content of " + 
+                "a directory", e);
         }
-        return size;
     }
 }
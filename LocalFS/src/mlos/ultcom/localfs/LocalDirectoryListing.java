@@ -0,0 +1,105 @@
+package mlos.ultcom.localfs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
+
+/**
+ * {@code DirectoryListing} reading straight off the {@code DirectoryStream},
+ * so only the current element is held in memory. Children removed between
+ * reading the directory and their attributes are skipped, so that busy
+ * directories can still be listed.
+ * 
+ * @author Marcin Los
+ * 
+ * @see LocalDirectory#openListing()
+ */
+class LocalDirectoryListing implements DirectoryListing
+{
+    private DirectoryStream<Path> stream;
+    private Iterator<Path> iterator;
+    private FileEntry next;
+    private boolean closed = false;
+    
+    /**
+     * @param stream Opened directory stream, closed together with
+     * the listing
+     */
+    public LocalDirectoryListing(DirectoryStream<Path> stream)
+    {
+        this.stream = stream;
+        this.iterator = stream.iterator();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() throws FileAccessException, IOException
+    {
+        if (closed)
+        {
+            return false;
+        }
+        try
+        {
+            while (next == null && iterator.hasNext())
+            {
+                try
+                {
+                    next = LocalFile.createEntry(iterator.next());
+                }
+                catch (NoSuchFileException e)
+                {
+                    // Removed in the meantime
+                }
+            }
+            return next != null;
+        }
+        catch (DirectoryIteratorException e)
+        {
+            throw e.getCause();
+        }
+        catch (SecurityException e)
+        {
+            throw new FileAccessException("Unable to access the content of " +
+                "a directory", e);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileEntry next() throws FileAccessException, IOException
+    {
+        if (! hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        FileEntry entry = next;
+        next = null;
+        return entry;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (! closed)
+        {
+            closed = true;
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package mlos.ultcom.localfs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.fs.DirectoryChange;
+import mlos.ultcom.fs.DirectoryChangeListener;
+import mlos.ultcom.fs.DirectoryWatch;
+import mlos.ultcom.fs.FileEntry;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watch of a local directory, based on {@code java.nio.file.WatchService}.
+ * Each watch has its own service and a daemon thread waiting for events.
+ * 
+ * <p>
+ * Events are coalesced: after the first one arrives, the thread keeps
+ * collecting them for {@code COALESCE_DELAY} milliseconds, and then 
+ * reports each touched element once. Attributes are read at that moment,
+ * so the change reflects the current state of the element, no matter how
+ * many events it caused. An element created and removed within the same
+ * batch is not reported at all.
+ * 
+ * @author Marcin Los
+ * 
+ * @see LocalDirectory#watch(DirectoryChangeListener)
+ */
+class LocalDirectoryWatch implements DirectoryWatch, Runnable
+{
+    private static final Logger logger = 
+        Logger.getLogger(LocalDirectoryWatch.class);
+    
+    /** Time during which events are collected into one batch, in ms */
+    static final long COALESCE_DELAY = 200;
+    
+    private LocalDirectory directory;
+    private Path path;
+    private DirectoryChangeListener listener;
+    private WatchService service;
+    private volatile boolean closed = false;
+    
+    /**
+     * Registers the directory and starts the watching thread.
+     * 
+     * @param directory Directory to watch
+     * 
+     * @param listener Listener to notify about changes
+     * 
+     * @throws IOException if the directory could not be registered
+     * 
+     * @throws UnsupportedOperationException if the file system does not
+     * support watching
+     */
+    public LocalDirectoryWatch(LocalDirectory directory, 
+        DirectoryChangeListener listener) throws IOException
+    {
+        this.directory = directory;
+        this.listener = listener;
+        path = directory.getUnderlyingFile();
+        service = path.getFileSystem().newWatchService();
+        try
+        {
+            path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e)
+        {
+            service.close();
+            throw e;
+        }
+        Thread thread = new Thread(this, "Watch of " + path);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        try
+        {
+            // Wakes up the thread with ClosedWatchServiceException
+            service.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Error while closing watch service of " + path, e);
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        try
+        {
+            boolean valid = true;
+            while (valid && ! closed)
+            {
+                WatchKey key = service.take();
+                Map<Path, WatchEvent.Kind<?>> pending = 
+                    new LinkedHashMap<Path, WatchEvent.Kind<?>>();
+                boolean overflow = false;
+                long deadline = System.currentTimeMillis() + COALESCE_DELAY;
+                while (key != null)
+                {
+                    overflow |= collect(key, pending);
+                    valid = key.reset();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (! valid || remaining <= 0)
+                    {
+                        break;
+                    }
+                    key = service.poll(remaining, TimeUnit.MILLISECONDS);
+                }
+                deliver(pending, overflow);
+            }
+            if (! valid)
+            {
+                logger.debug("Watched directory is no longer accessible: " + 
+                    path);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.debug("Watch of " + path + " interrupted");
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // Closed, as requested
+        }
+    }
+    
+    /*
+     * Stores the first event of every element; returns true if some
+     * events were lost.
+     */
+    private boolean collect(WatchKey key, 
+        Map<Path, WatchEvent.Kind<?>> pending)
+    {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW)
+            {
+                overflow = true;
+            }
+            else
+            {
+                Path name = (Path) event.context();
+                if (! pending.containsKey(name))
+                {
+                    pending.put(name, kind);
+                }
+            }
+        }
+        return overflow;
+    }
+    
+    /*
+     * Reads current state of collected elements and notifies the listener.
+     */
+    private void deliver(Map<Path, WatchEvent.Kind<?>> pending, 
+        boolean overflow)
+    {
+        if (closed)
+        {
+            return;
+        }
+        List<DirectoryChange> changes = new ArrayList<DirectoryChange>();
+        if (overflow)
+        {
+            changes.add(new DirectoryChange(DirectoryChange.Kind.OVERFLOW,
+                null, null));
+        }
+        else
+        {
+            for (Map.Entry<Path, WatchEvent.Kind<?>> e : pending.entrySet())
+            {
+                DirectoryChange change = describe(e.getKey(), e.getValue());
+                if (change != null)
+                {
+                    changes.add(change);
+                }
+            }
+        }
+        if (! changes.isEmpty())
+        {
+            try
+            {
+                listener.directoryChanged(directory, changes);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Directory change listener failed", e);
+            }
+        }
+    }
+    
+    /*
+     * Creates change describing current state of an element, or returns
+     * null if there is nothing to report.
+     */
+    private DirectoryChange describe(Path name, WatchEvent.Kind<?> first)
+    {
+        boolean created = first == StandardWatchEventKinds.ENTRY_CREATE;
+        try
+        {
+            FileEntry entry = LocalFile.createEntry(path.resolve(name));
+            DirectoryChange.Kind kind = created ? 
+                DirectoryChange.Kind.CREATED : DirectoryChange.Kind.MODIFIED;
+            return new DirectoryChange(kind, name.toString(), entry);
+        }
+        catch (NoSuchFileException e)
+        {
+            if (created)
+            {
+                return null;
+            }
+            return new DirectoryChange(DirectoryChange.Kind.DELETED, 
+                name.toString(), null);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read attributes of changed file " + name, e);
+            return null;
+        }
+    }
+}
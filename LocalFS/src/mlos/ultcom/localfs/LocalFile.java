@@ -3,22 +3,36 @@ package mlos.ultcom.localfs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
 
+import mlos.ultcom.fs.ChannelFile;
+import mlos.ultcom.fs.DeviceAwareFile;
 import mlos.ultcom.fs.Directory;
 import mlos.ultcom.fs.File;
 import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileAttributes;
+import mlos.ultcom.fs.FileEntry;
 import mlos.ultcom.fs.FileSystemException;
 import mlos.ultcom.fs.OperationNotSupportedException;
 
 /**
  * Concrete {@code File} implementation for files in local file system.
- * It's currently implemented using {@code java.nio.file package.
+ * It's currently implemented using {@code java.nio.file package. Content
+ * is available through {@code FileChannel}s as well as streams.
  * 
  * @author Marcin Los
  */
-public class LocalFile implements File
+public class LocalFile implements ChannelFile, DeviceAwareFile
 {
     private Path file;
     
@@ -182,7 +196,124 @@ public class LocalFile implements File
         }
         return Files.newOutputStream(file);
     }
+    
+    /**
+     * @return {@code FileChannel} opened for reading
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public ReadableByteChannel getReadChannel() 
+        throws OperationNotSupportedException, FileAccessException, 
+        IOException
+    {
+        if (Files.isDirectory(file))
+        {
+            throw new OperationNotSupportedException("Cannot open channel " +
+                "of a directory");
+        }
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+    
+    /**
+     * @return {@code FileChannel} opened for writing
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public WritableByteChannel getWriteChannel() 
+        throws OperationNotSupportedException, FileAccessException, 
+        IOException
+    {
+        if (Files.isDirectory(file))
+        {
+            throw new OperationNotSupportedException("Cannot open channel " +
+                "of a directory");
+        }
+        if (Files.exists(file) && ! Files.isWritable(file))
+        {
+            throw new FileAccessException("Cannot write file, access denied");
+        }
+        return FileChannel.open(file, StandardOpenOption.WRITE, 
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    
+    /**
+     * @return {@code FileStore} containing the file
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getDevice() throws IOException
+    {
+        return Files.getFileStore(file);
+    }
 
+    /**
+     * Creates listing entry for a given path, reading all its attributes
+     * with a single {@code readAttributes} call. Symbolic links are 
+     * followed; broken ones are described by attributes of the link itself.
+     * 
+     * @param file Path to create entry for
+     * 
+     * @return Entry with {@code LocalDirectory} or {@code LocalFile}
+     * 
+     * @throws NoSuchFileException if the file does not exist, e.g. has
+     * just been removed
+     * 
+     * @throws IOException if attributes could not be read
+     */
+    static FileEntry createEntry(Path file) throws IOException
+    {
+        BasicFileAttributes attrs;
+        try
+        {
+            attrs = readAttributes(file);
+        }
+        catch (IOException e)
+        {
+            attrs = readAttributes(file, LinkOption.NOFOLLOW_LINKS);
+        }
+        File element = attrs.isDirectory() ? new LocalDirectory(file, attrs) :
+            new LocalFile(file);
+        return new FileEntry(element, toFileAttributes(attrs));
+    }
+    
+    /*
+     * Reads POSIX attributes if the file system supports them, basic
+     * attributes otherwise.
+     */
+    private static BasicFileAttributes readAttributes(Path file, 
+        LinkOption... options) throws IOException
+    {
+        try
+        {
+            return Files.readAttributes(file, PosixFileAttributes.class, 
+                options);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return Files.readAttributes(file, BasicFileAttributes.class,
+                options);
+        }
+    }
+    
+    /*
+     * Converts nio attributes to the file system API representation.
+     */
+    private static FileAttributes toFileAttributes(BasicFileAttributes attrs)
+    {
+        String permissions = null;
+        if (attrs instanceof PosixFileAttributes)
+        {
+            permissions = PosixFilePermissions.toString(
+                ((PosixFileAttributes) attrs).permissions());
+        }
+        long size = attrs.isDirectory() ? 0 : attrs.size();
+        return new FileAttributes(attrs.isDirectory(), size,
+            attrs.lastModifiedTime().toMillis(), permissions);
+    }
+    
     /**
      * @return Underlying java.nio.file.File object.
      */
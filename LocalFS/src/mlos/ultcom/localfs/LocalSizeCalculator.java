@@ -0,0 +1,486 @@
+package mlos.ultcom.localfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mlos.ultcom.fs.Cancelable;
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Size calculation engine for local directory trees. Directories are
+ * listed with {@code DirectoryStream}, and all the attributes needed of
+ * each element, including its link count where the {@code unix} attribute
+ * view is available, are read in a single call, so each node costs a
+ * single stat call, and no {@code LocalFile} objects are created on the
+ * way.
+ * 
+ * <p>
+ * Files are identified by {@code fileKey()} (device and inode on Unix), so
+ * hard-linked files are counted once and a directory reachable by more
+ * than one path (bind mounts, followed links) is entered once, which also
+ * breaks any cycles. Symbolic links are not followed unless requested.
+ * Keys of all the directories are kept, but only those of files with more
+ * than one link, so that memory does not grow with the number of files.
+ * Where link counts are not available, keys of all the files are kept.
+ * 
+ * <p>
+ * Subtrees which cannot be read, e.g. for lack of permissions, are
+ * skipped and counted by {@code getSkippedCount}; the result covers the
+ * rest of the tree. Sizes of directories which could not be read
+ * completely are not stored in the cache.
+ * 
+ * <p>
+ * Number of allocated blocks is not available through {@code java.nio},
+ * so allocated size is estimated by rounding each file up to the block
+ * size of the file store containing the root. It does not account for
+ * sparse or compressed files, but costs no additional calls. Where the
+ * block size is unknown, apparent size is used.
+ * 
+ * <p>
+ * If a {@code SizeCache} is given, it's consulted for every directory. If
+ * the directory hasn't changed, it's not listed; the subdirectories whose
+ * names are stored in the cache are checked, and if they are all still
+ * directories, they are walked in turn. An unchanged directory thus costs
+ * a single stat call. Content of all the directories which had to be
+ * scanned is stored in the cache, with names of their subdirectories.
+ * Hard links between cached and scanned parts of the tree cannot be
+ * detected.
+ * 
+ * <p>
+ * Calculation stops with {@code InterruptedIOException} if it's canceled
+ * or the calling thread gets interrupted. Instances are meant for a single
+ * calculation.
+ * 
+ * @author Marcin Los
+ * 
+ * @see LocalDirectory#getTreeSize()
+ */
+class LocalSizeCalculator
+{
+    private static final Logger logger =
+        Logger.getLogger(LocalSizeCalculator.class);
+    
+    /** Prefix of cache keys, followed by absolute path of a directory */
+    static final String KEY_PREFIX = "file:";
+    
+    /* Attributes read in a single call where the unix view is available */
+    private static final String UNIX_ATTRIBUTES = "unix:size," +
+        "lastModifiedTime,fileKey,nlink,isRegularFile,isDirectory";
+    
+    private boolean followLinks;
+    private SizeCache cache;
+    private Cancelable cancel;
+    private long blockSize = 0;
+    private boolean unixView = false;
+    private LinkOption[] linkOptions;
+    private long skipped = 0;
+    
+    private Set<Object> visited = new HashSet<Object>();
+    
+    /*
+     * Attributes of an element needed for the calculation. Link count is
+     * 0 if it's not known.
+     */
+    private static class Node
+    {
+        private boolean directory;
+        private boolean regularFile;
+        private long size;
+        private long lastModified;
+        private Object fileKey;
+        private int links;
+    }
+    
+    /*
+     * Size of a directory being scanned: of its own files, as stored in the
+     * cache, and of the whole tree.
+     */
+    private static class Subtotal
+    {
+        private String key;
+        private long lastModified;
+        private long ownApparentSize = 0;
+        private long ownAllocatedSize = 0;
+        private long ownFileCount = 0;
+        private List<String> subdirectories = new ArrayList<String>();
+        private long apparentSize = 0;
+        private long allocatedSize = 0;
+        private long fileCount = 0;
+        private long directoryCount = 1;
+        private boolean complete = true;
+        
+        public Subtotal(String key, long lastModified)
+        {
+            this.key = key;
+            this.lastModified = lastModified;
+        }
+        
+        public void addFile(long apparent, long allocated)
+        {
+            ownApparentSize += apparent;
+            ownAllocatedSize += allocated;
+            ++ ownFileCount;
+            apparentSize += apparent;
+            allocatedSize += allocated;
+            ++ fileCount;
+        }
+        
+        public void addOwn(TreeSize own)
+        {
+            apparentSize += own.getApparentSize();
+            allocatedSize += own.getAllocatedSize();
+            fileCount += own.getFileCount();
+        }
+        
+        public void addSubdirectory(Subtotal subdirectory)
+        {
+            apparentSize += subdirectory.apparentSize;
+            allocatedSize += subdirectory.allocatedSize;
+            fileCount += subdirectory.fileCount;
+            directoryCount += subdirectory.directoryCount;
+        }
+        
+        public TreeSize toOwnSize()
+        {
+            return new TreeSize(ownApparentSize, ownAllocatedSize,
+                ownFileCount, subdirectories.size());
+        }
+        
+        public TreeSize toTreeSize()
+        {
+            return new TreeSize(apparentSize, allocatedSize, fileCount,
+                directoryCount);
+        }
+    }
+    
+    /**
+     * @param followLinks Whether symbolic links should be followed
+     * 
+     * @param cache Cache of directory sizes, or {@code null}
+     * 
+     * @param cancel Checked for every visited element, or {@code null}
+     */
+    public LocalSizeCalculator(boolean followLinks, SizeCache cache,
+        Cancelable cancel)
+    {
+        this.followLinks = followLinks;
+        this.cache = cache;
+        this.cancel = cancel;
+        linkOptions = followLinks ? new LinkOption[0] :
+            new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+    }
+    
+    /**
+     * @return Number of files and directories skipped, as they could not
+     * be read
+     */
+    public long getSkippedCount()
+    {
+        return skipped;
+    }
+    
+    /**
+     * Walks the tree and computes its size.
+     * 
+     * @param root Root of the tree. If it is a symbolic link, it's always
+     * followed.
+     * 
+     * @return Calculated size
+     * 
+     * @throws IOException if the root could not be read, or the
+     * calculation was canceled
+     */
+    public TreeSize calculate(Path root) throws IOException
+    {
+        if (Files.isSymbolicLink(root))
+        {
+            root = root.toRealPath();
+        }
+        root = root.toAbsolutePath();
+        blockSize = readBlockSize(root);
+        unixView = root.getFileSystem().supportedFileAttributeViews()
+            .contains("unix");
+        Node node = readNode(root);
+        if (node.directory)
+        {
+            markVisited(node);
+            return scan(root, node, true).toTreeSize();
+        }
+        long size = node.regularFile ? node.size : 0;
+        return new TreeSize(size, roundToBlocks(size),
+            node.regularFile ? 1 : 0, 0);
+    }
+    
+    /*
+     * Calculates size of a directory's tree, consulting the cache first.
+     * Failure to list the root is thrown, of other directories only
+     * recorded.
+     */
+    private Subtotal scan(Path dir, Node node, boolean root)
+        throws IOException
+    {
+        checkCanceled();
+        Subtotal subtotal = new Subtotal(KEY_PREFIX + dir.toString(),
+            node.lastModified);
+        TreeSize own = cache != null ?
+            cache.lookup(subtotal.key, subtotal.lastModified) : null;
+        Map<Path, Node> subdirectories = own != null ?
+            findSubdirectories(subtotal, own.getDirectoryCount(), dir) : 
+            null;
+        if (subdirectories != null)
+        {
+            // Unchanged, only the subdirectories need to be walked
+            subtotal.addOwn(own);
+            for (Map.Entry<Path, Node> entry : subdirectories.entrySet())
+            {
+                visitDirectory(entry.getKey(), entry.getValue(), subtotal);
+            }
+            return subtotal;
+        }
+        DirectoryStream<Path> stream;
+        try
+        {
+            stream = Files.newDirectoryStream(dir);
+        }
+        catch (IOException e)
+        {
+            if (root)
+            {
+                throw e;
+            }
+            logger.debug("Cannot read directory, skipping: " + dir, e);
+            ++ skipped;
+            subtotal.complete = false;
+            return subtotal;
+        }
+        try
+        {
+            for (Path child : stream)
+            {
+                visitChild(child, subtotal);
+            }
+        }
+        catch (DirectoryIteratorException e)
+        {
+            logger.debug("Cannot read directory, skipping the rest: " + dir,
+                e.getCause());
+            ++ skipped;
+            subtotal.complete = false;
+        }
+        finally
+        {
+            stream.close();
+        }
+        if (cache != null && subtotal.complete)
+        {
+            cache.store(subtotal.key, subtotal.lastModified,
+                subtotal.toOwnSize(), subtotal.subdirectories);
+        }
+        return subtotal;
+    }
+    
+    /*
+     * Adds an element of a directory to its subtotal.
+     */
+    private void visitChild(Path child, Subtotal parent) throws IOException
+    {
+        checkCanceled();
+        Node node;
+        try
+        {
+            node = readNode(child);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read, skipping: " + child, e);
+            ++ skipped;
+            parent.complete = false;
+            return;
+        }
+        if (node.directory)
+        {
+            parent.subdirectories.add(child.getFileName().toString());
+            visitDirectory(child, node, parent);
+        }
+        // Symbolic links themselves, devices, sockets etc. take no space
+        else if (node.regularFile && (node.links == 1 || markVisited(node)))
+        {
+            parent.addFile(node.size, roundToBlocks(node.size));
+        }
+    }
+    
+    private void visitDirectory(Path dir, Node node, Subtotal parent)
+        throws IOException
+    {
+        if (! markVisited(node))
+        {
+            logger.debug("Directory already visited, skipping: " + dir);
+            return;
+        }
+        parent.addSubdirectory(scan(dir, node, false));
+    }
+    
+    /*
+     * Reads attributes of an element with a single call. Broken links
+     * being followed are described by attributes of the link itself.
+     */
+    private Node readNode(Path path) throws IOException
+    {
+        try
+        {
+            return readNode(path, linkOptions);
+        }
+        catch (IOException e)
+        {
+            if (! followLinks)
+            {
+                throw e;
+            }
+            return readNode(path, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+    
+    private Node readNode(Path path, LinkOption... options)
+        throws IOException
+    {
+        Node node = new Node();
+        if (unixView)
+        {
+            Map<String, Object> attributes = Files.readAttributes(path,
+                UNIX_ATTRIBUTES, options);
+            node.directory = (Boolean) attributes.get("isDirectory");
+            node.regularFile = (Boolean) attributes.get("isRegularFile");
+            node.size = (Long) attributes.get("size");
+            node.lastModified =
+                ((FileTime) attributes.get("lastModifiedTime")).toMillis();
+            node.fileKey = attributes.get("fileKey");
+            node.links = (Integer) attributes.get("nlink");
+        }
+        else
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path,
+                BasicFileAttributes.class, options);
+            node.directory = attributes.isDirectory();
+            node.regularFile = attributes.isRegularFile();
+            node.size = attributes.size();
+            node.lastModified = attributes.lastModifiedTime().toMillis();
+            node.fileKey = attributes.fileKey();
+        }
+        return node;
+    }
+    
+    private void checkCanceled() throws InterruptedIOException
+    {
+        if (cancel != null && cancel.isCanceled())
+        {
+            throw new InterruptedIOException("Size calculation canceled");
+        }
+        if (Thread.currentThread().isInterrupted())
+        {
+            throw new InterruptedIOException("Size calculation interrupted");
+        }
+    }
+    
+    /*
+     * Finds subdirectories of an unchanged directory by the names stored
+     * in the cache, so that the directory needs not be listed. Returns
+     * null if the names are missing or any of them is no longer a 
+     * directory, in which case the directory has to be scanned.
+     */
+    private Map<Path, Node> findSubdirectories(Subtotal subtotal, 
+        long expected, Path dir) throws IOException
+    {
+        List<String> names = cache.lookupSubdirectories(subtotal.key,
+            subtotal.lastModified);
+        if (names == null || names.size() != expected)
+        {
+            return null;
+        }
+        Map<Path, Node> subdirectories = new LinkedHashMap<Path, Node>();
+        for (String name : names)
+        {
+            checkCanceled();
+            if (name.equals(".") || name.equals(".."))
+            {
+                return null;
+            }
+            Path child = dir.resolve(name);
+            Node node;
+            try
+            {
+                node = readNode(child);
+            }
+            catch (IOException e)
+            {
+                logger.debug("Cannot read subdirectory, scanning parent: " +
+                    child, e);
+                return null;
+            }
+            // Names are checked as the cache might be out of date
+            if (! node.directory || ! name.equals(
+                child.getFileName().toString()))
+            {
+                return null;
+            }
+            subdirectories.put(child, node);
+        }
+        return subdirectories;
+    }
+    
+    /*
+     * Records the file's key; returns false if it's been seen before.
+     * Files without a key are always counted.
+     */
+    private boolean markVisited(Node node)
+    {
+        return node.fileKey == null || visited.add(node.fileKey);
+    }
+    
+    /*
+     * Returns block size of the root's file store, or 0 if it's unknown.
+     */
+    private static long readBlockSize(Path root)
+    {
+        try
+        {
+            return Files.getFileStore(root).getBlockSize();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return 0;
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read block size of " + root, e);
+            return 0;
+        }
+    }
+    
+    /*
+     * Rounds the size up to a multiple of block size.
+     */
+    private long roundToBlocks(long size)
+    {
+        if (blockSize <= 0)
+        {
+            return size;
+        }
+        return (size + blockSize - 1) / blockSize * blockSize;
+    }
+}
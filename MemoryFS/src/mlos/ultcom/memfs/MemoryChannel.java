@@ -0,0 +1,267 @@
+package mlos.ultcom.memfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@code FileChannel} of a memory file. Positional reads and writes and
+ * transfers go straight to the segments of the content, so commands
+ * using them work on memory files exactly as on local ones. Memory files
+ * cannot be mapped nor locked.
+ * 
+ * <p>
+ * As with any {@code FileChannel}, operations using the channel's own
+ * position are serialized, positional ones may run concurrently.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryContent
+ */
+class MemoryChannel extends FileChannel
+{
+    private final MemoryNode node;
+    private final MemoryContent content;
+    private final boolean readable;
+    private final boolean writable;
+    private long position = 0;
+    
+    /**
+     * @param node Node of a regular file
+     * 
+     * @param readable Whether the channel may be read
+     * 
+     * @param writable Whether the channel may be written
+     */
+    public MemoryChannel(MemoryNode node, boolean readable, boolean writable)
+    {
+        this.node = node;
+        this.content = node.getContent();
+        this.readable = readable;
+        this.writable = writable;
+    }
+    
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException
+    {
+        checkReadable();
+        int length = content.read(dst, position);
+        if (length > 0)
+        {
+            position += length;
+        }
+        return length;
+    }
+    
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException
+    {
+        checkReadable();
+        long total = 0;
+        for (int i = offset; i < offset + length; ++ i)
+        {
+            int read = content.read(dsts[i], position);
+            if (read < 0)
+            {
+                return total == 0 ? -1 : total;
+            }
+            position += read;
+            total += read;
+            if (dsts[i].hasRemaining())
+            {
+                break;
+            }
+        }
+        return total;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException
+    {
+        checkReadable();
+        checkPosition(position);
+        return content.read(dst, position);
+    }
+    
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException
+    {
+        checkWritable();
+        int length = content.write(src, position);
+        position += length;
+        node.touch();
+        return length;
+    }
+    
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        checkWritable();
+        long total = 0;
+        for (int i = offset; i < offset + length; ++ i)
+        {
+            int written = content.write(srcs[i], position);
+            position += written;
+            total += written;
+        }
+        node.touch();
+        return total;
+    }
+    
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException
+    {
+        checkWritable();
+        checkPosition(position);
+        int length = content.write(src, position);
+        node.touch();
+        return length;
+    }
+    
+    @Override
+    public synchronized long position() throws IOException
+    {
+        checkOpen();
+        return position;
+    }
+    
+    @Override
+    public synchronized FileChannel position(long newPosition)
+        throws IOException
+    {
+        checkOpen();
+        checkPosition(newPosition);
+        position = newPosition;
+        return this;
+    }
+    
+    @Override
+    public long size() throws IOException
+    {
+        checkOpen();
+        return content.size();
+    }
+    
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException
+    {
+        checkWritable();
+        checkPosition(size);
+        content.truncate(size);
+        position = Math.min(position, size);
+        node.touch();
+        return this;
+    }
+    
+    /**
+     * Content is never written anywhere else, so there's nothing to do.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException
+    {
+        checkOpen();
+    }
+    
+    @Override
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException
+    {
+        checkReadable();
+        checkPosition(position);
+        return content.transferTo(position, count, target);
+    }
+    
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position,
+        long count) throws IOException
+    {
+        checkWritable();
+        checkPosition(position);
+        if (position > content.size())
+        {
+            return 0;
+        }
+        long length = content.transferFrom(src, position, count);
+        node.touch();
+        return length;
+    }
+    
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size)
+    {
+        throw new UnsupportedOperationException("Memory files cannot be " +
+            "mapped");
+    }
+    
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public FileLock lock(long position, long size, boolean shared)
+    {
+        throw new UnsupportedOperationException("Memory files cannot be " +
+            "locked");
+    }
+    
+    /**
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared)
+    {
+        throw new UnsupportedOperationException("Memory files cannot be " +
+            "locked");
+    }
+    
+    @Override
+    protected void implCloseChannel()
+    {
+    }
+    
+    private void checkOpen() throws ClosedChannelException
+    {
+        if (! isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+    
+    private void checkReadable() throws ClosedChannelException
+    {
+        checkOpen();
+        if (! readable)
+        {
+            throw new NonReadableChannelException();
+        }
+    }
+    
+    private void checkWritable() throws ClosedChannelException
+    {
+        checkOpen();
+        if (! writable)
+        {
+            throw new NonWritableChannelException();
+        }
+    }
+    
+    private static void checkPosition(long position)
+    {
+        if (position < 0)
+        {
+            throw new IllegalArgumentException("Negative position: " +
+                position);
+        }
+    }
+}
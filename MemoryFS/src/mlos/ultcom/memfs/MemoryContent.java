@@ -0,0 +1,345 @@
+package mlos.ultcom.memfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Content of a memory file, kept outside the heap in direct buffers
+ * (segments) of {@code SEGMENT_SIZE} bytes, so that large files neither
+ * need contiguous memory nor burden the garbage collector. Only the last
+ * segment may be smaller; it grows by doubling, so small files take
+ * little more space than their length.
+ * 
+ * <p>
+ * Content is thread-safe: any number of reads run concurrently, writes
+ * are exclusive. Every segment allocated is reserved in the file system,
+ * which fails the write if it would exceed the capacity.
+ * 
+ * @author Marcin Los
+ */
+class MemoryContent
+{
+    /** Size of full segments */
+    static final int SEGMENT_SIZE = 1 << 20;
+    
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int MIN_SEGMENT_SIZE = 512;
+    
+    private final MemoryFileSystem fileSystem;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private long size = 0;
+    private long allocated = 0;
+    
+    public MemoryContent(MemoryFileSystem fileSystem)
+    {
+        this.fileSystem = fileSystem;
+    }
+    
+    /**
+     * @return Length of the content
+     */
+    public long size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @return Memory allocated for the content
+     */
+    public long allocated()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return allocated;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads content at a given position.
+     * 
+     * @return Number of bytes read, -1 if the position is at or beyond
+     * the end
+     */
+    public int read(ByteBuffer dst, long position)
+    {
+        lock.readLock().lock();
+        try
+        {
+            if (position >= size)
+            {
+                return dst.hasRemaining() ? -1 : 0;
+            }
+            int length = (int) Math.min(dst.remaining(), size - position);
+            int done = 0;
+            while (done < length)
+            {
+                ByteBuffer slice = slice(position + done, length - done);
+                done += slice.remaining();
+                dst.put(slice);
+            }
+            return length;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes content at a given position, extending it if needed. Gap
+     * between the end and the position reads as zeros.
+     * 
+     * @return Number of bytes written, i.e. all remaining in {@code src}
+     * 
+     * @throws IOException if the file system has no space left
+     */
+    public int write(ByteBuffer src, long position) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int length = src.remaining();
+            ensureCapacity(position + length);
+            int done = 0;
+            while (done < length)
+            {
+                ByteBuffer slice = slice(position + done, length - done);
+                int n = slice.remaining();
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                slice.put(part);
+                src.position(src.position() + n);
+                done += n;
+            }
+            size = Math.max(size, position + length);
+            return length;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes content to a channel, straight from the segments.
+     * 
+     * @return Number of bytes written
+     */
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException
+    {
+        long done = 0;
+        while (done < count)
+        {
+            ByteBuffer slice;
+            lock.readLock().lock();
+            try
+            {
+                long remaining = Math.min(count - done, size - position - done);
+                if (remaining <= 0)
+                {
+                    break;
+                }
+                slice = slice(position + done, remaining);
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+            int length = target.write(slice);
+            done += length;
+            if (slice.hasRemaining())
+            {
+                break;
+            }
+        }
+        return done;
+    }
+    
+    /**
+     * Reads content from a channel, straight into the segments.
+     * 
+     * @return Number of bytes read
+     * 
+     * @throws IOException if the channel could not be read or the file
+     * system has no space left
+     */
+    public long transferFrom(ReadableByteChannel src, long position,
+        long count) throws IOException
+    {
+        long done = 0;
+        while (done < count)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                long end = position + done + Math.min(count - done,
+                    SEGMENT_SIZE);
+                ensureCapacity(end);
+                ByteBuffer slice = slice(position + done, end - position -
+                    done);
+                int length = src.read(slice);
+                if (length <= 0)
+                {
+                    break;
+                }
+                done += length;
+                size = Math.max(size, position + done);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        return done;
+    }
+    
+    /**
+     * Cuts the content to a given length, releasing the segments beyond
+     * it. Content shorter than that is left as it is.
+     */
+    public void truncate(long length)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (length >= size)
+            {
+                return;
+            }
+            int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            for (int i = count; i < segments.length; ++ i)
+            {
+                release(segments[i].capacity());
+            }
+            segments = Arrays.copyOf(segments, count);
+            if (count > 0)
+            {
+                /* Bytes past the end must read as zeros if it's extended */
+                ByteBuffer last = segments[count - 1].duplicate();
+                int offset = (int) (length - ((long) (count - 1) <<
+                    SEGMENT_SHIFT));
+                last.position(offset);
+                while (last.hasRemaining())
+                {
+                    last.put((byte) 0);
+                }
+            }
+            size = length;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /*
+     * Returns buffer over the content at a given position, up to a given
+     * length or the end of its segment. Caller must hold the lock.
+     */
+    private ByteBuffer slice(long position, long length)
+    {
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        ByteBuffer slice = segment.duplicate();
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        slice.limit((int) Math.min(segment.capacity(), offset + length));
+        slice.position(offset);
+        return slice;
+    }
+    
+    /*
+     * Allocates segments to hold content up to a given length: all but the
+     * last one full, the last one rounded up to a power of two. Caller
+     * must hold the write lock.
+     */
+    private void ensureCapacity(long length) throws IOException
+    {
+        if (length == 0)
+        {
+            return;
+        }
+        int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        if (count > segments.length)
+        {
+            int old = segments.length;
+            segments = Arrays.copyOf(segments, count);
+            if (old > 0)
+            {
+                grow(old - 1, SEGMENT_SIZE);
+            }
+            for (int i = old; i < count - 1; ++ i)
+            {
+                segments[i] = allocate(SEGMENT_SIZE);
+            }
+        }
+        int last = (int) (length - ((long) (count - 1) << SEGMENT_SHIFT));
+        grow(count - 1, Math.max(MIN_SEGMENT_SIZE,
+            Integer.highestOneBit(last - 1) << 1));
+    }
+    
+    /*
+     * Makes sure a segment has at least a given capacity, moving it to a
+     * larger buffer if needed.
+     */
+    private void grow(int index, int capacity) throws IOException
+    {
+        capacity = Math.min(capacity, SEGMENT_SIZE);
+        ByteBuffer segment = segments[index];
+        if (segment != null && segment.capacity() >= capacity)
+        {
+            return;
+        }
+        ByteBuffer grown = allocate(capacity);
+        if (segment != null)
+        {
+            ByteBuffer old = segment.duplicate();
+            old.clear();
+            grown.put(old);
+            grown.clear();
+            release(segment.capacity());
+        }
+        segments[index] = grown;
+    }
+    
+    private ByteBuffer allocate(int capacity) throws IOException
+    {
+        fileSystem.reserve(capacity);
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            allocated += capacity;
+            return buffer;
+        }
+        catch (OutOfMemoryError e)
+        {
+            fileSystem.release(capacity);
+            throw new IOException("Out of direct memory for memory files",
+                e);
+        }
+    }
+    
+    private void release(int capacity)
+    {
+        allocated -= capacity;
+        fileSystem.release(capacity);
+    }
+}
@@ -0,0 +1,205 @@
+package mlos.ultcom.memfs;
+
+import java.io.IOException;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.List;
+
+import mlos.ultcom.fs.Cancelable;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.DirectoryChangeListener;
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.DirectoryWatch;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.OperationNotSupportedException;
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
+
+/**
+ * {@code Directory} implementation for the memory file system.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryFile
+ */
+public class MemoryDirectory extends MemoryFile implements Directory
+{
+    /**
+     * @param fileSystem File system containing the directory
+     * 
+     * @param path Normalized absolute path of the directory
+     */
+    MemoryDirectory(MemoryFileSystem fileSystem, String path)
+    {
+        super(fileSystem, path);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<File> getFiles() throws FileAccessException, IOException
+    {
+        List<File> result = new ArrayList<File>();
+        for (FileEntry entry : getEntries())
+        {
+            result.add(entry.getFile());
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<FileEntry> getEntries() throws FileAccessException,
+        IOException
+    {
+        List<FileEntry> result = new ArrayList<FileEntry>();
+        DirectoryListing listing = openListing();
+        try
+        {
+            while (listing.hasNext())
+            {
+                result.add(listing.next());
+            }
+        }
+        finally
+        {
+            listing.close();
+        }
+        return result;
+    }
+    
+    /**
+     * Lists children in the order of their names.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryListing openListing() throws FileAccessException,
+        IOException
+    {
+        return new MemoryDirectoryListing(getFileSystem(), getMemoryPath(),
+            getDirectoryNode());
+    }
+    
+    /**
+     * Watching is not supported.
+     * 
+     * @throws OperationNotSupportedException always
+     */
+    @Override
+    public DirectoryWatch watch(DirectoryChangeListener listener)
+        throws OperationNotSupportedException
+    {
+        throw new OperationNotSupportedException("Memory directories " +
+            "cannot be watched");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File createChild(String name) throws FileSystemException
+    {
+        if (name.isEmpty() || name.contains("/") || name.equals(".") ||
+            name.equals(".."))
+        {
+            throw new FileSystemException("Invalid file name: " + name);
+        }
+        return new MemoryFile(getFileSystem(),
+            MemoryFileSystem.resolve(getMemoryPath(), name));
+    }
+    
+    /**
+     * @return Total size of the files in the tree
+     * 
+     * @see mlos.ultcom.fs.File#getSize()
+     */
+    @Override
+    public long getSize() throws FileAccessException, IOException
+    {
+        return getTreeSize().getApparentSize();
+    }
+    
+    /**
+     * Walks the tree in memory. Allocated size is the memory taken by the
+     * content of the files.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize() throws FileAccessException, IOException
+    {
+        long[] totals = new long[4];
+        sum(getMemoryPath(), getDirectoryNode(), totals);
+        return new TreeSize(totals[0], totals[1], totals[2], totals[3]);
+    }
+    
+    /**
+     * Cache is not consulted: walking the tree in memory is not slower
+     * than looking its parts up.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache) throws FileAccessException,
+        IOException
+    {
+        return getTreeSize();
+    }
+    
+    /**
+     * Walking the tree in memory is too quick to bother with cancelation.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+        throws FileAccessException, IOException
+    {
+        return getTreeSize();
+    }
+    
+    /*
+     * Adds apparent size, allocated size, file and directory counts of a
+     * tree to the totals.
+     */
+    private void sum(String path, MemoryNode directory, long[] totals)
+    {
+        ++ totals[3];
+        for (String name : directory.getChildren())
+        {
+            String child = MemoryFileSystem.resolve(path, name);
+            MemoryNode node = getFileSystem().get(child);
+            if (node == null)
+            {
+                continue;
+            }
+            if (node.isDirectory())
+            {
+                sum(child, node, totals);
+            }
+            else
+            {
+                totals[0] += node.getContent().size();
+                totals[1] += node.getContent().allocated();
+                ++ totals[2];
+            }
+        }
+    }
+    
+    private MemoryNode getDirectoryNode() throws IOException
+    {
+        MemoryNode node = getNode();
+        if (! node.isDirectory())
+        {
+            throw new NotDirectoryException(getPath());
+        }
+        return node;
+    }
+}
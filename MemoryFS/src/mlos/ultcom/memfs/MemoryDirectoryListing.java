@@ -0,0 +1,79 @@
+package mlos.ultcom.memfs;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.FileEntry;
+
+/**
+ * {@code DirectoryListing} iterating over the names of a directory's
+ * children, in order. Children added while listing may or may not be
+ * seen; those gone by the time they are reached are skipped.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryDirectory#openListing()
+ */
+class MemoryDirectoryListing implements DirectoryListing
+{
+    private MemoryFileSystem fileSystem;
+    private String path;
+    private Iterator<String> names;
+    private FileEntry next;
+    private boolean closed = false;
+    
+    /**
+     * @param fileSystem File system containing the directory
+     * 
+     * @param path Normalized path of the directory
+     * 
+     * @param node Node of the directory
+     */
+    public MemoryDirectoryListing(MemoryFileSystem fileSystem, String path,
+        MemoryNode node)
+    {
+        this.fileSystem = fileSystem;
+        this.path = path;
+        this.names = node.getChildren().iterator();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext()
+    {
+        while (! closed && next == null && names.hasNext())
+        {
+            next = MemoryFile.createEntry(fileSystem, 
+                MemoryFileSystem.resolve(path, names.next()));
+        }
+        return next != null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileEntry next()
+    {
+        if (! hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        FileEntry entry = next;
+        next = null;
+        return entry;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        next = null;
+    }
+}
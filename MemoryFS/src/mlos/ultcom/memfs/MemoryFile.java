@@ -0,0 +1,290 @@
+package mlos.ultcom.memfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+
+import mlos.ultcom.fs.ChannelFile;
+import mlos.ultcom.fs.DeviceAwareFile;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.OperationNotSupportedException;
+
+/**
+ * {@code File} implementation for files of the memory file system. Like
+ * {@code LocalFile}, it's just a path; the file it denotes is looked up
+ * on every operation, so it may not exist yet. Content is available
+ * through {@code FileChannel}s as well as streams.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryFileSystem
+ */
+public class MemoryFile implements ChannelFile, DeviceAwareFile
+{
+    private final MemoryFileSystem fileSystem;
+    private final String path;
+    
+    /**
+     * @param fileSystem File system containing the file
+     * 
+     * @param path Normalized absolute path of the file
+     */
+    MemoryFile(MemoryFileSystem fileSystem, String path)
+    {
+        this.fileSystem = fileSystem;
+        this.path = path;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Directory getParent()
+    {
+        String parent = MemoryFileSystem.getParent(path);
+        return parent == null ? null :
+            new MemoryDirectory(fileSystem, parent);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() throws FileAccessException, IOException
+    {
+        MemoryNode node = getNode();
+        return node.isDirectory() ? 0 : node.getContent().size();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName()
+    {
+        return MemoryFileSystem.getName(path);
+    }
+    
+    /**
+     * @return Path with {@code mem:} scheme, e.g. {@code mem:/tmp/a.txt}
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPath()
+    {
+        try
+        {
+            return new URI(MemoryFileFactory.SCHEME, null, path, null)
+                .toString();
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean exists()
+    {
+        return fileSystem.get(path) != null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void create() throws FileAccessException, IOException
+    {
+        fileSystem.createFile(path);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Directory createDirectory() throws FileSystemException, IOException
+    {
+        MemoryNode node = fileSystem.get(path);
+        if (node == null)
+        {
+            try
+            {
+                node = fileSystem.createDirectory(path);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                node = fileSystem.get(path);
+            }
+        }
+        if (! node.isDirectory())
+        {
+            throw new FileSystemException("Cannot create directory " +
+                path + ", regular file with such path already exists");
+        }
+        return new MemoryDirectory(fileSystem, path);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream() throws OperationNotSupportedException,
+        FileAccessException, IOException
+    {
+        return Channels.newInputStream(getReadChannel());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getOutputStream() throws OperationNotSupportedException,
+        FileAccessException, IOException
+    {
+        return Channels.newOutputStream(getWriteChannel());
+    }
+    
+    /**
+     * @return {@code FileChannel} opened for reading
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public ReadableByteChannel getReadChannel()
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        MemoryNode node = getNode();
+        if (node.isDirectory())
+        {
+            throw new OperationNotSupportedException("Cannot open channel " +
+                "of a directory");
+        }
+        return new MemoryChannel(node, true, false);
+    }
+    
+    /**
+     * @return {@code FileChannel} opened for writing
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public WritableByteChannel getWriteChannel()
+        throws OperationNotSupportedException, FileAccessException,
+        IOException
+    {
+        MemoryNode node = fileSystem.get(path);
+        if (node == null)
+        {
+            try
+            {
+                node = fileSystem.createFile(path);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                node = getNode();
+            }
+        }
+        if (node.isDirectory())
+        {
+            throw new OperationNotSupportedException("Cannot open channel " +
+                "of a directory");
+        }
+        FileChannel channel = new MemoryChannel(node, false, true);
+        channel.truncate(0);
+        return channel;
+    }
+    
+    /**
+     * @return The memory file system; all memory files share the device
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getDevice()
+    {
+        return fileSystem;
+    }
+    
+    /**
+     * Creates listing entry for a child of a directory.
+     * 
+     * @return Entry with {@code MemoryDirectory} or {@code MemoryFile}, or
+     * {@code null} if there's no such file
+     */
+    static FileEntry createEntry(MemoryFileSystem fileSystem, String path)
+    {
+        MemoryNode node = fileSystem.get(path);
+        if (node == null)
+        {
+            return null;
+        }
+        MemoryFile element = node.isDirectory() ?
+            new MemoryDirectory(fileSystem, path) :
+            new MemoryFile(fileSystem, path);
+        return new FileEntry(element, node.getAttributes());
+    }
+    
+    /**
+     * @return Node of the file
+     * 
+     * @throws NoSuchFileException if the file does not exist
+     */
+    MemoryNode getNode() throws NoSuchFileException
+    {
+        MemoryNode node = fileSystem.get(path);
+        if (node == null)
+        {
+            throw new NoSuchFileException(getPath());
+        }
+        return node;
+    }
+    
+    /**
+     * @return File system containing the file
+     */
+    MemoryFileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+    
+    /**
+     * @return Normalized absolute path of the file
+     */
+    String getMemoryPath()
+    {
+        return path;
+    }
+    
+    @Override
+    public boolean equals(Object o)
+    {
+        if (! (o instanceof MemoryFile))
+        {
+            return false;
+        }
+        MemoryFile other = (MemoryFile) o;
+        return fileSystem == other.fileSystem && path.equals(other.path);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return path.hashCode();
+    }
+}
@@ -0,0 +1,55 @@
+package mlos.ultcom.memfs;
+
+import java.net.URI;
+
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileFactory;
+import mlos.ultcom.fs.MalformedURI;
+
+/**
+ * Implementation of {@code FileFactory} for the {@code mem:} scheme, 
+ * giving access to the memory file system, e.g. {@code mem:/tmp/a.txt}.
+ * It's meant as a scratch area for staging data between commands, and as
+ * a target for benchmarks free of the noise of real devices. Content is
+ * lost when the application exits.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryFileSystem
+ */
+public class MemoryFileFactory implements FileFactory
+{
+    /** Scheme of memory files */
+    public static final String SCHEME = "mem";
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File newInstance(URI path) throws MalformedURI
+    {
+        String spec = path.getPath();
+        String normalized = spec == null ? null :
+            MemoryFileSystem.normalize(spec);
+        if (normalized == null)
+        {
+            throw new MalformedURI("Invalid memory file path: " + path);
+        }
+        MemoryFileSystem fileSystem = MemoryFileSystem.getInstance();
+        MemoryNode node = fileSystem.get(normalized);
+        if (node != null && node.isDirectory())
+        {
+            return new MemoryDirectory(fileSystem, normalized);
+        }
+        return new MemoryFile(fileSystem, normalized);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+}
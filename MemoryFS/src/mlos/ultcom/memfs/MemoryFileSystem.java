@@ -0,0 +1,316 @@
+package mlos.ultcom.memfs;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mlos.ultcom.core.ApplicationLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * File system kept entirely in memory, shared by the whole application.
+ * Metadata of all the files lives in a concurrent map from absolute
+ * paths to nodes, so looking up a file takes a single map access
+ * regardless of its depth; content is kept outside the heap.
+ * 
+ * <p>
+ * Total memory taken by the content is limited by the capacity, read from
+ * the {@code memfs.capacity} property of the main configuration (in
+ * bytes, unlimited by default). It can also be changed at runtime.
+ * Writes beyond it fail as if the disk were full.
+ * 
+ * <p>
+ * Files cannot be removed through the file system API; {@code clear}
+ * removes everything at once, e.g. between benchmark runs.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryFileFactory
+ */
+public class MemoryFileSystem
+{
+    private static final Logger logger =
+        Logger.getLogger(MemoryFileSystem.class);
+    
+    /** Path of the root directory */
+    public static final String ROOT = "/";
+    
+    private static MemoryFileSystem instance;
+    
+    private final ConcurrentMap<String, MemoryNode> nodes =
+        new ConcurrentHashMap<String, MemoryNode>();
+    private final AtomicLong used = new AtomicLong();
+    private volatile long capacity;
+    
+    /**
+     * Private constructor - singleton
+     */
+    private MemoryFileSystem(long capacity)
+    {
+        this.capacity = capacity;
+        nodes.put(ROOT, MemoryNode.newDirectory());
+    }
+    
+    /**
+     * @return Instance of the memory file system, created with the
+     * configured capacity on first use
+     */
+    public static synchronized MemoryFileSystem getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new MemoryFileSystem(readCapacity());
+        }
+        return instance;
+    }
+    
+    private static long readCapacity()
+    {
+        Properties properties = ApplicationLoader.getInstance().getProperties();
+        String value = properties == null ? null :
+            properties.getProperty("memfs.capacity");
+        if (value != null)
+        {
+            try
+            {
+                long capacity = Long.parseLong(value.trim());
+                if (capacity >= 0)
+                {
+                    return capacity;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // reported below
+            }
+            logger.warn("Invalid value of memfs.capacity; memory file " +
+                "system is unlimited");
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    /**
+     * @return Maximum memory the content of files may take, in bytes
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Changes the capacity. Content already stored is kept, even if it
+     * exceeds the new capacity.
+     * 
+     * @param capacity Maximum memory the content of files may take, in
+     * bytes
+     */
+    public void setCapacity(long capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Negative capacity: " +
+                capacity);
+        }
+        this.capacity = capacity;
+    }
+    
+    /**
+     * @return Memory taken by the content of files, in bytes
+     */
+    public long getUsedSpace()
+    {
+        return used.get();
+    }
+    
+    /**
+     * Removes all the files and directories, releasing their memory.
+     * Files and channels still in use become detached from the file
+     * system.
+     */
+    public void clear()
+    {
+        for (Map.Entry<String, MemoryNode> entry : nodes.entrySet())
+        {
+            MemoryNode node = entry.getValue();
+            if (entry.getKey().equals(ROOT))
+            {
+                node.getChildren().clear();
+                node.touch();
+            }
+            else if (nodes.remove(entry.getKey(), node) &&
+                ! node.isDirectory())
+            {
+                node.getContent().truncate(0);
+            }
+        }
+    }
+    
+    /**
+     * @param path Normalized path
+     * 
+     * @return Node with a given path, or {@code null} if there's none
+     */
+    MemoryNode get(String path)
+    {
+        return nodes.get(path);
+    }
+    
+    /**
+     * Creates empty regular file.
+     * 
+     * @param path Normalized path
+     * 
+     * @throws NoSuchFileException if the parent does not exist
+     * 
+     * @throws NotDirectoryException if the parent is not a directory
+     * 
+     * @throws FileAlreadyExistsException if the path is taken
+     */
+    MemoryNode createFile(String path) throws IOException
+    {
+        return create(path, MemoryNode.newFile(this));
+    }
+    
+    /**
+     * Creates empty directory.
+     * 
+     * @param path Normalized path
+     * 
+     * @throws NoSuchFileException if the parent does not exist
+     * 
+     * @throws NotDirectoryException if the parent is not a directory
+     * 
+     * @throws FileAlreadyExistsException if the path is taken
+     */
+    MemoryNode createDirectory(String path) throws IOException
+    {
+        return create(path, MemoryNode.newDirectory());
+    }
+    
+    /*
+     * Inserts a new node into the map and into its parent's children.
+     * Nodes are never removed one by one, so the parent cannot disappear
+     * in the meantime.
+     */
+    private MemoryNode create(String path, MemoryNode node)
+        throws IOException
+    {
+        if (path.equals(ROOT))
+        {
+            throw new FileAlreadyExistsException(path);
+        }
+        MemoryNode parent = nodes.get(getParent(path));
+        if (parent == null)
+        {
+            throw new NoSuchFileException(path, null, "Parent directory " +
+                "does not exist");
+        }
+        if (! parent.isDirectory())
+        {
+            throw new NotDirectoryException(getParent(path));
+        }
+        if (nodes.putIfAbsent(path, node) != null)
+        {
+            throw new FileAlreadyExistsException(path);
+        }
+        parent.getChildren().add(getName(path));
+        parent.touch();
+        return node;
+    }
+    
+    /**
+     * Reserves memory for content of a file.
+     * 
+     * @throws IOException if the capacity would be exceeded
+     */
+    void reserve(long length) throws IOException
+    {
+        while (true)
+        {
+            long current = used.get();
+            if (length > capacity - current)
+            {
+                throw new IOException("No space left in memory file " +
+                    "system (capacity " + capacity + " bytes)");
+            }
+            if (used.compareAndSet(current, current + length))
+            {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Releases memory reserved for content of a file.
+     */
+    void release(long length)
+    {
+        used.addAndGet(- length);
+    }
+    
+    /**
+     * Normalizes a path: makes it absolute, removes empty and {@code .}
+     * segments, resolves {@code ..} segments and the trailing slash.
+     * 
+     * @return Normalized path, or {@code null} if it goes above the root
+     */
+    static String normalize(String path)
+    {
+        StringBuilder result = new StringBuilder();
+        for (String segment : path.split("/"))
+        {
+            if (segment.isEmpty() || segment.equals("."))
+            {
+                continue;
+            }
+            if (segment.equals(".."))
+            {
+                int slash = result.lastIndexOf("/");
+                if (slash < 0)
+                {
+                    return null;
+                }
+                result.setLength(slash);
+                continue;
+            }
+            result.append('/').append(segment);
+        }
+        return result.length() == 0 ? ROOT : result.toString();
+    }
+    
+    /**
+     * @return Normalized path of the parent, {@code null} for the root
+     */
+    static String getParent(String path)
+    {
+        if (path.equals(ROOT))
+        {
+            return null;
+        }
+        int slash = path.lastIndexOf('/');
+        return slash == 0 ? ROOT : path.substring(0, slash);
+    }
+    
+    /**
+     * @return Last segment of a normalized path, empty for the root
+     */
+    static String getName(String path)
+    {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+    
+    /**
+     * @return Normalized path of a child of a directory
+     */
+    static String resolve(String directory, String name)
+    {
+        return directory.equals(ROOT) ? ROOT + name : directory + "/" + name;
+    }
+}
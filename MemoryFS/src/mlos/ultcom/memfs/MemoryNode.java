@@ -0,0 +1,89 @@
+package mlos.ultcom.memfs;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import mlos.ultcom.fs.FileAttributes;
+
+/**
+ * Metadata of a file or directory of the memory file system: its type,
+ * modification time and either content or names of the children.
+ * 
+ * @author Marcin Los
+ * 
+ * @see MemoryFileSystem
+ */
+class MemoryNode
+{
+    private final MemoryContent content;
+    private final ConcurrentSkipListSet<String> children;
+    private volatile long lastModified;
+    
+    private MemoryNode(MemoryContent content,
+        ConcurrentSkipListSet<String> children)
+    {
+        this.content = content;
+        this.children = children;
+        touch();
+    }
+    
+    /**
+     * Creates node of an empty regular file.
+     */
+    public static MemoryNode newFile(MemoryFileSystem fileSystem)
+    {
+        return new MemoryNode(new MemoryContent(fileSystem), null);
+    }
+    
+    /**
+     * Creates node of an empty directory.
+     */
+    public static MemoryNode newDirectory()
+    {
+        return new MemoryNode(null, new ConcurrentSkipListSet<String>());
+    }
+    
+    public boolean isDirectory()
+    {
+        return children != null;
+    }
+    
+    /**
+     * @return Content of a regular file, {@code null} for directories
+     */
+    public MemoryContent getContent()
+    {
+        return content;
+    }
+    
+    /**
+     * @return Sorted names of the children of a directory, {@code null}
+     * for regular files. Iteration is weakly consistent, so it never fails
+     * when children are added concurrently.
+     */
+    public ConcurrentSkipListSet<String> getChildren()
+    {
+        return children;
+    }
+    
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+    
+    /**
+     * Sets modification time to the current time.
+     */
+    public void touch()
+    {
+        lastModified = System.currentTimeMillis();
+    }
+    
+    /**
+     * @return Attributes of the node as of now
+     */
+    public FileAttributes getAttributes()
+    {
+        long size = content == null ? 0 : content.size();
+        return new FileAttributes(isDirectory(), size, lastModified, null);
+    }
+}
@@ -0,0 +1,187 @@
+package mlos.ultcom.slowfs;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of latencies of an operation. Distributions are specified
+ * in milliseconds, by a string in one of the forms:
+ * 
+ * <ul>
+ * <li>{@code 20} - fixed latency</li>
+ * <li>{@code uniform:10,50} - uniformly distributed between bounds</li>
+ * <li>{@code exp:20} - exponentially distributed with given mean</li>
+ * <li>{@code normal:50,10} - normally distributed with given mean and 
+ * standard deviation, negative samples being cut to 0</li>
+ * </ul>
+ * 
+ * @author Marcin Los
+ */
+public abstract class LatencyDistribution
+{
+    /** Distribution of operations without latency */
+    public static final LatencyDistribution NONE = fixed(0);
+    
+    private final String spec;
+    
+    private LatencyDistribution(String spec)
+    {
+        this.spec = spec;
+    }
+    
+    /**
+     * Draws a latency.
+     * 
+     * @param random Source of randomness
+     * 
+     * @return Latency in nanoseconds, non-negative
+     */
+    public abstract long sample(Random random);
+    
+    /**
+     * @return Latency always equal to {@code millis}
+     */
+    public static LatencyDistribution fixed(double millis)
+    {
+        checkNonNegative(millis);
+        final long nanos = toNanos(millis);
+        return new LatencyDistribution(format(millis))
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return nanos;
+            }
+        };
+    }
+    
+    /**
+     * @return Latency uniformly distributed in {@code [min, max]}
+     */
+    public static LatencyDistribution uniform(final double min,
+        final double max)
+    {
+        checkNonNegative(min);
+        if (max < min)
+        {
+            throw new IllegalArgumentException("Upper bound " + max +
+                " less than lower bound " + min);
+        }
+        return new LatencyDistribution("uniform:" + format(min) + "," +
+            format(max))
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return toNanos(min + (max - min) * random.nextDouble());
+            }
+        };
+    }
+    
+    /**
+     * @return Latency exponentially distributed with given mean
+     */
+    public static LatencyDistribution exponential(final double mean)
+    {
+        checkNonNegative(mean);
+        return new LatencyDistribution("exp:" + format(mean))
+        {
+            @Override
+            public long sample(Random random)
+            {
+                return toNanos(-mean * Math.log(1 - random.nextDouble()));
+            }
+        };
+    }
+    
+    /**
+     * @return Latency normally distributed, cut to 0 from below
+     */
+    public static LatencyDistribution normal(final double mean,
+        final double deviation)
+    {
+        checkNonNegative(deviation);
+        return new LatencyDistribution("normal:" + format(mean) + "," +
+            format(deviation))
+        {
+            @Override
+            public long sample(Random random)
+            {
+                double value = mean + deviation * random.nextGaussian();
+                return value > 0 ? toNanos(value) : 0;
+            }
+        };
+    }
+    
+    /**
+     * Creates distribution from its specification.
+     * 
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static LatencyDistribution parse(String spec)
+    {
+        String s = spec.trim();
+        int colon = s.indexOf(':');
+        try
+        {
+            if (colon < 0)
+            {
+                return fixed(Double.parseDouble(s));
+            }
+            String kind = s.substring(0, colon).trim();
+            String[] args = s.substring(colon + 1).split(",");
+            if (kind.equals("fixed") && args.length == 1)
+            {
+                return fixed(Double.parseDouble(args[0]));
+            }
+            else if (kind.equals("uniform") && args.length == 2)
+            {
+                return uniform(Double.parseDouble(args[0]),
+                    Double.parseDouble(args[1]));
+            }
+            else if (kind.equals("exp") && args.length == 1)
+            {
+                return exponential(Double.parseDouble(args[0]));
+            }
+            else if (kind.equals("normal") && args.length == 2)
+            {
+                return normal(Double.parseDouble(args[0]),
+                    Double.parseDouble(args[1]));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid latency: " + spec, e);
+        }
+        throw new IllegalArgumentException("Invalid latency: " + spec);
+    }
+    
+    /**
+     * @return Specification of the distribution, as accepted by {@code
+     * parse}
+     */
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+    
+    private static long toNanos(double millis)
+    {
+        return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    
+    private static String format(double millis)
+    {
+        return millis == Math.rint(millis) ? Long.toString((long) millis) :
+            Double.toString(millis);
+    }
+    
+    private static void checkNonNegative(double value)
+    {
+        if (! (value >= 0))
+        {
+            throw new IllegalArgumentException("Invalid latency: " + value);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package mlos.ultcom.slowfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import mlos.ultcom.core.ApplicationLoader;
+import mlos.ultcom.fs.Cancelable;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileDecorator;
+import mlos.ultcom.fs.FileOperation;
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decorator making files of any file system behave like those of a slow,
+ * unreliable one, e.g. a network share. Every operation is delayed by a
+ * latency drawn from the distribution configured for its kind, and may
+ * fail with a configured probability. Reads and writes are further
+ * delayed in proportion to the number of bytes, and capped to a
+ * bandwidth shared by all the files.
+ * 
+ * <p>
+ * Settings are read from the main configuration when the decorator is
+ * first used, and can be changed at runtime:
+ * 
+ * <ul>
+ * <li>{@code slowfs.latency.<operation>} - latency of an operation, 
+ * e.g. {@code slowfs.latency.list}; see {@code LatencyDistribution} for
+ * the syntax. Latency of reads and writes is paid by every call, of
+ * {@code open} - by opening a stream or channel.</li>
+ * <li>{@code slowfs.latency.read.mb}, {@code slowfs.latency.write.mb} - 
+ * additional latency per megabyte transferred</li>
+ * <li>{@code slowfs.bandwidth.read}, {@code slowfs.bandwidth.write} - 
+ * maximum rate in bytes per second</li>
+ * <li>{@code slowfs.failure.<operation>} - probability that an operation
+ * fails with {@code IOException}, checked on every call</li>
+ * <li>{@code slowfs.seed} - seed of the random generator, for
+ * reproducible runs</li>
+ * </ul>
+ * 
+ * E.g. a share 50 ms away can be approximated by latency 50 of {@code
+ * list}, {@code stat} and {@code open}, and bandwidth of about 10 MB/s.
+ * Sizes of trees are calculated through the decorated listings, so each
+ * subdirectory pays for its listing, as it would on such a share.
+ * 
+ * @author Marcin Los
+ * 
+ * @see SlowFileFactory
+ */
+public class SlowFileDecorator extends FileDecorator
+{
+    private static final Logger logger =
+        Logger.getLogger(SlowFileDecorator.class);
+    
+    private static final String PREFIX = "slowfs.";
+    private static final long MEGABYTE = 1024 * 1024;
+    
+    private static SlowFileDecorator instance;
+    
+    private final Map<FileOperation, LatencyDistribution> latencies =
+        new ConcurrentHashMap<FileOperation, LatencyDistribution>();
+    private final Map<FileOperation, Double> failureRates =
+        new ConcurrentHashMap<FileOperation, Double>();
+    private volatile LatencyDistribution readLatency =
+        LatencyDistribution.NONE;
+    private volatile LatencyDistribution writeLatency =
+        LatencyDistribution.NONE;
+    private volatile Throttle readThrottle;
+    private volatile Throttle writeThrottle;
+    private final Random random = new Random();
+    
+    /**
+     * Creates decorator without any latency nor failures.
+     */
+    public SlowFileDecorator()
+    {
+    }
+    
+    /**
+     * @return Decorator used by the {@code slow:} scheme, configured from
+     * the main configuration on first use
+     */
+    public static synchronized SlowFileDecorator getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new SlowFileDecorator();
+            Properties properties =
+                ApplicationLoader.getInstance().getProperties();
+            if (properties != null)
+            {
+                instance.configure(properties);
+            }
+        }
+        return instance;
+    }
+    
+    /**
+     * Applies settings present in {@code properties}; invalid ones are
+     * reported and ignored.
+     */
+    public void configure(Properties properties)
+    {
+        for (FileOperation operation : FileOperation.values())
+        {
+            String name = operation.name().toLowerCase(Locale.ENGLISH);
+            String latency = properties.getProperty(PREFIX + "latency." +
+                name);
+            if (latency != null)
+            {
+                try
+                {
+                    setLatency(operation, LatencyDistribution.parse(latency));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    logger.warn("Invalid value of " + PREFIX + "latency." +
+                        name + ", ignored", e);
+                }
+            }
+            String failure = properties.getProperty(PREFIX + "failure." +
+                name);
+            if (failure != null)
+            {
+                try
+                {
+                    setFailureRate(operation, 
+                        Double.parseDouble(failure.trim()));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    logger.warn("Invalid value of " + PREFIX + "failure." +
+                        name + ", ignored", e);
+                }
+            }
+        }
+        try
+        {
+            String value = properties.getProperty(PREFIX + "latency.read.mb");
+            if (value != null)
+            {
+                setReadLatency(LatencyDistribution.parse(value));
+            }
+            value = properties.getProperty(PREFIX + "latency.write.mb");
+            if (value != null)
+            {
+                setWriteLatency(LatencyDistribution.parse(value));
+            }
+            value = properties.getProperty(PREFIX + "bandwidth.read");
+            if (value != null)
+            {
+                setReadBandwidth(Long.parseLong(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "bandwidth.write");
+            if (value != null)
+            {
+                setWriteBandwidth(Long.parseLong(value.trim()));
+            }
+            value = properties.getProperty(PREFIX + "seed");
+            if (value != null)
+            {
+                setSeed(Long.parseLong(value.trim()));
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.warn("Invalid configuration of slow file system, " +
+                "remaining settings ignored", e);
+        }
+    }
+    
+    /**
+     * @return Latency of an operation, not including the per-megabyte one
+     */
+    public LatencyDistribution getLatency(FileOperation operation)
+    {
+        LatencyDistribution latency = latencies.get(operation);
+        return latency == null ? LatencyDistribution.NONE : latency;
+    }
+    
+    public void setLatency(FileOperation operation,
+        LatencyDistribution latency)
+    {
+        latencies.put(operation, latency);
+    }
+    
+    /**
+     * @return Latency of reading a megabyte
+     */
+    public LatencyDistribution getReadLatency()
+    {
+        return readLatency;
+    }
+    
+    public void setReadLatency(LatencyDistribution latency)
+    {
+        readLatency = latency;
+    }
+    
+    /**
+     * @return Latency of writing a megabyte
+     */
+    public LatencyDistribution getWriteLatency()
+    {
+        return writeLatency;
+    }
+    
+    public void setWriteLatency(LatencyDistribution latency)
+    {
+        writeLatency = latency;
+    }
+    
+    /**
+     * @return Maximum rate of reading in bytes per second, 0 if unlimited
+     */
+    public long getReadBandwidth()
+    {
+        Throttle throttle = readThrottle;
+        return throttle == null ? 0 : throttle.getBytesPerSecond();
+    }
+    
+    /**
+     * @param bytesPerSecond Maximum rate of reading, 0 for unlimited
+     */
+    public void setReadBandwidth(long bytesPerSecond)
+    {
+        readThrottle = createThrottle(bytesPerSecond);
+    }
+    
+    /**
+     * @return Maximum rate of writing in bytes per second, 0 if unlimited
+     */
+    public long getWriteBandwidth()
+    {
+        Throttle throttle = writeThrottle;
+        return throttle == null ? 0 : throttle.getBytesPerSecond();
+    }
+    
+    /**
+     * @param bytesPerSecond Maximum rate of writing, 0 for unlimited
+     */
+    public void setWriteBandwidth(long bytesPerSecond)
+    {
+        writeThrottle = createThrottle(bytesPerSecond);
+    }
+    
+    /**
+     * @return Probability that an operation fails
+     */
+    public double getFailureRate(FileOperation operation)
+    {
+        Double rate = failureRates.get(operation);
+        return rate == null ? 0 : rate;
+    }
+    
+    /**
+     * @param rate Probability that an operation fails, in {@code [0, 1]}
+     */
+    public void setFailureRate(FileOperation operation, double rate)
+    {
+        if (! (rate >= 0 && rate <= 1))
+        {
+            throw new IllegalArgumentException("Invalid probability: " +
+                rate);
+        }
+        failureRates.put(operation, rate);
+    }
+    
+    /**
+     * Restarts the random generator, so that latencies and failures are
+     * drawn in a reproducible sequence (as long as operations come in the
+     * same order).
+     */
+    public void setSeed(long seed)
+    {
+        random.setSeed(seed);
+    }
+    
+    /**
+     * Removes all the latencies, bandwidth caps and failures.
+     */
+    public void reset()
+    {
+        latencies.clear();
+        failureRates.clear();
+        readLatency = LatencyDistribution.NONE;
+        writeLatency = LatencyDistribution.NONE;
+        readThrottle = null;
+        writeThrottle = null;
+    }
+    
+    /**
+     * @return Path of the original prefixed with {@code slow:}
+     */
+    @Override
+    protected String getPath(File original)
+    {
+        return SlowFileFactory.SCHEME + ":" + original.getPath();
+    }
+    
+    /**
+     * Fails the operation or waits for its latency.
+     */
+    @Override
+    protected long before(FileOperation operation, File file)
+        throws IOException
+    {
+        double rate = getFailureRate(operation);
+        if (rate > 0 && random.nextDouble() < rate)
+        {
+            throw new IOException("Injected failure: " + 
+                operation.name().toLowerCase(Locale.ENGLISH) + " of " + 
+                file.getPath());
+        }
+        long delay = getLatency(operation).sample(random);
+        if (delay > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                InterruptedIOException ex = new InterruptedIOException(
+                    "Interrupted while waiting for " + file.getPath());
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Waits for the transfer of the bytes read or written. Interruption
+     * cuts the wait short and is left to the caller to notice.
+     */
+    @Override
+    protected void after(FileOperation operation, File file, long token,
+        long bytes, boolean failed)
+    {
+        if (bytes <= 0)
+        {
+            return;
+        }
+        long delay;
+        if (operation == FileOperation.READ)
+        {
+            delay = getTransferDelay(readLatency, readThrottle, bytes);
+        }
+        else if (operation == FileOperation.WRITE)
+        {
+            delay = getTransferDelay(writeLatency, writeThrottle, bytes);
+        }
+        else
+        {
+            return;
+        }
+        if (delay > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Walks the decorated listings, so that listing of every subdirectory
+     * is delayed.
+     */
+    @Override
+    protected TreeSize getTreeSize(Directory directory, Directory original,
+        SizeCache cache, Cancelable cancel) throws FileAccessException,
+        IOException
+    {
+        return walkTreeSize(directory, cache, cancel);
+    }
+    
+    private long getTransferDelay(LatencyDistribution latency,
+        Throttle throttle, long bytes)
+    {
+        long delay = (long) ((double) latency.sample(random) * bytes / 
+            MEGABYTE);
+        if (throttle != null)
+        {
+            delay = Math.max(delay, throttle.reserve(bytes));
+        }
+        return delay;
+    }
+    
+    private static Throttle createThrottle(long bytesPerSecond)
+    {
+        if (bytesPerSecond < 0)
+        {
+            throw new IllegalArgumentException("Invalid bandwidth: " +
+                bytesPerSecond);
+        }
+        return bytesPerSecond == 0 ? null : new Throttle(bytesPerSecond);
+    }
+}
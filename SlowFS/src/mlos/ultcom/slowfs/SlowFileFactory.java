@@ -0,0 +1,50 @@
+package mlos.ultcom.slowfs;
+
+import java.net.URI;
+
+import mlos.ultcom.core.FileSystemFactory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileFactory;
+import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.MalformedURI;
+
+/**
+ * Implementation of {@code FileFactory} for the {@code slow:} scheme,
+ * wrapping files of any other file system with {@code SlowFileDecorator},
+ * e.g. {@code slow:file:///home/user}. It's meant for reproducing the
+ * behaviour of the application on slow and unreliable storage without
+ * having one at hand.
+ * 
+ * @author Marcin Los
+ * 
+ * @see SlowFileDecorator
+ */
+public class SlowFileFactory implements FileFactory
+{
+    /** Scheme of slow files */
+    public static final String SCHEME = "slow";
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File newInstance(URI path) throws FileSystemException
+    {
+        String inner = path.getRawSchemeSpecificPart();
+        if (inner == null || inner.isEmpty())
+        {
+            throw new MalformedURI("Missing wrapped path: " + path);
+        }
+        File file = FileSystemFactory.getInstance().getElement(inner);
+        return SlowFileDecorator.getInstance().decorate(file);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+}
@@ -0,0 +1,47 @@
+package mlos.ultcom.slowfs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth cap shared by all the transfers in one direction. Transfers
+ * reserve consecutive time slots of a virtual link, long enough to move
+ * their bytes at the capped rate, and wait until their slots end. Idle
+ * time is not saved up, so bursts are not allowed.
+ * 
+ * @author Marcin Los
+ * 
+ * @see SlowFileDecorator
+ */
+class Throttle
+{
+    private final long bytesPerSecond;
+    private long free = System.nanoTime();
+    
+    /**
+     * @param bytesPerSecond Maximum rate, positive
+     */
+    public Throttle(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+    
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+    
+    /**
+     * Reserves time needed to transfer {@code bytes}.
+     * 
+     * @return Time to wait before the transfer is finished, in 
+     * nanoseconds
+     */
+    public synchronized long reserve(long bytes)
+    {
+        long now = System.nanoTime();
+        long duration = (long) ((double) bytes / bytesPerSecond *
+            TimeUnit.SECONDS.toNanos(1));
+        free = Math.max(free, now) + duration;
+        return free - now;
+    }
+}
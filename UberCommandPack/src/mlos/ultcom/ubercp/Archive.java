@@ -0,0 +1,342 @@
+package mlos.ultcom.ubercp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Archive opened for reading entries in any order. Its index is read
+ * once, when it's opened, into an {@code ArchiveNode} trie; content of an
+ * entry is then read from the file without going through the preceding
+ * ones.
+ * 
+ * <p>
+ * Archive occupies a range of a local file: the whole file, or the
+ * content of an entry stored as-is in another archive, which is then
+ * read in place. Implementations must be thread-safe; the file is read
+ * with positional reads only, so streams of different entries can be
+ * read concurrently.
+ * 
+ * <p>
+ * Streams opened with {@code openStream} keep the archive, and the ones
+ * it's stored in, open: {@code close} only takes effect when the last of
+ * them is closed.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ArchiveFileFactory
+ */
+abstract class Archive
+{
+    private static final Logger logger = Logger.getLogger(Archive.class);
+    
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    
+    /* Archive this one is stored in, if any */
+    private final Archive outer;
+    
+    /* Local file, its size and modification time when it was opened */
+    private final java.io.File file;
+    private final long fileSize;
+    private final long fileTime;
+    
+    /* Whether the file is temporary and should be removed on close */
+    private final boolean temporary;
+    
+    /* Number of open streams, and whether the archive is being closed */
+    private int users = 0;
+    private boolean closing = false;
+    
+    /*
+     * Stream of an entry, releasing the archive when it's closed.
+     */
+    private class EntryStream extends FilterInputStream
+    {
+        private boolean closed = false;
+        
+        public EntryStream(InputStream in)
+        {
+            super(in);
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                release();
+            }
+        }
+    }
+    
+    /**
+     * Creates archive stored in a whole local file.
+     * 
+     * @param channel Channel of the file, owned by the archive
+     * 
+     * @param file Archive file
+     * 
+     * @param temporary Whether the file should be removed when the
+     * archive is closed
+     */
+    protected Archive(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException
+    {
+        this(channel, 0, channel.size(), null, file, temporary);
+    }
+    
+    /**
+     * Creates archive stored as-is in another one.
+     * 
+     * @param outer Archive containing this one
+     * 
+     * @param start Position of this archive in the file of the outer one
+     * 
+     * @param length Length of this archive
+     */
+    protected Archive(Archive outer, long start, long length)
+    {
+        this(outer.channel, start, length, outer, null, false);
+    }
+    
+    private Archive(FileChannel channel, long start, long length,
+        Archive outer, java.io.File file, boolean temporary)
+    {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+        this.outer = outer;
+        this.file = file;
+        this.temporary = temporary;
+        fileSize = file == null ? -1 : file.length();
+        fileTime = file == null ? -1 : file.lastModified();
+    }
+    
+    /**
+     * @return Scheme of the paths of the archive's files
+     */
+    public abstract String getScheme();
+    
+    /**
+     * @return Root of the path trie
+     */
+    public abstract ArchiveNode getRoot();
+    
+    /**
+     * Opens stream of an entry's content.
+     * 
+     * @param entry Entry of this archive, not a directory
+     * 
+     * @throws IOException if the content could not be read or the entry
+     * uses an unsupported format
+     */
+    public abstract InputStream getInputStream(ArchiveEntry entry)
+        throws IOException;
+    
+    /**
+     * Finds where content of an entry is, if it's stored as-is, so that
+     * it can be read in place, e.g. as a nested archive.
+     * 
+     * @return Position of the content in the file, or -1 if it's
+     * compressed
+     * 
+     * @throws IOException if the position could not be read
+     */
+    public abstract long getStoredPosition(ArchiveEntry entry)
+        throws IOException;
+    
+    /**
+     * Opens stream of an entry's content with {@code getInputStream}. The
+     * archive is not closed until the stream is.
+     * 
+     * @param entry Entry of this archive, not a directory
+     * 
+     * @return Stream of the content, or {@code null} if the archive has
+     * been closed
+     * 
+     * @throws IOException if the content could not be read or the entry
+     * uses an unsupported format
+     */
+    public InputStream openStream(ArchiveEntry entry) throws IOException
+    {
+        if (! acquire())
+        {
+            return null;
+        }
+        InputStream in = null;
+        try
+        {
+            in = new EntryStream(getInputStream(entry));
+            return in;
+        }
+        finally
+        {
+            if (in == null)
+            {
+                release();
+            }
+        }
+    }
+    
+    /**
+     * Keeps the archive, and the ones it's stored in, open until {@code
+     * release} is called.
+     * 
+     * @return Whether the archive is still open; if not, it must not be
+     * released
+     */
+    public boolean acquire()
+    {
+        synchronized (this)
+        {
+            if (closing)
+            {
+                return false;
+            }
+            ++ users;
+        }
+        if (outer != null && ! outer.acquire())
+        {
+            synchronized (this)
+            {
+                -- users;
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Releases the archive acquired with {@code acquire}, closing it if 
+     * it's been closed in the meantime.
+     */
+    public void release() throws IOException
+    {
+        boolean last;
+        synchronized (this)
+        {
+            last = -- users == 0 && closing;
+        }
+        try
+        {
+            if (last)
+            {
+                closeFile();
+            }
+        }
+        finally
+        {
+            if (outer != null)
+            {
+                outer.release();
+            }
+        }
+    }
+    
+    /**
+     * @return Whether the archive, or one it's stored in, has been closed
+     */
+    public synchronized boolean isClosed()
+    {
+        return closing || (outer != null && outer.isClosed());
+    }
+    
+    /**
+     * @return Channel of the file containing the archive
+     */
+    protected FileChannel getChannel()
+    {
+        return channel;
+    }
+    
+    /**
+     * @return Position of the archive in the file
+     */
+    protected long getStart()
+    {
+        return start;
+    }
+    
+    /**
+     * @return Length of the archive
+     */
+    protected long getLength()
+    {
+        return length;
+    }
+    
+    /**
+     * Opens stream of a range of the file. Reads are positional, so any
+     * number of such streams can be read concurrently; skipping is free.
+     * 
+     * @param position Position in the file
+     * 
+     * @param length Length of the range
+     */
+    protected InputStream openRange(long position, long length)
+    {
+        return new ChannelInputStream(channel, position, length);
+    }
+    
+    /**
+     * @return Whether the archive file has changed since it was opened,
+     * so the trie no longer describes it
+     */
+    public boolean isStale()
+    {
+        if (outer != null)
+        {
+            return outer.isStale();
+        }
+        return file.length() != fileSize || file.lastModified() != fileTime;
+    }
+    
+    /**
+     * Closes the archive. Its file is closed, unless it's shared with the
+     * outer one, and removed if it's temporary, as soon as no stream of
+     * the archive is open.
+     */
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (closing)
+            {
+                return;
+            }
+            closing = true;
+            if (users > 0)
+            {
+                return;
+            }
+        }
+        closeFile();
+    }
+    
+    private void closeFile() throws IOException
+    {
+        if (outer != null)
+        {
+            return;
+        }
+        channel.close();
+        if (temporary && ! file.delete())
+        {
+            logger.warn("Cannot delete temporary file " + file);
+        }
+    }
+}
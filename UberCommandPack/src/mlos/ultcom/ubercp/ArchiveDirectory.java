@@ -0,0 +1,212 @@
+package mlos.ultcom.ubercp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import mlos.ultcom.fs.Cancelable;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.DirectoryChangeListener;
+import mlos.ultcom.fs.DirectoryListing;
+import mlos.ultcom.fs.DirectoryWatch;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileEntry;
+import mlos.ultcom.fs.OperationNotSupportedException;
+import mlos.ultcom.fs.SizeCache;
+import mlos.ultcom.fs.TreeSize;
+
+/**
+ * Directory inside an archive, including its root. Listings and sizes
+ * come from the path trie built when the archive was opened, so they
+ * don't touch the archive file at all.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ArchiveFile
+ */
+class ArchiveDirectory extends ArchiveFile implements Directory
+{
+    ArchiveDirectory(Archive archive, File archiveFile, String path,
+        ArchiveNode node)
+    {
+        super(archive, archiveFile, path, node);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<File> getFiles()
+    {
+        List<File> files = new ArrayList<File>();
+        for (ArchiveNode child : getNode().getChildren())
+        {
+            files.add(createChild(child));
+        }
+        return files;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<FileEntry> getEntries()
+    {
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        for (ArchiveNode child : getNode().getChildren())
+        {
+            entries.add(new FileEntry(createChild(child),
+                child.getAttributes()));
+        }
+        return entries;
+    }
+    
+    /**
+     * Lists the children from the trie; the listing never blocks.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public DirectoryListing openListing()
+    {
+        final Iterator<ArchiveNode> children =
+            getNode().getChildren().iterator();
+        return new DirectoryListing()
+        {
+            private boolean closed = false;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return ! closed && children.hasNext();
+            }
+            
+            @Override
+            public FileEntry next()
+            {
+                if (! hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                ArchiveNode child = children.next();
+                return new FileEntry(createChild(child),
+                    child.getAttributes());
+            }
+            
+            @Override
+            public void close()
+            {
+                closed = true;
+            }
+        };
+    }
+    
+    /**
+     * @return Total uncompressed size of the content
+     */
+    @Override
+    public long getSize()
+    {
+        return getNode().getSize();
+    }
+    
+    /**
+     * Sums uncompressed sizes from the trie. Allocated size is the same,
+     * as compressed sizes don't describe space taken on a disk.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize()
+    {
+        long[] totals = new long[3];
+        sum(getNode(), totals);
+        return new TreeSize(totals[0], totals[0], totals[1], totals[2]);
+    }
+    
+    /**
+     * Cache is not used, computing the size from the trie is cheap.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache)
+    {
+        return getTreeSize();
+    }
+    
+    /**
+     * Summing the trie is too quick to bother with cancelation.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSize getTreeSize(SizeCache cache, Cancelable cancel)
+    {
+        return getTreeSize();
+    }
+    
+    /*
+     * Adds size, number of files and number of directories of a subtree
+     * to the totals.
+     */
+    private static void sum(ArchiveNode node, long[] totals)
+    {
+        if (! node.isDirectory())
+        {
+            totals[0] += node.getSize();
+            ++ totals[1];
+            return;
+        }
+        ++ totals[2];
+        for (ArchiveNode child : node.getChildren())
+        {
+            sum(child, totals);
+        }
+    }
+    
+    /**
+     * @throws OperationNotSupportedException always, archives don't
+     * change while browsed
+     */
+    @Override
+    public DirectoryWatch watch(DirectoryChangeListener listener)
+        throws OperationNotSupportedException
+    {
+        throw new OperationNotSupportedException("Directories inside " +
+            "archives cannot be watched: " + getPath());
+    }
+    
+    /**
+     * @return This directory, which already exists
+     */
+    @Override
+    public Directory createDirectory()
+    {
+        return this;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File createChild(String name) throws IOException
+    {
+        String path = getEntryPath();
+        return create(getArchive(), getArchiveFile(),
+            path.isEmpty() ? name : path + '/' + name);
+    }
+    
+    private File createChild(ArchiveNode child)
+    {
+        if (child.isDirectory())
+        {
+            return new ArchiveDirectory(getArchive(), getArchiveFile(),
+                child.getPath(), child);
+        }
+        return new ArchiveFile(getArchive(), getArchiveFile(),
+            child.getPath(), child);
+    }
+}
@@ -0,0 +1,35 @@
+package mlos.ultcom.ubercp;
+
+/**
+ * Entry of an archive as seen by {@code ArchiveNode}: what's needed to
+ * place it in the path trie and to describe it in listings. Formats add
+ * what they need to locate the content.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Archive
+ */
+interface ArchiveEntry
+{
+    /**
+     * @return Path of the entry inside the archive, segments separated by
+     * slashes
+     */
+    String getName();
+    
+    /**
+     * @return Whether the entry is a directory
+     */
+    boolean isDirectory();
+    
+    /**
+     * @return Uncompressed size of the entry, in bytes
+     */
+    long getSize();
+    
+    /**
+     * @return Modification time in milliseconds since the epoch, or {@code
+     * FileAttributes.UNKNOWN_TIME}
+     */
+    long getTime();
+}
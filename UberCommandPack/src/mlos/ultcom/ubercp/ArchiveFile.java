@@ -0,0 +1,283 @@
+package mlos.ultcom.ubercp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import mlos.ultcom.core.FileSystemFactory;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.OperationNotSupportedException;
+
+/**
+ * Regular file inside an archive, as provided by {@code
+ * ArchiveFileFactory}. Its path is the path of the archive file prefixed
+ * with the archive's scheme, followed by {@code !/} and the path of the
+ * entry, e.g. {@code zip:file:/home/user/a.zip!/dir/file.txt}. Archives
+ * are read-only, so all the operations modifying them fail.
+ * 
+ * <p>
+ * Objects may denote files which don't exist in the archive, as returned
+ * by {@code createChild}.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ArchiveDirectory
+ */
+class ArchiveFile implements File
+{
+    /** Separates path of the archive from path inside it */
+    static final String SEPARATOR = "!/";
+    
+    private Archive archive;
+    private File archiveFile;
+    private String path;
+    private ArchiveNode node;
+    
+    /**
+     * @param archive Opened archive
+     * 
+     * @param archiveFile File of the archive
+     * 
+     * @param path Path of the file inside the archive, without leading
+     * slash
+     * 
+     * @param node Node of the file, or {@code null} if it doesn't exist
+     */
+    ArchiveFile(Archive archive, File archiveFile, String path,
+        ArchiveNode node)
+    {
+        this.archive = archive;
+        this.archiveFile = archiveFile;
+        this.path = path;
+        this.node = node;
+    }
+    
+    /**
+     * Creates {@code ArchiveDirectory} or {@code ArchiveFile} for a path,
+     * depending on the type of its node.
+     */
+    static ArchiveFile create(Archive archive, File archiveFile,
+        String path)
+    {
+        ArchiveNode node = archive.getRoot().find(path);
+        if (node != null)
+        {
+            path = node.getPath();
+        }
+        if (node != null && node.isDirectory())
+        {
+            return new ArchiveDirectory(archive, archiveFile, path, node);
+        }
+        return new ArchiveFile(archive, archiveFile, path, node);
+    }
+    
+    /**
+     * @return Directory containing the file; for the root of the archive
+     * it's the directory containing the archive file
+     */
+    @Override
+    public Directory getParent()
+    {
+        if (path.isEmpty())
+        {
+            return archiveFile.getParent();
+        }
+        int slash = path.lastIndexOf('/');
+        String parentPath = slash < 0 ? "" : path.substring(0, slash);
+        File parent = create(archive, archiveFile, parentPath);
+        return parent instanceof Directory ? (Directory) parent : null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize()
+    {
+        return node == null ? 0 : node.getSize();
+    }
+    
+    /**
+     * @return Name of the entry; for the root of the archive, name of the
+     * archive file
+     */
+    @Override
+    public String getName()
+    {
+        if (path.isEmpty())
+        {
+            return archiveFile.getName();
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPath()
+    {
+        return archive.getScheme() + ':' + archiveFile.getPath() +
+            SEPARATOR + encode(path);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean exists()
+    {
+        return node != null;
+    }
+    
+    /**
+     * @throws FileAccessException always, archives are read-only
+     */
+    @Override
+    public void create() throws FileAccessException
+    {
+        throw new FileAccessException("Cannot create file, archive is " +
+            "read-only: " + getPath());
+    }
+    
+    /**
+     * @throws FileAccessException unless the directory exists, archives
+     * are read-only
+     */
+    @Override
+    public Directory createDirectory() throws FileSystemException
+    {
+        throw new FileAccessException("Cannot create directory, archive " +
+            "is read-only: " + getPath());
+    }
+    
+    /**
+     * Reads the entry straight from its position in the archive. If the
+     * archive has been closed since the file was created, e.g. evicted
+     * from the cache of its factory, the file is looked up again, which
+     * reopens the archive.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream() throws OperationNotSupportedException,
+        IOException
+    {
+        if (node == null)
+        {
+            throw new FileNotFoundException("No such entry: " + getPath());
+        }
+        if (node.isDirectory())
+        {
+            throw new OperationNotSupportedException("Cannot open input " +
+                "stream of a directory");
+        }
+        InputStream in = archive.openStream(node.getEntry());
+        if (in != null)
+        {
+            return in;
+        }
+        try
+        {
+            return FileSystemFactory.getInstance().getElement(getPath())
+                .getInputStream();
+        }
+        catch (FileSystemException e)
+        {
+            throw new IOException("Cannot reopen archive of " + getPath(), e);
+        }
+    }
+    
+    /**
+     * @throws OperationNotSupportedException always, archives are
+     * read-only
+     */
+    @Override
+    public OutputStream getOutputStream()
+        throws OperationNotSupportedException
+    {
+        throw new OperationNotSupportedException("Cannot write file, " +
+            "archive is read-only: " + getPath());
+    }
+    
+    /**
+     * @return Opened archive containing the file
+     */
+    Archive getArchive()
+    {
+        return archive;
+    }
+    
+    /**
+     * @return File of the archive containing the file
+     */
+    File getArchiveFile()
+    {
+        return archiveFile;
+    }
+    
+    /**
+     * @return Path of the file inside the archive
+     */
+    String getEntryPath()
+    {
+        return path;
+    }
+    
+    /**
+     * @return Node of the file, {@code null} if it doesn't exist
+     */
+    ArchiveNode getNode()
+    {
+        return node;
+    }
+    
+    /**
+     * Encodes path inside the archive as path part of URI.
+     */
+    static String encode(String path)
+    {
+        try
+        {
+            return new URI(null, null, '/' + path, null).getRawPath()
+                .substring(1);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException("Invalid entry path: " +
+                path, e);
+        }
+    }
+    
+    /**
+     * Decodes path inside the archive from the path part of URI.
+     * 
+     * @throws URISyntaxException if it's not a valid path
+     */
+    static String decode(String path) throws URISyntaxException
+    {
+        return new URI('/' + path).getPath().substring(1);
+    }
+    
+    @Override
+    public boolean equals(Object o)
+    {
+        if (! (o instanceof ArchiveFile))
+        {
+            return false;
+        }
+        return getPath().equals(((ArchiveFile) o).getPath());
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return getPath().hashCode();
+    }
+}
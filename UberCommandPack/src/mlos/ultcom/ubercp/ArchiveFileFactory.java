@@ -0,0 +1,305 @@
+package mlos.ultcom.ubercp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mlos.ultcom.core.FileSystemFactory;
+import mlos.ultcom.fs.File;
+import mlos.ultcom.fs.FileDecorator;
+import mlos.ultcom.fs.FileFactory;
+import mlos.ultcom.fs.FileSystemException;
+import mlos.ultcom.fs.MalformedURI;
+import mlos.ultcom.fs.OperationNotSupportedException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Skeletal {@code FileFactory} of archive file systems, giving read-only
+ * access to the content of archives. Path of the archive file, of any
+ * scheme, follows the archive scheme prefix and is separated from the
+ * path inside the archive by {@code !/}, e.g. {@code
+ * zip:file:/home/user/a.zip!/dir/file.txt}. Archives inside archives are
+ * addressed by nesting the paths: {@code
+ * zip:tar:file:/a.tar!/b.zip!/file.txt}.
+ * 
+ * <p>
+ * Opened archives are cached by path, and reopened if the archive file
+ * has changed since, so the index of an archive is built once and reused
+ * while browsing it. At most {@code archive.cache.size} archives (16 by
+ * default) are kept open; when another one is opened, the least recently
+ * used is closed, which takes effect once its streams are closed. Files
+ * of an archive closed that way reopen it when they're read. Archives
+ * stored as-is in other archives are read in place; compressed ones, as
+ * well as archives outside of the local file system, are copied to 
+ * temporary files first. Implementations only create {@code Archive}s of
+ * their format.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Archive
+ */
+abstract class ArchiveFileFactory implements FileFactory
+{
+    private static final Logger logger =
+        Logger.getLogger(ArchiveFileFactory.class);
+    
+    private static final int BUFFER_SIZE = 64 << 10;
+    
+    /* Default number of archives kept open */
+    private static final int DEFAULT_CACHE_SIZE = 16;
+    
+    /* Opened archives by path, from the least recently used */
+    private Map<String, Archive> archives =
+        new LinkedHashMap<String, Archive>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Archive> eldest)
+        {
+            if (size() <= Settings.read("archive.cache.size",
+                DEFAULT_CACHE_SIZE))
+            {
+                return false;
+            }
+            logger.debug("Closing least recently used archive: " +
+                eldest.getKey());
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File newInstance(URI path) throws FileSystemException
+    {
+        String spec = path.toString().substring(getScheme().length() + 1);
+        int separator = spec.lastIndexOf(ArchiveFile.SEPARATOR);
+        String archivePath = separator < 0 ? spec :
+            spec.substring(0, separator);
+        String entryPath = "";
+        try
+        {
+            if (separator >= 0)
+            {
+                entryPath = ArchiveFile.decode(spec.substring(
+                    separator + ArchiveFile.SEPARATOR.length()));
+            }
+        }
+        catch (URISyntaxException e)
+        {
+            throw new MalformedURI(e);
+        }
+        File archiveFile = FileSystemFactory.getInstance()
+            .getElement(archivePath);
+        try
+        {
+            Archive archive = getArchive(archiveFile);
+            return ArchiveFile.create(archive, archiveFile, entryPath);
+        }
+        catch (IOException e)
+        {
+            throw new FileSystemException("Cannot open archive " +
+                archivePath, e);
+        }
+    }
+    
+    /**
+     * Opens archive stored in a whole local file.
+     * 
+     * @param channel Channel of the file, to be owned by the archive
+     * 
+     * @param file Archive file
+     * 
+     * @param temporary Whether the file should be removed when the
+     * archive is closed
+     * 
+     * @throws IOException if the file is not a valid archive or could not
+     * be read
+     */
+    protected abstract Archive open(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException;
+    
+    /**
+     * Opens archive stored as-is in another one.
+     * 
+     * @param outer Archive containing the archive
+     * 
+     * @param start Position of the archive in the file of the outer one
+     * 
+     * @param length Length of the archive
+     * 
+     * @throws IOException if the range is not a valid archive or could
+     * not be read
+     */
+    protected abstract Archive open(Archive outer, long start, long length)
+        throws IOException;
+    
+    /*
+     * Returns cached archive, opening it if it's not been opened yet, has
+     * changed since or has been closed along with the one it's stored in.
+     * Archive which has changed is closed once its streams are closed.
+     */
+    private synchronized Archive getArchive(File file)
+        throws FileSystemException, IOException
+    {
+        String key = file.getPath();
+        Archive archive = archives.get(key);
+        if (archive != null && ! archive.isStale() && ! archive.isClosed())
+        {
+            return archive;
+        }
+        if (archive != null)
+        {
+            logger.debug("Archive has changed or got closed, reopening: " +
+                key);
+            archives.remove(key);
+            archive.close();
+        }
+        archive = openArchive(file);
+        archives.put(key, archive);
+        return archive;
+    }
+    
+    private Archive openArchive(File file)
+        throws FileSystemException, IOException
+    {
+        File original = FileDecorator.undecorate(file);
+        if (original instanceof ArchiveFile)
+        {
+            ArchiveFile entry = (ArchiveFile) original;
+            ArchiveNode node = entry.getNode();
+            if (node == null || node.isDirectory())
+            {
+                throw new FileSystemException("Not an archive: " +
+                    file.getPath());
+            }
+            Archive outer = entry.getArchive();
+            if (! outer.acquire())
+            {
+                throw new FileSystemException("Archive has been closed: " +
+                    entry.getArchiveFile().getPath());
+            }
+            try
+            {
+                long position = outer.getStoredPosition(node.getEntry());
+                if (position >= 0)
+                {
+                    return open(outer, position, node.getSize());
+                }
+            }
+            finally
+            {
+                outer.release();
+            }
+        }
+        else
+        {
+            java.io.File local = LocalFiles.toLocalFile(file);
+            if (local != null)
+            {
+                return open(local, false);
+            }
+            if (! file.exists())
+            {
+                throw new FileSystemException("Archive does not exist: " +
+                    file.getPath());
+            }
+        }
+        return open(copyToTemporary(file), true);
+    }
+    
+    /*
+     * Opens archive of a local file, closing the file if it's not valid.
+     */
+    private Archive open(java.io.File local, boolean temporary)
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(local.toPath(),
+            StandardOpenOption.READ);
+        try
+        {
+            return open(channel, local, temporary);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            if (temporary)
+            {
+                local.delete();
+            }
+            throw e;
+        }
+    }
+    
+    private static void closeQuietly(Archive archive)
+    {
+        try
+        {
+            archive.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Error while closing archive", e);
+        }
+    }
+    
+    /*
+     * Copies archive from a file system without random access, or
+     * compressed in another archive, to a local temporary file.
+     */
+    private static java.io.File copyToTemporary(File file)
+        throws FileSystemException, IOException
+    {
+        java.io.File local = java.io.File.createTempFile("ultcom", null);
+        logger.debug("Copying " + file.getPath() + " to " + local);
+        boolean copied = false;
+        try
+        {
+            InputStream in = file.getInputStream();
+            try
+            {
+                OutputStream out = new FileOutputStream(local);
+                try
+                {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int length;
+                    while ((length = in.read(buffer)) >= 0)
+                    {
+                        out.write(buffer, 0, length);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            copied = true;
+        }
+        catch (OperationNotSupportedException e)
+        {
+            throw new FileSystemException("Cannot read archive " +
+                file.getPath(), e);
+        }
+        finally
+        {
+            if (! copied)
+            {
+                local.delete();
+            }
+        }
+        return local;
+    }
+}
@@ -0,0 +1,224 @@
+package mlos.ultcom.ubercp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mlos.ultcom.fs.FileAttributes;
+
+/**
+ * Node of the path trie of an archive. The trie is built from the
+ * archive's index (e.g. central directory of a ZIP archive) once, when
+ * the archive is opened, so that looking up an entry or listing a
+ * directory does not touch the archive. Directories
+ * not present in the archive as entries of their own are implied by the
+ * paths of their content.
+ * 
+ * <p>
+ * The trie is not modified after it's built, so it can be shared by any
+ * number of threads.
+ * 
+ * @author Marcin Los
+ * 
+ * @see Archive
+ */
+class ArchiveNode
+{
+    private final String name;
+    private final ArchiveNode parent;
+    private ArchiveEntry entry;
+    private Map<String, ArchiveNode> children;
+    
+    private ArchiveNode(String name, ArchiveNode parent)
+    {
+        this.name = name;
+        this.parent = parent;
+    }
+    
+    /**
+     * Builds the trie of the archive's entries. Empty and {@code .}
+     * segments of the names are skipped; entries with {@code ..} segments
+     * are left out.
+     * 
+     * @return Root of the trie, a directory with an empty name
+     */
+    public static ArchiveNode build(List<? extends ArchiveEntry> entries)
+    {
+        ArchiveNode root = new ArchiveNode("", null);
+        root.children = new TreeMap<String, ArchiveNode>();
+        for (ArchiveEntry entry : entries)
+        {
+            root.add(entry);
+        }
+        return root;
+    }
+    
+    private void add(ArchiveEntry entry)
+    {
+        ArchiveNode node = this;
+        for (String segment : entry.getName().split("/"))
+        {
+            if (segment.isEmpty() || segment.equals("."))
+            {
+                continue;
+            }
+            if (segment.equals(".."))
+            {
+                return;
+            }
+            node = node.child(segment);
+        }
+        if (node == this)
+        {
+            return;
+        }
+        node.entry = entry;
+        if (entry.isDirectory() && node.children == null)
+        {
+            node.children = new TreeMap<String, ArchiveNode>();
+        }
+    }
+    
+    /*
+     * Returns child with a given name, creating it if needed. Nodes with
+     * children are directories.
+     */
+    private ArchiveNode child(String segment)
+    {
+        if (children == null)
+        {
+            children = new TreeMap<String, ArchiveNode>();
+        }
+        ArchiveNode child = children.get(segment);
+        if (child == null)
+        {
+            child = new ArchiveNode(segment, this);
+            children.put(segment, child);
+        }
+        return child;
+    }
+    
+    /**
+     * @param path Path relative to this node, segments separated by
+     * slashes
+     * 
+     * @return Node with a given path, or {@code null} if there is none
+     */
+    public ArchiveNode find(String path)
+    {
+        ArchiveNode node = this;
+        for (String segment : path.split("/"))
+        {
+            if (segment.isEmpty() || segment.equals("."))
+            {
+                continue;
+            }
+            if (node.children == null)
+            {
+                return null;
+            }
+            node = node.children.get(segment);
+            if (node == null)
+            {
+                return null;
+            }
+        }
+        return node;
+    }
+    
+    /**
+     * @return Name of the node, i.e. the last segment of its path
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return Parent node, or {@code null} for the root
+     */
+    public ArchiveNode getParent()
+    {
+        return parent;
+    }
+    
+    /**
+     * @return Path of the node relative to the root, without leading
+     * slash
+     */
+    public String getPath()
+    {
+        if (parent == null)
+        {
+            return "";
+        }
+        String parentPath = parent.getPath();
+        return parentPath.isEmpty() ? name : parentPath + '/' + name;
+    }
+    
+    /**
+     * @return Entry of the node, or {@code null} if it's a directory
+     * without an entry of its own
+     */
+    public ArchiveEntry getEntry()
+    {
+        return entry;
+    }
+    
+    public boolean isDirectory()
+    {
+        return children != null;
+    }
+    
+    /**
+     * @return Children of a directory, sorted by name; empty for regular
+     * files
+     */
+    public Collection<ArchiveNode> getChildren()
+    {
+        if (children == null)
+        {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(children.values());
+    }
+    
+    /**
+     * @return Uncompressed size of a regular file, total size of the
+     * content of a directory
+     */
+    public long getSize()
+    {
+        if (children == null)
+        {
+            return entry.getSize();
+        }
+        long size = 0;
+        for (ArchiveNode child : children.values())
+        {
+            size += child.getSize();
+        }
+        return size;
+    }
+    
+    /**
+     * @return Modification time, or {@code FileAttributes.UNKNOWN_TIME}
+     * for directories without an entry
+     */
+    public long getLastModified()
+    {
+        return entry == null ? FileAttributes.UNKNOWN_TIME :
+            entry.getTime();
+    }
+    
+    /**
+     * @return Attributes of the node, as they should appear in listings
+     */
+    public FileAttributes getAttributes()
+    {
+        return new FileAttributes(isDirectory(),
+            isDirectory() ? 0 : entry.getSize(), getLastModified(), null);
+    }
+}
@@ -0,0 +1,502 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Inflater of raw deflate data (RFC 1951) written in Java. Unlike {@code
+ * Inflater}, it tells where the blocks of compressed data start, to the
+ * bit, and gives access to the last 32 KB of output - that's all needed
+ * to resume inflation from such a point later, with {@code Inflater}
+ * and the output as a dictionary. It's slower than the native inflater,
+ * so it's only used to find such points in a single pass.
+ * 
+ * <p>
+ * Output is delivered up to the end of a block at a time, so that the
+ * caller can check {@code isAtBlockStart} after every call. Bytes
+ * following the compressed data (e.g. gzip trailer) are read with {@code
+ * readByte}, and a new stream is started with {@code reset}.
+ * 
+ * <p>
+ * The class is not thread-safe.
+ * 
+ * @author Marcin Los
+ * 
+ * @see GzipIndex
+ */
+class BlockInflater
+{
+    /** Maximum distance of back-references */
+    static final int WINDOW_SIZE = 1 << 15;
+    
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int MAX_BITS = 15;
+    
+    private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11,
+        13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131,
+        163, 195, 227, 258 };
+    private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1,
+        1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    private static final int[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13,
+        17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537,
+        2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2,
+        3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12,
+        13, 13 };
+    
+    /* Order of code length code lengths in a dynamic block header */
+    private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7,
+        9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+    
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+    
+    static
+    {
+        int[] lengths = new int[288];
+        for (int i = 0; i < lengths.length; ++ i)
+        {
+            lengths[i] = i < 144 ? 8 : (i < 256 ? 9 : (i < 280 ? 7 : 8));
+        }
+        int[] distances = new int[30];
+        for (int i = 0; i < distances.length; ++ i)
+        {
+            distances[i] = 5;
+        }
+        try
+        {
+            FIXED_LITERALS = new Huffman(lengths, 0, lengths.length);
+            FIXED_DISTANCES = new Huffman(distances, 0, distances.length);
+        }
+        catch (ZipException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+    
+    private enum State
+    {
+        BLOCK_START, STORED, HUFFMAN, FINISHED
+    }
+    
+    private InputStream in;
+    private byte[] input = new byte[BUFFER_SIZE];
+    private int inputPosition = 0;
+    private int inputLimit = 0;
+    private long bytesRead = 0;
+    
+    /* Bits read ahead, the next one being the least significant */
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    
+    private byte[] window = new byte[WINDOW_SIZE];
+    private long position = 0;
+    
+    private State state = State.BLOCK_START;
+    private boolean lastBlock = false;
+    private int storedRemaining;
+    private Huffman literals;
+    private Huffman distances;
+    private int copyLength = 0;
+    private int copyDistance;
+    
+    /*
+     * Canonical Huffman code decoded with a single table indexed by the
+     * next (bit-reversed) bits. Entries hold the symbol and code length.
+     */
+    private static class Huffman
+    {
+        private final short[] table;
+        private final int maxLength;
+        
+        public Huffman(int[] lengths, int offset, int count)
+            throws ZipException
+        {
+            int[] lengthCount = new int[MAX_BITS + 1];
+            int max = 1;
+            for (int i = 0; i < count; ++ i)
+            {
+                ++ lengthCount[lengths[offset + i]];
+                max = Math.max(max, lengths[offset + i]);
+            }
+            lengthCount[0] = 0;
+            int left = 1;
+            int[] next = new int[MAX_BITS + 1];
+            for (int length = 1; length <= MAX_BITS; ++ length)
+            {
+                left = (left << 1) - lengthCount[length];
+                if (left < 0)
+                {
+                    throw new ZipException("Invalid Huffman code");
+                }
+                next[length] = (next[length - 1] + lengthCount[length - 1])
+                    << 1;
+            }
+            maxLength = max;
+            table = new short[1 << max];
+            for (int symbol = 0; symbol < count; ++ symbol)
+            {
+                int length = lengths[offset + symbol];
+                if (length == 0)
+                {
+                    continue;
+                }
+                int code = reverse(next[length] ++, length);
+                for (int i = code; i < table.length; i += 1 << length)
+                {
+                    table[i] = (short) (symbol << 4 | length);
+                }
+            }
+        }
+        
+        private static int reverse(int code, int length)
+        {
+            return Integer.reverse(code) >>> (32 - length);
+        }
+    }
+    
+    /**
+     * @param in Stream of compressed data
+     */
+    public BlockInflater(InputStream in)
+    {
+        this.in = in;
+    }
+    
+    /**
+     * Inflates data up to the end of the current block.
+     * 
+     * @return Number of bytes inflated, -1 if the final block is over
+     * 
+     * @throws ZipException if the data is not valid
+     * 
+     * @throws IOException if the data could not be read
+     */
+    public int inflate(byte[] b, int off, int len) throws IOException
+    {
+        int produced = 0;
+        while (produced < len)
+        {
+            switch (state)
+            {
+            case BLOCK_START:
+                if (produced > 0)
+                {
+                    return produced;
+                }
+                if (lastBlock)
+                {
+                    state = State.FINISHED;
+                }
+                else
+                {
+                    readBlockHeader();
+                }
+                break;
+            case STORED:
+                if (storedRemaining == 0)
+                {
+                    state = State.BLOCK_START;
+                    break;
+                }
+                int n = Math.min(len - produced, storedRemaining);
+                for (int i = 0; i < n; ++ i)
+                {
+                    int value = readByte();
+                    if (value < 0)
+                    {
+                        throw new EOFException("Unexpected end of " +
+                            "compressed data");
+                    }
+                    b[off + produced ++] = output((byte) value);
+                }
+                storedRemaining -= n;
+                break;
+            case HUFFMAN:
+                if (copyLength > 0)
+                {
+                    int count = Math.min(copyLength, len - produced);
+                    for (int i = 0; i < count; ++ i)
+                    {
+                        b[off + produced ++] = output(window[
+                            (int) (position - copyDistance) & WINDOW_MASK]);
+                    }
+                    copyLength -= count;
+                    break;
+                }
+                int symbol = decode(literals);
+                if (symbol < 256)
+                {
+                    b[off + produced ++] = output((byte) symbol);
+                }
+                else if (symbol == 256)
+                {
+                    state = State.BLOCK_START;
+                }
+                else
+                {
+                    readCopy(symbol - 257);
+                }
+                break;
+            case FINISHED:
+                return produced == 0 ? -1 : produced;
+            }
+        }
+        return produced;
+    }
+    
+    private byte output(byte value)
+    {
+        window[(int) position & WINDOW_MASK] = value;
+        ++ position;
+        return value;
+    }
+    
+    private void readBlockHeader() throws IOException
+    {
+        lastBlock = bits(1) == 1;
+        int type = bits(2);
+        if (type == 0)
+        {
+            dropBits(bitCount & 7);
+            int length = bits(16);
+            if (length != (~ bits(16) & 0xffff))
+            {
+                throw new ZipException("Invalid stored block length");
+            }
+            storedRemaining = length;
+            state = State.STORED;
+        }
+        else if (type == 1)
+        {
+            literals = FIXED_LITERALS;
+            distances = FIXED_DISTANCES;
+            state = State.HUFFMAN;
+        }
+        else if (type == 2)
+        {
+            readDynamicCodes();
+            state = State.HUFFMAN;
+        }
+        else
+        {
+            throw new ZipException("Invalid block type");
+        }
+    }
+    
+    private void readDynamicCodes() throws IOException
+    {
+        int literalCount = bits(5) + 257;
+        int distanceCount = bits(5) + 1;
+        int codeLengthCount = bits(4) + 4;
+        int[] codeLengths = new int[19];
+        for (int i = 0; i < codeLengthCount; ++ i)
+        {
+            codeLengths[CODE_LENGTH_ORDER[i]] = bits(3);
+        }
+        Huffman codeLengthCode = new Huffman(codeLengths, 0, 19);
+        int[] lengths = new int[literalCount + distanceCount];
+        int i = 0;
+        while (i < lengths.length)
+        {
+            int symbol = decode(codeLengthCode);
+            if (symbol < 16)
+            {
+                lengths[i ++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16)
+            {
+                if (i == 0)
+                {
+                    throw new ZipException("Invalid code lengths");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + bits(2);
+            }
+            else if (symbol == 17)
+            {
+                repeat = 3 + bits(3);
+            }
+            else
+            {
+                repeat = 11 + bits(7);
+            }
+            if (i + repeat > lengths.length)
+            {
+                throw new ZipException("Invalid code lengths");
+            }
+            while (repeat -- > 0)
+            {
+                lengths[i ++] = value;
+            }
+        }
+        if (lengths[256] == 0)
+        {
+            throw new ZipException("Missing end of block code");
+        }
+        literals = new Huffman(lengths, 0, literalCount);
+        distances = new Huffman(lengths, literalCount, distanceCount);
+    }
+    
+    private void readCopy(int lengthCode) throws IOException
+    {
+        if (lengthCode >= LENGTH_BASE.length)
+        {
+            throw new ZipException("Invalid length code");
+        }
+        copyLength = LENGTH_BASE[lengthCode] + bits(LENGTH_EXTRA[lengthCode]);
+        int distanceCode = decode(distances);
+        if (distanceCode >= DISTANCE_BASE.length)
+        {
+            throw new ZipException("Invalid distance code");
+        }
+        copyDistance = DISTANCE_BASE[distanceCode] +
+            bits(DISTANCE_EXTRA[distanceCode]);
+        if (copyDistance > position)
+        {
+            throw new ZipException("Distance too far back");
+        }
+    }
+    
+    private int decode(Huffman code) throws IOException
+    {
+        fillBits(code.maxLength, true);
+        int entry = code.table[(int) bitBuffer & ((1 << code.maxLength) - 1)];
+        int length = entry & 15;
+        if (length == 0 || length > bitCount)
+        {
+            throw new ZipException("Invalid Huffman code");
+        }
+        dropBits(length);
+        return entry >> 4;
+    }
+    
+    private int bits(int count) throws IOException
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        fillBits(count, false);
+        int value = (int) bitBuffer & ((1 << count) - 1);
+        dropBits(count);
+        return value;
+    }
+    
+    /*
+     * Reads bits ahead. If the data ends, Huffman codes may still need
+     * fewer bits than the longest one, so the rest can be left missing.
+     */
+    private void fillBits(int count, boolean partial) throws IOException
+    {
+        while (bitCount < count)
+        {
+            int value = nextByte();
+            if (value < 0)
+            {
+                if (partial && bitCount > 0)
+                {
+                    return;
+                }
+                throw new EOFException("Unexpected end of compressed data");
+            }
+            bitBuffer |= (long) value << bitCount;
+            bitCount += 8;
+        }
+    }
+    
+    private void dropBits(int count)
+    {
+        bitBuffer >>>= count;
+        bitCount -= count;
+    }
+    
+    private int nextByte() throws IOException
+    {
+        while (inputPosition == inputLimit)
+        {
+            int length = in.read(input);
+            if (length < 0)
+            {
+                return -1;
+            }
+            inputPosition = 0;
+            inputLimit = length;
+        }
+        ++ bytesRead;
+        return input[inputPosition ++] & 0xff;
+    }
+    
+    /**
+     * Reads a byte following the compressed data, skipping to the byte
+     * boundary first.
+     * 
+     * @return The byte, or -1 if the data has ended
+     */
+    public int readByte() throws IOException
+    {
+        dropBits(bitCount & 7);
+        if (bitCount > 0)
+        {
+            return bits(8);
+        }
+        return nextByte();
+    }
+    
+    /**
+     * Prepares the inflater for a new stream of compressed data, starting
+     * at the current byte. Output position and window are kept.
+     */
+    public void reset()
+    {
+        dropBits(bitCount & 7);
+        state = State.BLOCK_START;
+        lastBlock = false;
+        copyLength = 0;
+    }
+    
+    /**
+     * @return Whether the next output byte begins a new block, so that
+     * inflation can be resumed here
+     */
+    public boolean isAtBlockStart()
+    {
+        return state == State.BLOCK_START && ! lastBlock;
+    }
+    
+    /**
+     * @return Number of bits of the compressed stream consumed so far
+     */
+    public long getBitPosition()
+    {
+        return bytesRead * 8 - bitCount;
+    }
+    
+    /**
+     * @return Number of bytes inflated so far
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+    
+    /**
+     * @return Copy of the last bytes of output, up to {@code WINDOW_SIZE}
+     */
+    public byte[] getWindow()
+    {
+        int length = (int) Math.min(position, WINDOW_SIZE);
+        byte[] copy = new byte[length];
+        int start = (int) (position - length) & WINDOW_MASK;
+        int first = Math.min(length, WINDOW_SIZE - start);
+        System.arraycopy(window, start, copy, 0, first);
+        System.arraycopy(window, 0, copy, first, length - first);
+        return copy;
+    }
+}
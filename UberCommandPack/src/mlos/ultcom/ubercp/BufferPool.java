@@ -0,0 +1,98 @@
+package mlos.ultcom.ubercp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers of equal size. Allocating direct buffers is
+ * expensive and their memory is released late, so buffers used for 
+ * copying are reused across transfers. At most {@code maxPooled} buffers
+ * are kept; surplus ones are left to the garbage collector.
+ * 
+ * <p>
+ * The class is thread-safe.
+ * 
+ * @author Marcin Los
+ */
+class BufferPool
+{
+    private static BufferPool shared;
+    
+    /** Size of buffers of the shared pool */
+    static final int SHARED_BUFFER_SIZE = 256 << 10;
+    
+    /** Maximal number of buffers kept by the shared pool */
+    static final int SHARED_MAX_POOLED = 64;
+    
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers = 
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    
+    /**
+     * @param bufferSize Size of the buffers, in bytes
+     * 
+     * @param maxPooled Maximal number of buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+    
+    /**
+     * @return Pool shared by all the commands of this package
+     */
+    public static synchronized BufferPool getShared()
+    {
+        if (shared == null)
+        {
+            shared = new BufferPool(SHARED_BUFFER_SIZE, SHARED_MAX_POOLED);
+        }
+        return shared;
+    }
+    
+    /**
+     * @return Cleared buffer, taken from the pool or newly allocated
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+        {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Returns the buffer to the pool. It must not be used by the caller
+     * afterwards.
+     * 
+     * @param buffer Buffer obtained from {@code acquire()}
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (pooled.incrementAndGet() <= maxPooled)
+        {
+            buffers.offer(buffer);
+        }
+        else
+        {
+            pooled.decrementAndGet();
+        }
+    }
+    
+    /**
+     * @return Size of the buffers, in bytes
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,75 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream of a range of a file, read with positional reads of its channel.
+ * Position of the channel is not used, so any number of such streams can
+ * be read concurrently, and skipping is free. Closing the stream does not
+ * close the channel.
+ * 
+ * @author Marcin Los
+ */
+class ChannelInputStream extends InputStream
+{
+    private FileChannel channel;
+    private long position;
+    private long end;
+    
+    /**
+     * @param channel Channel of the file
+     * 
+     * @param position Position of the range in the file
+     * 
+     * @param length Length of the range
+     */
+    public ChannelInputStream(FileChannel channel, long position, 
+        long length)
+    {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+    }
+    
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (position >= end)
+        {
+            return -1;
+        }
+        len = (int) Math.min(len, end - position);
+        int length = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if (length < 0)
+        {
+            throw new EOFException("Unexpected end of file");
+        }
+        position += length;
+        return length;
+    }
+    
+    @Override
+    public long skip(long n)
+    {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+    
+    @Override
+    public int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+}
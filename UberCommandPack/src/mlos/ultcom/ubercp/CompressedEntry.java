@@ -0,0 +1,371 @@
+package mlos.ultcom.ubercp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Entry of a ZIP archive compressed ahead of writing, so that entries can
+ * be compressed concurrently and appended to the archive later, in order,
+ * with {@code ZipWriter}. The entry is deflated or stored, as chosen by
+ * a {@code CompressionStrategy} from its leading sample. Compressed data
+ * is kept in memory until it exceeds {@code MEMORY_LIMIT}, then it's
+ * spilled to a temporary file, which is removed by {@code discard}.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZipWriter
+ */
+class CompressedEntry
+{
+    private static final Logger logger =
+        Logger.getLogger(CompressedEntry.class);
+    
+    /** Amount of compressed data kept in memory */
+    static final int MEMORY_LIMIT = 1 << 20;
+    
+    private static final int BUFFER_SIZE = 64 << 10;
+    
+    private ZipEntry entry;
+    private String fileName;
+    private CompressionStrategy strategy;
+    private int level = -1;
+    private ScratchStream scratch = new ScratchStream();
+    
+    /*
+     * Stream keeping data in memory up to the limit, then in a temporary
+     * file.
+     */
+    private static class ScratchStream extends OutputStream
+    {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private java.io.File file;
+        private OutputStream fileStream;
+        
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (fileStream == null && memory.size() + len > MEMORY_LIMIT)
+            {
+                file = java.io.File.createTempFile("ultcom", ".zip.part");
+                fileStream = new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE);
+                memory.writeTo(fileStream);
+                memory = null;
+            }
+            if (fileStream != null)
+            {
+                fileStream.write(b, off, len);
+            }
+            else
+            {
+                memory.write(b, off, len);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if (fileStream != null)
+            {
+                fileStream.close();
+            }
+        }
+        
+        public void writeTo(OutputStream out) throws IOException
+        {
+            if (file == null)
+            {
+                memory.writeTo(out);
+                return;
+            }
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length;
+                while ((length = in.read(buffer)) >= 0)
+                {
+                    out.write(buffer, 0, length);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        
+        public void discard()
+        {
+            memory = null;
+            if (file != null)
+            {
+                try
+                {
+                    close();
+                }
+                catch (IOException e)
+                {
+                    logger.debug("Error while closing " + file, e);
+                }
+                if (! file.delete())
+                {
+                    logger.warn("Cannot delete temporary file " + file);
+                }
+                file = null;
+            }
+        }
+    }
+    
+    /*
+     * Channel receiving content of the entry. Data is collected until the
+     * sample is complete, then the level is chosen and the data goes to
+     * the deflater, or directly to the scratch stream if it's stored.
+     */
+    private class Sink implements WritableByteChannel
+    {
+        private CRC32 crc = new CRC32();
+        private long size = 0;
+        private byte[] chunk = new byte[BUFFER_SIZE];
+        private byte[] sample = new byte[CompressionStrategy.SAMPLE_SIZE];
+        private int sampleLength = 0;
+        private Deflater deflater;
+        private byte[] output = new byte[BUFFER_SIZE];
+        private boolean open = true;
+        
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            int length = src.remaining();
+            while (src.hasRemaining())
+            {
+                int n = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, n);
+                accept(chunk, 0, n);
+            }
+            return length;
+        }
+        
+        private void accept(byte[] b, int off, int len) throws IOException
+        {
+            crc.update(b, off, len);
+            size += len;
+            if (sample != null)
+            {
+                int n = Math.min(len, sample.length - sampleLength);
+                System.arraycopy(b, off, sample, sampleLength, n);
+                sampleLength += n;
+                off += n;
+                len -= n;
+                if (sampleLength < sample.length)
+                {
+                    return;
+                }
+                choose();
+            }
+            process(b, off, len);
+        }
+        
+        /*
+         * Chooses the level and processes the sample collected so far.
+         */
+        private void choose() throws IOException
+        {
+            level = strategy.choose(fileName, sample, sampleLength);
+            if (level != Deflater.NO_COMPRESSION)
+            {
+                deflater = new Deflater(level, true);
+            }
+            byte[] data = sample;
+            sample = null;
+            process(data, 0, sampleLength);
+        }
+        
+        private void process(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return;
+            }
+            if (deflater == null)
+            {
+                scratch.write(b, off, len);
+                return;
+            }
+            deflater.setInput(b, off, len);
+            while (! deflater.needsInput())
+            {
+                drain();
+            }
+        }
+        
+        private void drain() throws IOException
+        {
+            int length = deflater.deflate(output);
+            scratch.write(output, 0, length);
+        }
+        
+        /*
+         * Flushes the remaining data and fills in the entry.
+         */
+        public void finish() throws IOException
+        {
+            if (sample != null)
+            {
+                choose();
+            }
+            long compressedSize = size;
+            if (deflater != null)
+            {
+                deflater.finish();
+                while (! deflater.finished())
+                {
+                    drain();
+                }
+                compressedSize = deflater.getBytesWritten();
+                entry.setMethod(ZipEntry.DEFLATED);
+            }
+            else
+            {
+                entry.setMethod(ZipEntry.STORED);
+            }
+            scratch.close();
+            entry.setSize(size);
+            entry.setCompressedSize(compressedSize);
+            entry.setCrc(crc.getValue());
+        }
+        
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+        
+        @Override
+        public void close()
+        {
+            open = false;
+            if (deflater != null)
+            {
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * @param name Name of the entry inside the archive
+     * 
+     * @param time Modification time of the entry, or {@code -1} if unknown
+     * 
+     * @param strategy Strategy choosing the compression level
+     */
+    public CompressedEntry(String name, long time,
+        CompressionStrategy strategy)
+    {
+        entry = new ZipEntry(name);
+        if (time >= 0)
+        {
+            entry.setTime(time);
+        }
+        fileName = name.substring(name.lastIndexOf('/') + 1);
+        this.strategy = strategy;
+    }
+    
+    /**
+     * Compresses the content read from a channel through the pipeline,
+     * computing its CRC. It stops early if the pipeline's command is
+     * canceled.
+     * 
+     * @param in Channel with the content; it's not closed
+     * 
+     * @param pipeline Pipeline used to read the content
+     * 
+     * @param listener Notified about amounts of data read, or {@code null}
+     */
+    public void compress(ReadableByteChannel in, CopyPipeline pipeline,
+        CopyPipeline.TransferListener listener) throws IOException
+    {
+        Sink sink = new Sink();
+        try
+        {
+            pipeline.copy(in, sink, listener);
+            sink.finish();
+        }
+        finally
+        {
+            sink.close();
+        }
+    }
+    
+    /**
+     * @return Entry with method, CRC and sizes, valid after {@code
+     * compress}
+     */
+    public ZipEntry getEntry()
+    {
+        return entry;
+    }
+    
+    /**
+     * @return Compression level chosen for the entry, 0 if it's stored
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+    
+    /**
+     * @return Compressed size divided by the original size, 1 for empty
+     * entries
+     */
+    public double getRatio()
+    {
+        long size = entry.getSize();
+        return size > 0 ? entry.getCompressedSize() / (double) size : 1;
+    }
+    
+    /**
+     * Writes the entry to an archive and discards the compressed data,
+     * even if writing fails.
+     */
+    public void writeTo(ZipWriter writer) throws IOException
+    {
+        try
+        {
+            writer.putEntry(entry);
+            scratch.writeTo(writer);
+            writer.closeEntry();
+        }
+        finally
+        {
+            discard();
+        }
+    }
+    
+    /**
+     * Releases the compressed data, removing the temporary file if there
+     * is one.
+     */
+    public void discard()
+    {
+        scratch.discard();
+    }
+}
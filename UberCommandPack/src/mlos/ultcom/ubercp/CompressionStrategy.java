@@ -0,0 +1,137 @@
+package mlos.ultcom.ubercp;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how to compress entries of an archive. Fixed strategy uses the
+ * same level for all of them. Adaptive one stores files whose extension
+ * denotes already compressed data (images, video, archives etc.); for
+ * other files it compresses a leading sample at the fastest level and
+ * decides by the ratio achieved:
+ * <ul>
+ * <li>{@code STORE_RATIO} or more - stored, compression would not pay off
+ * <li>{@code FAST_RATIO} or more - fastest level, higher ones would gain
+ * little on such data
+ * <li>less - the configured level
+ * </ul>
+ * Level 0 means the entry is stored.
+ * 
+ * <p>
+ * The class is immutable and thread-safe.
+ * 
+ * @author Marcin Los
+ */
+class CompressionStrategy
+{
+    /** Size of a sample used to choose the level */
+    static final int SAMPLE_SIZE = 64 << 10;
+    
+    /** Samples compressed to this fraction or more are stored */
+    static final double STORE_RATIO = 0.95;
+    
+    /** Samples compressed to this fraction or more use the fastest level */
+    static final double FAST_RATIO = 0.8;
+    
+    /* Samples smaller than this are not worth a trial */
+    private static final int MIN_SAMPLE = 512;
+    
+    private static final Set<String> INCOMPRESSIBLE = new HashSet<String>(
+        Arrays.asList(
+            // Images
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "jp2",
+            // Audio and video
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "mp4", "m4v",
+            "mkv", "webm", "avi", "mov", "wmv", "flv",
+            // Archives and compressed files
+            "zip", "jar", "war", "ear", "apk", "gz", "tgz", "bz2", "tbz2",
+            "xz", "txz", "lz", "lzma", "lz4", "zst", "7z", "rar", "cab",
+            // Formats based on ZIP
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+    
+    private final int level;
+    private final boolean adaptive;
+    
+    /**
+     * @param level Level used for compressible data, 0-9 or {@code
+     * Deflater.DEFAULT_COMPRESSION}
+     * 
+     * @param adaptive Whether the level should be chosen for each entry
+     */
+    public CompressionStrategy(int level, boolean adaptive)
+    {
+        this.level = level;
+        this.adaptive = adaptive;
+    }
+    
+    /**
+     * Chooses compression level of an entry.
+     * 
+     * @param name Name of the file
+     * 
+     * @param sample Leading part of the file's content
+     * 
+     * @param length Length of the sample; it's shorter than {@code
+     * SAMPLE_SIZE} only if the whole file is
+     * 
+     * @return Compression level, 0 if the entry should be stored
+     */
+    public int choose(String name, byte[] sample, int length)
+    {
+        if (! adaptive)
+        {
+            return level;
+        }
+        if (INCOMPRESSIBLE.contains(extension(name)))
+        {
+            return Deflater.NO_COMPRESSION;
+        }
+        if (length < MIN_SAMPLE)
+        {
+            return level;
+        }
+        double ratio = trialRatio(sample, length);
+        if (ratio >= STORE_RATIO)
+        {
+            return Deflater.NO_COMPRESSION;
+        }
+        else if (ratio >= FAST_RATIO)
+        {
+            return Deflater.BEST_SPEED;
+        }
+        return level;
+    }
+    
+    /*
+     * Compresses the sample at the fastest level, discarding the output,
+     * and returns the ratio.
+     */
+    private static double trialRatio(byte[] sample, int length)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try
+        {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[SAMPLE_SIZE];
+            while (! deflater.finished())
+            {
+                deflater.deflate(output);
+            }
+            return deflater.getBytesWritten() / (double) length;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+    
+    private static String extension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,26 +1,92 @@
 package mlos.ultcom.ubercp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import mlos.ultcom.command.Context;
 import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.core.ScanManifest;
+import mlos.ultcom.core.TreeVisitor;
+import mlos.ultcom.core.TreeWalker;
+import mlos.ultcom.fs.ChannelFile;
+import mlos.ultcom.fs.DeviceAwareFile;
 import mlos.ultcom.fs.Directory;
 import mlos.ultcom.fs.File;
-import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileEntry;
+
+import org.apache.log4j.Logger;
 
 /**
- * Implementation of a copy command using simple streams to transfer data.
+ * Implementation of a copy command. Data is transferred between channels
+ * if both files provide them, using streams otherwise. Unless both 
+ * channels are files, which the operating system can copy on its own,
+ * data goes through {@code CopyPipeline}, so reading overlaps with writing.
+ * 
+ * <p>
+ * Selection is walked once, in the background, into a {@code 
+ * ScanManifest}; the destination directory structure is created on the
+ * way. Files are copied as soon as they're recorded, concurrently by a 
+ * bounded pool of workers. Number of workers is read from the main
+ * configuration: {@code copy.threads.same.device} if the source and the
+ * destination share a device, {@code copy.threads.cross.device} otherwise
+ * or if it cannot be determined. Value of 1 means sequential copying.
+ * 
+ * <p>
+ * When copying concurrently, files of at least {@code copy.chunk.threshold}
+ * bytes are split into ranges of {@code copy.chunk.size} bytes, copied 
+ * by the workers independently with positional reads and writes. It
+ * requires both files to provide {@code FileChannel}s.
  * 
  * @author Marcin Los
  */
 public class Copy extends LongCommand
 {    
-    private long totalSize = 0;
-    private long copied = 0;
+    private static final Logger logger = Logger.getLogger(Copy.class);
+    
+    /* Amount of data transferred between progress updates */
+    private static final long TRANSFER_CHUNK = 8 << 20;
+    
+    /* Default number of workers if source and destination share a device */
+    private static final int DEFAULT_SAME_DEVICE_THREADS = 4;
+    
+    /* Default number of workers for other transfers */
+    private static final int DEFAULT_CROSS_DEVICE_THREADS = 8;
+    
+    /* Default size above which files are copied in ranges */
+    private static final long DEFAULT_CHUNK_THRESHOLD = 256 << 20;
+    
+    /* Default size of a range */
+    private static final long DEFAULT_CHUNK_SIZE = 64 << 20;
+    
+    /* Capacity of the job queue, per worker */
+    private static final int QUEUED_JOBS_PER_WORKER = 4;
+    
+    private CopyPipeline pipeline;
+    
+    /* Passes progress of the pipeline to {@code addBytesDone} */
+    private CopyPipeline.TransferListener progress = 
+        new CopyPipeline.TransferListener()
+    {
+        @Override
+        public void transferred(long length)
+        {
+            addBytesDone(length);
+        }
+    };
     
     public Copy()
     {
@@ -38,11 +104,29 @@ public class Copy extends LongCommand
     {
         try
         {
-            calculateSize(active);
             Directory dest = inactive.getCurrentDirectory();
-            for (File file : active.getSelectedFiles())
+            pipeline = new CopyPipeline(this);
+            List<File> selected = active.getSelectedFiles();
+            ScanManifest<Directory> manifest = startScan(selected, dest);
+            try
             {
-                copyRecursively(file, dest);
+                int threads = determineThreads(selected, dest);
+                if (threads > 1)
+                {
+                    copyParallel(manifest, threads);
+                }
+                else
+                {
+                    copySequential(manifest);
+                }
+            }
+            finally
+            {
+                manifest.abandon();
+            }
+            if (pipeline.getBytes() > 0)
+            {
+                logger.info("Pipelined copying: " + pipeline.getSummary());
             }
             finished();
         }
@@ -52,90 +136,688 @@ public class Copy extends LongCommand
         }
     }
     
+    /*
+     * Unit of work of the concurrent copy.
+     */
+    private interface Job
+    {
+        void run() throws Exception;
+    }
+    
+    /* Tells a worker there are no more jobs */
+    private static final Job STOP = new Job()
+    {
+        @Override
+        public void run()
+        {
+        }
+    };
+    
+    /*
+     * Single regular file to copy, along with its destination directory.
+     */
+    private class Transfer implements Job
+    {
+        private File source;
+        private Directory destination;
+        private long size;
+        
+        public Transfer(File source, Directory destination, long size)
+        {
+            this.source = source;
+            this.destination = destination;
+            this.size = size;
+        }
+        
+        @Override
+        public void run() throws Exception
+        {
+            copySingleFile(source, destination);
+        }
+    }
+    
+    /*
+     * Large file copied in ranges. Positional writes past the end extend 
+     * the destination, so the ranges can be written in any order; no 
+     * space is reserved up front. Completed ranges are recorded; when the
+     * last one completes, the result is verified and the channels are 
+     * closed. If the transfer does not complete, the destination is 
+     * discarded.
+     */
+    private class ChunkedTransfer
+    {
+        private File source;
+        private File target;
+        private FileChannel in;
+        private FileChannel out;
+        private long size;
+        private long chunkSize;
+        private int rangeCount;
+        private BitSet completed;
+        private boolean closed = false;
+        
+        public ChunkedTransfer(File source, File target, FileChannel in,
+            FileChannel out, long chunkSize) throws IOException
+        {
+            this.source = source;
+            this.target = target;
+            this.in = in;
+            this.out = out;
+            this.chunkSize = chunkSize;
+            size = in.size();
+            rangeCount = (int) ((size + chunkSize - 1) / chunkSize);
+            completed = new BitSet(rangeCount);
+        }
+        
+        public int getRangeCount()
+        {
+            return rangeCount;
+        }
+        
+        /*
+         * Copies range with a given index, unless the command is canceled.
+         */
+        public void copyRange(int index) throws IOException
+        {
+            setDescription("Copying", source);
+            long position = index * chunkSize;
+            long end = Math.min(position + chunkSize, size);
+            BufferPool pool = BufferPool.getShared();
+            ByteBuffer buffer = pool.acquire();
+            try
+            {
+                while (position < end)
+                {
+                    if (isCanceled())
+                    {
+                        return;
+                    }
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), 
+                        end - position));
+                    int length = in.read(buffer, position);
+                    if (length < 0)
+                    {
+                        throw new IOException("File " + source.getName() + 
+                            " got truncated during copying");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                    {
+                        position += out.write(buffer, position);
+                    }
+                    addBytesDone(length);
+                }
+            }
+            finally
+            {
+                pool.release(buffer);
+            }
+            rangeCompleted(index);
+        }
+        
+        private synchronized void rangeCompleted(int index) 
+            throws IOException
+        {
+            completed.set(index);
+            if (completed.cardinality() == rangeCount)
+            {
+                if (in.size() != size || out.size() != size)
+                {
+                    throw new IOException("Size of " + source.getName() +
+                        " changed during copying");
+                }
+                close();
+                addFilesDone(1);
+            }
+        }
+        
+        /*
+         * Closes the channels of a completed transfer. Error closing the
+         * destination means the data may not have been written, so it 
+         * fails the transfer, and the destination is deleted.
+         */
+        private void close() throws IOException
+        {
+            closed = true;
+            closeQuietly(in);
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                LocalFiles.delete(target);
+                throw e;
+            }
+        }
+        
+        /*
+         * Closes the channels and deletes the destination, unless the 
+         * transfer has completed. Where deletion is not possible, the
+         * destination is at least truncated, so that no partial copy is
+         * mistaken for a complete one.
+         */
+        public synchronized void discard()
+        {
+            if (! closed)
+            {
+                closed = true;
+                try
+                {
+                    out.truncate(0);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Cannot truncate " + target.getPath(), e);
+                }
+                closeQuietly(in);
+                closeQuietly(out);
+                LocalFiles.delete(target);
+            }
+        }
+    }
+    
+    /*
+     * Range of a chunked transfer.
+     */
+    private static class Range implements Job
+    {
+        private ChunkedTransfer transfer;
+        private int index;
+        
+        public Range(ChunkedTransfer transfer, int index)
+        {
+            this.transfer = transfer;
+            this.index = index;
+        }
+        
+        @Override
+        public void run() throws Exception
+        {
+            transfer.copyRange(index);
+        }
+    }
+    
     /**
-     * Recursively copies the first argument (i.e. if it is a directory, 
-     * all the content is copied as well) to the second directory.
+     * Starts walking the selected trees in the background, creating the
+     * destination directory structure on the way. Files can be copied as
+     * soon as they appear in the manifest. The walk is ordered, so files
+     * are copied in the same order on every run.
      */
-    private void copyRecursively(File src, Directory dest) throws Exception
+    private ScanManifest<Directory> startScan(List<File> files, 
+        Directory dest)
     {
-        if (src instanceof Directory)
+        ScanManifest<Directory> manifest = new ScanManifest<Directory>();
+        TreeWalker walker = new TreeWalker();
+        walker.setCommand(this);
+        walker.setOrdered(true);
+        manifest.scanInBackground(walker, files, dest, 
+            new TreeVisitor<Directory>()
         {
-            Directory source = (Directory) src;
-            Directory destination = 
-                dest.createChild(source.getName()).createDirectory();
+            @Override
+            public Directory preVisitDirectory(FileEntry directory, 
+                Directory context) throws Exception
+            {
+                String name = directory.getFile().getName();
+                return context.createChild(name).createDirectory();
+            }
             
-            for (File file : source.getFiles())
+            @Override
+            public void visitFile(FileEntry file, Directory context)
             {
-                copyRecursively(file, destination);
             }
+        });
+        return manifest;
+    }
+    
+    /**
+     * Publishes totals once the scan is complete, so that percentage 
+     * does not go back as the manifest grows.
+     */
+    private void updateTotals(ScanManifest<Directory> manifest)
+    {
+        if (getFilesTotal() < 0 && manifest.isComplete())
+        {
+            setTotals(manifest.getTotalSize(), manifest.getFileCount());
+        }
+    }
+    
+    /**
+     * Copies files from the manifest one by one, as they're recorded.
+     */
+    private void copySequential(ScanManifest<Directory> manifest) 
+        throws Exception
+    {
+        for (int i = 0; i < manifest.await(i) && ! isCanceled(); ++ i)
+        {
+            updateTotals(manifest);
+            if (manifest.getType(i) == ScanManifest.FILE)
+            {
+                copySingleFile(manifest.getFile(i), manifest.getContext(i));
+            }
+        }
+        updateTotals(manifest);
+    }
+    
+    /**
+     * Chooses number of workers, depending on whether the source and the
+     * destination are on the same device.
+     */
+    private int determineThreads(List<File> files, Directory dest)
+    {
+        boolean sameDevice = false;
+        if (! files.isEmpty() && files.get(0) instanceof DeviceAwareFile &&
+            dest instanceof DeviceAwareFile)
+        {
+            try
+            {
+                Object device = ((DeviceAwareFile) files.get(0)).getDevice();
+                sameDevice = device.equals(((DeviceAwareFile) dest)
+                    .getDevice());
+            }
+            catch (IOException e)
+            {
+                logger.debug("Cannot determine devices of the copy", e);
+            }
+        }
+        if (sameDevice)
+        {
+            return (int) Settings.read("copy.threads.same.device", 
+                DEFAULT_SAME_DEVICE_THREADS);
         }
         else
         {
-            copySingleFile(src, dest);
+            return (int) Settings.read("copy.threads.cross.device", 
+                DEFAULT_CROSS_DEVICE_THREADS);
+        }
+    }
+    
+    /**
+     * Copies the files with a given number of workers. Calling thread 
+     * reads the manifest and passes the jobs to the workers through a 
+     * bounded queue; large files are split into ranges on the way. The 
+     * first failure stops all the workers and is rethrown.
+     */
+    private void copyParallel(ScanManifest<Directory> manifest, int threads)
+        throws Exception
+    {
+        long threshold = Settings.read("copy.chunk.threshold", 
+            DEFAULT_CHUNK_THRESHOLD);
+        long chunkSize = Settings.read("copy.chunk.size", DEFAULT_CHUNK_SIZE);
+        BlockingQueue<Job> queue = 
+            new ArrayBlockingQueue<Job>(threads * QUEUED_JOBS_PER_WORKER);
+        AtomicReference<Exception> failure = 
+            new AtomicReference<Exception>();
+        List<ChunkedTransfer> chunked = new ArrayList<ChunkedTransfer>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (int i = 0; i < threads; ++ i)
+            {
+                pool.execute(new Worker(queue, failure));
+            }
+            for (int i = 0; i < manifest.await(i); ++ i)
+            {
+                if (failure.get() != null || isCanceled())
+                {
+                    break;
+                }
+                updateTotals(manifest);
+                if (manifest.getType(i) != ScanManifest.FILE)
+                {
+                    continue;
+                }
+                Transfer transfer = new Transfer(manifest.getFile(i), 
+                    manifest.getContext(i), manifest.getSize(i));
+                ChunkedTransfer chunkedTransfer = null;
+                if (transfer.size >= threshold && transfer.size > chunkSize)
+                {
+                    chunkedTransfer = openChunked(transfer, chunkSize);
+                }
+                if (chunkedTransfer != null)
+                {
+                    chunked.add(chunkedTransfer);
+                    for (int j = 0; j < chunkedTransfer.getRangeCount(); ++ j)
+                    {
+                        queue.put(new Range(chunkedTransfer, j));
+                    }
+                }
+                else
+                {
+                    queue.put(transfer);
+                }
+            }
+            updateTotals(manifest);
+        }
+        finally
+        {
+            // Workers keep taking jobs until they get STOP, so it never
+            // blocks for long
+            for (int i = 0; i < threads; ++ i)
+            {
+                queue.put(STOP);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            // Only has effect in case of failure or cancellation
+            for (ChunkedTransfer transfer : chunked)
+            {
+                transfer.discard();
+            }
+        }
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+    }
+    
+    /*
+     * Runs the jobs taken from the queue until it gets STOP. After a 
+     * failure or cancellation the remaining jobs are skipped.
+     */
+    private class Worker implements Runnable
+    {
+        private BlockingQueue<Job> queue;
+        private AtomicReference<Exception> failure;
+        
+        public Worker(BlockingQueue<Job> queue, 
+            AtomicReference<Exception> failure)
+        {
+            this.queue = queue;
+            this.failure = failure;
+        }
+        
+        @Override
+        public void run()
+        {
+            try
+            {
+                Job job;
+                while ((job = queue.take()) != STOP)
+                {
+                    if (failure.get() != null || isCanceled())
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        job.run();
+                    }
+                    catch (Exception e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+    
+    /**
+     * Opens the channels of a transfer and checks whether they allow
+     * positional access; returns {@code null} if they don't.
+     */
+    private ChunkedTransfer openChunked(Transfer transfer, long chunkSize)
+        throws Exception
+    {
+        File target = transfer.destination.createChild(
+            transfer.source.getName());
+        if (! (transfer.source instanceof ChannelFile) || 
+            ! (target instanceof ChannelFile))
+        {
+            return null;
+        }
+        ReadableByteChannel in = null;
+        WritableByteChannel out = null;
+        ChunkedTransfer result = null;
+        try
+        {
+            in = ((ChannelFile) transfer.source).getReadChannel();
+            if (in instanceof FileChannel)
+            {
+                out = ((ChannelFile) target).getWriteChannel();
+                if (out instanceof FileChannel)
+                {
+                    result = new ChunkedTransfer(transfer.source, target,
+                        (FileChannel) in, (FileChannel) out, chunkSize);
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            if (result == null)
+            {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
         }
     }
     
     /**
      * Copies single file src to dest directory. {@code src} must be a regular
-     * file.
+     * file. If both files provide channels, the data is transferred 
+     * between them directly, otherwise streams are used. The file is
+     * counted as done only once it's copied completely; if the copy fails
+     * or is canceled, the destination is discarded, like that of a
+     * chunked transfer.
      */
     private void copySingleFile(File src, Directory dest) throws Exception
     {
-        setDescription("Copying " + src.getName());
-        InputStream in = null;
+        setDescription("Copying", src);
+        File outputFile = dest.createChild(src.getName());
+        boolean complete = false;
         try
         {
-            in = new BufferedInputStream(src.getInputStream());
-            File outputFile = dest.createChild(src.getName());
-            OutputStream out = null;
+            if (src instanceof ChannelFile && 
+                outputFile instanceof ChannelFile)
+            {
+                complete = copyChannels((ChannelFile) src, 
+                    (ChannelFile) outputFile);
+            }
+            else
+            {
+                complete = copyStreams(src, outputFile);
+            }
+        }
+        finally
+        {
+            if (! complete)
+            {
+                LocalFiles.delete(outputFile);
+            }
+        }
+        addFilesDone(1);
+    }
+    
+    /**
+     * Copies content between channels. If either of them is a {@code 
+     * FileChannel}, the transfer is left to the operating system 
+     * (sendfile, copy_file_range), so the data does not pass through the
+     * heap at all. Destination of an incomplete copy is truncated, so that
+     * it's not mistaken for a complete one even if it cannot be deleted.
+     * 
+     * @return Whether the whole content was copied, i.e. the command was
+     * not canceled
+     */
+    private boolean copyChannels(ChannelFile src, ChannelFile dest) 
+        throws Exception
+    {
+        ReadableByteChannel in = src.getReadChannel();
+        try
+        {
+            WritableByteChannel out = dest.getWriteChannel();
+            boolean complete = false;
             try
             {
-                out = new BufferedOutputStream(outputFile.getOutputStream());
-                byte[] buffer = new byte[8192];
-                int length = 0;
-                while ((length = in.read(buffer)) > 0)
+                if (in instanceof FileChannel)
                 {
-                    out.write(buffer, 0, length);
-                    copied += length;
-                    setProgress((int)(100 * (((double) copied) / totalSize)));
+                    complete = transferTo(src, (FileChannel) in, out);
+                }
+                else if (out instanceof FileChannel)
+                {
+                    complete = transferFrom(in, (FileChannel) out);
+                }
+                else
+                {
+                    complete = copyBuffer(in, out);
                 }
             }
             finally
             {
-                if (out != null)
+                if (! complete)
                 {
-                    out.close();
+                    discardOutput(dest, out);
                 }
             }
+            out.close();
+            return complete;
         }
         finally
         {
-            if (in != null)
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * Transfers the file in chunks, so that progress is reported and
+     * cancellation noticed during copying of huge files.
+     * 
+     * @return Whether the whole file was transferred
+     * 
+     * @throws IOException if the file got truncated during copying
+     */
+    private boolean transferTo(File src, FileChannel in, 
+        WritableByteChannel out) throws IOException
+    {
+        long size = in.size();
+        long position = 0;
+        while (position < size)
+        {
+            if (isCanceled())
             {
-                in.close();
+                return false;
             }
+            long count = Math.min(TRANSFER_CHUNK, size - position);
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0)
+            {
+                throw new IOException("File " + src.getName() + 
+                    " got truncated during copying");
+            }
+            position += transferred;
+            addBytesDone(transferred);
+        }
+        return true;
+    }
+    
+    /**
+     * @return Whether the end of the source was reached
+     */
+    private boolean transferFrom(ReadableByteChannel in, FileChannel out)
+        throws IOException
+    {
+        long position = 0;
+        while (! isCanceled())
+        {
+            long transferred = out.transferFrom(in, position, TRANSFER_CHUNK);
+            if (transferred <= 0)
+            {
+                return true;
+            }
+            position += transferred;
+            addBytesDone(transferred);
         }
+        return false;
     }
     
     /**
-     * Calculates total size of files to copy.
+     * Copies channels other than files through the pipeline.
+     * 
+     * @return Whether the copy was not canceled
      */
-    private void calculateSize(Context active)
+    private boolean copyBuffer(ReadableByteChannel in, 
+        WritableByteChannel out) throws IOException
     {
+        pipeline.copy(in, out, progress);
+        return ! isCanceled();
+    }
+    
+    /**
+     * Copies content using streams, for file systems not providing 
+     * channels. Streams are wrapped in channels and copied through the 
+     * pipeline, so reading overlaps with writing. Error closing the output,
+     * which may flush buffered data, fails the copy.
+     * 
+     * @return Whether the copy was not canceled
+     */
+    private boolean copyStreams(File src, File dest) throws Exception
+    {
+        ReadableByteChannel in = null;
         try
         {
-            for (File file : active.getSelectedFiles())
+            in = Channels.newChannel(src.getInputStream());
+            WritableByteChannel out = 
+                Channels.newChannel(dest.getOutputStream());
+            boolean complete = false;
+            try
+            {
+                complete = copyBuffer(in, out);
+            }
+            finally
             {
-                totalSize += file.getSize();
-            } 
+                if (! complete)
+                {
+                    // Failing or canceled, the copy is discarded anyway
+                    closeQuietly(out);
+                }
+            }
+            out.close();
+            return complete;
         }
-        catch (FileAccessException e)
+        finally
         {
-            failed(e);
-        } 
-        catch (IOException e)
+            closeQuietly(in);
+        }
+    }
+    
+    /*
+     * Truncates the destination of an incomplete copy, if it's a file, 
+     * and closes it.
+     */
+    private static void discardOutput(File target, 
+        WritableByteChannel out)
+    {
+        if (out instanceof FileChannel)
         {
-            failed(e);
+            try
+            {
+                ((FileChannel) out).truncate(0);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot truncate " + target.getPath(), e);
+            }
+        }
+        closeQuietly(out);
+    }
+    
+    private static void closeQuietly(Channel channel)
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Error while closing channel", e);
+            }
         }
     }
 }
@@ -0,0 +1,308 @@
+package mlos.ultcom.ubercp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mlos.ultcom.command.LongCommand;
+
+/**
+ * Copying engine overlapping reads of the source with writes to the 
+ * destination. A reader thread fills buffers taken from a bounded ring
+ * and passes them to the calling thread, which writes them out and 
+ * returns them to the ring. Thus the source is read while the destination
+ * is busy, and vice versa. Buffers are direct ones, taken from the shared
+ * {@code BufferPool}.
+ * 
+ * <p>
+ * Statistics are gathered over all the transfers: amount of data, time, 
+ * and time spent by each side waiting for the other. If the reader waits
+ * for free buffers, the destination is the bottleneck; if the writer 
+ * waits for data, it's the source. One pipeline may be used by many
+ * threads at the same time.
+ * 
+ * @author Marcin Los
+ */
+class CopyPipeline
+{
+    private static ExecutorService readers;
+    
+    /** Number of buffers in the ring of a single transfer */
+    static final int DEPTH = 4;
+    
+    /* Marks the end of data */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    
+    private LongCommand command;
+    private BufferPool pool = BufferPool.getShared();
+    
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong readerWait = new AtomicLong();
+    private AtomicLong writerWait = new AtomicLong();
+    private AtomicLong firstStart = new AtomicLong();
+    private AtomicLong lastEnd = new AtomicLong();
+    
+    /**
+     * Callback notified about data written to the destination.
+     */
+    interface TransferListener
+    {
+        /**
+         * @param length Number of bytes written
+         */
+        void transferred(long length);
+    }
+    
+    /*
+     * Reads the source into buffers of the ring, until the end of data.
+     */
+    private class Reader implements Runnable
+    {
+        private ReadableByteChannel in;
+        private BlockingQueue<ByteBuffer> free;
+        private BlockingQueue<ByteBuffer> filled;
+        private AtomicReference<Exception> failure = 
+            new AtomicReference<Exception>();
+        private CountDownLatch done = new CountDownLatch(1);
+        private AtomicBoolean started = new AtomicBoolean(false);
+        
+        public Reader(ReadableByteChannel in, BlockingQueue<ByteBuffer> free,
+            BlockingQueue<ByteBuffer> filled)
+        {
+            this.in = in;
+            this.free = free;
+            this.filled = filled;
+        }
+        
+        @Override
+        public void run()
+        {
+            if (! started.compareAndSet(false, true))
+            {
+                // Transfer is already over
+                return;
+            }
+            try
+            {
+                boolean end = false;
+                while (! end)
+                {
+                    long start = System.nanoTime();
+                    ByteBuffer buffer = free.take();
+                    readerWait.addAndGet(System.nanoTime() - start);
+                    buffer.clear();
+                    while (buffer.hasRemaining())
+                    {
+                        if (in.read(buffer) < 0)
+                        {
+                            end = true;
+                            break;
+                        }
+                    }
+                    buffer.flip();
+                    filled.put(buffer);
+                }
+            }
+            catch (Exception e)
+            {
+                failure.set(e);
+            }
+            finally
+            {
+                // There is always room for it, as the ring is smaller
+                filled.offer(END);
+                done.countDown();
+            }
+        }
+    }
+    
+    /**
+     * @param command Command using the pipeline; its cancellation stops
+     * the transfers
+     */
+    public CopyPipeline(LongCommand command)
+    {
+        this.command = command;
+    }
+    
+    /*
+     * Threads reading sources are shared by all the pipelines.
+     */
+    private static synchronized ExecutorService getReaders()
+    {
+        if (readers == null)
+        {
+            readers = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Copy pipeline reader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return readers;
+    }
+    
+    /**
+     * Copies all the data from {@code in} to {@code out}. Neither of the
+     * channels is closed. If the command gets canceled, the transfer is
+     * stopped and the source is possibly closed.
+     * 
+     * @param in Source channel
+     * 
+     * @param out Destination channel
+     * 
+     * @param listener Listener notified after each written buffer, may be
+     * {@code null}
+     * 
+     * @return Number of bytes copied
+     * 
+     * @throws IOException if I/O error occured on either side
+     */
+    public long copy(ReadableByteChannel in, WritableByteChannel out, 
+        TransferListener listener) throws IOException
+    {
+        long start = System.nanoTime();
+        firstStart.compareAndSet(0, start);
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(DEPTH);
+        BlockingQueue<ByteBuffer> free = 
+            new ArrayBlockingQueue<ByteBuffer>(DEPTH);
+        BlockingQueue<ByteBuffer> filled = 
+            new ArrayBlockingQueue<ByteBuffer>(DEPTH + 1);
+        for (int i = 0; i < DEPTH; ++ i)
+        {
+            ByteBuffer buffer = pool.acquire();
+            buffers.add(buffer);
+            free.add(buffer);
+        }
+        Reader reader = new Reader(in, free, filled);
+        Future<?> task = getReaders().submit(reader);
+        long copied = 0;
+        try
+        {
+            while (! command.isCanceled())
+            {
+                long waitStart = System.nanoTime();
+                ByteBuffer buffer = filled.take();
+                writerWait.addAndGet(System.nanoTime() - waitStart);
+                if (buffer == END)
+                {
+                    break;
+                }
+                int length = buffer.remaining();
+                while (buffer.hasRemaining())
+                {
+                    out.write(buffer);
+                }
+                free.put(buffer);
+                copied += length;
+                bytes.addAndGet(length);
+                if (listener != null)
+                {
+                    listener.transferred(length);
+                }
+            }
+            Exception failure = reader.failure.get();
+            if (failure instanceof IOException)
+            {
+                throw (IOException) failure;
+            }
+            else if (failure != null)
+            {
+                throw new IOException("Reading failed", failure);
+            }
+            return copied;
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Copying interrupted");
+        }
+        finally
+        {
+            task.cancel(true);
+            // If the reader has not started yet, it never touches buffers
+            if (! reader.started.compareAndSet(false, true))
+            {
+                awaitQuietly(reader.done);
+            }
+            for (ByteBuffer buffer : buffers)
+            {
+                pool.release(buffer);
+            }
+            updateEnd(System.nanoTime());
+        }
+    }
+    
+    /*
+     * Waits for the reader to stop using the buffers, even if this thread
+     * is interrupted.
+     */
+    private static void awaitQuietly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void updateEnd(long end)
+    {
+        long last;
+        do
+        {
+            last = lastEnd.get();
+        } while (end > last && ! lastEnd.compareAndSet(last, end));
+    }
+    
+    /**
+     * @return Number of bytes copied so far
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+    
+    /**
+     * @return Summary of the statistics: amount of data, throughput and
+     * time spent waiting by each side
+     */
+    public String getSummary()
+    {
+        double seconds = (lastEnd.get() - firstStart.get()) / 1e9;
+        double megabytes = bytes.get() / (double) (1 << 20);
+        return String.format("%.1f MB in %.2f s (%.1f MB/s); reader " +
+            "waited %d ms for free buffers, writer waited %d ms for data",
+            megabytes, seconds, seconds > 0 ? megabytes / seconds : 0.0,
+            readerWait.get() / 1000000, writerWait.get() / 1000000);
+    }
+}
@@ -0,0 +1,487 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Index of checkpoints of gzip data, allowing to read it from any
+ * position without inflating everything before it. A checkpoint is
+ * recorded at the start of every member and at the first byte-aligned
+ * block boundary every {@code SPAN} bytes of output; it holds the offset
+ * of the block in the file and the last 32 KB of output preceding it,
+ * which is all the deflate format may refer back to.
+ * 
+ * <p>
+ * Blocks starting in the middle of a byte are passed over: the native
+ * inflater can only be fed whole bytes, and shifting the input does not
+ * help, as stored blocks are aligned to bytes of the file, not of the
+ * shifted stream. Incompressible data is kept in stored blocks, and the
+ * block following one always starts on a byte boundary, so checkpoints
+ * are recorded there just as well.
+ * 
+ * <p>
+ * Index is built while the data is read sequentially for the first time,
+ * through the stream returned by {@code build}. It's immutable once
+ * built, so it can be shared by any number of readers.
+ * 
+ * @author Marcin Los
+ * 
+ * @see BlockInflater
+ */
+class GzipIndex
+{
+    /** Distance between checkpoints, in bytes of output */
+    static final long SPAN = 4 << 20;
+    
+    private static final int BUFFER_SIZE = 64 << 10;
+    
+    /* Header flags */
+    private static final int FHCRC = 1 << 1;
+    private static final int FEXTRA = 1 << 2;
+    private static final int FNAME = 1 << 3;
+    private static final int FCOMMENT = 1 << 4;
+    
+    private static final byte[] NO_WINDOW = new byte[0];
+    
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    
+    /*
+     * Point output can be inflated from: either the start of a member, or
+     * the start of a block preceded by the window of output.
+     */
+    private static class Checkpoint
+    {
+        public final long offset;
+        public final long position;
+        public final byte[] window;
+        public final boolean member;
+        
+        public Checkpoint(long offset, long position, byte[] window,
+            boolean member)
+        {
+            this.offset = offset;
+            this.position = position;
+            this.window = window;
+            this.member = member;
+        }
+    }
+    
+    private GzipIndex(FileChannel channel, long start, long length)
+    {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+    
+    /**
+     * Checks whether data starts with the gzip magic number.
+     */
+    public static boolean isGzip(byte[] b, int length)
+    {
+        return length >= 2 && (b[0] & 0xff) == 0x1f && (b[1] & 0xff) == 0x8b;
+    }
+    
+    /**
+     * Starts building index of gzip data in a range of a file.
+     * 
+     * @return Stream of the inflated data; index is complete as far as
+     * the stream has been read
+     */
+    public static Builder build(FileChannel channel, long start, long length)
+    {
+        return new Builder(new GzipIndex(channel, start, length));
+    }
+    
+    /**
+     * @return Number of checkpoints
+     */
+    public int size()
+    {
+        return checkpoints.size();
+    }
+    
+    /**
+     * Opens stream of the inflated data from a given position, inflating
+     * it from the closest preceding checkpoint.
+     * 
+     * @param position Position in the inflated data, covered by the index
+     * 
+     * @throws IOException if the data could not be read
+     */
+    public InputStream open(long position) throws IOException
+    {
+        int index = find(position);
+        if (index < 0)
+        {
+            throw new IOException("Position not indexed: " + position);
+        }
+        InputStream in = new CheckpointStream(index);
+        long skip = position - checkpoints.get(index).position;
+        while (skip > 0)
+        {
+            long skipped = in.skip(skip);
+            if (skipped <= 0)
+            {
+                in.close();
+                throw new EOFException("Unexpected end of gzip data");
+            }
+            skip -= skipped;
+        }
+        return in;
+    }
+    
+    /*
+     * Finds index of the last checkpoint at or before a given position.
+     */
+    private int find(long position)
+    {
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if (checkpoints.get(middle).position <= position)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+    
+    /*
+     * Finds the first member checkpoint after a given one.
+     */
+    private int nextMember(int index)
+    {
+        for (int i = index + 1; i < checkpoints.size(); ++ i)
+        {
+            if (checkpoints.get(i).member)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Stream of gzip data read sequentially, inflated with {@code
+     * BlockInflater} to record checkpoints on the way. Integrity of every
+     * member is checked against its trailer.
+     */
+    public static class Builder extends InputStream
+    {
+        private final GzipIndex index;
+        private final BlockInflater inflater;
+        private final CRC32 crc = new CRC32();
+        private long memberStart;
+        private long lastCheckpoint;
+        private int members = 0;
+        private boolean inMember = false;
+        private boolean finished = false;
+        
+        private Builder(GzipIndex index)
+        {
+            this.index = index;
+            inflater = new BlockInflater(new ChannelInputStream(index.channel,
+                index.start, index.length));
+        }
+        
+        /**
+         * @return Index as far as the data has been read
+         */
+        public GzipIndex getIndex()
+        {
+            return index;
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            while (! finished)
+            {
+                if (! inMember)
+                {
+                    startMember();
+                    continue;
+                }
+                int length = inflater.inflate(b, off, len);
+                if (length < 0)
+                {
+                    endMember();
+                    continue;
+                }
+                crc.update(b, off, length);
+                long position = inflater.getPosition();
+                if (inflater.isAtBlockStart() &&
+                    (inflater.getBitPosition() & 7) == 0 &&
+                    position - lastCheckpoint >= SPAN)
+                {
+                    addCheckpoint(inflater.getWindow(), false);
+                }
+                return length;
+            }
+            return -1;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException
+        {
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n)
+            {
+                int length = read(buffer, 0,
+                    (int) Math.min(n - skipped, buffer.length));
+                if (length < 0)
+                {
+                    break;
+                }
+                skipped += length;
+            }
+            return skipped;
+        }
+        
+        private void addCheckpoint(byte[] window, boolean member)
+        {
+            long offset = index.start + (inflater.getBitPosition() >>> 3);
+            lastCheckpoint = inflater.getPosition();
+            index.checkpoints.add(new Checkpoint(offset, lastCheckpoint,
+                window, member));
+        }
+        
+        /*
+         * Reads member header. Anything but another member after the first
+         * one is taken for padding, as gzip itself does.
+         */
+        private void startMember() throws IOException
+        {
+            int id1 = inflater.readByte();
+            int id2 = id1 < 0 ? -1 : inflater.readByte();
+            if (id1 != 0x1f || id2 != 0x8b)
+            {
+                if (members == 0)
+                {
+                    throw new ZipException("Not in gzip format");
+                }
+                finished = true;
+                return;
+            }
+            if (readByte() != 8)
+            {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte();
+            for (int i = 0; i < 6; ++ i)
+            {
+                readByte();
+            }
+            if ((flags & FEXTRA) != 0)
+            {
+                int extra = readByte() | readByte() << 8;
+                for (int i = 0; i < extra; ++ i)
+                {
+                    readByte();
+                }
+            }
+            if ((flags & FNAME) != 0)
+            {
+                while (readByte() != 0);
+            }
+            if ((flags & FCOMMENT) != 0)
+            {
+                while (readByte() != 0);
+            }
+            if ((flags & FHCRC) != 0)
+            {
+                readByte();
+                readByte();
+            }
+            inflater.reset();
+            crc.reset();
+            memberStart = inflater.getPosition();
+            addCheckpoint(NO_WINDOW, true);
+            inMember = true;
+            ++ members;
+        }
+        
+        private void endMember() throws IOException
+        {
+            long crcValue = readInt();
+            long size = readInt();
+            if (crcValue != crc.getValue())
+            {
+                throw new ZipException("Corrupt gzip data: CRC mismatch");
+            }
+            if (size != ((inflater.getPosition() - memberStart) & 0xffffffffL))
+            {
+                throw new ZipException("Corrupt gzip data: size mismatch");
+            }
+            inMember = false;
+        }
+        
+        private long readInt() throws IOException
+        {
+            return (readByte() | readByte() << 8 | readByte() << 16 |
+                (long) readByte() << 24);
+        }
+        
+        private int readByte() throws IOException
+        {
+            int value = inflater.readByte();
+            if (value < 0)
+            {
+                throw new EOFException("Unexpected end of gzip data");
+            }
+            return value;
+        }
+    }
+    
+    /*
+     * Stream inflating data from a checkpoint with the native inflater,
+     * moving to the next member when one ends.
+     */
+    private class CheckpointStream extends InputStream
+    {
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private Inflater inflater = new Inflater(true);
+        private InputStream in;
+        private int current;
+        private long position;
+        private boolean eof = false;
+        
+        public CheckpointStream(int index) throws IOException
+        {
+            start(index);
+        }
+        
+        private void start(int index) throws IOException
+        {
+            Checkpoint checkpoint = checkpoints.get(index);
+            current = index;
+            in = new ChannelInputStream(channel, checkpoint.offset,
+                start + length - checkpoint.offset);
+            inflater.reset();
+            if (checkpoint.window.length > 0)
+            {
+                inflater.setDictionary(checkpoint.window);
+            }
+            position = checkpoint.position;
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            try
+            {
+                while (! eof)
+                {
+                    int length = inflater.inflate(b, off, len);
+                    if (length > 0)
+                    {
+                        position += length;
+                        return length;
+                    }
+                    if (inflater.finished())
+                    {
+                        int next = nextMember(current);
+                        if (next < 0)
+                        {
+                            eof = true;
+                            break;
+                        }
+                        start(next);
+                    }
+                    else if (inflater.needsInput())
+                    {
+                        int read = in.read(buffer);
+                        if (read < 0)
+                        {
+                            throw new EOFException("Unexpected end of " +
+                                "gzip data");
+                        }
+                        inflater.setInput(buffer, 0, read);
+                    }
+                    else
+                    {
+                        throw new ZipException("Corrupt gzip data");
+                    }
+                }
+                return -1;
+            }
+            catch (DataFormatException e)
+            {
+                ZipException exception = new ZipException(e.getMessage());
+                exception.initCause(e);
+                throw exception;
+            }
+        }
+        
+        @Override
+        public long skip(long n) throws IOException
+        {
+            byte[] skipBuffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n)
+            {
+                int length = read(skipBuffer, 0,
+                    (int) Math.min(n - skipped, skipBuffer.length));
+                if (length < 0)
+                {
+                    break;
+                }
+                skipped += length;
+            }
+            return skipped;
+        }
+        
+        @Override
+        public void close()
+        {
+            if (inflater != null)
+            {
+                inflater.end();
+                inflater = null;
+                eof = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package mlos.ultcom.ubercp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import mlos.ultcom.fs.File;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Access to files of the local file system as {@code java.io.File}, for
+ * operations which need random access through the standard library (e.g.
+ * {@code ZipFile}).
+ * 
+ * @author Marcin Los
+ */
+class LocalFiles
+{
+    private static final Logger logger = Logger.getLogger(LocalFiles.class);
+    
+    private LocalFiles()
+    {
+    }
+    
+    /**
+     * @return Local file denoted by the path of a file, or {@code null}
+     * if it's not a {@code file:} URI of an existing regular file
+     */
+    public static java.io.File toLocalFile(File file)
+    {
+        try
+        {
+            URI uri = new URI(file.getPath());
+            if ("file".equals(uri.getScheme()))
+            {
+                java.io.File local = new java.io.File(uri);
+                return local.isFile() ? local : null;
+            }
+        }
+        catch (URISyntaxException e)
+        {
+            logger.debug("Path is not a valid URI: " + file.getPath(), e);
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.debug("Not a local file: " + file.getPath(), e);
+        }
+        return null;
+    }
+    
+    /**
+     * Deletes a file if it's local, e.g. a partially written one. The file
+     * system API provides no deletion, so other files are left in place.
+     * 
+     * @return Whether the file was deleted
+     */
+    public static boolean delete(File file)
+    {
+        java.io.File local = toLocalFile(file);
+        if (local != null && local.delete())
+        {
+            return true;
+        }
+        logger.warn("Cannot delete " + file.getPath());
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package mlos.ultcom.ubercp;
+
+import java.util.Properties;
+
+import mlos.ultcom.core.ApplicationLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Access to numeric settings of the commands, read from the main
+ * configuration. Missing configuration or property means the default
+ * value; invalid values are reported and replaced by the default too.
+ * 
+ * @author Marcin Los
+ */
+class Settings
+{
+    private static final Logger logger = Logger.getLogger(Settings.class);
+    
+    private Settings()
+    {
+    }
+    
+    /**
+     * Reads positive numeric setting.
+     */
+    public static long read(String property, long defaultValue)
+    {
+        return read(property, defaultValue, 1, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Reads numeric setting, which must lie within a given range.
+     */
+    public static long read(String property, long defaultValue, long min,
+        long max)
+    {
+        Properties properties = ApplicationLoader.getInstance().getProperties();
+        String value = properties == null ? null :
+            properties.getProperty(property);
+        if (value != null)
+        {
+            try
+            {
+                long result = Long.parseLong(value.trim());
+                if (result >= min && result <= max)
+                {
+                    return result;
+                }
+                logger.warn("Value of " + property + " out of range [" +
+                    min + ", " + max + "]; using default value [" +
+                    defaultValue + "]");
+            }
+            catch (NumberFormatException e)
+            {
+                logger.warn("Invalid value of " + property + "; using " +
+                    "default value [" + defaultValue + "]", e);
+            }
+        }
+        return defaultValue;
+    }
+}
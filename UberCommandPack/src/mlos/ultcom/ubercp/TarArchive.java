@@ -0,0 +1,450 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import mlos.ultcom.fs.FileAttributes;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tar archive, possibly compressed with gzip, opened for reading entries
+ * in any order. Tar has no central index, so one is built in a single
+ * sequential pass over the headers when the archive is opened: content
+ * of plain tar entries is skipped over without reading it, and is later
+ * read straight from its position in the file.
+ * 
+ * <p>
+ * Compressed archives have to be inflated entirely during that pass;
+ * {@code GzipIndex} records checkpoints on the way, so reading an entry
+ * later only inflates from the closest checkpoint preceding it.
+ * 
+ * <p>
+ * Supported are POSIX ustar and pax headers, and GNU long names. Links,
+ * devices and other special entries are left out.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TarFileFactory
+ */
+class TarArchive extends Archive
+{
+    private static final Logger logger = Logger.getLogger(TarArchive.class);
+    
+    private static final int BLOCK_SIZE = 512;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /* Entry types */
+    private static final byte REGULAR = '0';
+    private static final byte REGULAR_OLD = 0;
+    private static final byte CONTIGUOUS = '7';
+    private static final byte DIRECTORY = '5';
+    private static final byte GNU_LONG_NAME = 'L';
+    private static final byte PAX_HEADER = 'x';
+    
+    private final ArchiveNode root;
+    
+    /* Index of compressed archive, null if it's not compressed */
+    private GzipIndex index;
+    
+    /**
+     * Opens archive stored in a whole local file.
+     * 
+     * @throws IOException if the file is not a valid archive or could not
+     * be read
+     */
+    public TarArchive(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException
+    {
+        super(channel, file, temporary);
+        root = readRoot();
+    }
+    
+    /**
+     * Opens archive stored as-is in another one.
+     * 
+     * @throws IOException if the range is not a valid archive or could
+     * not be read
+     */
+    public TarArchive(Archive outer, long start, long length)
+        throws IOException
+    {
+        super(outer, start, length);
+        root = readRoot();
+    }
+    
+    private ArchiveNode readRoot() throws IOException
+    {
+        long begin = System.currentTimeMillis();
+        byte[] magic = new byte[2];
+        int length = getChannel().read(ByteBuffer.wrap(magic), getStart());
+        InputStream in;
+        GzipIndex.Builder builder = null;
+        if (GzipIndex.isGzip(magic, length))
+        {
+            builder = GzipIndex.build(getChannel(), getStart(), getLength());
+            in = builder;
+        }
+        else
+        {
+            in = openRange(getStart(), getLength());
+        }
+        List<TarEntry> entries = readEntries(in);
+        if (builder != null)
+        {
+            index = builder.getIndex();
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Indexed " + entries.size() + " tar entries in " +
+                (System.currentTimeMillis() - begin) + " ms" +
+                (index == null ? "" : ", " + index.size() +
+                " gzip checkpoints"));
+        }
+        return ArchiveNode.build(entries);
+    }
+    
+    /*
+     * Reads headers of all the entries, skipping their content.
+     */
+    private static List<TarEntry> readEntries(InputStream in)
+        throws IOException
+    {
+        List<TarEntry> entries = new ArrayList<TarEntry>();
+        byte[] header = new byte[BLOCK_SIZE];
+        long offset = 0;
+        String longName = null;
+        String paxName = null;
+        long paxSize = -1;
+        long paxTime = -1;
+        while (readBlock(in, header, offset == 0))
+        {
+            offset += BLOCK_SIZE;
+            if (isZero(header))
+            {
+                break;
+            }
+            checkChecksum(header);
+            byte type = header[156];
+            long size = paxSize >= 0 ? paxSize : number(header, 124, 12);
+            long padded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            if (type == GNU_LONG_NAME)
+            {
+                longName = string(readData(in, size), 0, (int) size);
+            }
+            else if (type == PAX_HEADER)
+            {
+                String records = new String(readData(in, size), UTF8);
+                for (String record : records.split("\n"))
+                {
+                    int space = record.indexOf(' ');
+                    int equals = record.indexOf('=');
+                    if (space < 0 || equals < space)
+                    {
+                        continue;
+                    }
+                    String key = record.substring(space + 1, equals);
+                    String value = record.substring(equals + 1);
+                    if (key.equals("path"))
+                    {
+                        paxName = value;
+                    }
+                    else if (key.equals("size"))
+                    {
+                        paxSize = Long.parseLong(value);
+                    }
+                    else if (key.equals("mtime"))
+                    {
+                        paxTime = (long) (Double.parseDouble(value) * 1000);
+                    }
+                }
+            }
+            else
+            {
+                if (type == REGULAR || type == REGULAR_OLD ||
+                    type == CONTIGUOUS || type == DIRECTORY)
+                {
+                    String name = paxName != null ? paxName :
+                        (longName != null ? longName : name(header));
+                    long time = paxTime >= 0 ? paxTime :
+                        number(header, 136, 12) * 1000;
+                    boolean directory = type == DIRECTORY ||
+                        name.endsWith("/");
+                    entries.add(new TarEntry(name, directory,
+                        directory ? 0 : size, time < 0 ?
+                        FileAttributes.UNKNOWN_TIME : time, offset));
+                }
+                skipFully(in, padded);
+                longName = null;
+                paxName = null;
+                paxSize = -1;
+                paxTime = -1;
+                offset += padded;
+                continue;
+            }
+            skipFully(in, padded - size);
+            offset += padded;
+        }
+        return entries;
+    }
+    
+    /*
+     * Reads a block; archive may end without the terminating zero blocks,
+     * but not in the middle of one.
+     */
+    private static boolean readBlock(InputStream in, byte[] block,
+        boolean first) throws IOException
+    {
+        int read = 0;
+        while (read < block.length)
+        {
+            int length = in.read(block, read, block.length - read);
+            if (length < 0)
+            {
+                if (read == 0 && ! first)
+                {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            read += length;
+        }
+        return true;
+    }
+    
+    private static byte[] readData(InputStream in, long size)
+        throws IOException
+    {
+        if (size > Integer.MAX_VALUE - BLOCK_SIZE)
+        {
+            throw new IOException("Tar extended header too long");
+        }
+        byte[] data = new byte[(int) size];
+        int read = 0;
+        while (read < data.length)
+        {
+            int length = in.read(data, read, data.length - read);
+            if (length < 0)
+            {
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            read += length;
+        }
+        return data;
+    }
+    
+    private static void skipFully(InputStream in, long n) throws IOException
+    {
+        while (n > 0)
+        {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                {
+                    throw new EOFException("Unexpected end of tar archive");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+    
+    private static boolean isZero(byte[] block)
+    {
+        for (byte b : block)
+        {
+            if (b != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /*
+     * Checks the header checksum, computed with the checksum field itself
+     * taken as spaces. Some old archivers summed signed bytes.
+     */
+    private static void checkChecksum(byte[] header) throws IOException
+    {
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < header.length; ++ i)
+        {
+            byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        long checksum = number(header, 148, 8);
+        if (checksum != unsigned && checksum != signed)
+        {
+            throw new IOException("Invalid tar header checksum");
+        }
+    }
+    
+    /*
+     * Name of the entry, with the ustar prefix if there is one. GNU tar
+     * uses that space for other purposes, and marks it with its own magic.
+     */
+    private static String name(byte[] header)
+    {
+        String name = string(header, 0, 100);
+        boolean ustar = string(header, 257, 5).equals("ustar") &&
+            header[262] == 0;
+        if (ustar && header[345] != 0)
+        {
+            name = string(header, 345, 155) + "/" + name;
+        }
+        return name;
+    }
+    
+    private static String string(byte[] b, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && b[end] != 0)
+        {
+            ++ end;
+        }
+        return new String(b, offset, end - offset, UTF8);
+    }
+    
+    /*
+     * Parses numeric field, octal or, if the high bit of the first byte is
+     * set, binary (GNU and star extension for large values).
+     */
+    private static long number(byte[] b, int offset, int length)
+        throws IOException
+    {
+        if ((b[offset] & 0x80) != 0)
+        {
+            long value = b[offset] & 0x3f;
+            for (int i = offset + 1; i < offset + length; ++ i)
+            {
+                value = value << 8 | (b[i] & 0xff);
+            }
+            return (b[offset] & 0x40) != 0 ? -1 : value;
+        }
+        long value = 0;
+        int i = offset;
+        while (i < offset + length && (b[i] == ' ' || b[i] == 0))
+        {
+            ++ i;
+        }
+        for (; i < offset + length && b[i] != ' ' && b[i] != 0; ++ i)
+        {
+            if (b[i] < '0' || b[i] > '7')
+            {
+                throw new IOException("Invalid tar header number");
+            }
+            value = value << 3 | (b[i] - '0');
+        }
+        return value;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return "tar";
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArchiveNode getRoot()
+    {
+        return root;
+    }
+    
+    /**
+     * Reads the entry from its position in the archive or, if it's
+     * compressed, inflates it from the closest checkpoint.
+     * 
+     * @throws IOException if the content could not be read
+     */
+    @Override
+    public InputStream getInputStream(ArchiveEntry entry) throws IOException
+    {
+        TarEntry tarEntry = (TarEntry) entry;
+        if (index == null)
+        {
+            return openRange(getStart() + tarEntry.getOffset(),
+                tarEntry.getSize());
+        }
+        return new LimitedInputStream(index.open(tarEntry.getOffset()),
+            tarEntry.getSize());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getStoredPosition(ArchiveEntry entry)
+    {
+        return index == null ? getStart() + ((TarEntry) entry).getOffset() :
+            -1;
+    }
+    
+    /*
+     * Stream of the first bytes of another one.
+     */
+    private static class LimitedInputStream extends FilterInputStream
+    {
+        private long remaining;
+        
+        public LimitedInputStream(InputStream in, long length)
+        {
+            super(in);
+            remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            int length = in.read(b, off, (int) Math.min(len, remaining));
+            if (length < 0)
+            {
+                throw new EOFException("Unexpected end of tar entry");
+            }
+            remaining -= length;
+            return length;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+        
+        @Override
+        public int available() throws IOException
+        {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
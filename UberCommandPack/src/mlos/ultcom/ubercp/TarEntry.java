@@ -0,0 +1,74 @@
+package mlos.ultcom.ubercp;
+
+/**
+ * Entry of a tar archive, as described by its header, and where its
+ * content starts.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TarArchive
+ */
+class TarEntry implements ArchiveEntry
+{
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long time;
+    
+    /* Position of the content in the (uncompressed) tar stream */
+    private final long offset;
+    
+    public TarEntry(String name, boolean directory, long size, long time,
+        long offset)
+    {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.time = time;
+        this.offset = offset;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTime()
+    {
+        return time;
+    }
+    
+    /**
+     * @return Position of the content in the uncompressed tar stream
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+}
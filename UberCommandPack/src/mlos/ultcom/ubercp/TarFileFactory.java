@@ -0,0 +1,47 @@
+package mlos.ultcom.ubercp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implementation of {@code FileFactory} for the {@code tar:} scheme,
+ * giving read-only access to the content of tar archives, plain or 
+ * compressed with gzip, e.g. {@code tar:file:/home/user/a.tar.gz!/dir/a}.
+ * Headers of an archive are indexed in a single pass when it's first 
+ * opened, and the index is kept for browsing it further.
+ * 
+ * @author Marcin Los
+ * 
+ * @see TarArchive
+ */
+public class TarFileFactory extends ArchiveFileFactory
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return "tar";
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Archive open(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException
+    {
+        return new TarArchive(channel, file, temporary);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Archive open(Archive outer, long start, long length)
+        throws IOException
+    {
+        return new TarArchive(outer, start, length);
+    }
+}
@@ -1,23 +1,73 @@
 package mlos.ultcom.ubercp;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import mlos.ultcom.command.Context;
 import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.core.ScanManifest;
+import mlos.ultcom.core.TreeVisitor;
+import mlos.ultcom.core.TreeWalker;
+import mlos.ultcom.fs.ChannelFile;
 import mlos.ultcom.fs.Directory;
 import mlos.ultcom.fs.File;
-import mlos.ultcom.fs.FileAccessException;
+import mlos.ultcom.fs.FileAttributes;
+import mlos.ultcom.fs.FileEntry;
 
 import org.apache.log4j.Logger;
 
 /**
  * Implementation of GZIP compression command. Compresses files selected
- * in an active panel to file 'compressed.zip' in its directory.
+ * in an active panel to file 'compressed.zip' in its directory. Files are
+ * compressed as soon as the background scan of the selection records 
+ * them in a {@code ScanManifest}.
+ * 
+ * <p>
+ * Entries are compressed concurrently into scratch buffers by a pool of
+ * {@code zip.threads} workers (number of processors by default) and
+ * appended to the archive in order by {@code ZipWriter}. Compression 
+ * level is read from {@code zip.level} property of the main configuration
+ * (0-9, or -1 for the default level). Unless {@code zip.adaptive} is 0,
+ * it's applied to compressible data only; see {@code 
+ * CompressionStrategy}. Achieved ratio of each entry is logged at debug 
+ * level, totals at info level. If compression fails or is canceled, the
+ * partial archive is deleted rather than finished with some of the 
+ * entries.
+ * 
+ * <p>
+ * In update mode (see {@code ZIPUpdate}) an existing local archive is
+ * continued in place: its central directory is read, entries of files
+ * with the same size and modification time are kept where they are,
+ * without reading nor copying them, and new or changed files are
+ * appended after the old directory, followed by a new one. Cost of the
+ * update is thus proportional to the changed data. The old directory is
+ * not overwritten, so if the update fails or is canceled, the archive is
+ * cut back to its previous length and remains as it was; only if the 
+ * application is killed during the update, the appended data is left 
+ * after it. Replaced 
+ * entries and old directories are left as unreferenced space; once it
+ * exceeds the live data, the archive is compacted by copying the entries
+ * without inflating them.
  * 
  * @author Marcin Los
  */
@@ -25,13 +75,60 @@ public class ZIPCompression extends LongCommand
 {
     private static final Logger logger = Logger.getLogger(ZIPCompression.class);
     
-    private long totalSize = 0;
-    private long copied = 0;
-    private ZipOutputStream out;
+    /* Workers compress this many entries ahead of the writer */
+    private static final int ENTRIES_PER_WORKER = 4;
+    
+    private static final String ARCHIVE_NAME = "compressed.zip";
+    
+    /* Local header fields preceding the name */
+    private static final int LOCAL_HEADER_SIZE = 30;
+    
+    private boolean update;
+    private File output;
+    private ZipWriter writer;
+    
+    /* 
+     * Archive being updated, its channel, length of its last complete
+     * version and previous entries by name 
+     */
+    private java.io.File archiveFile;
+    private FileChannel archive;
+    private long validLength;
+    private Map<String, ZipRecord> existing;
+    private int keptEntries = 0;
+    
     private Context context;
+    private CompressionStrategy strategy;
+    private CopyPipeline pipeline;
+    
+    /* Statistics of written entries, for the log */
+    private long originalBytes = 0;
+    private long compressedBytes = 0;
+    private int storedEntries = 0;
+    
+    /* Updates progress after each buffer written by the pipeline */
+    private CopyPipeline.TransferListener progress = 
+        new CopyPipeline.TransferListener()
+    {
+        @Override
+        public void transferred(long length)
+        {
+            addBytesDone(length);
+        }
+    };
     
     public ZIPCompression()
     {
+        this(false);
+    }
+    
+    /**
+     * @param update Whether an existing archive should be updated rather
+     * than replaced
+     */
+    protected ZIPCompression(boolean update)
+    {
+        this.update = update;
         setDescription("Compressing...");
     }
     
@@ -42,14 +139,48 @@ public class ZIPCompression extends LongCommand
     public void execute(Context active, Context inactive)
     {
         context = active;
+        pipeline = new CopyPipeline(this);
         try
         {
-            calculateSize(active);
-            openOutputStream();
-
-            for (File file : active.getSelectedFiles())
+            ScanManifest<String> manifest = 
+                startScan(active.getSelectedFiles());
+            try
+            {
+                int level = (int) Settings.read("zip.level", 
+                    Deflater.DEFAULT_COMPRESSION, -1, 9);
+                boolean adaptive = 
+                    Settings.read("zip.adaptive", 1, 0, 1) != 0;
+                strategy = new CompressionStrategy(level, adaptive);
+                int threads = (int) Settings.read("zip.threads", 
+                    Runtime.getRuntime().availableProcessors());
+                compress(manifest, threads);
+            }
+            finally
+            {
+                manifest.abandon();
+            }
+            // Canceled archive is discarded like a failed one
+            if (! isCanceled())
             {
-                zipRecursively(file, "");
+                finishArchive();
+                if (archive != null)
+                {
+                    if (isWasteful())
+                    {
+                        compact();
+                    }
+                    logger.info("Updated " + archiveFile + ", " + 
+                        keptEntries + " entries kept");
+                }
+                closeArchive();
+                if (originalBytes > 0)
+                {
+                    logger.info(String.format("Compressed %d to %d bytes " +
+                        "(%.1f%%), %d entries stored; %s", originalBytes, 
+                        compressedBytes, 100.0 * compressedBytes / 
+                        originalBytes, storedEntries, 
+                        pipeline.getSummary()));
+                }
             }
             finished();
         } 
@@ -64,104 +195,449 @@ public class ZIPCompression extends LongCommand
     }
     
     /**
-     * Opens output stream
+     * Compresses files concurrently with a given number of workers, each 
+     * read through the pipeline into its own scratch buffer. Calling 
+     * thread appends finished entries to the archive in the order of the
+     * manifest. At most 
+     * {@code ENTRIES_PER_WORKER} entries per worker are compressed ahead,
+     * which bounds the memory and temporary space used.
      */
-    private void openOutputStream() throws Exception
+    private void compress(ScanManifest<String> manifest, int threads) 
+        throws Exception
     {
-        Directory outputDirectory = context.getCurrentDirectory();
-        File output = outputDirectory.createChild("compressed.zip");
+        writer = openWriter();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<CompressedEntry>> pending = 
+            new ArrayDeque<Future<CompressedEntry>>();
+        try
+        {
+            for (int i = 0; i < manifest.await(i) && ! isCanceled(); ++ i)
+            {
+                updateTotals(manifest);
+                if (manifest.getType(i) != ScanManifest.FILE)
+                {
+                    continue;
+                }
+                long time = getLastModified(manifest, i);
+                if (isUnchanged(manifest, i, time))
+                {
+                    ++ keptEntries;
+                    addFilesDone(1);
+                    addBytesDone(manifest.getSize(i));
+                    continue;
+                }
+                if (pending.size() >= threads * ENTRIES_PER_WORKER)
+                {
+                    appendEntry(pending.poll());
+                }
+                pending.add(pool.submit(new CompressTask(
+                    manifest.getFile(i), manifest.getContext(i),
+                    time)));
+            }
+            while (! pending.isEmpty() && ! isCanceled())
+            {
+                appendEntry(pending.poll());
+            }
+            updateTotals(manifest);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            // Only needed in case of failure or cancellation
+            for (Future<CompressedEntry> future : pending)
+            {
+                discard(future);
+            }
+        }
+    }
+    
+    /*
+     * Compresses a single file into a scratch buffer.
+     */
+    private class CompressTask implements Callable<CompressedEntry>
+    {
+        private File file;
+        private String prefix;
+        private long time;
         
-        out = new ZipOutputStream(
-            new BufferedOutputStream(output.getOutputStream()));
+        public CompressTask(File file, String prefix, long time)
+        {
+            this.file = file;
+            this.prefix = prefix;
+            this.time = time;
+        }
+        
+        @Override
+        public CompressedEntry call() throws Exception
+        {
+            setDescription("Zipping", file);
+            CompressedEntry entry = new CompressedEntry(
+                prefix + '/' + file.getName(), time, strategy);
+            ReadableByteChannel in = openReadChannel(file);
+            try
+            {
+                entry.compress(in, pipeline, progress);
+                return entry;
+            }
+            catch (Exception e)
+            {
+                entry.discard();
+                throw e;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
     }
     
     /**
-     * Closes output stream
+     * Waits for an entry to be compressed and appends it to the archive.
      */
-    private void closeOutputStream()
+    private void appendEntry(Future<CompressedEntry> future) throws Exception
     {
+        CompressedEntry entry;
         try
         {
-            if (out != null)
+            entry = future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof Exception)
             {
-                out.close();
+                throw (Exception) e.getCause();
             }
-            
+            throw e;
         }
-        catch (IOException e)
+        if (isCanceled())
         {
-            logger.warn(e);
+            entry.discard();
+            return;
+        }
+        entry.writeTo(writer);
+        addFilesDone(1);
+        recordStatistics(entry);
+    }
+    
+    /**
+     * Logs ratio of a written entry and adds it to the totals.
+     */
+    private void recordStatistics(CompressedEntry compressed)
+    {
+        ZipEntry entry = compressed.getEntry();
+        originalBytes += entry.getSize();
+        compressedBytes += entry.getCompressedSize();
+        if (entry.getMethod() == ZipEntry.STORED)
+        {
+            ++ storedEntries;
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(String.format("%s: %d -> %d bytes (%.1f%%), %s", 
+                entry.getName(), entry.getSize(), entry.getCompressedSize(),
+                100 * compressed.getRatio(), 
+                describeMethod(compressed)));
         }
     }
     
     /**
-     * 
+     * Releases scratch data of an entry which will not be written.
      */
-    private void zipRecursively(File file, String prefix) throws Exception
+    private static void discard(Future<CompressedEntry> future)
     {
-        if (file instanceof Directory)
+        if (future.isDone() && ! future.isCancelled())
         {
-            Directory dir = (Directory) file;
-            String newPrefix = prefix + '/' + dir.getName();
-            for (File f : dir.getFiles())
+            try
             {
-                zipRecursively(f, newPrefix);
+                future.get().discard();
+            }
+            catch (Exception e)
+            {
+                // Failed, nothing to discard
             }
         }
-        else
+    }
+    
+    private static String describeMethod(CompressedEntry compressed)
+    {
+        if (compressed.getEntry().getMethod() == ZipEntry.STORED)
+        {
+            return "stored";
+        }
+        int level = compressed.getLevel();
+        return level == Deflater.DEFAULT_COMPRESSION ? "default level" :
+            "level " + level;
+    }
+    
+    /**
+     * Opens writer of the archive file. In update mode, if the archive
+     * exists locally, it's opened for writing at its end, after its central
+     * directory, and its entries are added to the writer up front, so that
+     * they're referenced by the new directory.
+     */
+    private ZipWriter openWriter() throws Exception
+    {
+        Directory outputDirectory = context.getCurrentDirectory();
+        output = outputDirectory.createChild(ARCHIVE_NAME);
+        java.io.File local = update ? LocalFiles.toLocalFile(output) : null;
+        if (local == null)
+        {
+            if (update)
+            {
+                logger.info("No local archive to update, creating " + 
+                    output.getPath());
+            }
+            return new ZipWriter(new BufferedOutputStream(
+                output.getOutputStream()));
+        }
+        archiveFile = local;
+        archive = new RandomAccessFile(local, "rw").getChannel();
+        ZipDirectory directory = ZipDirectory.read(archive);
+        validLength = archive.size();
+        archive.position(validLength);
+        ZipWriter writer = new ZipWriter(new BufferedOutputStream(
+            Channels.newOutputStream(archive)), validLength);
+        existing = new HashMap<String, ZipRecord>();
+        for (ZipRecord record : directory.getRecords())
+        {
+            writer.addRecord(record);
+            existing.put(record.getName(), record);
+        }
+        return writer;
+    }
+    
+    /**
+     * Returns modification time of a file recorded by the scan. Selected
+     * files are not listed, so their times are not known; for local ones
+     * it's read from the file system.
+     */
+    private static long getLastModified(ScanManifest<String> manifest,
+        int index) throws Exception
+    {
+        long time = manifest.getLastModified(index);
+        if (time == FileAttributes.UNKNOWN_TIME)
         {
-            zipRegularFile(file, prefix);
+            java.io.File local = LocalFiles.toLocalFile(
+                manifest.getFile(index));
+            if (local != null && local.lastModified() > 0)
+            {
+                time = local.lastModified();
+            }
         }
+        return time;
     }
     
-    private void zipRegularFile(File file, String prefix) throws Exception
+    /**
+     * Checks whether an entry of the archive being updated has the size
+     * and modification time of a file. Times are compared with the 
+     * 2-second resolution of the format.
+     */
+    private boolean isUnchanged(ScanManifest<String> manifest, int index,
+        long time)
     {
-        setDescription("Zipping " + file.getName());
-        InputStream in = null;
+        if (existing == null)
+        {
+            return false;
+        }
+        ZipRecord record = existing.get(manifest.getContext(index) + '/' +
+            manifest.getName(index));
+        return record != null && time != FileAttributes.UNKNOWN_TIME &&
+            record.size == manifest.getSize(index) &&
+            record.dosTime == ZipWriter.toDosTime(time);
+    }
+    
+    /**
+     * Writes the central directory. From then on an updated archive is 
+     * complete, so it's not restored if anything fails later.
+     */
+    private void finishArchive() throws IOException
+    {
+        writer.finish();
+        writer.flush();
+        validLength = writer.getWritten();
+    }
+    
+    /**
+     * Checks whether space left by replaced entries exceeds the live data.
+     * Sizes of local headers are estimated, as their extra fields are not
+     * known.
+     */
+    private boolean isWasteful() throws IOException
+    {
+        long live = 0;
+        long end = 0;
+        for (ZipRecord record : writer.getRecords())
+        {
+            long length = LOCAL_HEADER_SIZE + record.name.length + 
+                record.compressedSize;
+            live += length;
+            end = Math.max(end, record.offset + length);
+        }
+        return end - live > live;
+    }
+    
+    /**
+     * Rewrites the archive without unreferenced space, copying entries as
+     * they are, and replaces the archive with the result.
+     */
+    private void compact() throws Exception
+    {
+        setDescription("Compacting...");
+        java.io.File temporary = java.io.File.createTempFile("ultcom", 
+            ".zip.part", archiveFile.getParentFile());
         try
         {
-            in = new BufferedInputStream(file.getInputStream());
-            String name = prefix + '/' + file.getName();
-            ZipEntry entry = new ZipEntry(name);
-            out.putNextEntry(entry);
-
-            byte[] buffer = new byte[8192];
-            int length = 0;
-            while ((length = in.read(buffer)) > 0)
+            ZipWriter copy = new ZipWriter(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+            try
+            {
+                for (ZipRecord record : writer.getRecords())
+                {
+                    copy.copyEntry(record, archive);
+                }
+            }
+            finally
             {
-                out.write(buffer, 0, length);
-                copied += length;
-                setProgress((int)(100 * (((double) copied) / totalSize)));
+                copy.close();
             }
+            logger.info("Compacted " + archiveFile + " from " + 
+                archive.size() + " to " + temporary.length() + " bytes");
+            closeArchive();
+            Files.move(temporary.toPath(), archiveFile.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
         }
         finally
         {
-            if (in != null)
+            if (temporary.exists() && ! temporary.delete())
             {
-                in.close();
+                logger.warn("Cannot delete temporary file " + temporary);
             }
         }
     }
     
     /**
-     * Calculates total size of files to copy.
+     * Closes the finished archive. Errors are propagated, as the archive
+     * may not have been written completely.
+     */
+    private void closeArchive() throws IOException
+    {
+        if (writer != null)
+        {
+            ZipWriter closed = writer;
+            writer = null;
+            closed.close();
+        }
+    }
+    
+    /**
+     * Discards the archive after a failure or cancellation, without 
+     * writing its central directory. A new archive is deleted; an updated
+     * one is cut back to its previous length, restoring its previous 
+     * content. Errors are only logged, as the command has failed already.
      */
-    private void calculateSize(Context active)
+    private void closeOutputStream()
     {
+        if (writer == null)
+        {
+            return;
+        }
+        ZipWriter closed = writer;
+        writer = null;
         try
         {
-            for (File file : active.getSelectedFiles())
-            {
-                totalSize += file.getSize();
-            } 
+            closed.abandon();
         }
-        catch (FileAccessException e)
+        catch (IOException e)
         {
-            failed(e);
-        } 
+            logger.warn(e);
+        }
+        if (archive != null)
+        {
+            restoreArchive();
+        }
+        else
+        {
+            LocalFiles.delete(output);
+        }
+    }
+    
+    /**
+     * Truncates the updated archive to the length of its last complete
+     * version, i.e. before the update, unless it's been finished.
+     */
+    private void restoreArchive()
+    {
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile(archiveFile, "rw");
+            try
+            {
+                file.setLength(validLength);
+            }
+            finally
+            {
+                file.close();
+            }
+        }
         catch (IOException e)
         {
-            failed(e);
+            logger.warn("Cannot restore " + archiveFile, e);
+        }
+    }
+    
+    /**
+     * Starts walking the selected trees in the background. The walk is
+     * ordered, so that entries of archives of the same trees are always
+     * in the same order. Context of each element is path of its parent
+     * directory inside the archive.
+     */
+    private ScanManifest<String> startScan(List<File> files)
+    {
+        ScanManifest<String> manifest = new ScanManifest<String>();
+        TreeWalker walker = new TreeWalker();
+        walker.setCommand(this);
+        walker.setOrdered(true);
+        manifest.scanInBackground(walker, files, "", 
+            new TreeVisitor<String>()
+        {
+            @Override
+            public String preVisitDirectory(FileEntry directory, 
+                String context)
+            {
+                return context + '/' + directory.getFile().getName();
+            }
+            
+            @Override
+            public void visitFile(FileEntry file, String context)
+            {
+            }
+        });
+        return manifest;
+    }
+    
+    /**
+     * Publishes totals once the scan is complete.
+     */
+    private void updateTotals(ScanManifest<String> manifest)
+    {
+        if (getFilesTotal() < 0 && manifest.isComplete())
+        {
+            setTotals(manifest.getTotalSize(), manifest.getFileCount());
+        }
+    }
+    
+    /**
+     * Opens channel of the file, or wraps its input stream if channels
+     * are not supported.
+     */
+    private static ReadableByteChannel openReadChannel(File file) 
+        throws Exception
+    {
+        if (file instanceof ChannelFile)
+        {
+            return ((ChannelFile) file).getReadChannel();
         }
+        return Channels.newChannel(file.getInputStream());
     }
 }
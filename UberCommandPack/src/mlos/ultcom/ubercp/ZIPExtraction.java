@@ -0,0 +1,438 @@
+package mlos.ultcom.ubercp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import mlos.ultcom.command.Context;
+import mlos.ultcom.command.LongCommand;
+import mlos.ultcom.fs.ChannelFile;
+import mlos.ultcom.fs.Directory;
+import mlos.ultcom.fs.File;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Implementation of ZIP extraction command. Extracts archives selected in
+ * an active panel to the directory of the inactive one.
+ * 
+ * <p>
+ * Central directory is read through random access ({@code ZipFile}), so
+ * archives on file systems other than the local one are copied to a
+ * temporary file first. All the directories are created up front, then
+ * the entries are inflated concurrently by {@code unzip.threads} workers
+ * (number of processors by default), largest first. Each entry is
+ * streamed through {@code CopyPipeline}, so it's never held in memory
+ * as a whole, and its size and CRC are verified. Files whose extraction
+ * fails or is canceled are removed.
+ * 
+ * @author Marcin Los
+ */
+public class ZIPExtraction extends LongCommand
+{
+    private static final Logger logger = Logger.getLogger(ZIPExtraction.class);
+    
+    private CopyPipeline pipeline;
+    
+    /* Updates progress after each buffer written by the pipeline */
+    private CopyPipeline.TransferListener progress =
+        new CopyPipeline.TransferListener()
+    {
+        @Override
+        public void transferred(long length)
+        {
+            addBytesDone(length);
+        }
+    };
+    
+    public ZIPExtraction()
+    {
+        setDescription("Extracting...");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(Context active, Context inactive)
+    {
+        pipeline = new CopyPipeline(this);
+        List<ZipFile> archives = new ArrayList<ZipFile>();
+        List<java.io.File> temporary = new ArrayList<java.io.File>();
+        try
+        {
+            Directory dest = inactive.getCurrentDirectory();
+            List<Extraction> plan = new ArrayList<Extraction>();
+            for (File file : active.getSelectedFiles())
+            {
+                if (isCanceled())
+                {
+                    break;
+                }
+                ZipFile archive = openArchive(file, temporary);
+                archives.add(archive);
+                planExtraction(archive, dest, plan);
+            }
+            long size = 0;
+            for (Extraction extraction : plan)
+            {
+                size += Math.max(0, extraction.entry.getSize());
+            }
+            setTotals(size, plan.size());
+            sortBySize(plan);
+            int threads = (int) Settings.read("unzip.threads",
+                Runtime.getRuntime().availableProcessors());
+            runJobs(plan, threads);
+            if (pipeline.getBytes() > 0)
+            {
+                logger.info("Pipelined extraction: " + pipeline.getSummary());
+            }
+            finished();
+        }
+        catch (Exception e)
+        {
+            failed(e);
+        }
+        finally
+        {
+            for (ZipFile archive : archives)
+            {
+                closeQuietly(archive);
+            }
+            for (java.io.File file : temporary)
+            {
+                if (! file.delete())
+                {
+                    logger.warn("Cannot delete temporary file " + file);
+                }
+            }
+        }
+    }
+    
+    /*
+     * Single regular file to extract, along with its destination
+     * directory.
+     */
+    private class Extraction
+    {
+        private ZipFile archive;
+        private ZipEntry entry;
+        private Directory directory;
+        private String name;
+        
+        public Extraction(ZipFile archive, ZipEntry entry,
+            Directory directory, String name)
+        {
+            this.archive = archive;
+            this.entry = entry;
+            this.directory = directory;
+            this.name = name;
+        }
+        
+        /*
+         * Inflates the entry through the pipeline, computing its CRC on the
+         * way, and verifies the result. Unless it succeeds, the partially
+         * written file is discarded.
+         */
+        public void run() throws Exception
+        {
+            File target = directory.createChild(name);
+            setDescription("Extracting", target);
+            CRC32 crc = new CRC32();
+            ReadableByteChannel in = null;
+            WritableByteChannel out = null;
+            boolean complete = false;
+            try
+            {
+                InputStream stream = archive.getInputStream(entry);
+                in = Channels.newChannel(new CheckedInputStream(stream, crc));
+                out = openWriteChannel(target);
+                long length = pipeline.copy(in, out, progress);
+                out.close();
+                if (isCanceled())
+                {
+                    return;
+                }
+                if (entry.getSize() >= 0 && length != entry.getSize())
+                {
+                    throw new ZipException("Invalid size of " + 
+                        entry.getName() + " (expected " + entry.getSize() +
+                        " but got " + length + " bytes)");
+                }
+                if (entry.getCrc() >= 0 && crc.getValue() != entry.getCrc())
+                {
+                    throw new ZipException("CRC error in " + entry.getName());
+                }
+                complete = true;
+            }
+            finally
+            {
+                closeQuietly(in);
+                if (! complete && out != null)
+                {
+                    discard(target, out);
+                }
+            }
+            addFilesDone(1);
+        }
+    }
+    
+    /**
+     * Opens the archive directly if it's a local file, otherwise copies it
+     * to a temporary file, which is added to the list.
+     */
+    private ZipFile openArchive(File file, List<java.io.File> temporary)
+        throws Exception
+    {
+        java.io.File local = LocalFiles.toLocalFile(file);
+        if (local == null)
+        {
+            local = java.io.File.createTempFile("ultcom", ".zip");
+            temporary.add(local);
+            ReadableByteChannel in = null;
+            WritableByteChannel out = null;
+            try
+            {
+                in = Channels.newChannel(file.getInputStream());
+                out = new FileOutputStream(local).getChannel();
+                pipeline.copy(in, out, null);
+            }
+            finally
+            {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+        }
+        return new ZipFile(local);
+    }
+    
+    /**
+     * Creates directories of all the entries of the archive and adds its
+     * regular files to the plan.
+     */
+    private void planExtraction(ZipFile archive, Directory dest,
+        List<Extraction> plan) throws Exception
+    {
+        Map<String, Directory> directories = new HashMap<String, Directory>();
+        directories.put("", dest);
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements())
+        {
+            ZipEntry entry = entries.nextElement();
+            String path = normalize(entry.getName());
+            if (entry.isDirectory())
+            {
+                createDirectory(path, directories);
+            }
+            else if (! path.isEmpty())
+            {
+                int slash = path.lastIndexOf('/');
+                Directory directory = createDirectory(
+                    slash < 0 ? "" : path.substring(0, slash), directories);
+                plan.add(new Extraction(archive, entry, directory,
+                    path.substring(slash + 1)));
+            }
+        }
+    }
+    
+    /**
+     * Converts name of an entry to a relative path without empty and
+     * {@code .} segments.
+     * 
+     * @throws ZipException if the path leads outside of the destination
+     */
+    private static String normalize(String name) throws ZipException
+    {
+        StringBuilder path = new StringBuilder();
+        for (String segment : name.replace('\\', '/').split("/"))
+        {
+            if (segment.isEmpty() || segment.equals("."))
+            {
+                continue;
+            }
+            if (segment.equals(".."))
+            {
+                throw new ZipException("Entry " + name + " leads outside " +
+                    "of the destination directory");
+            }
+            if (path.length() > 0)
+            {
+                path.append('/');
+            }
+            path.append(segment);
+        }
+        return path.toString();
+    }
+    
+    /**
+     * Returns directory with a given relative path, creating it and its
+     * parents if they've not been created yet.
+     */
+    private static Directory createDirectory(String path,
+        Map<String, Directory> directories) throws Exception
+    {
+        Directory directory = directories.get(path);
+        if (directory == null)
+        {
+            int slash = path.lastIndexOf('/');
+            Directory parent = createDirectory(
+                slash < 0 ? "" : path.substring(0, slash), directories);
+            directory = parent.createChild(path.substring(slash + 1))
+                .createDirectory();
+            directories.put(path, directory);
+        }
+        return directory;
+    }
+    
+    /**
+     * Orders the plan from the largest entries, so that no worker is left
+     * with a huge one at the end.
+     */
+    private static void sortBySize(List<Extraction> plan)
+    {
+        Collections.sort(plan, new Comparator<Extraction>()
+        {
+            @Override
+            public int compare(Extraction a, Extraction b)
+            {
+                long x = a.entry.getSize();
+                long y = b.entry.getSize();
+                return x > y ? -1 : (x < y ? 1 : 0);
+            }
+        });
+    }
+    
+    /**
+     * Extracts the entries with a given number of workers, each of them
+     * taking the next one from the list. The first failure stops all of
+     * them and is rethrown.
+     */
+    private void runJobs(final List<Extraction> plan, int threads)
+        throws Exception
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Exception> failure =
+            new AtomicReference<Exception>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (int i = 0; i < threads; ++ i)
+            {
+                pool.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        int index;
+                        while (failure.get() == null && ! isCanceled() &&
+                            (index = next.getAndIncrement()) < plan.size())
+                        {
+                            try
+                            {
+                                plan.get(index).run();
+                            }
+                            catch (Exception e)
+                            {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+    }
+    
+    /**
+     * Opens channel writing to the file, or wraps its output stream if
+     * channels are not supported.
+     */
+    private static WritableByteChannel openWriteChannel(File file)
+        throws Exception
+    {
+        if (file instanceof ChannelFile)
+        {
+            return ((ChannelFile) file).getWriteChannel();
+        }
+        return Channels.newChannel(file.getOutputStream());
+    }
+    
+    /**
+     * Removes a partially extracted file. Where it cannot be deleted, it's
+     * truncated, so that it's not mistaken for a complete one.
+     */
+    private static void discard(File target, WritableByteChannel out)
+    {
+        if (out instanceof FileChannel && out.isOpen())
+        {
+            try
+            {
+                ((FileChannel) out).truncate(0);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot truncate " + target.getPath(), e);
+            }
+        }
+        closeQuietly(out);
+        LocalFiles.delete(target);
+    }
+    
+    private static void closeQuietly(Channel channel)
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Error while closing channel", e);
+            }
+        }
+    }
+    
+    private static void closeQuietly(ZipFile archive)
+    {
+        try
+        {
+            archive.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Error while closing archive " + archive.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package mlos.ultcom.ubercp;
+
+/**
+ * Implementation of ZIP update command. Adds files selected in an active
+ * panel to the existing archive 'compressed.zip' in its directory,
+ * replacing entries of files whose size or modification time changed.
+ * Entries of other files are kept as they are. If there is no such
+ * archive, it's created.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZIPCompression
+ */
+public class ZIPUpdate extends ZIPCompression
+{
+    public ZIPUpdate()
+    {
+        super(true);
+        setDescription("Updating...");
+    }
+}
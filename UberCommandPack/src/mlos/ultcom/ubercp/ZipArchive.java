@@ -0,0 +1,163 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * ZIP archive opened for reading entries in any order. Its central
+ * directory is read once, into the path trie; content of an entry is
+ * then read straight from its position in the file, so the cost does
+ * not depend on the size of the archive nor on the number of entries.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZipFileFactory
+ */
+class ZipArchive extends Archive
+{
+    private static final int BUFFER_SIZE = 64 << 10;
+    
+    private final ArchiveNode root;
+    
+    /**
+     * Opens archive stored in a whole local file.
+     * 
+     * @throws ZipException if the file is not a valid archive
+     * 
+     * @throws IOException if the file could not be read
+     */
+    public ZipArchive(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException
+    {
+        super(channel, file, temporary);
+        root = readRoot();
+    }
+    
+    /**
+     * Opens archive stored as-is in another one.
+     * 
+     * @throws ZipException if the range is not a valid archive
+     * 
+     * @throws IOException if the file could not be read
+     */
+    public ZipArchive(Archive outer, long start, long length)
+        throws IOException
+    {
+        super(outer, start, length);
+        root = readRoot();
+    }
+    
+    private ArchiveNode readRoot() throws IOException
+    {
+        return ArchiveNode.build(ZipDirectory.read(getChannel(), getStart(),
+            getLength()).getRecords());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return "zip";
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArchiveNode getRoot()
+    {
+        return root;
+    }
+    
+    /**
+     * Reads the entry from its position in the archive, inflating it if
+     * it's deflated.
+     * 
+     * @throws ZipException if the compression method is not supported
+     * 
+     * @throws IOException if the local header could not be read
+     */
+    @Override
+    public InputStream getInputStream(ArchiveEntry entry) throws IOException
+    {
+        ZipRecord record = (ZipRecord) entry;
+        InputStream data = openRange(getStart() + ZipDirectory.dataOffset(
+            getChannel(), getStart(), record), record.compressedSize);
+        if (record.method == ZipEntry.STORED)
+        {
+            return data;
+        }
+        if (record.method == ZipEntry.DEFLATED)
+        {
+            return new EntryInflaterStream(data);
+        }
+        throw new ZipException("Unsupported compression method " +
+            record.method + " of " + record.getName());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getStoredPosition(ArchiveEntry entry) throws IOException
+    {
+        ZipRecord record = (ZipRecord) entry;
+        if (record.method != ZipEntry.STORED)
+        {
+            return -1;
+        }
+        return getStart() + ZipDirectory.dataOffset(getChannel(), getStart(),
+            record);
+    }
+    
+    /*
+     * Inflating stream owning its inflater. Raw deflate data may need one
+     * byte more than the entry contains, as {@code ZipFile} does it.
+     */
+    private static class EntryInflaterStream extends InflaterInputStream
+    {
+        private boolean eof = false;
+        private boolean closed = false;
+        
+        public EntryInflaterStream(InputStream in)
+        {
+            super(in, new Inflater(true), BUFFER_SIZE);
+        }
+        
+        @Override
+        protected void fill() throws IOException
+        {
+            if (eof)
+            {
+                throw new EOFException("Unexpected end of entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len < 0)
+            {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if (! closed)
+            {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of an existing ZIP archive, read through random
+ * access: the end record is located at the end of the file, then the
+ * directory is read in one go. Entry data is not touched, so reading is
+ * fast regardless of the archive size. ZIP64 records are supported;
+ * archives split into multiple files are not.
+ * 
+ * <p>
+ * Archive may occupy a range of a larger file, e.g. a stored entry of
+ * another archive. Offsets of the directory and of the records are then
+ * relative to the start of the range.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZipRecord
+ */
+class ZipDirectory
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT = 0xffff;
+    
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+    
+    private List<ZipRecord> records;
+    private long offset;
+    private long size;
+    
+    private ZipDirectory(List<ZipRecord> records, long offset, long size)
+    {
+        this.records = records;
+        this.offset = offset;
+        this.size = size;
+    }
+    
+    /**
+     * Reads central directory of an archive.
+     * 
+     * @param channel Channel of the archive file
+     * 
+     * @throws ZipException if the file is not a valid archive
+     * 
+     * @throws IOException if the file could not be read
+     */
+    public static ZipDirectory read(FileChannel channel) throws IOException
+    {
+        return read(channel, 0, channel.size());
+    }
+    
+    /**
+     * Reads central directory of an archive occupying a range of a file.
+     * 
+     * @param channel Channel of the file
+     * 
+     * @param start Position of the archive in the file
+     * 
+     * @param length Length of the archive
+     * 
+     * @throws ZipException if the range is not a valid archive
+     * 
+     * @throws IOException if the file could not be read
+     */
+    public static ZipDirectory read(FileChannel channel, long start,
+        long length) throws IOException
+    {
+        if (length < END_SIZE)
+        {
+            throw new ZipException("Archive too short");
+        }
+        int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+        ByteBuffer tail = readFully(channel, start + length - tailLength,
+            tailLength);
+        int end = findEnd(tail);
+        long count = tail.getShort(end + 10) & 0xffff;
+        long size = tail.getInt(end + 12) & ZIP64_MAGIC;
+        long offset = tail.getInt(end + 16) & ZIP64_MAGIC;
+        long endPosition = length - tailLength + end;
+        if (count == ZIP64_MAGIC_COUNT || size == ZIP64_MAGIC ||
+            offset == ZIP64_MAGIC)
+        {
+            long zip64End = findZip64End(channel, start, endPosition);
+            if (zip64End >= 0)
+            {
+                ByteBuffer record = readFully(channel, start + zip64End,
+                    ZIP64_END_SIZE);
+                if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY)
+                {
+                    throw new ZipException("Invalid ZIP64 end record");
+                }
+                count = record.getLong(32);
+                size = record.getLong(40);
+                offset = record.getLong(48);
+            }
+        }
+        if (offset + size > endPosition || size > Integer.MAX_VALUE ||
+            count > Integer.MAX_VALUE)
+        {
+            throw new ZipException("Invalid central directory");
+        }
+        ByteBuffer directory = readFully(channel, start + offset, (int) size);
+        List<ZipRecord> records = new ArrayList<ZipRecord>((int) count);
+        for (long i = 0; i < count; ++ i)
+        {
+            records.add(readRecord(directory));
+        }
+        return new ZipDirectory(records, offset, size);
+    }
+    
+    /*
+     * Scans the tail backwards for the end record whose comment reaches
+     * the end of the file.
+     */
+    private static int findEnd(ByteBuffer tail) throws ZipException
+    {
+        for (int i = tail.limit() - END_SIZE; i >= 0; -- i)
+        {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY &&
+                i + END_SIZE + (tail.getShort(i + 20) & 0xffff) ==
+                tail.limit())
+            {
+                return i;
+            }
+        }
+        throw new ZipException("End of central directory not found");
+    }
+    
+    /*
+     * Returns position of ZIP64 end record, taken from the locator
+     * preceding the end record, or -1 if there is no locator.
+     */
+    private static long findZip64End(FileChannel channel, long start,
+        long endPosition) throws IOException
+    {
+        if (endPosition < ZIP64_LOCATOR_SIZE)
+        {
+            return -1;
+        }
+        ByteBuffer locator = readFully(channel,
+            start + endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+        if (locator.getInt(0) != ZIP64_LOCATOR)
+        {
+            return -1;
+        }
+        return locator.getLong(8);
+    }
+    
+    private static ZipRecord readRecord(ByteBuffer buffer)
+        throws ZipException
+    {
+        if (buffer.remaining() < CENTRAL_HEADER_SIZE ||
+            buffer.getInt() != CENTRAL_HEADER)
+        {
+            throw new ZipException("Invalid central directory header");
+        }
+        ZipRecord record = new ZipRecord();
+        buffer.getShort();
+        buffer.getShort();
+        record.flags = buffer.getShort() & 0xffff;
+        record.method = buffer.getShort() & 0xffff;
+        record.dosTime = buffer.getInt() & ZIP64_MAGIC;
+        record.crc = buffer.getInt() & ZIP64_MAGIC;
+        record.compressedSize = buffer.getInt() & ZIP64_MAGIC;
+        record.size = buffer.getInt() & ZIP64_MAGIC;
+        int nameLength = buffer.getShort() & 0xffff;
+        int extraLength = buffer.getShort() & 0xffff;
+        int commentLength = buffer.getShort() & 0xffff;
+        buffer.getShort();
+        buffer.getShort();
+        buffer.getInt();
+        record.offset = buffer.getInt() & ZIP64_MAGIC;
+        if (buffer.remaining() < nameLength + extraLength + commentLength)
+        {
+            throw new ZipException("Truncated central directory");
+        }
+        record.name = new byte[nameLength];
+        buffer.get(record.name);
+        int extraEnd = buffer.position() + extraLength;
+        readExtra(buffer, extraEnd, record);
+        buffer.position(extraEnd + commentLength);
+        return record;
+    }
+    
+    /*
+     * Takes the fields which did not fit in the header from the ZIP64
+     * extra field, in the order defined by the specification.
+     */
+    private static void readExtra(ByteBuffer buffer, int end,
+        ZipRecord record) throws ZipException
+    {
+        while (buffer.position() + 4 <= end)
+        {
+            int id = buffer.getShort() & 0xffff;
+            int length = buffer.getShort() & 0xffff;
+            int next = buffer.position() + length;
+            if (next > end)
+            {
+                throw new ZipException("Invalid extra field");
+            }
+            if (id == ZIP64_EXTRA)
+            {
+                if (record.size == ZIP64_MAGIC && buffer.position() + 8 <= next)
+                {
+                    record.size = buffer.getLong();
+                }
+                if (record.compressedSize == ZIP64_MAGIC &&
+                    buffer.position() + 8 <= next)
+                {
+                    record.compressedSize = buffer.getLong();
+                }
+                if (record.offset == ZIP64_MAGIC &&
+                    buffer.position() + 8 <= next)
+                {
+                    record.offset = buffer.getLong();
+                }
+            }
+            buffer.position(next);
+        }
+    }
+    
+    /**
+     * Reads local header of an entry to find where its data starts. Name
+     * and extra field of the local header may differ from the central
+     * directory ones.
+     */
+    public static long dataOffset(FileChannel channel, ZipRecord record)
+        throws IOException
+    {
+        return dataOffset(channel, 0, record);
+    }
+    
+    /**
+     * Works like {@code dataOffset(FileChannel, ZipRecord)} for an archive
+     * starting at a given position of the file. The result is relative to
+     * the start of the archive.
+     */
+    public static long dataOffset(FileChannel channel, long start,
+        ZipRecord record) throws IOException
+    {
+        ByteBuffer header = readFully(channel, start + record.offset,
+            LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER)
+        {
+            throw new ZipException("Invalid local header of " +
+                record.getName());
+        }
+        return record.offset + LOCAL_HEADER_SIZE +
+            (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+    
+    private static ByteBuffer readFully(FileChannel channel, long position,
+        int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * @return Records of all the entries, in the order of the directory
+     */
+    public List<ZipRecord> getRecords()
+    {
+        return Collections.unmodifiableList(records);
+    }
+    
+    /**
+     * @return Position of the central directory, i.e. the end of entry
+     * data
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+    
+    /**
+     * @return Size of the central directory, in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,47 @@
+package mlos.ultcom.ubercp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implementation of {@code FileFactory} for the {@code zip:} scheme,
+ * giving read-only access to the content of ZIP archives, e.g. {@code 
+ * zip:file:/home/user/a.zip!/dir/file.txt}. Central directory of an 
+ * archive is read once, so browsing it and reading single entries does 
+ * not depend on its size.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZipArchive
+ */
+public class ZipFileFactory extends ArchiveFileFactory
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme()
+    {
+        return "zip";
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Archive open(FileChannel channel, java.io.File file,
+        boolean temporary) throws IOException
+    {
+        return new ZipArchive(channel, file, temporary);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Archive open(Archive outer, long start, long length)
+        throws IOException
+    {
+        return new ZipArchive(outer, start, length);
+    }
+}
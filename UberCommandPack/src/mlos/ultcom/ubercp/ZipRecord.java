@@ -0,0 +1,94 @@
+package mlos.ultcom.ubercp;
+
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Central directory information of a single ZIP entry: everything needed
+ * to locate its data and to write its headers again, without inflating
+ * it. Names are kept as raw bytes, so entries of existing archives are
+ * rewritten exactly as they were.
+ * 
+ * @author Marcin Los
+ * 
+ * @see ZipDirectory
+ * @see ZipWriter
+ */
+class ZipRecord implements ArchiveEntry
+{
+    /** General purpose flag: names are in UTF-8 */
+    static final int UTF8_FLAG = 1 << 11;
+    
+    /** General purpose flag: sizes and CRC follow the data */
+    static final int DESCRIPTOR_FLAG = 1 << 3;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /* Legacy encoding of names, if UTF-8 flag is not set */
+    private static final Charset LEGACY = Charset.isSupported("IBM437") ?
+        Charset.forName("IBM437") : Charset.forName("ISO-8859-1");
+    
+    byte[] name;
+    int flags;
+    int method;
+    long dosTime;
+    long crc;
+    long compressedSize;
+    long size;
+    
+    /** Offset of the local header */
+    long offset;
+    
+    /**
+     * @return Name of the entry, decoded according to its flags
+     */
+    @Override
+    public String getName()
+    {
+        return new String(name, (flags & UTF8_FLAG) != 0 ? UTF8 : LEGACY);
+    }
+    
+    /**
+     * Sets the name, encoded in UTF-8.
+     */
+    public void setName(String name)
+    {
+        this.name = name.getBytes(UTF8);
+        flags |= UTF8_FLAG;
+    }
+    
+    /**
+     * @return Uncompressed size
+     */
+    @Override
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * @return Whether the entry is a directory, i.e. its name ends with
+     * a slash
+     */
+    @Override
+    public boolean isDirectory()
+    {
+        return name.length > 0 && name[name.length - 1] == '/';
+    }
+    
+    /**
+     * @return Modification time in milliseconds since the epoch, converted
+     * from the DOS format in the local time zone
+     */
+    @Override
+    public long getTime()
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set((int) ((dosTime >> 25) & 0x7f) + 1980,
+            (int) ((dosTime >> 21) & 0x0f) - 1, (int) ((dosTime >> 16) & 0x1f),
+            (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f),
+            (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,458 @@
+package mlos.ultcom.ubercp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writer of ZIP archives whose entries are compressed elsewhere. Unlike
+ * {@code ZipOutputStream}, it takes raw entry data (deflated or stored)
+ * along with its CRC and sizes, which must be known before the entry is
+ * written, so the local header is complete and no data descriptors are
+ * needed. That allows compressing entries concurrently and appending them
+ * in order.
+ * 
+ * <p>
+ * Entry is started by {@code putEntry}, followed by its raw data written
+ * with the {@code write} methods and ended by {@code closeEntry}. Names
+ * are encoded in UTF-8.
+ * 
+ * <p>
+ * Entries of existing archives are either kept where they are, by 
+ * continuing the archive in place of its central directory and adding 
+ * their records with {@code addRecord}, or copied without inflating with
+ * {@code copyEntry}.
+ * 
+ * <p>
+ * ZIP64 extensions are used only where the classic format does not 
+ * suffice: for entries of 4 GB or more (in both headers), for entries 
+ * starting beyond 4 GB (in the central directory), and for the end of 
+ * the central directory if there are 65535 entries or more, or it's 
+ * beyond 4 GB. Other archives are readable by tools without ZIP64 
+ * support.
+ * 
+ * <p>
+ * The class is not thread-safe.
+ * 
+ * @author Marcin Los
+ */
+class ZipWriter extends OutputStream
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    
+    /* Header ID of ZIP64 extended information extra field */
+    private static final int ZIP64_EXTRA = 0x0001;
+    
+    /* Version 2.0: deflate, directories */
+    private static final int VERSION = 20;
+    
+    /* Version 4.5: ZIP64 */
+    private static final int VERSION_ZIP64 = 45;
+    
+    /* Values of 32-bit and 16-bit fields meaning "see ZIP64 record" */
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+    
+    private static final int BUFFER_SIZE = 64 << 10;
+    
+    private OutputStream out;
+    private long written;
+    private Map<String, ZipRecord> records = 
+        new LinkedHashMap<String, ZipRecord>();
+    private ZipRecord current;
+    private long entryStart;
+    private boolean finished = false;
+    
+    /**
+     * @param out Stream receiving the archive. It's closed along with the
+     * writer.
+     */
+    public ZipWriter(OutputStream out)
+    {
+        this(out, 0);
+    }
+    
+    /**
+     * Creates writer continuing an existing archive, e.g. in place of its
+     * central directory.
+     * 
+     * @param out Stream receiving the archive. It's closed along with the
+     * writer.
+     * 
+     * @param position Position in the archive file at which the stream
+     * starts
+     */
+    public ZipWriter(OutputStream out, long position)
+    {
+        this.out = out;
+        written = position;
+    }
+    
+    /**
+     * Adds to the central directory an entry whose data is already in the
+     * archive file, before the position the writer started at.
+     */
+    public void addRecord(ZipRecord record)
+    {
+        records.put(record.getName(), record);
+    }
+    
+    /**
+     * Writes the local header of an entry. An entry of the same name added
+     * earlier is replaced when this one is closed.
+     * 
+     * @param entry Entry with name, method ({@code DEFLATED} or {@code
+     * STORED}), CRC, size and compressed size set; time is optional
+     * 
+     * @throws ZipException if some of the fields is missing, previous
+     * entry is not closed or limits of the format are exceeded
+     * 
+     * @throws IOException if the header could not be written
+     */
+    public void putEntry(ZipEntry entry) throws IOException
+    {
+        if (current != null)
+        {
+            throw new ZipException("Previous entry not closed");
+        }
+        if (entry.getMethod() != ZipEntry.DEFLATED &&
+            entry.getMethod() != ZipEntry.STORED)
+        {
+            throw new ZipException("Invalid method of " + entry.getName());
+        }
+        if (entry.getCrc() < 0 || entry.getSize() < 0 ||
+            entry.getCompressedSize() < 0)
+        {
+            throw new ZipException("CRC and sizes of " + entry.getName() +
+                " must be known");
+        }
+        ZipRecord record = new ZipRecord();
+        record.setName(entry.getName());
+        record.method = entry.getMethod();
+        long time = entry.getTime();
+        record.dosTime = toDosTime(time < 0 ? System.currentTimeMillis() :
+            time);
+        record.crc = entry.getCrc();
+        record.compressedSize = entry.getCompressedSize();
+        record.size = entry.getSize();
+        putRecord(record);
+    }
+    
+    /**
+     * Copies an entry from another archive without inflating it. Only the
+     * fields of the record are preserved, extra fields and comments are 
+     * not.
+     * 
+     * @param record Record read from the central directory of the source
+     * 
+     * @param source Channel of the source archive
+     */
+    public void copyEntry(ZipRecord record, FileChannel source) 
+        throws IOException
+    {
+        long position = ZipDirectory.dataOffset(source, record);
+        ZipRecord copy = new ZipRecord();
+        copy.name = record.name;
+        copy.flags = record.flags & ~ ZipRecord.DESCRIPTOR_FLAG;
+        copy.method = record.method;
+        copy.dosTime = record.dosTime;
+        copy.crc = record.crc;
+        copy.compressedSize = record.compressedSize;
+        copy.size = record.size;
+        putRecord(copy);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = position + record.compressedSize;
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int length = source.read(buffer, position);
+            if (length < 0)
+            {
+                throw new EOFException("Unexpected end of archive");
+            }
+            write(buffer.array(), 0, length);
+            position += length;
+        }
+        closeEntry();
+    }
+    
+    /*
+     * Writes the local header of a record and makes it the current one.
+     */
+    private void putRecord(ZipRecord record) throws IOException
+    {
+        record.offset = written;
+        
+        // Local header has no offset, and either both sizes are in the
+        // extra field or none
+        boolean zip64 = record.size >= ZIP64_MAGIC || 
+            record.compressedSize >= ZIP64_MAGIC;
+        writeInt(LOCAL_HEADER);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(record.flags);
+        writeShort(record.method);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        writeInt(zip64 ? ZIP64_MAGIC : record.compressedSize);
+        writeInt(zip64 ? ZIP64_MAGIC : record.size);
+        writeShort(record.name.length);
+        writeShort(zip64 ? 20 : 0);
+        write(record.name);
+        if (zip64)
+        {
+            writeShort(ZIP64_EXTRA);
+            writeShort(16);
+            writeLong(record.size);
+            writeLong(record.compressedSize);
+        }
+        
+        current = record;
+        entryStart = written;
+    }
+    
+    /**
+     * Ends the current entry.
+     * 
+     * @throws ZipException if amount of data written differs from the
+     * compressed size given in the header
+     */
+    public void closeEntry() throws IOException
+    {
+        if (current == null)
+        {
+            throw new ZipException("No entry to close");
+        }
+        long length = written - entryStart;
+        if (length != current.compressedSize)
+        {
+            throw new ZipException("Invalid entry compressed size (expected "
+                + current.compressedSize + " but got " + length + " bytes)");
+        }
+        records.remove(current.getName());
+        records.put(current.getName(), current);
+        current = null;
+    }
+    
+    /**
+     * Writes the central directory. No entries can be added afterwards.
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+        {
+            return;
+        }
+        if (current != null)
+        {
+            closeEntry();
+        }
+        long start = written;
+        for (ZipRecord record : records.values())
+        {
+            writeCentralHeader(record);
+        }
+        long size = written - start;
+        int count = records.size();
+        if (count >= ZIP64_MAGIC_COUNT || start >= ZIP64_MAGIC ||
+            size >= ZIP64_MAGIC)
+        {
+            long end = written;
+            writeInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(start);
+            
+            writeInt(ZIP64_LOCATOR);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+        writeInt(END_OF_CENTRAL_DIRECTORY);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(size, ZIP64_MAGIC));
+        writeInt(Math.min(start, ZIP64_MAGIC));
+        writeShort(0);
+        out.flush();
+        finished = true;
+    }
+    
+    /*
+     * Writes central directory header of an entry. Fields which do not fit
+     * are moved to the ZIP64 extra field, in the order given by the
+     * specification.
+     */
+    private void writeCentralHeader(ZipRecord record) throws IOException
+    {
+        boolean largeSize = record.size >= ZIP64_MAGIC;
+        boolean largeCompressedSize = record.compressedSize >= ZIP64_MAGIC;
+        boolean largeOffset = record.offset >= ZIP64_MAGIC;
+        int extraLength = (largeSize ? 8 : 0) + 
+            (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+        int version = extraLength > 0 ? VERSION_ZIP64 : VERSION;
+        writeInt(CENTRAL_HEADER);
+        writeShort(version);
+        writeShort(version);
+        writeShort(record.flags);
+        writeShort(record.method);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        writeInt(largeCompressedSize ? ZIP64_MAGIC : record.compressedSize);
+        writeInt(largeSize ? ZIP64_MAGIC : record.size);
+        writeShort(record.name.length);
+        writeShort(extraLength > 0 ? extraLength + 4 : 0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(largeOffset ? ZIP64_MAGIC : record.offset);
+        write(record.name);
+        if (extraLength > 0)
+        {
+            writeShort(ZIP64_EXTRA);
+            writeShort(extraLength);
+            if (largeSize)
+            {
+                writeLong(record.size);
+            }
+            if (largeCompressedSize)
+            {
+                writeLong(record.compressedSize);
+            }
+            if (largeOffset)
+            {
+                writeLong(record.offset);
+            }
+        }
+    }
+    
+    /**
+     * @return Position in the archive file, i.e. number of bytes written
+     * so far plus the position the writer started at
+     */
+    public long getWritten()
+    {
+        return written;
+    }
+    
+    /**
+     * @return Records of the entries in the central directory, in order
+     */
+    public Collection<ZipRecord> getRecords()
+    {
+        return Collections.unmodifiableCollection(records.values());
+    }
+    
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        ++ written;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write(b, off, len);
+        written += len;
+    }
+    
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+    
+    /**
+     * Closes the underlying stream without writing the central directory,
+     * for an archive which is going to be discarded.
+     */
+    public void abandon() throws IOException
+    {
+        finished = true;
+        out.close();
+    }
+    
+    /**
+     * Finishes the archive and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private void writeShort(int value) throws IOException
+    {
+        write(value & 0xff);
+        write((value >>> 8) & 0xff);
+    }
+    
+    private void writeInt(long value) throws IOException
+    {
+        writeShort((int) (value & 0xffff));
+        writeShort((int) ((value >>> 16) & 0xffff));
+    }
+    
+    private void writeLong(long value) throws IOException
+    {
+        writeInt(value & ZIP64_MAGIC);
+        writeInt(value >>> 32);
+    }
+    
+    /*
+     * Converts Java time to MS-DOS date and time, in local time zone.
+     * Times outside 1980-2107, which the 7-bit year cannot hold, are 
+     * clamped to the beginning of the first and the end of the last year.
+     */
+    static long toDosTime(long time)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+        if (year > 2107)
+        {
+            return (long) (2107 - 1980) << 25 | 12 << 21 | 31 << 16 |
+                23 << 11 | 59 << 5 | 59 >> 1;
+        }
+        return (long) (year - 1980) << 25 |
+            (calendar.get(Calendar.MONTH) + 1) << 21 |
+            calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+            calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+            calendar.get(Calendar.MINUTE) << 5 |
+            calendar.get(Calendar.SECOND) >> 1;
+    }
+}